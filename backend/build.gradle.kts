@@ -50,6 +50,9 @@ dependencies {
     runtimeOnly("io.jsonwebtoken:jjwt-impl:${Versions.jjwtVersion}")
     runtimeOnly("io.jsonwebtoken:jjwt-jackson:${Versions.jjwtVersion}")
 
+    // caffeine cache
+    implementation("com.github.ben-manes.caffeine:caffeine")
+
     // AWS SDK
     implementation(platform("software.amazon.awssdk:bom:${Versions.awsJavaSdkVersion}"))
     implementation("software.amazon.awssdk:s3")
@@ -1,25 +1,47 @@
 package info.skyblond.archivedag.ariteg
 
+import info.skyblond.archivedag.ariteg.config.AritegProperties
+import info.skyblond.archivedag.ariteg.config.AritegProperties.MetaProperties.MetaWriteMode
 import info.skyblond.archivedag.ariteg.model.*
 import info.skyblond.archivedag.ariteg.model.AritegObjects.newLink
 import info.skyblond.archivedag.ariteg.protos.AritegLink
 import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.gc.AritegGarbageCollector
+import info.skyblond.archivedag.ariteg.restore.AritegRestoreScheduler
+import info.skyblond.archivedag.ariteg.scrub.AritegScrubber
 import info.skyblond.archivedag.ariteg.service.AritegMetaService
 import info.skyblond.archivedag.ariteg.service.DistributedLockService
 import info.skyblond.archivedag.ariteg.storage.AritegStorageService
+import info.skyblond.archivedag.ariteg.storage.CachedAritegStorageService
 import info.skyblond.archivedag.ariteg.utils.toMultihash
+import info.skyblond.archivedag.ariteg.walker.AritegDagWalker
+import info.skyblond.archivedag.ariteg.walker.AritegSubtreeReader
 import info.skyblond.archivedag.commons.service.EtcdSimpleLock
 import io.ipfs.multihash.Multihash
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Service
-import java.util.*
+import java.util.UUID
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.atomic.AtomicReference
+import java.util.function.Consumer
 
+/**
+ * The background components are beans, see
+ * [info.skyblond.archivedag.ariteg.config.AritegComponentConfiguration].
+ * */
 @Service
 class AritegService(
     private val metaService: AritegMetaService,
     private val storageService: AritegStorageService,
-    private val lockService: DistributedLockService
+    private val lockService: DistributedLockService,
+    private val properties: AritegProperties,
+    private val dagWalker: AritegDagWalker,
+    private val subtreeReader: AritegSubtreeReader,
+    private val restoreScheduler: AritegRestoreScheduler,
+    private val garbageCollector: AritegGarbageCollector,
+    private val scrubber: AritegScrubber,
 ) {
     private val logger = LoggerFactory.getLogger(AritegService::class.java)
 
@@ -37,31 +59,156 @@ class AritegService(
         return meta.secondaryMultihash != secondary
     }
 
+    /**
+     * Same as [checkCollision], for each pair of primary and secondary
+     * in [digests], in one pass of set-based queries.
+     * */
+    fun checkCollisions(digests: List<Pair<Multihash, Multihash>>): List<Boolean?> {
+        val metas = metaService.findMetas(digests.map { it.first })
+        return digests.map { (primary, secondary) ->
+            metas[primary]?.let { it.secondaryMultihash != secondary }
+        }
+    }
+
     fun multihashExists(primary: Multihash): Boolean {
         return metaService.multihashExists(primary)
     }
 
-    private fun preWriteCheck(link: AritegLink) {
-        val multihash = link.multihash.toMultihash()
-        require(multihashExists(multihash)) { "Sub link not exists: $multihash" }
+    /**
+     * Make sure all sub links exist, using batched queries.
+     * The links are pinned against the garbage collector until the write is done.
+     * */
+    private fun preWriteCheck(links: Collection<AritegLink>): AritegGarbageCollector.Pin =
+        garbageCollector.pin(links) {
+            if (links.isEmpty()) return@pin
+            val existence = metaService.multihashesExist(links.map { it.multihash.toMultihash() })
+            existence.entries.find { !it.value }?.let {
+                throw IllegalArgumentException("Sub link not exists: ${it.key}")
+            }
+        }
+
+    /**
+     * Run [update] of pointing a ref, e.g. a record, to [link].
+     * The link must exist, and is pinned against the garbage collector
+     * until [update] returns, so a collection reading the refs before
+     * the update still marks it.
+     * */
+    fun <T> updateRef(link: AritegLink, update: () -> T): T =
+        preWriteCheck(listOf(link)).use { update() }
+
+    /**
+     * Lock the primary, then create the meta.
+     * Return true to confirm writing, the lock is kept in [lockRef]
+     * and released when the writing is done.
+     * */
+    private fun confirmWithLock(
+        primary: Multihash, secondary: Multihash, type: AritegObjectType,
+        lockRef: AtomicReference<EtcdSimpleLock?>
+    ): Boolean {
+        // lock the primary
+        val lock = lockService.getLock(primary)
+        lockRef.set(lock) // save the lock
+        lockService.lock(lock)
+        if (metaService.createNewEntity(primary, secondary)) {
+            // get true -> this is a new proto
+            logger.debug("Confirm writing {}", primary.toBase58())
+            // newly created, keep locking and confirm writing
+            return true
+        } else {
+            // get false -> the primary hash exists
+            // check storage, make sure the proto is there
+            if (storageService.queryStatus(newLink(primary, type)) == null) {
+                logger.warn("Proto {} is missing!", primary.toBase58())
+                // keep locking and confirm writing
+                return true
+            } else {
+                logger.debug("Skip writing {}", primary.toBase58())
+                // release lock and cancel current writing
+                lockService.unlock(lock).also { lockRef.set(null) }
+                return false
+            }
+        }
+    }
+
+    /**
+     * Let the database decide who creates the meta, no lock needed.
+     * Only the writer who inserted the meta confirms writing.
+     * If the meta exists but the proto is missing, the creator might be
+     * still writing, so wait it for at most `creatorWaitMs`, and not beyond
+     * `creatorTimeoutMs` after the meta is created. The waiting holds a
+     * storage thread, so it's kept short. If the proto is still missing,
+     * fall back to [confirmWithLock], so only one of the waiting writers
+     * rewrites it, which might be the same as what the creator writes.
+     *
+     * Run each step in [AritegGarbageCollector.confirmWrite],
+     * but not the waiting, so a sweep won't be held off.
+     * */
+    private fun confirmWithUpsert(
+        primary: Multihash, secondary: Multihash, type: AritegObjectType,
+        lockRef: AtomicReference<EtcdSimpleLock?>
+    ): Boolean {
+        val link = newLink(primary, type)
+        var created = false
+        val missing = garbageCollector.confirmWrite(link) {
+            created = metaService.createNewEntityAtomic(primary, secondary)
+            created || storageService.queryStatus(link) == null
+        }
+        if (created) {
+            logger.debug("Confirm writing {}", primary.toBase58())
+            return true
+        }
+        if (missing && !awaitCreator(primary, link)) {
+            logger.debug("Proto {} is still missing after waiting the creator", primary.toBase58())
+            return garbageCollector.confirmWrite(link) { confirmWithLock(primary, secondary, type, lockRef) }
+        }
+        if (missing) {
+            // written by the creator, protect it like a skipped one
+            garbageCollector.confirmWrite(link) { false }
+        }
+        logger.debug("Skip writing {}", primary.toBase58())
+        return false
+    }
+
+    /**
+     * Wait the proto of an existing meta to appear in the storage,
+     * for at most `creatorWaitMs`, and not beyond `creatorTimeoutMs`
+     * after the meta is created. Return true if the proto appears.
+     * */
+    private fun awaitCreator(primary: Multihash, link: AritegLink): Boolean {
+        // unknown means an old meta
+        val createdTime = metaService.findMeta(primary)?.createdTime ?: 0
+        val deadline = minOf(
+            createdTime + properties.meta.creatorTimeoutMs,
+            System.currentTimeMillis() + properties.meta.creatorWaitMs
+        )
+        while (System.currentTimeMillis() < deadline) {
+            if (storageService.queryStatus(link) != null) return true
+            Thread.sleep(CREATOR_POLL_INTERVAL_MS)
+        }
+        return storageService.queryStatus(link) != null
     }
 
     /**
      * Write a proto (BLOB, LIST, TREE or COMMIT) into the system.
      * This method will check with the meta db and see if we can do the
      * deduplication. It will handle meta updates etc.
+     *
+     * If the caller has already verified the hashes of this proto, pass them
+     * as [digests] so the storage won't hash the same bytes again.
+     * See [VerifiedDigests] for the requirements.
      * */
-    fun writeProto(name: String, proto: AritegObject): WriteReceipt {
-        when (proto) {
+    fun writeProto(name: String, proto: AritegObject, digests: VerifiedDigests? = null): WriteReceipt {
+        val pin: AritegGarbageCollector.Pin? = when (proto) {
             is BlobObject -> { // No need to check blob, allow duplicate write
+                null
             }
             is ListObject -> { // make sure all sub links are exists
                 proto.list.forEach {
                     require(it.type == AritegObjectType.BLOB || it.type == AritegObjectType.LIST) {
                         "Unsupported sub link type ${it.type}, allow: BLOB and LIST"
                     }
-                    preWriteCheck(it)
                 }
+                preWriteCheck(proto.list)
             }
             is TreeObject -> { // make sure all sub links are exists
                 proto.links.forEach {
@@ -72,51 +219,43 @@ class AritegService(
                     ) {
                         "Unsupported sub link type ${it.type}, allow: BLOB, LIST and TREE"
                     }
-                    preWriteCheck(it)
                 }
+                preWriteCheck(proto.links)
             }
             is CommitObject -> {
                 require(proto.authorLink.type != AritegObjectType.COMMIT) { "Author link cannot be COMMIT" }
-                preWriteCheck(proto.authorLink)
                 require(proto.parentLink.type == AritegObjectType.COMMIT) { "Parent link must be COMMIT" }
-                if (!proto.parentLink.multihash.isEmpty) {
-                    // check parent link if and only if it's not empty
-                    preWriteCheck(proto.parentLink)
-                }
                 require(proto.committedObjectLink.type != AritegObjectType.COMMIT) { "Content link cannot be COMMIT" }
-                preWriteCheck(proto.committedObjectLink)
+                // check parent link if and only if it's not empty
+                preWriteCheck(
+                    listOfNotNull(
+                        proto.authorLink,
+                        proto.parentLink.takeIf { !it.multihash.isEmpty },
+                        proto.committedObjectLink
+                    )
+                )
             }
             else -> throw IllegalStateException("Unchecked operation")
         }
         // Use AtomicReference to ensure the lock is volatile across threads
         val lockRef: AtomicReference<EtcdSimpleLock?> = AtomicReference(null)
         // check passed, do write
-        val (link, completionFuture) = storageService.store(name, proto) { primary: Multihash, secondary: Multihash ->
-            // lock the primary
-            val lock = lockService.getLock(primary)
-            lockRef.set(lock) // save the lock
-            lockService.lock(lock)
-            if (metaService.createNewEntity(primary, secondary)) {
-                // get true -> this is a new proto
-                logger.debug("Confirm writing {}", primary.toBase58())
-                // newly created, keep locking and confirm writing
-                return@store true
-            } else {
-                // get false -> the primary hash exists
-                // check storage, make sure the proto is there
-                if (storageService.queryStatus(newLink(primary, proto.getObjectType())) == null) {
-                    logger.warn("Proto {} is missing!", primary.toBase58())
-                    // keep locking and confirm writing
-                    return@store true
-                } else {
-                    logger.debug("Skip writing {}", primary.toBase58())
-                    // release lock and cancel current writing
-                    lockService.unlock(lock).also { lockRef.set(null) }
-                    return@store false
+        val (link, completionFuture) = try {
+            storageService.store(name, proto, digests) { primary: Multihash, secondary: Multihash ->
+                // a duplicated proto is protected from the running garbage collection
+                when (properties.meta.writeMode) {
+                    MetaWriteMode.ETCD_LOCK -> garbageCollector.confirmWrite(newLink(primary, proto.getObjectType())) {
+                        confirmWithLock(primary, secondary, proto.getObjectType(), lockRef)
+                    }
+                    MetaWriteMode.DB_UPSERT -> confirmWithUpsert(primary, secondary, proto.getObjectType(), lockRef)
                 }
             }
+        } catch (t: Throwable) {
+            pin?.close()
+            throw t
         }
         val future = completionFuture
+            .whenComplete { _, _ -> pin?.close() }
             .thenAccept { primary: Multihash? ->
                 if (primary != null) {
                     logger.debug("Finish writing {}", primary.toBase58())
@@ -127,6 +266,33 @@ class AritegService(
         return WriteReceipt(link, future)
     }
 
+    /**
+     * The counters of proto cache, empty if the cache is disabled.
+     * */
+    fun storageCacheStats(): Map<String, StorageCacheStats> =
+        (storageService as? CachedAritegStorageService)?.cacheStats() ?: emptyMap()
+
+    /**
+     * The counters of compression of each type, empty if the storage doesn't compress.
+     * */
+    fun storageCodecStats(): Map<String, CodecStats> = storageService.codecStats()
+
+    /**
+     * Null if the storage doesn't replicate to a remote storage.
+     * */
+    fun replicationLag(): ReplicationLag? = storageService.replicationLag()
+
+    /**
+     * Start moving protos to where they should be, e.g. after adding disks.
+     * Null if the storage doesn't need rebalancing.
+     * */
+    fun rebalanceStorage(): CompletableFuture<Long>? = storageService.rebalance()
+
+    /**
+     * Wait until the proto is replicated to the remote storage.
+     * */
+    fun awaitReplicated(link: AritegLink): CompletableFuture<Void> = storageService.awaitReplicated(link)
+
     fun readBlob(link: AritegLink): BlobObject = storageService.loadProto(link) as BlobObject
 
     fun readList(link: AritegLink): ListObject = storageService.loadProto(link) as ListObject
@@ -143,66 +309,105 @@ class AritegService(
     }
 
     /**
-     * Resolve all related links.
+     * Walk all related links, [callback] is called once for each distinct
+     * proto, possibly from multiple threads. See [AritegDagWalker].
+     *
+     * @param fullCommit true if you want to walk the history commits.
+     * @return a future completes with the number of visited protos.
+     */
+    @JvmOverloads
+    fun walkLinks(
+        link: AritegLink, fullCommit: Boolean = false, callback: Consumer<AritegLink>
+    ): CompletableFuture<Long> = dagWalker.walk(link, fullCommit, callback)
+
+    /**
+     * Resolve all related links. Each proto appears only once,
+     * the first one is the [link] itself.
      *
      * @param fullCommit true if you want to resolve the history commits.
      */
     @JvmOverloads
     fun resolveLinks(link: AritegLink, fullCommit: Boolean = false): List<AritegLink> {
-        val result: MutableList<AritegLink> = LinkedList()
-        // add the link itself
-        result.add(link)
-        when (link.type) {
-            AritegObjectType.LIST -> {
-                // add all sub links
-                val (list) = readList(link) // pattern match
-                for (aritegLink in list) {
-                    if (aritegLink.type == AritegObjectType.BLOB) {
-                        // add blob without resolve again
-                        result.add(aritegLink)
-                    } else {
-                        // resolve
-                        result.addAll(resolveLinks(aritegLink, fullCommit))
-                    }
-                }
-            }
-            AritegObjectType.TREE -> {
-                // add all sub links
-                val (links) = readTree(link) // pattern match
-                for (aritegLink in links) {
-                    if (aritegLink.type == AritegObjectType.BLOB) {
-                        // add blob without resolve again
-                        result.add(aritegLink)
-                    } else {
-                        // resolve
-                        result.addAll(resolveLinks(aritegLink, fullCommit))
-                    }
-                }
-            }
-            AritegObjectType.COMMIT -> {
-                // add parent, author, and commit target
-                // we use pattern match here, since the layout of the proto is unlikely to change
-                val (_, _, parentLink, committedObjectLink, authorLink) = readCommit(link)
-                result.addAll(resolveLinks(authorLink, fullCommit))
-                // Restore history version on condition
-                if (fullCommit && !parentLink.multihash.isEmpty) {
-                    // not the initial commit, then resolve it
-                    result.addAll(resolveLinks(parentLink, true))
-                }
-                result.addAll(resolveLinks(committedObjectLink, fullCommit))
-            }
-            else -> {} // nothing to do
+        val result = ConcurrentLinkedQueue<AritegLink>()
+        try {
+            walkLinks(link, fullCommit) { result.add(it) }.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
         }
-        return result
+        return result.toList()
     }
 
+    /**
+     * Read the subtree of [link] as files and folders in a fixed order,
+     * [callback] is called from the calling thread, return false to stop.
+     * See [AritegSubtreeReader].
+     *
+     * @return true if finished, false if stopped by the callback.
+     */
+    fun readSubtree(link: AritegLink, callback: (SubtreeEntry) -> Boolean): Boolean =
+        subtreeReader.read(link, properties.walker.prefetchSize, callback)
+
+    /**
+     * Restore all related links, in batches. See [AritegRestoreScheduler].
+     *
+     * @param fullCommit true if you want to restore the history commits.
+     * @return the job, use its futures to start reading the ready parts.
+     */
+    @JvmOverloads
+    fun startRestore(
+        link: AritegLink, tier: RestoreTier = properties.restore.tier, fullCommit: Boolean = false
+    ): AritegRestoreScheduler.RestoreJob = restoreScheduler.start(link, tier, fullCommit)
+
+    /**
+     * Null if not found, or finished for a long time.
+     * */
+    fun restoreJob(id: UUID): AritegRestoreScheduler.RestoreJob? = restoreScheduler.job(id)
+
+    /**
+     * Start a scrub pass now. See [AritegScrubber].
+     * Null if a pass is running.
+     * */
+    fun startScrub(): CompletableFuture<ScrubProgress>? = scrubber.start()
+
+    /**
+     * Stop the running scrub pass, it resumes from the checkpoint next time.
+     * */
+    fun stopScrub() = scrubber.stop()
+
+    fun scrubProgress(): ScrubProgress = scrubber.progress()
+
+    /**
+     * Start collecting the protos not reachable from [roots], which are
+     * the commits referenced by all records. See [AritegGarbageCollector].
+     * Null if a collection is running.
+     *
+     * @param dryRun only count the garbage, nothing is deleted.
+     * */
+    @JvmOverloads
+    fun startGc(
+        roots: () -> Sequence<Multihash>, dryRun: Boolean,
+        gracePeriodMs: Long = properties.gc.gracePeriodMs
+    ): CompletableFuture<GcProgress>? = garbageCollector.start(roots, dryRun, gracePeriodMs)
+
+    /**
+     * Stop the running collection after the current batch.
+     * The deleted protos are not restored.
+     * */
+    fun stopGc() = garbageCollector.stop()
+
+    fun gcProgress(): GcProgress = garbageCollector.progress()
+
     /**
      * Give a root link and resolve all related link using resolveLinks(link, false).
      */
-    @Deprecated("Not used")
+    @Deprecated("Use startRestore", ReplaceWith("startRestore(link)"))
     fun restore(link: AritegLink): RestoreReceipt {
         val links = resolveLinks(link)
         links.forEach { storageService.restoreLink(it) }
         return RestoreReceipt(links)
     }
+
+    companion object {
+        private const val CREATOR_POLL_INTERVAL_MS = 20L
+    }
 }
@@ -0,0 +1,59 @@
+package info.skyblond.archivedag.ariteg.config
+
+import info.skyblond.archivedag.ariteg.gc.AritegGarbageCollector
+import info.skyblond.archivedag.ariteg.restore.AritegRestoreScheduler
+import info.skyblond.archivedag.ariteg.scrub.AritegScrubber
+import info.skyblond.archivedag.ariteg.service.AritegMetaService
+import info.skyblond.archivedag.ariteg.storage.AritegStorageService
+import info.skyblond.archivedag.ariteg.walker.AritegDagWalker
+import info.skyblond.archivedag.ariteg.walker.AritegSubtreeReader
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import java.io.File
+
+/**
+ * This class config the background components used by
+ * [info.skyblond.archivedag.ariteg.AritegService].
+ * Each of them owns threads, and is closed by Spring before
+ * the beans it depends on, e.g. the garbage collector is closed
+ * before the dag walker, and both before the storage.
+ * */
+@Configuration
+class AritegComponentConfiguration(
+    private val properties: AritegProperties
+) {
+    @Bean(destroyMethod = "close")
+    fun dagWalker(storageService: AritegStorageService): AritegDagWalker =
+        AritegDagWalker(storageService, properties.walker.threadSize)
+
+    @Bean(destroyMethod = "close")
+    fun subtreeReader(storageService: AritegStorageService): AritegSubtreeReader =
+        AritegSubtreeReader(storageService, properties.walker.threadSize)
+
+    @Bean(destroyMethod = "close")
+    fun restoreScheduler(storageService: AritegStorageService): AritegRestoreScheduler =
+        properties.restore.let {
+            AritegRestoreScheduler(
+                storageService, it.batchSize, it.batchIntervalMs,
+                it.pollIntervalMs, it.days, it.threadSize
+            )
+        }
+
+    @Bean(destroyMethod = "close")
+    fun garbageCollector(
+        storageService: AritegStorageService,
+        metaService: AritegMetaService,
+        dagWalker: AritegDagWalker
+    ): AritegGarbageCollector = AritegGarbageCollector(
+        storageService, metaService, dagWalker, properties.gc.batchSize
+    )
+
+    @Bean(destroyMethod = "close")
+    fun scrubber(storageService: AritegStorageService, metaService: AritegMetaService): AritegScrubber =
+        properties.scrub.let {
+            AritegScrubber(
+                storageService, metaService::multihashesExist, File(it.checkpointPath),
+                it.threadSize, it.batchSize, it.bytesPerSecond, it.remote, it.intervalMs
+            )
+        }
+}
@@ -1,10 +1,22 @@
 package info.skyblond.archivedag.ariteg.config
 
+import info.skyblond.archivedag.ariteg.config.AritegProperties.ProtoStorageProperties.FileSystemProperties
+import info.skyblond.archivedag.ariteg.config.AritegProperties.ProtoStorageProperties.FileSystemProperties.SyncProperties
+import info.skyblond.archivedag.ariteg.config.AritegProperties.ProtoStorageProperties.PackFileProperties
 import info.skyblond.archivedag.ariteg.config.AritegProperties.ProtoStorageProperties.ProtoRepoType.LOCAL_FILE_SYSTEM_ONLY
+import info.skyblond.archivedag.ariteg.config.AritegProperties.ProtoStorageProperties.ProtoRepoType.LOCAL_PACK_FILE
 import info.skyblond.archivedag.ariteg.config.AritegProperties.ProtoStorageProperties.ProtoRepoType.LOCAL_WITH_S3_BACKUP
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
 import info.skyblond.archivedag.ariteg.storage.AritegFileStorageService
+import info.skyblond.archivedag.ariteg.storage.AritegMultiDiskStorageService
+import info.skyblond.archivedag.ariteg.storage.AritegPackStorageService
 import info.skyblond.archivedag.ariteg.storage.AritegS3ArchiveStorageService
 import info.skyblond.archivedag.ariteg.storage.AritegStorageService
+import info.skyblond.archivedag.ariteg.storage.AritegTieredStorageService
+import info.skyblond.archivedag.ariteg.storage.CachedAritegStorageService
+import info.skyblond.archivedag.ariteg.storage.FileLayout
+import info.skyblond.archivedag.ariteg.storage.FileSyncScheduler
+import info.skyblond.archivedag.ariteg.storage.ProtoCodec
 import info.skyblond.archivedag.commons.service.EtcdConfigService
 import io.ipfs.multihash.Multihash
 import org.slf4j.LoggerFactory
@@ -14,6 +26,7 @@ import org.springframework.context.annotation.Configuration
 import org.springframework.context.annotation.Lazy
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials
 import software.amazon.awssdk.regions.Region
+import software.amazon.awssdk.services.s3.S3AsyncClient
 import software.amazon.awssdk.services.s3.S3Client
 import java.io.File
 import java.net.URI
@@ -21,8 +34,8 @@ import java.net.URI
 /**
  * This class config the proto things.
  * It will read config from etcd and local yml file,
- * then initialize [AritegStorageService] and an optional
- * [S3Client] object.
+ * then initialize [AritegStorageService] and optional
+ * [S3Client] and [S3AsyncClient] objects.
  * */
 @Configuration
 @EnableConfigurationProperties(AritegProperties::class)
@@ -33,6 +46,15 @@ class AritegConfiguration(
     private val etcdNamespace = "ariteg/proto"
     private val logger = LoggerFactory.getLogger(AritegConfiguration::class.java)
 
+    /**
+     * Shared by all storages, so the counters cover all of them.
+     * */
+    private val codec by lazy {
+        properties.storage.compression.let {
+            ProtoCodec(it.algorithm, it.level, it.minSize, it.probeSize, it.maxProbeRatio)
+        }
+    }
+
     fun getPrimaryHashType(): Multihash.Type {
         val configKey = "primary_hash_type"
         val primary = etcdConfig.requireString(etcdNamespace, configKey)
@@ -54,10 +76,65 @@ class AritegConfiguration(
         val primaryType = getPrimaryHashType()
         val secondaryType = getSecondaryHashType()
 
-        return when (storageProperties.type) {
-            LOCAL_FILE_SYSTEM_ONLY -> resolveFileSystem(primaryType, secondaryType)
+        val mainStorage = when (storageProperties.type) {
+            LOCAL_FILE_SYSTEM_ONLY -> resolveFileSystem(primaryType, secondaryType, storageProperties.filesystem!!)
             LOCAL_WITH_S3_BACKUP -> resolveS3(primaryType, secondaryType)
+            LOCAL_PACK_FILE -> resolvePack(primaryType, secondaryType, storageProperties.pack!!)
+        }
+        val storage = if (storageProperties.tiers.isEmpty()) {
+            mainStorage
+        } else {
+            AritegTieredStorageService(mainStorage, resolveTiers(primaryType, secondaryType))
+        }
+        val cacheProperties = storageProperties.cache
+        return if (cacheProperties.enabled) {
+            CachedAritegStorageService(storage, cacheProperties.structureSize, cacheProperties.blobSize)
+        } else {
+            storage
+        }
+    }
+
+    private fun resolveTiers(
+        primary: Multihash.Type,
+        secondary: Multihash.Type
+    ): Map<AritegObjectType, AritegStorageService> {
+        val result = mutableMapOf<AritegObjectType, AritegStorageService>()
+        properties.storage.tiers.forEach { tier ->
+            logger.info("Using tier for {}", tier.types)
+            val storage = when (tier.type) {
+                LOCAL_FILE_SYSTEM_ONLY -> resolveFileSystem(
+                    primary, secondary, requireNotNull(tier.filesystem) { "Tier ${tier.types} needs filesystem" }
+                )
+                LOCAL_PACK_FILE -> resolvePack(
+                    primary, secondary, requireNotNull(tier.pack) { "Tier ${tier.types} needs pack" }
+                )
+                LOCAL_WITH_S3_BACKUP -> throw IllegalArgumentException("S3 is not supported in tiers")
+            }
+            tier.types.forEach {
+                require(result.put(it, storage) == null) { "Type $it is placed on multiple tiers" }
+            }
         }
+        return result
+    }
+
+    private fun resolvePack(
+        primary: Multihash.Type,
+        secondary: Multihash.Type,
+        packProperties: PackFileProperties
+    ): AritegStorageService {
+        logger.info("Using pack file proto storage")
+        val p = properties.storage
+        return AritegPackStorageService(
+            primaryProviderType = primary,
+            secondaryProviderType = secondary,
+            baseDir = File(packProperties.path),
+            segmentSizeLimit = packProperties.segmentSize,
+            appenderNum = packProperties.appenderCount,
+            compactionThreshold = packProperties.compactionThreshold,
+            threadNum = p.threadSize,
+            queueSize = p.queueSize,
+            codec = codec
+        )
     }
 
     private fun resolveS3(
@@ -71,37 +148,82 @@ class AritegConfiguration(
             logger.trace("Create dir: {}", baseDir.absolutePath)
         }
         val client = s3Client()
+        val replication = p.s3!!.replication
         return AritegS3ArchiveStorageService(
             primaryProviderType = primary,
             secondaryProviderType = secondary,
             baseDir = baseDir,
             s3Client = client,
-            bucketName = p.s3!!.bucketName,
+            s3AsyncClient = s3AsyncClient(),
+            bucketName = p.s3.bucketName,
             uploadStorageClass = p.s3.uploadStorageClass,
             threadNum = p.threadSize,
-            queueSize = p.queueSize
+            queueSize = p.queueSize,
+            readMode = p.filesystem.readMode,
+            journalFile = replication.journalPath?.let { File(it) } ?: File(baseDir, "replication.journal"),
+            replicationMaxInFlight = replication.maxInFlight,
+            replicationRateLimit = replication.rateLimit,
+            retryBaseDelayMs = replication.retryBaseDelayMs,
+            retryMaxDelayMs = replication.retryMaxDelayMs,
+            keyIndexEnabled = p.s3.keyIndex.enabled,
+            keyIndexStaleAfterMs = p.s3.keyIndex.staleAfterMs,
+            keyIndexRefreshIntervalMs = p.s3.keyIndex.refreshIntervalMs,
+            localCacheBytes = p.s3.localCache.maxBytes,
+            localCachePolicy = p.s3.localCache.policy,
+            pinStructural = p.s3.localCache.pinStructural,
+            fileSync = resolveFileSync(p.filesystem.sync),
+            layout = p.filesystem.layout.let { FileLayout(it.encoding, it.levels, it.width) },
+            codec = codec
         )
     }
 
     private fun resolveFileSystem(
         primary: Multihash.Type,
-        secondary: Multihash.Type
+        secondary: Multihash.Type,
+        filesystem: FileSystemProperties
     ): AritegStorageService {
         logger.info("Using file system proto storage")
         val p = properties.storage
-        val baseDir = File(p.filesystem!!.path)
+        val baseDir = File(filesystem.path)
         if (baseDir.mkdirs()) {
             logger.trace("Create dir: {}", baseDir.absolutePath)
         }
+        val layout = filesystem.layout.let { FileLayout(it.encoding, it.levels, it.width) }
+        if (filesystem.extraPaths.isNotEmpty()) {
+            return AritegMultiDiskStorageService(
+                primaryProviderType = primary,
+                secondaryProviderType = secondary,
+                baseDirs = listOf(baseDir) + filesystem.extraPaths.map { File(it) },
+                replicas = filesystem.replicas,
+                threadNum = p.threadSize,
+                queueSize = p.queueSize,
+                diskThreadNum = filesystem.diskThreadSize,
+                readMode = filesystem.readMode,
+                fileSyncFactory = { resolveFileSync(filesystem.sync) },
+                layout = layout,
+                codec = codec
+            )
+        }
         return AritegFileStorageService(
             primaryProviderType = primary,
             secondaryProviderType = secondary,
             baseDir = baseDir,
             threadNum = p.threadSize,
-            queueSize = p.queueSize
+            queueSize = p.queueSize,
+            readMode = filesystem.readMode,
+            fileSync = resolveFileSync(filesystem.sync),
+            layout = layout,
+            codec = codec
         )
     }
 
+    private fun resolveFileSync(syncProperties: SyncProperties): FileSyncScheduler? =
+        if (syncProperties.enabled) {
+            FileSyncScheduler(syncProperties.intervalMs, syncProperties.maxBytes)
+        } else {
+            null
+        }
+
     @Lazy
     @Bean
     fun s3Client(): S3Client {
@@ -125,4 +247,28 @@ class AritegConfiguration(
             }
             .build()
     }
+
+    @Lazy
+    @Bean
+    fun s3AsyncClient(): S3AsyncClient {
+        val s3Properties = properties.storage.s3!!
+        return S3AsyncClient.builder()
+            .apply {
+                s3Properties.endpoint?.let {
+                    endpointOverride(URI.create(it))
+                }
+            }
+            .region(Region.of(s3Properties.region))
+            .apply {
+                if (s3Properties.accessKey != null && s3Properties.secretKey != null) {
+                    credentialsProvider {
+                        AwsBasicCredentials.create(
+                            properties.storage.s3.accessKey,
+                            properties.storage.s3.secretKey
+                        )
+                    }
+                }
+            }
+            .build()
+    }
 }
@@ -2,6 +2,12 @@ package info.skyblond.archivedag.ariteg.config
 
 import info.skyblond.archivedag.ariteg.config.AritegProperties.ProtoStorageProperties
 import info.skyblond.archivedag.ariteg.config.AritegProperties.ProtoStorageProperties.*
+import info.skyblond.archivedag.ariteg.model.RestoreTier
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.storage.FileLayout.ShardEncoding
+import info.skyblond.archivedag.ariteg.storage.FileReadMode
+import info.skyblond.archivedag.ariteg.storage.LocalCachePolicy
+import info.skyblond.archivedag.ariteg.storage.ProtoCodec
 import org.springframework.boot.context.properties.ConfigurationProperties
 import org.springframework.boot.context.properties.ConstructorBinding
 import software.amazon.awssdk.services.s3.model.StorageClass
@@ -16,7 +22,198 @@ data class AritegProperties(
      * The storage configs. See [ProtoStorageProperties]
      * */
     val storage: ProtoStorageProperties,
+    /**
+     * The meta configs. See [MetaProperties]
+     * */
+    val meta: MetaProperties = MetaProperties(),
+    /**
+     * The DAG walker configs. See [WalkerProperties]
+     * */
+    val walker: WalkerProperties = WalkerProperties(),
+    /**
+     * The restore scheduler configs. See [RestoreProperties]
+     * */
+    val restore: RestoreProperties = RestoreProperties(),
+    /**
+     * The background scrubber configs. See [ScrubProperties]
+     * */
+    val scrub: ScrubProperties = ScrubProperties(),
+    /**
+     * The garbage collector configs. See [GcProperties]
+     * */
+    val gc: GcProperties = GcProperties(),
 ) {
+    data class GcProperties(
+        /**
+         * Protos younger than this are never collected,
+         * so the uploads in progress survive.
+         * Default: 1 day.
+         * */
+        val gracePeriodMs: Long = 24 * 60 * 60 * 1000,
+        /**
+         * How many metas are checked and deleted in one batch.
+         * The writes are held off while deleting a batch.
+         * Default: 1000.
+         * */
+        val batchSize: Int = 1000,
+    )
+
+    data class ScrubProperties(
+        /**
+         * The delay between passes, 0 means only started manually.
+         * Default: 0.
+         * */
+        val intervalMs: Long = 0,
+        /**
+         * How many protos are scrubbed at the same time.
+         * Default: 2.
+         * */
+        val threadSize: Int = 2,
+        /**
+         * How many bytes are read per second on average, 0 means no limit.
+         * Default: 16MB.
+         * */
+        val bytesPerSecond: Long = 16 * 1024 * 1024,
+        /**
+         * How many protos are checked against the meta in one query.
+         * Default: 256.
+         * */
+        val batchSize: Int = 256,
+        /**
+         * Where the cursor of an unfinished pass is saved.
+         * Default: ./scrub.checkpoint
+         * */
+        val checkpointPath: String = "./scrub.checkpoint",
+        /**
+         * Also download and verify the remote copies, costs the request fee
+         * and the traffic. Archived copies are skipped.
+         * Default: false.
+         * */
+        val remote: Boolean = false,
+    )
+
+    data class RestoreProperties(
+        /**
+         * The default restore tier. See [RestoreTier]
+         * Default: BULK.
+         * */
+        val tier: RestoreTier = RestoreTier.BULK,
+        /**
+         * How long the restored copy lasts.
+         * Default: 3.
+         * */
+        val days: Int = 3,
+        /**
+         * How many restores are submitted in one batch.
+         * Default: 100.
+         * */
+        val batchSize: Int = 100,
+        /**
+         * The interval between batches.
+         * Default: 1s.
+         * */
+        val batchIntervalMs: Long = 1000,
+        /**
+         * How often the state of ongoing restores is checked.
+         * Default: 10min.
+         * */
+        val pollIntervalMs: Long = 10 * 60 * 1000,
+        /**
+         * How many protos are checked and loaded at the same time.
+         * Default: 4.
+         * */
+        val threadSize: Int = 4,
+    )
+
+    data class WalkerProperties(
+        /**
+         * How many protos are loaded at the same time when walking the DAG.
+         * Default: 2 * CPU cores.
+         * */
+        val threadSize: Int = Runtime.getRuntime().availableProcessors() * 2,
+        /**
+         * How many blobs are loaded ahead when reading a subtree in order.
+         * Default: 32.
+         * */
+        val prefetchSize: Int = 32,
+    )
+
+    data class MetaProperties(
+        /**
+         * How to confirm a new proto. See [MetaWriteMode]
+         * */
+        val writeMode: MetaWriteMode = MetaWriteMode.ETCD_LOCK,
+        /**
+         * In [MetaWriteMode.DB_UPSERT], how long the other writers wait for
+         * the creator of the meta to write the proto, counted from the
+         * creation of the meta. The proto is rewritten if still missing.
+         * Should be longer than writing the largest proto.
+         * Default: 60s.
+         * */
+        val creatorTimeoutMs: Long = 60 * 1000,
+        /**
+         * In [MetaWriteMode.DB_UPSERT], how long a writer waits at most for
+         * the creator before falling back to the lock, since the waiting
+         * holds a storage thread. The fallback might write the proto again.
+         * Default: 200ms.
+         * */
+        val creatorWaitMs: Long = 200,
+        /**
+         * How many multihashes are checked in one query
+         * when validating the sub links.
+         * Default: 1000.
+         * */
+        val existsBatchSize: Int = 1000,
+        /**
+         * The in-process filter for primary hashes. See [BloomFilterProperties]
+         * */
+        val bloomFilter: BloomFilterProperties = BloomFilterProperties(),
+    ) {
+        data class BloomFilterProperties(
+            /**
+             * Use a bloom filter to skip the database for definite misses.
+             * The filter only sees the metas created by this instance,
+             * so enable it only when one instance writes the database.
+             * Default: false.
+             * */
+            val enabled: Boolean = false,
+            /**
+             * Where to save the filter when shutting down.
+             * Null means always rebuild from the database when starting.
+             * */
+            val path: String? = null,
+            /**
+             * The capacity of the first layer, the filter grows
+             * by doubling the capacity.
+             * Default: 1M.
+             * */
+            val initialCapacity: Long = 1024 * 1024,
+            /**
+             * The overall false positive rate.
+             * Default: 0.01.
+             * */
+            val falsePositiveRate: Double = 0.01,
+        )
+
+        enum class MetaWriteMode {
+            /**
+             * Lock the primary hash in etcd, then check and insert the meta.
+             * Works on any database, but every new proto costs a lease and a lock.
+             * */
+            ETCD_LOCK,
+
+            /**
+             * Insert the meta with `INSERT ... ON CONFLICT DO NOTHING`,
+             * the database decides which writer creates the proto.
+             * The etcd lock is only used when the meta exists but the proto
+             * is still missing from the storage after waiting the creator.
+             *
+             * Requires PostgreSQL.
+             * */
+            DB_UPSERT,
+        }
+    }
+
     data class ProtoStorageProperties(
         /**
          * Configure the storage. See [ProtoRepoType]
@@ -39,8 +236,93 @@ data class AritegProperties(
         /**
          * Config s3 client. See [S3Properties]
          * */
-        val s3: S3Properties?
+        val s3: S3Properties?,
+        /**
+         * Config pack file storage. See [PackFileProperties]
+         * */
+        val pack: PackFileProperties? = null,
+        /**
+         * Config the cache of decoded protos. See [CacheProperties]
+         * */
+        val cache: CacheProperties = CacheProperties(),
+        /**
+         * Place some types of protos on other storages. See [TierProperties]
+         * Default: empty, all protos are on the storage above.
+         * */
+        val tiers: List<TierProperties> = emptyList(),
+        /**
+         * Compress the protos on storage. See [CompressionProperties]
+         * */
+        val compression: CompressionProperties = CompressionProperties(),
     ) {
+        data class CompressionProperties(
+            /**
+             * The compression algorithm, see [ProtoCodec.Algorithm].
+             * Compressed protos can always be read, even if set to none.
+             * Default: none.
+             * */
+            val algorithm: ProtoCodec.Algorithm = ProtoCodec.Algorithm.NONE,
+            /**
+             * Compression level, from 0 to 9.
+             * Default: 1, the fastest.
+             * */
+            val level: Int = 1,
+            /**
+             * Protos smaller than this are stored raw.
+             * Default: 256 bytes.
+             * */
+            val minSize: Int = 256,
+            /**
+             * Bytes sampled from big protos to check whether they are compressible.
+             * Default: 4KB.
+             * */
+            val probeSize: Int = 4096,
+            /**
+             * Store raw if the compressed sample is larger than this ratio.
+             * Default: 0.9.
+             * */
+            val maxProbeRatio: Double = 0.9,
+        )
+
+        data class TierProperties(
+            /**
+             * The types of protos placed on this tier, e.g. LIST, TREE and COMMIT.
+             * Each type can only be placed on one tier.
+             * */
+            val types: Set<AritegObjectType>,
+            /**
+             * The storage of this tier, only local ones are supported.
+             * Default: local file system only.
+             * */
+            val type: ProtoRepoType = ProtoRepoType.LOCAL_FILE_SYSTEM_ONLY,
+            /**
+             * Used when [type] is [ProtoRepoType.LOCAL_FILE_SYSTEM_ONLY].
+             * */
+            val filesystem: FileSystemProperties? = null,
+            /**
+             * Used when [type] is [ProtoRepoType.LOCAL_PACK_FILE].
+             * */
+            val pack: PackFileProperties? = null,
+        )
+
+        data class CacheProperties(
+            /**
+             * Cache the decoded protos in memory.
+             * Default: true.
+             * */
+            val enabled: Boolean = true,
+            /**
+             * Byte budget for LIST, TREE and COMMIT.
+             * Default: 64MB.
+             * */
+            val structureSize: Long = 64 * 1024 * 1024,
+            /**
+             * Byte budget for BLOB, 0 means not caching blobs.
+             * Default: 0.
+             * */
+            val blobSize: Long = 0,
+        )
+
         enum class ProtoRepoType {
             /**
              * Store all protos on local file system.
@@ -54,13 +336,107 @@ data class AritegProperties(
              * When reading, use local copy, if missing, download from s3.
              * */
             LOCAL_WITH_S3_BACKUP,
+
+            /**
+             * Append all protos into large segment files on local file system.
+             * Use this when there are too many small protos for the file system.
+             * */
+            LOCAL_PACK_FILE,
         }
 
         data class FileSystemProperties(
             /**
              * Root path to store protos.
              * */
-            val path: String
+            val path: String,
+            /**
+             * How to read protos from files. See [FileReadMode].
+             * Default: stream.
+             * */
+            val readMode: FileReadMode = FileReadMode.STREAM,
+            /**
+             * Config the durable writing. See [SyncProperties]
+             * */
+            val sync: SyncProperties = SyncProperties(),
+            /**
+             * How the files are sharded into dirs. See [LayoutProperties]
+             * */
+            val layout: LayoutProperties = LayoutProperties(),
+            /**
+             * More root paths on other disks. If not empty, protos are
+             * striped over [path] and these paths by consistent hashing.
+             * Default: empty.
+             * */
+            val extraPaths: List<String> = emptyList(),
+            /**
+             * How many disks hold each proto, only used with [extraPaths].
+             * Default: 1.
+             * */
+            val replicas: Int = 1,
+            /**
+             * Write threads of each disk, only used with [extraPaths].
+             * Default: 2.
+             * */
+            val diskThreadSize: Int = 2,
+        ) {
+            data class LayoutProperties(
+                /**
+                 * Where the dir names come from. See [ShardEncoding]
+                 * Default: base58.
+                 * */
+                val encoding: ShardEncoding = ShardEncoding.BASE58,
+                /**
+                 * How many levels of dirs.
+                 * Default: 1.
+                 * */
+                val levels: Int = 1,
+                /**
+                 * How many chars in each dir name.
+                 * Default: 6.
+                 *
+                 * Changing the layout will migrate the existing files when starting.
+                 * */
+                val width: Int = 6,
+            )
+
+            data class SyncProperties(
+                /**
+                 * Fsync the new files and their dirs before a write is completed.
+                 * Default: true.
+                 * */
+                val enabled: Boolean = true,
+                /**
+                 * Wait this long for other writers to share one round of fsync.
+                 * Default: 10ms.
+                 * */
+                val intervalMs: Long = 10,
+                /**
+                 * Start the fsync at once if this many bytes are waiting.
+                 * Default: 4MB.
+                 * */
+                val maxBytes: Long = 4 * 1024 * 1024,
+            )
+        }
+
+        data class PackFileProperties(
+            /**
+             * Root path to store segments and index.
+             * */
+            val path: String,
+            /**
+             * A segment is sealed after it reaches this size.
+             * Default: 1GB.
+             * */
+            val segmentSize: Long = 1024 * 1024 * 1024,
+            /**
+             * How many segments are appended at the same time.
+             * */
+            val appenderCount: Int = 4,
+            /**
+             * A sealed segment is compacted when the ratio of
+             * live bytes drops below this value.
+             * */
+            val compactionThreshold: Double = 0.5,
         )
 
         data class S3Properties(
@@ -92,6 +468,84 @@ data class AritegProperties(
              * Default: standard.
              * */
             val uploadStorageClass: StorageClass = StorageClass.STANDARD,
-        )
+            /**
+             * Config the background uploading. See [ReplicationProperties]
+             * */
+            val replication: ReplicationProperties = ReplicationProperties(),
+            /**
+             * Use the local file system as a cache of S3. See [LocalCacheProperties]
+             * */
+            val localCache: LocalCacheProperties = LocalCacheProperties(),
+            /**
+             * Index the keys in bucket. See [KeyIndexProperties]
+             * */
+            val keyIndex: KeyIndexProperties = KeyIndexProperties(),
+        ) {
+            data class KeyIndexProperties(
+                /**
+                 * List the bucket when starting, and answer the status of
+                 * objects not in local from the index instead of HEAD requests.
+                 * Default: true.
+                 * */
+                val enabled: Boolean = true,
+                /**
+                 * How long the restore state of an archived object is trusted.
+                 * Default: 1h.
+                 * */
+                val staleAfterMs: Long = 60 * 60 * 1000,
+                /**
+                 * List the bucket again after this interval, 0 means only when starting.
+                 * Useful when other instances write the same bucket.
+                 * Default: 0.
+                 * */
+                val refreshIntervalMs: Long = 0,
+            )
+
+            data class LocalCacheProperties(
+                /**
+                 * Byte budget of the local copies, 0 means keep all of them.
+                 * Default: 0.
+                 * */
+                val maxBytes: Long = 0,
+                /**
+                 * Which copies are evicted first. See [LocalCachePolicy]
+                 * Default: LRU.
+                 * */
+                val policy: LocalCachePolicy = LocalCachePolicy.LRU,
+                /**
+                 * Never evict LIST, TREE and COMMIT.
+                 * Default: true.
+                 * */
+                val pinStructural: Boolean = true,
+            )
+
+            data class ReplicationProperties(
+                /**
+                 * Where to save the replication journal.
+                 * Default: `replication.journal` under the file system path.
+                 * */
+                val journalPath: String? = null,
+                /**
+                 * How many uploads run at the same time.
+                 * Default: 16.
+                 * */
+                val maxInFlight: Int = 16,
+                /**
+                 * How many uploads are started per second, 0 means unlimited.
+                 * Default: 0.
+                 * */
+                val rateLimit: Int = 0,
+                /**
+                 * The delay before the first retry, doubled for each retry.
+                 * Default: 1s.
+                 * */
+                val retryBaseDelayMs: Long = 1000,
+                /**
+                 * The max delay between retries.
+                 * Default: 5min.
+                 * */
+                val retryMaxDelayMs: Long = 5 * 60 * 1000,
+            )
+        }
     }
 }
@@ -0,0 +1,102 @@
+package info.skyblond.archivedag.ariteg.config
+
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import org.springframework.context.annotation.Configuration
+import org.springframework.context.annotation.DependsOn
+import org.springframework.jdbc.core.ConnectionCallback
+import org.springframework.jdbc.core.JdbcTemplate
+import java.sql.Types
+import javax.annotation.PostConstruct
+
+/**
+ * Configuration for migrating the legacy `proto_meta` table, which stores
+ * hashes as base58 text, into the binary one.
+ *
+ * The legacy table is renamed to `proto_meta_legacy`, then copied into
+ * the new table in batches, and dropped at last. If the process is
+ * interrupted, it continues on next startup. This runs before the servers
+ * start, so no one will read or write the metas during the migration.
+ * It depends on the entity manager, so the schema update from hibernate
+ * has been done before renaming the legacy table.
+ * */
+@Configuration
+@DependsOn("entityManagerFactory")
+class ProtoMetaMigrationConfig(
+    private val jdbcTemplate: JdbcTemplate
+) {
+    private val logger = LoggerFactory.getLogger(ProtoMetaMigrationConfig::class.java)
+    private val batchSize = 10000
+
+    /**
+     * Return the [Types] of the column, or null if not found.
+     * */
+    private fun columnType(table: String, column: String): Int? = jdbcTemplate.execute(ConnectionCallback { conn ->
+        // the case of names depends on the database
+        listOf(table, table.uppercase()).firstNotNullOfOrNull { name ->
+            conn.metaData.getColumns(null, null, name, null).use { rs ->
+                var result: Int? = null
+                while (rs.next()) {
+                    if (rs.getString("COLUMN_NAME").equals(column, ignoreCase = true)) {
+                        result = rs.getInt("DATA_TYPE")
+                    }
+                }
+                result
+            }
+        }
+    })
+
+    @PostConstruct
+    fun migrateLegacyProtoMeta() {
+        val type = columnType("proto_meta", "primary_hash")
+        if (type == Types.VARCHAR || type == Types.LONGVARCHAR || type == Types.CHAR) {
+            logger.warn("Found legacy proto_meta with base58 hashes, rename to proto_meta_legacy")
+            jdbcTemplate.execute("ALTER TABLE proto_meta RENAME TO proto_meta_legacy")
+        }
+        if (columnType("proto_meta_legacy", "primary_hash") == null) {
+            return
+        }
+        // the constraint name of legacy table is kept, so use a different one
+        jdbcTemplate.execute(
+            "CREATE TABLE IF NOT EXISTS proto_meta (" +
+                    "primary_hash bytea NOT NULL, secondary_hash bytea NOT NULL, created_time timestamp, " +
+                    "CONSTRAINT proto_meta_bytea_pkey PRIMARY KEY (primary_hash))"
+        )
+        // index names are unique in the schema, move the one declared by the entity
+        // from the legacy table, otherwise hibernate will add a duplicated index
+        jdbcTemplate.execute("DROP INDEX IF EXISTS proto_meta_created_time_idx")
+        jdbcTemplate.execute(
+            "CREATE INDEX IF NOT EXISTS proto_meta_created_time_idx ON proto_meta (created_time)"
+        )
+        copyLegacyRows()
+        jdbcTemplate.execute("DROP TABLE proto_meta_legacy")
+        logger.info("Legacy proto_meta migrated")
+    }
+
+    private fun copyLegacyRows() {
+        var lastKey = ""
+        var count = 0L
+        while (true) {
+            val rows = jdbcTemplate.query(
+                "SELECT primary_hash, secondary_hash FROM proto_meta_legacy " +
+                        "WHERE primary_hash > ? ORDER BY primary_hash LIMIT ?",
+                { rs, _ -> rs.getString(1) to rs.getString(2) },
+                lastKey, batchSize
+            )
+            if (rows.isEmpty()) break
+            jdbcTemplate.batchUpdate(
+                "INSERT INTO proto_meta (primary_hash, secondary_hash) VALUES (?, ?) " +
+                        "ON CONFLICT (primary_hash) DO NOTHING",
+                rows.map { (primary, secondary) ->
+                    arrayOf<Any>(
+                        Multihash.fromBase58(primary).toBytes(),
+                        Multihash.fromBase58(secondary).toBytes()
+                    )
+                }
+            )
+            lastKey = rows.last().first
+            count += rows.size
+            logger.info("Migrated {} proto metas", count)
+        }
+    }
+}
@@ -1,17 +1,25 @@
 package info.skyblond.archivedag.ariteg.entity
 
-import javax.persistence.Column
-import javax.persistence.Entity
-import javax.persistence.Id
-import javax.persistence.Table
+import java.sql.Timestamp
+import javax.persistence.*
 
+/**
+ * Hashes are stored as raw multihash bytes (`bytea` in PostgreSQL),
+ * which is smaller than base58 text and needs no encoding when querying.
+ *
+ * The created time is used by the garbage collector to protect young
+ * protos, it's null for the metas created before the column is added.
+ * */
 @Entity
-@Table(name = "proto_meta")
+@Table(name = "proto_meta", indexes = [Index(name = "proto_meta_created_time_idx", columnList = "created_time")])
 class ProtoMetaEntity(
     @Id
     @Column(name = "primary_hash", updatable = false)
-    val primaryHash: String,
+    val primaryHash: ByteArray,
 
     @Column(name = "secondary_hash", updatable = false, nullable = false)
-    val secondaryHash: String,
+    val secondaryHash: ByteArray,
+
+    @Column(name = "created_time", updatable = false, nullable = true)
+    val createdTime: Timestamp? = Timestamp(System.currentTimeMillis()),
 )
@@ -0,0 +1,346 @@
+package info.skyblond.archivedag.ariteg.gc
+
+import info.skyblond.archivedag.ariteg.model.AritegObjects.newLink
+import info.skyblond.archivedag.ariteg.model.GcPhase
+import info.skyblond.archivedag.ariteg.model.GcProgress
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.service.AritegMetaService
+import info.skyblond.archivedag.ariteg.storage.AritegStorageService
+import info.skyblond.archivedag.ariteg.utils.OffHeapFingerprintSet
+import info.skyblond.archivedag.ariteg.utils.toMultihash
+import info.skyblond.archivedag.ariteg.walker.AritegDagWalker
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Delete the protos not reachable from any record.
+ *
+ * A collection has two phases, both run in background while the service
+ * keeps serving:
+ * + Mark: walk from the given root commits with their full history,
+ * marking every reachable proto in an [OffHeapFingerprintSet]. The metas
+ * created within the grace period, and the links pinned by the writes
+ * in progress, are walked as roots too, so in-flight uploads survive.
+ * + Sweep: page through the metas, delete the unmarked and old ones from
+ * the storage, then delete their metas, one batch of [batchSize] at a time.
+ *
+ * Any error in marking fails the collection before deleting anything.
+ *
+ * While a collection is running, the links checked by writes are marked
+ * with their subtrees before the check returns, see [pin] and [confirmWrite].
+ * The sweep re-checks the marks of a batch while holding off the checks,
+ * and puts the garbage into [sweeping], then deletes it without the barrier.
+ * The checks touching a hash in [sweeping] wait until the batch is deleted,
+ * and marking one fails, so a proto is either marked before being chosen,
+ * or deleted before being checked. The other writes are not blocked by
+ * the storage I/O. This only covers the writes in this instance.
+ * */
+class AritegGarbageCollector(
+    private val storageService: AritegStorageService,
+    private val metaService: AritegMetaService,
+    private val dagWalker: AritegDagWalker,
+    private val batchSize: Int,
+) : AutoCloseable {
+    private val logger = LoggerFactory.getLogger(AritegGarbageCollector::class.java)
+
+    private val executor = Executors.newSingleThreadExecutor {
+        Thread(it, "garbage-collector").apply { isDaemon = true }
+    }
+
+    /**
+     * Read: checking links for a write. Write: starting a collection, choosing a batch to delete.
+     * */
+    private val barrierLock = ReentrantReadWriteLock()
+    private val pins = ConcurrentHashMap<Pin, Collection<AritegLink>>()
+
+    /**
+     * The batch being deleted by the sweep, and the future completes when
+     * it's deleted. Both are set with the barrier held.
+     * */
+    @Volatile
+    private var sweeping: Set<Multihash> = emptySet()
+
+    @Volatile
+    private var sweepDone: CompletableFuture<Void> = CompletableFuture.completedFuture(null)
+
+    init {
+        require(batchSize > 0) { "Batch size must be positive" }
+    }
+
+    private inner class GcRun(
+        val dryRun: Boolean,
+        val cutoff: Long,
+        expectedSize: Long,
+    ) {
+        val startedAt = System.currentTimeMillis()
+        val marked = OffHeapFingerprintSet(expectedSize)
+
+        @Volatile
+        var phase = GcPhase.MARKING
+
+        @Volatile
+        var stopRequested = false
+
+        @Volatile
+        var finishedAt: Long? = null
+
+        @Volatile
+        var error: String? = null
+
+        val rootCount = AtomicLong(0)
+        val protectedCount = AtomicLong(0)
+        val markedCount = AtomicLong(0)
+        val scannedCount = AtomicLong(0)
+        val garbageCount = AtomicLong(0)
+        val garbageBytes = AtomicLong(0)
+        val deletedCount = AtomicLong(0)
+
+        fun mark(link: AritegLink): CompletableFuture<Long> =
+            dagWalker.walk(link, true, { multihash ->
+                // too late to keep it, the write should fail
+                check(multihash !in sweeping) { "Proto $multihash is being deleted" }
+                marked.add(multihash)
+            }) { markedCount.incrementAndGet() }
+
+        fun progress() = GcProgress(
+            phase, dryRun, startedAt, finishedAt,
+            rootCount.get(), protectedCount.get(), markedCount.get(), marked.memoryBytes(),
+            scannedCount.get(), garbageCount.get(), garbageBytes.get(), deletedCount.get(), error
+        )
+    }
+
+    /**
+     * The running collection, or the last one.
+     * */
+    @Volatile
+    private var current: GcRun? = null
+
+    /**
+     * Keep [links] from being collected until the pin is closed.
+     * */
+    inner class Pin internal constructor() : AutoCloseable {
+        override fun close() {
+            pins.remove(this)
+        }
+    }
+
+    /**
+     * Run [check] on the [links] of a new proto, and pin them until the
+     * returned [Pin] is closed, e.g. the write is done.
+     * If a collection is running, the links are marked before returning,
+     * and the sweep can't delete them while [check] is running.
+     * If some links are being deleted, [check] runs after they are gone.
+     * */
+    fun pin(links: Collection<AritegLink>, check: () -> Unit): Pin = barrierLock.read {
+        awaitSweeping(links)
+        check()
+        val pin = Pin()
+        pins[pin] = links
+        try {
+            protect(links)
+        } catch (t: Throwable) {
+            pin.close()
+            throw t
+        }
+        pin
+    }
+
+    /**
+     * Run [confirm] of writing the proto of [link], the sweep can't choose
+     * it while running. If the write is skipped because the proto
+     * exists, the existing one is marked for the running collection.
+     * */
+    fun confirmWrite(link: AritegLink, confirm: () -> Boolean): Boolean = barrierLock.read {
+        awaitSweeping(listOf(link))
+        confirm().also { if (!it) protect(listOf(link)) }
+    }
+
+    /**
+     * Wait until the batch being deleted is gone, if it has any of [links].
+     * Must be called with the barrier held, so the batch won't change.
+     * The deletion doesn't need the barrier, so waiting with it is safe.
+     * */
+    private fun awaitSweeping(links: Collection<AritegLink>) {
+        val batch = sweeping
+        if (batch.isEmpty() || links.none { it.multihash.toMultihash() in batch }) return
+        sweepDone.join()
+    }
+
+    /**
+     * Mark the links and their subtrees for the running collection.
+     * Must be called with the barrier held.
+     * */
+    private fun protect(links: Collection<AritegLink>) {
+        val collection = current ?: return
+        if (collection.phase != GcPhase.MARKING && collection.phase != GcPhase.SWEEPING) return
+        links.filter { !it.multihash.isEmpty }.forEach { link ->
+            try {
+                collection.mark(link).get()
+            } catch (e: ExecutionException) {
+                // unable to protect, stop deleting
+                collection.stopRequested = true
+                collection.error = "Failed to mark ${link.multihash}: ${e.cause?.message}"
+                throw e.cause ?: e
+            }
+        }
+    }
+
+    /**
+     * Start a collection from the [roots], which are the commits referenced
+     * by all records. The roots are read in background, the sequence must
+     * include every ref set before the collection started. The refs set
+     * later might be missed, so they should be pinned while updating.
+     *
+     * @param dryRun only count the garbage, nothing is deleted.
+     * @param gracePeriodMs the protos younger than this are protected.
+     * @return a future completes with the progress when finished, or null if running.
+     * */
+    @Synchronized
+    fun start(roots: () -> Sequence<Multihash>, dryRun: Boolean, gracePeriodMs: Long): CompletableFuture<GcProgress>? {
+        require(gracePeriodMs >= 0) { "Grace period must not be negative" }
+        current?.let { if (it.finishedAt == null) return null }
+        val collection = GcRun(
+            dryRun, System.currentTimeMillis() - gracePeriodMs, metaService.countMetas()
+        )
+        // the writes checked before this are pinned, the later ones are marked
+        val pinned = barrierLock.write {
+            current = collection
+            pins.values.flatten()
+        }
+        logger.info("Garbage collection started, dry run: {}", dryRun)
+        return CompletableFuture.supplyAsync({
+            try {
+                mark(collection, roots, pinned)
+                if (!collection.stopRequested) sweep(collection)
+                collection.phase = if (collection.error != null) GcPhase.FAILED
+                else if (collection.stopRequested) GcPhase.STOPPED else GcPhase.FINISHED
+            } catch (t: Throwable) {
+                logger.error("Garbage collection failed", t)
+                collection.error = collection.error ?: t.message ?: t.javaClass.name
+                collection.phase = GcPhase.FAILED
+            } finally {
+                collection.finishedAt = System.currentTimeMillis()
+            }
+            logger.info("Garbage collection ended: {}", collection.progress())
+            collection.progress()
+        }, executor)
+    }
+
+    /**
+     * Stop the running collection after the current batch.
+     * */
+    fun stop() {
+        current?.stopRequested = true
+    }
+
+    fun progress(): GcProgress = current?.progress() ?: GcProgress(
+        GcPhase.IDLE, false, null, null, 0, 0, 0, 0, 0, 0, 0, 0, null
+    )
+
+    /**
+     * Find the type of the proto, and its size if known.
+     * Null if the storage doesn't have it.
+     * */
+    private fun locate(multihash: Multihash): Pair<AritegObjectType, Long?>? = SEARCH_ORDER.firstNotNullOfOrNull { type ->
+        storageService.queryStatus(newLink(multihash, type))?.let { type to it.protoSize }
+    }
+
+    private fun mark(collection: GcRun, roots: () -> Sequence<Multihash>, pinned: List<AritegLink>) {
+        val futures = ArrayList<CompletableFuture<Long>>()
+        for (root in roots()) {
+            if (collection.stopRequested) return
+            collection.rootCount.incrementAndGet()
+            futures.add(collection.mark(newLink(root, AritegObjectType.COMMIT)))
+        }
+        pinned.filter { !it.multihash.isEmpty }.forEach {
+            collection.protectedCount.incrementAndGet()
+            futures.add(collection.mark(it))
+        }
+        for (young in metaService.listCreatedSince(collection.cutoff)) {
+            if (collection.stopRequested) return
+            // not written yet, its links are pinned
+            val (type, _) = locate(young) ?: continue
+            collection.protectedCount.incrementAndGet()
+            futures.add(collection.mark(newLink(young, type)))
+        }
+        try {
+            CompletableFuture.allOf(*futures.toTypedArray()).get()
+        } catch (e: ExecutionException) {
+            throw IllegalStateException("Failed to mark: ${e.cause?.message}", e.cause ?: e)
+        }
+        logger.info(
+            "Marked {} protos from {} roots, {} protected",
+            collection.markedCount.get(), collection.rootCount.get(), collection.protectedCount.get()
+        )
+    }
+
+    private fun sweep(collection: GcRun) {
+        collection.phase = GcPhase.SWEEPING
+        var after: Multihash? = null
+        while (!collection.stopRequested) {
+            val batch = metaService.listMetas(after, batchSize)
+            if (batch.isEmpty()) break
+            after = batch.last().first
+            collection.scannedCount.addAndGet(batch.size.toLong())
+            val candidates = batch.filter { (multihash, createdTime) ->
+                (createdTime == null || createdTime < collection.cutoff) && multihash !in collection.marked
+            }.map { it.first }
+            if (candidates.isEmpty()) continue
+            if (collection.dryRun) {
+                candidates.forEach { multihash ->
+                    collection.garbageCount.incrementAndGet()
+                    locate(multihash)?.second?.let { collection.garbageBytes.addAndGet(it) }
+                }
+                continue
+            }
+            // the types and sizes are queried without holding off the writes
+            val located = candidates.associateWith { locate(it) }
+            val done = CompletableFuture<Void>()
+            val garbage = barrierLock.write {
+                // marked by the writes after listing
+                candidates.filter { it !in collection.marked }.toSet().also {
+                    sweepDone = done
+                    sweeping = it
+                }
+            }
+            try {
+                garbage.forEach { multihash ->
+                    collection.garbageCount.incrementAndGet()
+                    // the storage first, the meta without proto is collected next time
+                    located[multihash]?.let { (type, size) ->
+                        storageService.deleteProto(newLink(multihash, type))
+                        size?.let { collection.garbageBytes.addAndGet(it) }
+                    }
+                }
+                collection.deletedCount.addAndGet(metaService.deleteByPrimaryHashes(garbage).toLong())
+            } finally {
+                sweeping = emptySet()
+                done.complete(null)
+            }
+        }
+    }
+
+    override fun close() {
+        logger.info("Shutting down garbage collector")
+        stop()
+        executor.shutdownNow()
+    }
+
+    companion object {
+        /**
+         * Most protos are blobs.
+         * */
+        private val SEARCH_ORDER = listOf(
+            AritegObjectType.BLOB, AritegObjectType.LIST, AritegObjectType.TREE, AritegObjectType.COMMIT
+        )
+    }
+}
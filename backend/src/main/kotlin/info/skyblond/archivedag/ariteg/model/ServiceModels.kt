@@ -1,11 +1,16 @@
 package info.skyblond.archivedag.ariteg.model
 
 import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
 import io.ipfs.multihash.Multihash
 import java.util.concurrent.CompletableFuture
 
 data class FindMetaReceipt(
     val secondaryMultihash: Multihash,
+    /**
+     * When the meta is created, in unix millis. Null if unknown.
+     * */
+    val createdTime: Long? = null,
 )
 
 /**
@@ -37,6 +42,19 @@ data class StoreReceipt(
     val completionFuture: CompletableFuture<Multihash?>
 )
 
+/**
+ * The multihashes of a proto, which are already calculated and verified
+ * by the caller, so the storage can skip hashing the same bytes again.
+ *
+ * Both hashes must be calculated over `proto.toProto().toByteArray()`, the
+ * exact bytes the storage writes, using the storage's hash types.
+ * [secondary] can be null, then the storage will calculate it.
+ * */
+data class VerifiedDigests(
+    val primary: Multihash,
+    val secondary: Multihash? = null
+)
+
 data class StorageStatus(
     /**
      * Whether this proto is available to read.
@@ -49,3 +67,276 @@ data class StorageStatus(
      * */
     val protoSize: Long?
 )
+
+/**
+ * Counters of the proto cache.
+ * */
+data class StorageCacheStats(
+    val hitCount: Long,
+    val missCount: Long,
+    val evictionCount: Long,
+    /**
+     * Total bytes evicted.
+     * */
+    val evictionBytes: Long,
+    /**
+     * Bytes currently cached.
+     * */
+    val cachedBytes: Long,
+)
+
+/**
+ * Counters of the proto compression of one type.
+ * */
+data class CodecStats(
+    /**
+     * Total bytes before compression, only counts the encoded protos.
+     * */
+    val rawBytes: Long,
+    /**
+     * Total bytes actually stored for [rawBytes].
+     * */
+    val storedBytes: Long,
+    val compressedCount: Long,
+    /**
+     * Protos stored raw, because they are small or not compressible.
+     * */
+    val skippedCount: Long,
+    /**
+     * CPU time spent on encoding, including the probing.
+     * */
+    val encodeNanos: Long,
+    val decodeNanos: Long,
+) {
+    /**
+     * Stored bytes / raw bytes, 1.0 if nothing is encoded.
+     * */
+    val ratio: Double
+        get() = if (rawBytes == 0L) 1.0 else storedBytes.toDouble() / rawBytes
+}
+
+/**
+ * The state of a proto after scrubbing, the later ones are worse.
+ * */
+enum class ScrubState {
+    /**
+     * All copies match the multihash.
+     * */
+    OK,
+
+    /**
+     * Some copies were broken or missing, and have been repaired from a good copy.
+     * */
+    REPAIRED,
+
+    /**
+     * No copy is found.
+     * */
+    MISSING,
+
+    /**
+     * Some copies are broken and cannot be repaired.
+     * */
+    CORRUPTED,
+}
+
+data class ScrubResult(
+    val state: ScrubState,
+    /**
+     * Bytes read when scrubbing.
+     * */
+    val bytes: Long,
+)
+
+/**
+ * Progress of the current scrub pass, or the last one if not running.
+ * */
+data class ScrubProgress(
+    val running: Boolean,
+    /**
+     * Where the pass resumes from, null means from the beginning.
+     * */
+    val cursor: String?,
+    val scannedCount: Long,
+    val scannedBytes: Long,
+    val okCount: Long,
+    val repairedCount: Long,
+    val missingCount: Long,
+    val corruptedCount: Long,
+    /**
+     * Protos in the storage without meta in the database.
+     * */
+    val noMetaCount: Long,
+    /**
+     * Protos failed to scrub because of an unexpected error.
+     * */
+    val errorCount: Long,
+    /**
+     * Finished passes since the service started.
+     * */
+    val finishedPasses: Long,
+    /**
+     * Unix timestamp in millis, null if no pass finished.
+     * */
+    val lastFinishedAt: Long?,
+    /**
+     * Base58 of the latest corrupted protos.
+     * */
+    val recentCorrupted: List<String>,
+)
+
+enum class GcPhase {
+    IDLE,
+
+    /**
+     * Walking from the roots, nothing is deleted.
+     * */
+    MARKING,
+
+    /**
+     * Deleting the unmarked protos in batches.
+     * */
+    SWEEPING,
+    FINISHED,
+    STOPPED,
+    FAILED,
+}
+
+/**
+ * Progress of the current garbage collection, or the last one if not running.
+ * */
+data class GcProgress(
+    val phase: GcPhase,
+    /**
+     * Only count the garbage, nothing is deleted.
+     * */
+    val dryRun: Boolean,
+    /**
+     * Unix timestamp in millis, null if never started.
+     * */
+    val startedAt: Long?,
+    val finishedAt: Long?,
+    /**
+     * Commits referenced by the records.
+     * */
+    val rootCount: Long,
+    /**
+     * Protos younger than the grace period, and the links of the writes
+     * in progress. They are also walked as roots.
+     * */
+    val protectedCount: Long,
+    val markedCount: Long,
+    /**
+     * Off-heap bytes used by the marked set.
+     * */
+    val markMemoryBytes: Long,
+    /**
+     * Metas checked by the sweep.
+     * */
+    val scannedCount: Long,
+    val garbageCount: Long,
+    /**
+     * Bytes of the garbage, if the storage knows the size.
+     * */
+    val garbageBytes: Long,
+    val deletedCount: Long,
+    val error: String?,
+)
+
+/**
+ * A folder or a piece of file, read by
+ * [info.skyblond.archivedag.ariteg.walker.AritegSubtreeReader].
+ * */
+data class SubtreeEntry(
+    /**
+     * Relative to the root, joined by '/'. The root itself is empty.
+     * */
+    val path: String,
+    /**
+     * TREE for a folder, BLOB for a piece of file.
+     * */
+    val type: AritegObjectType,
+    /**
+     * Where the [blob] starts in the file.
+     * */
+    val offset: Long,
+    /**
+     * Null for a folder.
+     * */
+    val blob: BlobObject?,
+    /**
+     * Whether the [blob] is the last piece of the file.
+     * */
+    val endOfFile: Boolean,
+)
+
+/**
+ * How far the remote replication is behind the local storage.
+ * */
+data class ReplicationLag(
+    /**
+     * Protos written to the local but not replicated yet.
+     * */
+    val pendingCount: Long,
+    /**
+     * How long the oldest pending proto has been waiting, in millis.
+     * 0 if nothing is pending.
+     * */
+    val oldestPendingMillis: Long,
+    /**
+     * Uploads running now.
+     * */
+    val inFlightCount: Long,
+)
+
+/**
+ * How fast an archived proto is restored. Faster tiers cost more.
+ * */
+enum class RestoreTier {
+    EXPEDITED, STANDARD, BULK
+}
+
+/**
+ * Whether a proto can be read now.
+ * */
+enum class RestoreState {
+    /**
+     * Can be read now.
+     * */
+    AVAILABLE,
+
+    /**
+     * Archived, need a restore before reading.
+     * */
+    ARCHIVED,
+
+    /**
+     * Being restored.
+     * */
+    RESTORING,
+
+    /**
+     * The proto doesn't exist.
+     * */
+    NOT_FOUND,
+}
+
+/**
+ * The progress of a restore job.
+ * */
+data class RestoreJobProgress(
+    /**
+     * Distinct protos found by walking the DAG so far.
+     * */
+    val discovered: Long,
+    /**
+     * Protos can be read now.
+     * */
+    val ready: Long,
+    /**
+     * Protos waiting for restore.
+     * */
+    val restoring: Long,
+    val failed: Long,
+    val done: Boolean,
+)
@@ -3,17 +3,63 @@ package info.skyblond.archivedag.ariteg.repo
 import info.skyblond.archivedag.ariteg.entity.ProtoMetaEntity
 import org.springframework.data.jpa.repository.JpaRepository
 import org.springframework.data.jpa.repository.Modifying
+import org.springframework.data.jpa.repository.Query
+import org.springframework.data.repository.query.Param
 import org.springframework.stereotype.Repository
+import java.sql.Timestamp
 
+/**
+ * All hashes are raw multihash bytes, see [io.ipfs.multihash.Multihash.toBytes].
+ * */
 @Repository
-interface ProtoMetaRepository : JpaRepository<ProtoMetaEntity, String> {
+interface ProtoMetaRepository : JpaRepository<ProtoMetaEntity, ByteArray> {
 
-    fun findByPrimaryHash(primaryHash: String): ProtoMetaEntity?
+    fun findByPrimaryHash(primaryHash: ByteArray): ProtoMetaEntity?
 
-    fun existsByPrimaryHash(primaryHash: String): Boolean
+    fun existsByPrimaryHash(primaryHash: ByteArray): Boolean
 
-    fun existsByPrimaryHashAndSecondaryHash(primaryHash: String, secondaryHash: String): Boolean
+    @Query("SELECT p.primaryHash FROM ProtoMetaEntity p WHERE p.primaryHash IN :primaryHashes")
+    fun findExistingPrimaryHashes(@Param("primaryHashes") primaryHashes: Collection<ByteArray>): List<ByteArray>
+
+    @Query("SELECT p FROM ProtoMetaEntity p WHERE p.primaryHash IN :primaryHashes")
+    fun findAllByPrimaryHashes(@Param("primaryHashes") primaryHashes: Collection<ByteArray>): List<ProtoMetaEntity>
+
+    fun existsByPrimaryHashAndSecondaryHash(primaryHash: ByteArray, secondaryHash: ByteArray): Boolean
+
+    /**
+     * Atomically insert the meta if the primary hash not exists.
+     * Return the inserted primary hash, or empty list if conflicted.
+     * PostgreSQL only.
+     * */
+    @Query(
+        value = "INSERT INTO proto_meta (primary_hash, secondary_hash, created_time) " +
+                "VALUES (:primaryHash, :secondaryHash, :createdTime) " +
+                "ON CONFLICT (primary_hash) DO NOTHING RETURNING primary_hash",
+        nativeQuery = true
+    )
+    fun insertIfAbsent(
+        @Param("primaryHash") primaryHash: ByteArray,
+        @Param("secondaryHash") secondaryHash: ByteArray,
+        @Param("createdTime") createdTime: Timestamp
+    ): List<ByteArray>
 
     @Modifying
-    fun deleteByPrimaryHash(primaryHash: String)
+    fun deleteByPrimaryHash(primaryHash: ByteArray)
+
+    @Modifying
+    @Query("DELETE FROM ProtoMetaEntity p WHERE p.primaryHash IN :primaryHashes")
+    fun deleteByPrimaryHashes(@Param("primaryHashes") primaryHashes: Collection<ByteArray>): Int
+
+    /**
+     * Page through the metas in the order of primary hash, starting after [after].
+     * Pass an empty array to start from the beginning.
+     * */
+    @Query(
+        value = "SELECT * FROM proto_meta WHERE primary_hash > :after ORDER BY primary_hash LIMIT :limit",
+        nativeQuery = true
+    )
+    fun findBatchAfter(@Param("after") after: ByteArray, @Param("limit") limit: Int): List<ProtoMetaEntity>
+
+    @Query("SELECT p.primaryHash FROM ProtoMetaEntity p WHERE p.createdTime >= :since")
+    fun findPrimaryHashesCreatedSince(@Param("since") since: Timestamp): List<ByteArray>
 }
@@ -0,0 +1,285 @@
+package info.skyblond.archivedag.ariteg.restore
+
+import info.skyblond.archivedag.ariteg.model.RestoreJobProgress
+import info.skyblond.archivedag.ariteg.model.RestoreState
+import info.skyblond.archivedag.ariteg.model.RestoreTier
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.storage.AritegStorageService
+import info.skyblond.archivedag.ariteg.utils.toMultihash
+import info.skyblond.archivedag.ariteg.walker.AritegDagWalker
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import java.util.UUID
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Restore a whole DAG from archive.
+ *
+ * A [RestoreJob] walks the DAG from a root link, and each distinct proto
+ * is checked once. Archived protos are queued by tier, every [batchIntervalMs]
+ * at most [batchSize] restores are submitted, faster tiers first.
+ * The same proto requested by many jobs is restored only once,
+ * and a faster tier replaces the slower one.
+ *
+ * Every [pollIntervalMs], the state of submitted protos is refreshed by HEAD.
+ * A LIST, TREE or COMMIT is loaded as soon as it's available, so the walk
+ * goes deeper while the rest are still restoring.
+ * */
+class AritegRestoreScheduler(
+    private val storageService: AritegStorageService,
+    private val batchSize: Int,
+    batchIntervalMs: Long,
+    pollIntervalMs: Long,
+    private val days: Int,
+    threadNum: Int,
+) : AutoCloseable {
+    private val logger = LoggerFactory.getLogger(AritegRestoreScheduler::class.java)
+
+    private val threadCounter = AtomicInteger(0)
+    private val workerPool = ThreadPoolExecutor(
+        threadNum, threadNum, 0L, TimeUnit.MILLISECONDS, LinkedBlockingQueue()
+    ) { r -> Thread(r, "restore-worker-${threadCounter.getAndIncrement()}").also { it.isDaemon = true } }
+
+    private val executor = ScheduledThreadPoolExecutor(2, ThreadFactory {
+        Thread(it, "restore-scheduler").apply { isDaemon = true }
+    })
+
+    /**
+     * A proto waiting for restore, shared by all jobs.
+     * */
+    private class Tracked(
+        val link: AritegLink,
+        @Volatile var tier: RestoreTier,
+        /**
+         * The restore is requested, waiting for the result.
+         * */
+        @Volatile var submitted: Boolean,
+    ) {
+        val future = CompletableFuture<Void>()
+    }
+
+    private val tracked = ConcurrentHashMap<Multihash, Tracked>()
+    private val queues = RestoreTier.values().associateWith { ConcurrentLinkedQueue<Tracked>() }
+    private val jobs = ConcurrentHashMap<UUID, RestoreJob>()
+
+    init {
+        executor.scheduleWithFixedDelay(
+            this::submitBatch, batchIntervalMs, batchIntervalMs, TimeUnit.MILLISECONDS
+        )
+        executor.scheduleWithFixedDelay(
+            this::poll, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS
+        )
+    }
+
+    inner class RestoreJob internal constructor(
+        val id: UUID,
+        val root: AritegLink,
+        val tier: RestoreTier,
+        private val fullCommit: Boolean,
+    ) {
+        private inner class Node {
+            /**
+             * Completes when the proto can be read.
+             * */
+            val ready = CompletableFuture<Void>()
+
+            /**
+             * Completes when the proto and all its children can be read.
+             * */
+            val subtree = CompletableFuture<Void>()
+        }
+
+        private val nodes = ConcurrentHashMap<Multihash, Node>()
+        private val readyCount = AtomicLong(0)
+        private val failedCount = AtomicLong(0)
+
+        @Volatile
+        internal var finishedAt: Long? = null
+
+        /**
+         * Completes when the whole DAG can be read.
+         * */
+        val future: CompletableFuture<Void> = visit(root)
+
+        init {
+            future.whenComplete { _, _ -> finishedAt = System.currentTimeMillis() }
+        }
+
+        fun progress(): RestoreJobProgress {
+            val discovered = nodes.size.toLong()
+            val ready = readyCount.get()
+            val failed = failedCount.get()
+            return RestoreJobProgress(discovered, ready, discovered - ready - failed, failed, future.isDone)
+        }
+
+        /**
+         * Completes when the proto can be read.
+         * Null if the proto is not discovered by this job (yet).
+         * */
+        fun readyFuture(link: AritegLink): CompletableFuture<Void>? =
+            nodes[link.multihash.toMultihash()]?.ready
+
+        /**
+         * Completes when the proto and all its children can be read.
+         * Null if the proto is not discovered by this job (yet).
+         * */
+        fun subtreeFuture(link: AritegLink): CompletableFuture<Void>? =
+            nodes[link.multihash.toMultihash()]?.subtree
+
+        private fun visit(link: AritegLink): CompletableFuture<Void> {
+            // empty parent link of the initial commit
+            if (link.multihash.isEmpty) return CompletableFuture.completedFuture(null)
+            val node = Node()
+            nodes.putIfAbsent(link.multihash.toMultihash(), node)?.let { return it.subtree }
+            node.ready.whenComplete { _, t ->
+                if (t == null) readyCount.incrementAndGet() else failedCount.incrementAndGet()
+            }.thenComposeAsync({ expand(link) }, workerPool).whenComplete { _, t ->
+                if (t == null) node.subtree.complete(null) else node.subtree.completeExceptionally(t)
+            }
+            try {
+                workerPool.execute { checkState(link, node) }
+            } catch (t: Throwable) {
+                node.ready.completeExceptionally(t)
+            }
+            return node.subtree
+        }
+
+        private fun checkState(link: AritegLink, node: Node) {
+            try {
+                when (val state = storageService.restoreState(link)) {
+                    RestoreState.AVAILABLE -> node.ready.complete(null)
+                    RestoreState.NOT_FOUND -> node.ready.completeExceptionally(
+                        IllegalStateException("Proto ${link.multihash.toMultihash().toBase58()} not found")
+                    )
+                    else -> track(link, tier, state == RestoreState.RESTORING).whenComplete { _, t ->
+                        if (t == null) node.ready.complete(null) else node.ready.completeExceptionally(t)
+                    }
+                }
+            } catch (t: Throwable) {
+                node.ready.completeExceptionally(t)
+            }
+        }
+
+        private fun expand(link: AritegLink): CompletableFuture<Void> {
+            if (link.type == AritegObjectType.BLOB) return CompletableFuture.completedFuture(null)
+            val children = AritegDagWalker.childrenOf(storageService.loadProto(link), fullCommit)
+            return CompletableFuture.allOf(*children.map { visit(it) }.toTypedArray())
+        }
+    }
+
+    /**
+     * Start restoring the DAG from [root].
+     *
+     * @param fullCommit true if you want to restore the history commits.
+     * */
+    fun start(root: AritegLink, tier: RestoreTier, fullCommit: Boolean): RestoreJob {
+        val job = RestoreJob(UUID.randomUUID(), root, tier, fullCommit)
+        jobs[job.id] = job
+        return job
+    }
+
+    /**
+     * Finished jobs are kept for [FINISHED_JOB_TTL].
+     * */
+    fun job(id: UUID): RestoreJob? = jobs[id]
+
+    /**
+     * Queue the proto for restoring, or wait the ongoing one.
+     * */
+    private fun track(link: AritegLink, tier: RestoreTier, restoring: Boolean): CompletableFuture<Void> {
+        var enqueue = false
+        val t = tracked.compute(link.multihash.toMultihash()) { _, old ->
+            if (old == null) {
+                enqueue = !restoring
+                Tracked(link, tier, restoring)
+            } else {
+                if (tier < old.tier) {
+                    // upgrade the tier, S3 accepts a faster restore of an ongoing one
+                    old.tier = tier
+                    enqueue = true
+                }
+                old
+            }
+        }!!
+        if (enqueue) queues.getValue(tier).add(t)
+        return t.future
+    }
+
+    private fun submitBatch() {
+        var count = 0
+        // values are ordered from the fastest tier
+        for (tier in RestoreTier.values()) {
+            val queue = queues.getValue(tier)
+            while (count < batchSize) {
+                val t = queue.poll() ?: break
+                // done, or upgraded to a faster tier
+                if (t.future.isDone || t.tier != tier) continue
+                try {
+                    storageService.restoreLink(t.link, tier, days)
+                    t.submitted = true
+                    count++
+                } catch (e: IllegalStateException) {
+                    logger.error("Cannot restore {}", t.link.multihash.toMultihash().toBase58(), e)
+                    tracked.remove(t.link.multihash.toMultihash(), t)
+                    t.future.completeExceptionally(e)
+                } catch (e: Exception) {
+                    // throttled or network error, retry in the next batch
+                    logger.warn("Failed to submit restore, will retry", e)
+                    queue.add(t)
+                    return
+                }
+            }
+        }
+        if (count > 0) logger.info("Submitted {} restores", count)
+    }
+
+    private fun poll() {
+        tracked.values.filter { it.submitted }.forEach { t ->
+            if (executor.isShutdown) return
+            val multihash = t.link.multihash.toMultihash()
+            val state = try {
+                storageService.restoreState(t.link, true)
+            } catch (e: Exception) {
+                logger.warn("Failed to check the restore state of {}", multihash.toBase58(), e)
+                return@forEach
+            }
+            when (state) {
+                RestoreState.AVAILABLE -> {
+                    tracked.remove(multihash, t)
+                    t.future.complete(null)
+                }
+                RestoreState.NOT_FOUND -> {
+                    tracked.remove(multihash, t)
+                    t.future.completeExceptionally(
+                        IllegalStateException("Proto ${multihash.toBase58()} not found")
+                    )
+                }
+                RestoreState.ARCHIVED -> {
+                    // restore request lost, or the restored copy expired
+                    t.submitted = false
+                    queues.getValue(t.tier).add(t)
+                }
+                RestoreState.RESTORING -> Unit
+            }
+        }
+        val now = System.currentTimeMillis()
+        jobs.values.removeIf { job -> job.finishedAt?.let { now - it > FINISHED_JOB_TTL } ?: false }
+    }
+
+    override fun close() {
+        logger.info("Shutting down restore scheduler")
+        executor.shutdownNow()
+        workerPool.shutdownNow()
+        executor.awaitTermination(1, TimeUnit.MINUTES)
+    }
+
+    companion object {
+        /**
+         * 24 hours.
+         * */
+        const val FINISHED_JOB_TTL = 24 * 60 * 60 * 1000L
+    }
+}
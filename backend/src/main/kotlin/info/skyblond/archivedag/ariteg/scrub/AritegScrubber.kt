@@ -0,0 +1,263 @@
+package info.skyblond.archivedag.ariteg.scrub
+
+import info.skyblond.archivedag.ariteg.model.ScrubProgress
+import info.skyblond.archivedag.ariteg.model.ScrubState
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.storage.AritegStorageService
+import info.skyblond.archivedag.ariteg.storage.FileSyncScheduler
+import info.skyblond.archivedag.ariteg.utils.toMultihash
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Check all stored protos in background, find the broken ones before users do.
+ *
+ * A pass lists the protos with [AritegStorageService.listProtos], and
+ * scrubs them in batches of [batchSize] by [threadNum] threads, see
+ * [AritegStorageService.scrubProto]. Each batch is also checked against
+ * the meta in one query by [metaExists]. The bytes read are limited to
+ * [bytesPerSecond] on average, 0 means no limit.
+ *
+ * After each batch, the cursor is saved into [checkpointFile] (at most
+ * every [CHECKPOINT_INTERVAL_MS]), so a pass stopped or crashed resumes
+ * from there. The checkpoint is deleted when a pass finishes.
+ *
+ * Passes start every [intervalMs] after the last one, 0 means only
+ * started by [start].
+ * */
+class AritegScrubber(
+    private val storageService: AritegStorageService,
+    private val metaExists: (Collection<Multihash>) -> Map<Multihash, Boolean>,
+    private val checkpointFile: File,
+    threadNum: Int,
+    private val batchSize: Int,
+    private val bytesPerSecond: Long,
+    private val remote: Boolean,
+    intervalMs: Long,
+) : AutoCloseable {
+    private val logger = LoggerFactory.getLogger(AritegScrubber::class.java)
+
+    private val threadCounter = AtomicInteger(0)
+    private val workerPool = ThreadPoolExecutor(
+        threadNum, threadNum, 0L, TimeUnit.MILLISECONDS, LinkedBlockingQueue()
+    ) { r -> Thread(r, "scrub-worker-${threadCounter.getAndIncrement()}").also { it.isDaemon = true } }
+
+    private val executor = ScheduledThreadPoolExecutor(1, ThreadFactory {
+        Thread(it, "scrubber").apply { isDaemon = true }
+    })
+
+    private val running = AtomicBoolean(false)
+
+    @Volatile
+    private var stopRequested = false
+
+    @Volatile
+    private var cursor: String? = null
+    private var lastSavedAt = 0L
+
+    private val scannedCount = AtomicLong(0)
+    private val scannedBytes = AtomicLong(0)
+    private val counts = ScrubState.values().associateWith { AtomicLong(0) }
+    private val noMetaCount = AtomicLong(0)
+    private val errorCount = AtomicLong(0)
+    private val finishedPasses = AtomicLong(0)
+
+    @Volatile
+    private var lastFinishedAt: Long? = null
+    private val recentCorrupted = ConcurrentLinkedDeque<String>()
+
+    /**
+     * The time when the next byte can be read, in nanos.
+     * */
+    private var nextFreeNanos = 0L
+
+    init {
+        require(batchSize > 0) { "Batch size must be positive" }
+        if (intervalMs > 0) {
+            // resume an unfinished pass soon after starting
+            val initialDelay = if (checkpointFile.exists()) RESUME_DELAY_MS else intervalMs
+            executor.scheduleWithFixedDelay({ runPass() }, initialDelay, intervalMs, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /**
+     * Start a pass now.
+     * @return a future completes with the progress when the pass ends,
+     * or null if a pass is running.
+     * */
+    fun start(): CompletableFuture<ScrubProgress>? {
+        if (running.get()) return null
+        return CompletableFuture.supplyAsync({
+            runPass()
+            progress()
+        }, executor)
+    }
+
+    /**
+     * Stop the running pass after the current batch, the checkpoint is kept.
+     * */
+    fun stop() {
+        if (running.get()) {
+            stopRequested = true
+        }
+    }
+
+    fun progress(): ScrubProgress = ScrubProgress(
+        running = running.get(),
+        cursor = cursor,
+        scannedCount = scannedCount.get(),
+        scannedBytes = scannedBytes.get(),
+        okCount = counts.getValue(ScrubState.OK).get(),
+        repairedCount = counts.getValue(ScrubState.REPAIRED).get(),
+        missingCount = counts.getValue(ScrubState.MISSING).get(),
+        corruptedCount = counts.getValue(ScrubState.CORRUPTED).get(),
+        noMetaCount = noMetaCount.get(),
+        errorCount = errorCount.get(),
+        finishedPasses = finishedPasses.get(),
+        lastFinishedAt = lastFinishedAt,
+        recentCorrupted = recentCorrupted.toList(),
+    )
+
+    private fun runPass() {
+        if (!running.compareAndSet(false, true)) return
+        try {
+            stopRequested = false
+            cursor = loadCheckpoint()
+            resetCounters()
+            logger.info("Scrub pass started from {}", cursor ?: "the beginning")
+            val batch = ArrayList<Pair<AritegLink, String>>(batchSize)
+            val result = storageService.listProtos(cursor) { link, c ->
+                batch.add(link to c)
+                if (batch.size >= batchSize) {
+                    scrubBatch(batch)
+                    batch.clear()
+                }
+                !stopRequested
+            }
+            if (result == null) {
+                logger.warn("The storage doesn't support scrubbing")
+                return
+            }
+            if (stopRequested) {
+                saveCheckpoint()
+                logger.info("Scrub pass stopped at {}", cursor)
+                return
+            }
+            if (batch.isNotEmpty()) scrubBatch(batch)
+            checkpointFile.delete()
+            cursor = null
+            finishedPasses.incrementAndGet()
+            lastFinishedAt = System.currentTimeMillis()
+            logger.info(
+                "Scrub pass finished, {} protos, {} bytes, {} repaired, {} missing, {} corrupted",
+                scannedCount.get(), scannedBytes.get(), counts.getValue(ScrubState.REPAIRED).get(),
+                counts.getValue(ScrubState.MISSING).get(), counts.getValue(ScrubState.CORRUPTED).get()
+            )
+        } catch (t: Throwable) {
+            // resume from the last checkpoint next time
+            logger.error("Scrub pass failed at {}", cursor, t)
+            saveCheckpoint()
+        } finally {
+            running.set(false)
+        }
+    }
+
+    private fun resetCounters() {
+        scannedCount.set(0)
+        scannedBytes.set(0)
+        counts.values.forEach { it.set(0) }
+        noMetaCount.set(0)
+        errorCount.set(0)
+    }
+
+    private fun scrubBatch(batch: List<Pair<AritegLink, String>>) {
+        val existence = metaExists(batch.map { it.first.multihash.toMultihash() })
+        val futures = batch.map { (link, _) ->
+            CompletableFuture.runAsync({
+                scrubOne(link, existence[link.multihash.toMultihash()] ?: false)
+            }, workerPool)
+        }
+        CompletableFuture.allOf(*futures.toTypedArray()).join()
+        cursor = batch.last().second
+        if (System.currentTimeMillis() - lastSavedAt >= CHECKPOINT_INTERVAL_MS) {
+            saveCheckpoint()
+        }
+    }
+
+    private fun scrubOne(link: AritegLink, hasMeta: Boolean) {
+        val base58 = link.multihash.toMultihash().toBase58()
+        val result = try {
+            storageService.scrubProto(link, remote)
+        } catch (t: Throwable) {
+            logger.error("Failed to scrub {}", base58, t)
+            errorCount.incrementAndGet()
+            return
+        }
+        throttle(result.bytes)
+        scannedCount.incrementAndGet()
+        scannedBytes.addAndGet(result.bytes)
+        counts.getValue(result.state).incrementAndGet()
+        if (!hasMeta) {
+            logger.warn("Proto {} has no meta", base58)
+            noMetaCount.incrementAndGet()
+        }
+        if (result.state == ScrubState.CORRUPTED) {
+            recentCorrupted.addFirst(base58)
+            while (recentCorrupted.size > RECENT_CORRUPTED_SIZE) recentCorrupted.pollLast()
+        }
+    }
+
+    /**
+     * Reserve the time for reading [bytes], and wait until then.
+     * */
+    private fun throttle(bytes: Long) {
+        if (bytesPerSecond <= 0 || bytes <= 0) return
+        val waitNanos = synchronized(this) {
+            val now = System.nanoTime()
+            nextFreeNanos = maxOf(now, nextFreeNanos) + bytes * 1_000_000_000L / bytesPerSecond
+            nextFreeNanos - now
+        }
+        TimeUnit.NANOSECONDS.sleep(waitNanos)
+    }
+
+    private fun loadCheckpoint(): String? =
+        if (checkpointFile.exists()) checkpointFile.readText().trim().ifEmpty { null } else null
+
+    private fun saveCheckpoint() {
+        val current = cursor ?: return
+        checkpointFile.absoluteFile.parentFile.mkdirs()
+        val temp = File(checkpointFile.absoluteFile.parentFile, checkpointFile.name + ".tmp")
+        FileOutputStream(temp).use {
+            it.write(current.toByteArray())
+            it.fd.sync()
+        }
+        Files.move(
+            temp.toPath(), checkpointFile.toPath(),
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING
+        )
+        FileSyncScheduler.syncDir(checkpointFile.absoluteFile.parentFile)
+        lastSavedAt = System.currentTimeMillis()
+    }
+
+    override fun close() {
+        logger.info("Shutting down scrubber")
+        stop()
+        executor.shutdown()
+        executor.awaitTermination(1, TimeUnit.MINUTES)
+        workerPool.shutdownNow()
+    }
+
+    companion object {
+        const val CHECKPOINT_INTERVAL_MS = 10 * 1000L
+        const val RESUME_DELAY_MS = 60 * 1000L
+        const val RECENT_CORRUPTED_SIZE = 100
+    }
+}
@@ -1,34 +1,71 @@
 package info.skyblond.archivedag.ariteg.service
 
+import info.skyblond.archivedag.ariteg.config.AritegProperties
 import info.skyblond.archivedag.ariteg.entity.ProtoMetaEntity
 import info.skyblond.archivedag.ariteg.model.FindMetaReceipt
 import info.skyblond.archivedag.ariteg.repo.ProtoMetaRepository
 import info.skyblond.archivedag.commons.EntityNotFoundException
 import io.ipfs.multihash.Multihash
 import org.springframework.stereotype.Service
+import java.sql.Timestamp
 import javax.transaction.Transactional
 
 @Service
 class AritegMetaService(
     private val metaRepository: ProtoMetaRepository,
+    private val properties: AritegProperties,
+    private val filterService: MultihashFilterService,
 ) {
     /**
      * Query the object type and mediaType.
      * Return null if not find.
      */
     fun findMeta(primary: Multihash): FindMetaReceipt? {
-        val meta = metaRepository.findByPrimaryHash(primary.toBase58())
+        if (!filterService.mightExist(primary)) return null
+        val meta = metaRepository.findByPrimaryHash(primary.toBytes())
         return if (meta == null) {
             null
         } else {
             FindMetaReceipt(
-                Multihash.fromBase58(meta.secondaryHash)
+                Multihash.deserialize(meta.secondaryHash),
+                meta.createdTime?.time
             )
         }
     }
 
     fun multihashExists(primary: Multihash): Boolean {
-        return metaRepository.existsByPrimaryHash(primary.toBase58())
+        if (!filterService.mightExist(primary)) return false
+        return metaRepository.existsByPrimaryHash(primary.toBytes())
+    }
+
+    /**
+     * Check a bunch of primary hashes with set-based queries.
+     * Each query checks at most `ariteg.meta.exists-batch-size` hashes.
+     * Return the existence of every given primary hash.
+     */
+    fun multihashesExist(primaries: Collection<Multihash>): Map<Multihash, Boolean> {
+        val distinct = primaries.toSet()
+        val existing = HashSet<Multihash>()
+        // definite misses won't be queried
+        distinct.filter { filterService.mightExist(it) }.chunked(properties.meta.existsBatchSize).forEach { chunk ->
+            metaRepository.findExistingPrimaryHashes(chunk.map { it.toBytes() })
+                .forEach { existing.add(Multihash.deserialize(it)) }
+        }
+        return distinct.associateWith { existing.contains(it) }
+    }
+
+    /**
+     * Find the metas of a bunch of primary hashes, batched like [multihashesExist].
+     * The not found ones are not in the result.
+     */
+    fun findMetas(primaries: Collection<Multihash>): Map<Multihash, FindMetaReceipt> {
+        val result = HashMap<Multihash, FindMetaReceipt>()
+        primaries.toSet().filter { filterService.mightExist(it) }.chunked(properties.meta.existsBatchSize).forEach { chunk ->
+            metaRepository.findAllByPrimaryHashes(chunk.map { it.toBytes() }).forEach {
+                result[Multihash.deserialize(it.primaryHash)] = FindMetaReceipt(Multihash.deserialize(it.secondaryHash))
+            }
+        }
+        return result
     }
 
     /**
@@ -41,31 +78,85 @@ class AritegMetaService(
         primaryHash: Multihash,
         secondaryHash: Multihash
     ): Boolean {
-        val primaryBase58 = primaryHash.toBase58()
-        val secondaryBase58 = secondaryHash.toBase58()
-        if (metaRepository.existsByPrimaryHash(primaryBase58)) {
+        filterService.put(primaryHash)
+        val primaryBytes = primaryHash.toBytes()
+        val secondaryBytes = secondaryHash.toBytes()
+        if (metaRepository.existsByPrimaryHash(primaryBytes)) {
             // primary hash exist, check the secondary
-            return if (metaRepository.existsByPrimaryHashAndSecondaryHash(primaryBase58, secondaryBase58)) {
+            return if (metaRepository.existsByPrimaryHashAndSecondaryHash(primaryBytes, secondaryBytes)) {
                 // if the secondary hash is same too, then return false
                 false
             } else {
                 // if secondary hash not exists, then report hash collision
-                throw IllegalStateException("Hash collision detected: $primaryBase58")
+                throw IllegalStateException("Hash collision detected: ${primaryHash.toBase58()}")
             }
         }
-        val entity = ProtoMetaEntity(primaryBase58, secondaryBase58)
+        val entity = ProtoMetaEntity(primaryBytes, secondaryBytes)
         metaRepository.save(entity)
         return true
     }
 
+    /**
+     * Atomically save new entry if the primary hash is not exists.
+     * No lock is needed: when racing, only one caller gets true.
+     * Return false if the primary hash has already existed with the same
+     * secondary hash, throw [IllegalStateException] if collided.
+     */
+    @Transactional
+    fun createNewEntityAtomic(
+        primaryHash: Multihash,
+        secondaryHash: Multihash
+    ): Boolean {
+        filterService.put(primaryHash)
+        val primaryBytes = primaryHash.toBytes()
+        val secondaryBytes = secondaryHash.toBytes()
+        if (metaRepository.insertIfAbsent(primaryBytes, secondaryBytes, Timestamp(System.currentTimeMillis())).isNotEmpty()) {
+            return true
+        }
+        // primary hash exist, check the secondary
+        val meta = metaRepository.findByPrimaryHash(primaryBytes)
+            ?: throw IllegalStateException("Meta of ${primaryHash.toBase58()} is deleted during insertion")
+        if (!meta.secondaryHash.contentEquals(secondaryBytes)) {
+            throw IllegalStateException("Hash collision detected: ${primaryHash.toBase58()}")
+        }
+        return false
+    }
+
     /**
      * Delete proto's meta and return the deleted one. Return null if not found.
      */
     @Transactional
     fun deleteByPrimaryHash(primary: Multihash) {
-        if (!metaRepository.existsByPrimaryHash(primary.toBase58())) {
+        // the filter cannot remove elements, deleted ones are false positives
+        if (!metaRepository.existsByPrimaryHash(primary.toBytes())) {
             throw EntityNotFoundException("Proto " + primary.toBase58())
         }
-        metaRepository.deleteByPrimaryHash(primary.toBase58())
+        metaRepository.deleteByPrimaryHash(primary.toBytes())
+    }
+
+    /**
+     * Page through all metas in the order of primary hash, starting after [after].
+     * Null means from the beginning. Return pairs of primary hash and created
+     * time, the created time is null for the metas created before it's recorded.
+     * */
+    fun listMetas(after: Multihash?, limit: Int): List<Pair<Multihash, Long?>> =
+        metaRepository.findBatchAfter(after?.toBytes() ?: ByteArray(0), limit)
+            .map { Multihash.deserialize(it.primaryHash) to it.createdTime?.time }
+
+    /**
+     * The primary hashes of the metas created at or after [since] (unix millis).
+     * */
+    fun listCreatedSince(since: Long): List<Multihash> =
+        metaRepository.findPrimaryHashesCreatedSince(Timestamp(since)).map { Multihash.deserialize(it) }
+
+    fun countMetas(): Long = metaRepository.count()
+
+    /**
+     * Delete the metas in one query, return the count of deleted ones.
+     * */
+    @Transactional
+    fun deleteByPrimaryHashes(primaries: Collection<Multihash>): Int {
+        if (primaries.isEmpty()) return 0
+        return metaRepository.deleteByPrimaryHashes(primaries.map { it.toBytes() })
     }
 }
@@ -0,0 +1,135 @@
+package info.skyblond.archivedag.ariteg.service
+
+import info.skyblond.archivedag.ariteg.config.AritegProperties
+import info.skyblond.archivedag.ariteg.utils.ScalableBloomFilter
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import org.springframework.context.annotation.DependsOn
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.stereotype.Service
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import javax.annotation.PostConstruct
+import javax.annotation.PreDestroy
+
+/**
+ * A bloom filter over all primary hashes in `proto_meta`,
+ * so definite misses can skip the database.
+ *
+ * When starting, the filter is loaded from the saved file if the row count
+ * still matches, otherwise it's rebuilt from the database in background.
+ * Before the filter is ready, every query is treated as a possible hit.
+ * The saved file is deleted after loading, so a crash won't leave a stale
+ * filter, and it is saved again when shutting down.
+ *
+ * Deleted hashes stay in the filter, which only costs a database query.
+ * */
+@Service
+@DependsOn("protoMetaMigrationConfig")
+class MultihashFilterService(
+    properties: AritegProperties,
+    private val jdbcTemplate: JdbcTemplate
+) {
+    private val logger = LoggerFactory.getLogger(MultihashFilterService::class.java)
+    private val filterProperties = properties.meta.bloomFilter
+    private val file = filterProperties.path?.let { File(it) }
+    private val batchSize = 100000
+
+    @Volatile
+    private var filter = ScalableBloomFilter(filterProperties.initialCapacity, filterProperties.falsePositiveRate)
+
+    @Volatile
+    private var ready = false
+
+    private fun countRows(): Long =
+        jdbcTemplate.queryForObject("SELECT count(*) FROM proto_meta", Long::class.java)!!
+
+    @PostConstruct
+    fun init() {
+        if (!filterProperties.enabled) return
+        if (loadFromFile()) {
+            ready = true
+            return
+        }
+        Thread({
+            try {
+                populateFromDatabase()
+                ready = true
+            } catch (t: Throwable) {
+                logger.error("Failed to populate the multihash filter, the filter is disabled", t)
+            }
+        }, "multihash-filter-populate").also { it.isDaemon = true }.start()
+    }
+
+    private fun loadFromFile(): Boolean {
+        if (file == null || !file.exists()) return false
+        try {
+            DataInputStream(BufferedInputStream(file.inputStream())).use { input ->
+                val rowCount = input.readLong()
+                val loaded = ScalableBloomFilter.readFrom(input)
+                val currentCount = countRows()
+                if (rowCount != currentCount) {
+                    logger.warn("Saved multihash filter is stale: {} rows, but database has {}", rowCount, currentCount)
+                    return false
+                }
+                filter = loaded
+                logger.info("Loaded multihash filter with {} rows", rowCount)
+                return true
+            }
+        } catch (e: IOException) {
+            logger.warn("Failed to load multihash filter from {}", file.canonicalPath, e)
+            return false
+        } finally {
+            if (!file.delete()) logger.warn("Failed to delete {}", file.canonicalPath)
+        }
+    }
+
+    private fun populateFromDatabase() {
+        logger.info("Populating multihash filter from database")
+        var lastKey = ByteArray(0)
+        var count = 0L
+        while (true) {
+            val keys = jdbcTemplate.query(
+                "SELECT primary_hash FROM proto_meta WHERE primary_hash > ? ORDER BY primary_hash LIMIT ?",
+                { rs, _ -> rs.getBytes(1) }, lastKey, batchSize
+            )
+            if (keys.isEmpty()) break
+            keys.forEach { filter.put(it) }
+            lastKey = keys.last()
+            count += keys.size
+        }
+        logger.info("Multihash filter populated with {} rows", count)
+    }
+
+    @PreDestroy
+    fun save() {
+        if (!filterProperties.enabled || !ready || file == null) return
+        val tempFile = File(file.parentFile, file.name + ".tmp")
+        file.absoluteFile.parentFile.mkdirs()
+        DataOutputStream(BufferedOutputStream(tempFile.outputStream())).use { output ->
+            output.writeLong(countRows())
+            filter.writeTo(output)
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        logger.info("Multihash filter saved to {}", file.canonicalPath)
+    }
+
+    /**
+     * Return false if the primary hash is definitely not in the database.
+     * Always return true if the filter is disabled or not ready.
+     * */
+    fun mightExist(primary: Multihash): Boolean {
+        if (!filterProperties.enabled || !ready) return true
+        return filter.mightContain(primary.toBytes())
+    }
+
+    /**
+     * Add the primary hash. Call this before inserting it into the database,
+     * so no query sees a miss after the row is committed.
+     * */
+    fun put(primary: Multihash) {
+        if (!filterProperties.enabled) return
+        filter.put(primary.toBytes())
+    }
+}
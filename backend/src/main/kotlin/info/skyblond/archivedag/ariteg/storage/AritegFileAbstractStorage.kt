@@ -1,6 +1,8 @@
 package info.skyblond.archivedag.ariteg.storage
 
 import com.google.protobuf.ByteString
+import com.google.protobuf.CodedInputStream
+import com.google.protobuf.UnsafeByteOperations
 import info.skyblond.archivedag.ariteg.model.*
 import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
 import info.skyblond.archivedag.ariteg.protos.*
@@ -8,6 +10,12 @@ import info.skyblond.archivedag.ariteg.utils.toMultihash
 import io.ipfs.multihash.Multihash
 import org.slf4j.LoggerFactory
 import java.io.File
+import java.io.FileNotFoundException
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.UUID
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.Executor
 import java.util.function.BiFunction
@@ -16,64 +24,97 @@ abstract class AritegFileAbstractStorage(
     primaryProviderType: Multihash.Type,
     secondaryProviderType: Multihash.Type,
     private val baseDir: File,
+    private val readMode: FileReadMode,
+    private val fileSync: FileSyncScheduler?,
+    layout: FileLayout,
+    protected val codec: ProtoCodec,
 ) : AritegStorageService {
     private val logger = LoggerFactory.getLogger(AritegFileAbstractStorage::class.java)
     private val primaryProvider = MultihashProviders.fromMultihashType(primaryProviderType)
     private val secondaryProvider = MultihashProviders.fromMultihashType(secondaryProviderType)
+    private val storageLayout = FileStorageLayout(baseDir, layout)
 
     init {
         logger.info("Using base dir: {}", baseDir.canonicalPath)
+        logger.info("Using read mode: {}", readMode)
+        logger.info("Using layout: {}", layout)
+        FileLayoutMigrator.migrateIfNeeded(baseDir, layout, Runtime.getRuntime().availableProcessors())
+        if (fileSync == null) {
+            logger.warn("Durable write is disabled, a crash might lose recent writes")
+        }
     }
 
     /**
-     * Map a <multihash, type> to a local file
+     * Map a <multihash, type> to a local file. See [FileStorageLayout].
      * */
     private fun multihashToFileMapper(
         type: AritegObjectType, primaryHash: Multihash
-    ): File {
-        val typeDir = File(baseDir, type.name.lowercase())
-        if (typeDir.mkdirs()) {
-            logger.trace("Create type dir: " + typeDir.absolutePath)
+    ): File = storageLayout.resolve(type, primaryHash)
+
+    /**
+     * Write the proto, the future completes when the proto is durable.
+     * */
+    abstract fun doWrite(primaryMultihash: Multihash, type: AritegObjectType, rawBytes: ByteArray): CompletableFuture<Void>
+
+    /**
+     * Write into a temp file, then rename it to the target, so readers never
+     * see a partial file. If [durable], the temp file and the dir are synced
+     * by [FileSyncScheduler], and the future completes after that.
+     * Otherwise, the file is renamed at once without sync.
+     * */
+    protected fun writeToFile(
+        primaryMultihash: Multihash, type: AritegObjectType, rawBytes: ByteArray, durable: Boolean = true
+    ): CompletableFuture<Void> {
+        val file = storageLayout.resolveForWrite(type, primaryMultihash)
+        logger.debug("Writing into file `{}`", file.canonicalPath)
+        val tempFile = File(file.parentFile, "${file.name}.${UUID.randomUUID()}${FileStorageLayout.TEMP_SUFFIX}")
+        try {
+            tempFile.writeBytes(rawBytes)
+        } catch (_: FileNotFoundException) {
+            // the dir is removed by others
+            storageLayout.invalidate(file.parentFile)
+            storageLayout.resolveForWrite(type, primaryMultihash)
+            tempFile.writeBytes(rawBytes)
         }
-        // add sub dir to fast the file finding process
-        val name = primaryHash.toBase58()
-        val midDir = File(typeDir, name.take(6))
-        if (midDir.mkdirs()) {
-            logger.trace("Create mid dir: " + midDir.absolutePath)
+        if (durable && fileSync != null) {
+            return fileSync.submit(tempFile, file, rawBytes.size.toLong())
         }
-        return File(midDir, name)
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        return CompletableFuture.completedFuture(null)
     }
 
-    abstract fun doWrite(primaryMultihash: Multihash, type: AritegObjectType, rawBytes: ByteArray)
-
-    protected fun writeToFile(primaryMultihash: Multihash, type: AritegObjectType, rawBytes: ByteArray) {
-        val file = multihashToFileMapper(type, primaryMultihash)
-        logger.debug("Writing into file `{}`", file.canonicalPath)
-        file.writeBytes(rawBytes)
+    /**
+     * Read the stored bytes of a proto from file, return null if not found.
+     * The content is not checked, and might be compressed. See [ProtoCodec].
+     * */
+    protected fun readFile(type: AritegObjectType, primaryHash: Multihash): ByteArray? {
+        val file = multihashToFileMapper(type, primaryHash)
+        return if (file.exists()) file.readBytes() else null
     }
 
     protected fun storeInternal(
         name: String,
         rawBytes: ByteArray,
         type: AritegObjectType,
+        digests: VerifiedDigests?,
         checkBeforeWrite: BiFunction<Multihash, Multihash, Boolean>,
         threadPool: Executor
     ): StoreReceipt {
         require(rawBytes.size <= 16 * 1024 * 1024) { "Hard limit reached: 16MB" }
-        // calculate multihash
-        val primaryMultihash = primaryProvider.digest(rawBytes)
+        // reuse the given digests, or calculate both hashes in one pass
+        val resolvedDigests = resolveDigests(primaryProvider, secondaryProvider, rawBytes, digests)
+        val primaryMultihash = resolvedDigests.primary
         val future = CompletableFuture.supplyAsync({
-            // calculate secondary hash
-            val secondaryMultihash = secondaryProvider.digest(rawBytes)
+            // calculate secondary hash if not given
+            val secondaryMultihash = resolvedDigests.secondary ?: secondaryProvider.digest(rawBytes)
             // run the check, return if we get false
             if (checkBeforeWrite.apply(primaryMultihash, secondaryMultihash)) {
-                // check pass, add request into queue
-                doWrite(primaryMultihash, type, rawBytes)
-                primaryMultihash
+                // check pass, complete when the proto is durable
+                doWrite(primaryMultihash, type, codec.encode(type, rawBytes)).thenApply<Multihash?> { primaryMultihash }
             } else {
-                null
+                CompletableFuture.completedFuture<Multihash?>(null)
             }
-        }, threadPool)
+        }, threadPool).thenCompose { it }
 
         return StoreReceipt(
             AritegLink.newBuilder()
@@ -99,29 +140,103 @@ abstract class AritegFileAbstractStorage(
         }
     }
 
+    /**
+     * Parse the proto from the input. If aliasing is enabled on the input,
+     * the bytes of [BlobObject] will point to the input buffer.
+     * */
+    protected fun parseProto(type: AritegObjectType, input: CodedInputStream): AritegObject {
+        return when (type) {
+            AritegObjectType.BLOB -> BlobObject.fromProto(AritegBlobObject.parseFrom(input))
+            AritegObjectType.LIST -> ListObject.fromProto(AritegListObject.parseFrom(input))
+            AritegObjectType.TREE -> TreeObject.fromProto(AritegTreeObject.parseFrom(input))
+            AritegObjectType.COMMIT -> CommitObject.fromProto(AritegCommitObject.parseFrom(input))
+            else -> throw IllegalStateException("Invalid object type: $type")
+        }
+    }
+
+    /**
+     * Parse the proto from a byte array that won't be modified later.
+     * The bytes of [BlobObject] will share the array without copying.
+     * */
+    protected fun parseProto(type: AritegObjectType, content: ByteArray): AritegObject =
+        parseProto(type, UnsafeByteOperations.unsafeWrap(content).newCodedInput().also { it.enableAliasing(true) })
+
+    /**
+     * Load the proto from file. The file is read only once, the multihash
+     * check and parsing use the same content. See [FileReadMode].
+     * */
     protected fun loadFromFile(link: AritegLink): AritegObject? {
         val multihash = link.multihash.toMultihash()
         val file = multihashToFileMapper(link.type, multihash)
         if (!file.exists())
             return null
-        file.inputStream().use {
-            MultihashProviders.mustMatch(multihash, it)
-        }
-        return file.inputStream().use {
-            when (link.type) {
-                AritegObjectType.BLOB -> BlobObject.fromProto(AritegBlobObject.parseFrom(it))
-                AritegObjectType.LIST -> ListObject.fromProto(AritegListObject.parseFrom(it))
-                AritegObjectType.TREE -> TreeObject.fromProto(AritegTreeObject.parseFrom(it))
-                AritegObjectType.COMMIT -> CommitObject.fromProto(AritegCommitObject.parseFrom(it))
-                else -> throw IllegalStateException("Invalid object type: ${link.type}")
+        return when (readMode) {
+            FileReadMode.STREAM -> {
+                val content = codec.decode(link.type, file.readBytes())
+                MultihashProviders.mustMatch(multihash, content)
+                parseProto(link.type, content)
+            }
+            FileReadMode.MEMORY_MAPPED -> {
+                // the mapping is still valid after the channel is closed
+                val buffer = codec.decode(link.type, FileChannel.open(file.toPath(), StandardOpenOption.READ).use {
+                    it.map(FileChannel.MapMode.READ_ONLY, 0, it.size())
+                })
+                MultihashProviders.mustMatch(multihash, buffer)
+                parseProto(
+                    link.type,
+                    UnsafeByteOperations.unsafeWrap(buffer).newCodedInput().also { it.enableAliasing(true) }
+                )
             }
         }
     }
 
     protected fun deleteFile(link: AritegLink): Boolean {
-        return multihashToFileMapper(link.type, link.multihash.toMultihash()).delete()
+        return deleteFile(link.type, link.multihash.toMultihash())
+    }
+
+    protected fun deleteFile(type: AritegObjectType, primaryHash: Multihash): Boolean {
+        return multihashToFileMapper(type, primaryHash).delete()
+    }
+
+    /**
+     * Walk all proto files under the base dir.
+     * Files with an invalid name are ignored.
+     * */
+    protected fun forEachFile(action: (AritegObjectType, Multihash, File) -> Unit) =
+        storageLayout.forEachFile(action)
+
+    /**
+     * The cursor is the path relative to the base dir.
+     * See [FileStorageLayout.forEachFileSorted].
+     * */
+    override fun listProtos(cursor: String?, action: (AritegLink, String) -> Boolean): Boolean =
+        storageLayout.forEachFileSorted(cursor) { type, multihash, path ->
+            action(AritegObjects.newLink(multihash, type), path)
+        }
+
+    /**
+     * Recompute the multihash of the local file. Return [ScrubState.OK],
+     * [ScrubState.MISSING] or [ScrubState.CORRUPTED], nothing is repaired.
+     * */
+    protected fun scrubFile(link: AritegLink): ScrubResult {
+        val multihash = link.multihash.toMultihash()
+        val stored = try {
+            multihashToFileMapper(link.type, multihash).readBytes()
+        } catch (_: FileNotFoundException) {
+            return ScrubResult(ScrubState.MISSING, 0)
+        }
+        val state = try {
+            MultihashProviders.mustMatch(multihash, codec.decode(link.type, stored))
+            ScrubState.OK
+        } catch (e: Exception) {
+            logger.error("Proto {} is corrupted: {}", multihash.toBase58(), e.message)
+            ScrubState.CORRUPTED
+        }
+        return ScrubResult(state, stored.size.toLong())
     }
 
+    override fun codecStats(): Map<String, CodecStats> = codec.stats()
+
     override fun primaryMultihashType(): Multihash.Type {
         return primaryProvider.getType()
     }
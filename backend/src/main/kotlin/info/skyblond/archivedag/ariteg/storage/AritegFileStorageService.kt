@@ -1,14 +1,17 @@
 package info.skyblond.archivedag.ariteg.storage
 
 import info.skyblond.archivedag.ariteg.model.AritegObject
+import info.skyblond.archivedag.ariteg.model.ScrubResult
 import info.skyblond.archivedag.ariteg.model.StorageStatus
 import info.skyblond.archivedag.ariteg.model.StoreReceipt
+import info.skyblond.archivedag.ariteg.model.VerifiedDigests
 import info.skyblond.archivedag.ariteg.protos.AritegLink
 import info.skyblond.archivedag.ariteg.protos.AritegObjectType
 import info.skyblond.archivedag.ariteg.utils.toMultihashBase58
 import io.ipfs.multihash.Multihash
 import org.slf4j.LoggerFactory
 import java.io.File
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
@@ -19,8 +22,14 @@ class AritegFileStorageService(
     secondaryProviderType: Multihash.Type,
     baseDir: File,
     threadNum: Int,
-    queueSize: Int
-) : AritegFileAbstractStorage(primaryProviderType, secondaryProviderType, baseDir), AutoCloseable {
+    queueSize: Int,
+    readMode: FileReadMode = FileReadMode.STREAM,
+    private val fileSync: FileSyncScheduler? = FileSyncScheduler(),
+    layout: FileLayout = FileLayout.LEGACY,
+    codec: ProtoCodec = ProtoCodec(),
+) : AritegFileAbstractStorage(
+    primaryProviderType, secondaryProviderType, baseDir, readMode, fileSync, layout, codec
+), AutoCloseable {
     private val logger = LoggerFactory.getLogger(AritegFileStorageService::class.java)
 
     private val threadPool: ThreadPoolExecutor = ThreadPoolExecutor(
@@ -32,18 +41,18 @@ class AritegFileStorageService(
         logger.info("Using {} threads and {} queue slot", threadNum, queueSize)
     }
 
-    override fun doWrite(primaryMultihash: Multihash, type: AritegObjectType, rawBytes: ByteArray) {
+    override fun doWrite(primaryMultihash: Multihash, type: AritegObjectType, rawBytes: ByteArray) =
         writeToFile(primaryMultihash, type, rawBytes)
-    }
 
     override fun store(
         name: String,
         proto: AritegObject,
+        digests: VerifiedDigests?,
         checkBeforeWrite: BiFunction<Multihash, Multihash, Boolean>
     ): StoreReceipt {
         return storeInternal(
             name, proto.toProto().toByteArray(),
-            proto.getObjectType(), checkBeforeWrite, threadPool
+            proto.getObjectType(), digests, checkBeforeWrite, threadPool
         )
     }
 
@@ -64,10 +73,38 @@ class AritegFileStorageService(
         return deleteFile(link)
     }
 
+    /**
+     * There is no other copy, the broken file is kept as it is.
+     * */
+    override fun scrubProto(link: AritegLink, remote: Boolean): ScrubResult = scrubFile(link)
+
+    /**
+     * Writes waiting or running in this storage, used by [AritegMultiDiskStorageService].
+     * */
+    internal fun pendingWrites(): Int = threadPool.queue.size + threadPool.activeCount
+
+    internal fun loadOrNull(link: AritegLink): AritegObject? = loadFromFile(link)
+
+    /**
+     * The stored bytes, might be compressed. See [ProtoCodec].
+     * */
+    internal fun readRaw(type: AritegObjectType, primaryHash: Multihash): ByteArray? = readFile(type, primaryHash)
+
+    /**
+     * Write the checked and encoded bytes on this storage's thread pool.
+     * */
+    internal fun writeRaw(type: AritegObjectType, primaryHash: Multihash, rawBytes: ByteArray): CompletableFuture<Void> =
+        CompletableFuture.supplyAsync({ writeToFile(primaryHash, type, rawBytes) }, threadPool).thenCompose { it }
+
+    internal fun deleteRaw(type: AritegObjectType, primaryHash: Multihash): Boolean = deleteFile(type, primaryHash)
+
+    internal fun forEachProto(action: (AritegObjectType, Multihash, File) -> Unit) = forEachFile(action)
+
     override fun close() {
         threadPool.shutdown()
         while (!threadPool.awaitTermination(1, TimeUnit.MINUTES)) {
             logger.trace("Waiting termination...")
         }
+        fileSync?.close()
     }
 }
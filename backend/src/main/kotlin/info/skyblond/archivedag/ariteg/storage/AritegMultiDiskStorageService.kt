@@ -0,0 +1,274 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.model.*
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.utils.toMultihash
+import info.skyblond.archivedag.ariteg.utils.toMultihashBase58
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.BiFunction
+
+/**
+ * Stripe protos over several disks (JBOD).
+ *
+ * Each proto is placed on [replicas] disks chosen by a consistent hash
+ * ring of the primary digest. Each disk is an [AritegFileStorageService]
+ * with its own thread pool, so a slow disk only queues its own writes.
+ * The hashing and the check before writing are done once on the shared pool,
+ * then the proto is written to all replicas, and the write completes when
+ * all replicas are durable.
+ *
+ * Reads go to the replica with the least in-flight operations, and fall
+ * back to other replicas if failed. Protos not on their replicas (e.g. after
+ * adding disks) are still found by checking the other disks,
+ * and [rebalance] moves them to where they should be.
+ * */
+class AritegMultiDiskStorageService(
+    primaryProviderType: Multihash.Type,
+    secondaryProviderType: Multihash.Type,
+    baseDirs: List<File>,
+    private val replicas: Int,
+    threadNum: Int,
+    queueSize: Int,
+    diskThreadNum: Int,
+    readMode: FileReadMode = FileReadMode.STREAM,
+    fileSyncFactory: () -> FileSyncScheduler? = { FileSyncScheduler() },
+    layout: FileLayout = FileLayout.LEGACY,
+    virtualNodes: Int = 128,
+    private val codec: ProtoCodec = ProtoCodec(),
+) : AritegStorageService, AutoCloseable {
+    private val logger = LoggerFactory.getLogger(AritegMultiDiskStorageService::class.java)
+    private val primaryProvider = MultihashProviders.fromMultihashType(primaryProviderType)
+    private val secondaryProvider = MultihashProviders.fromMultihashType(secondaryProviderType)
+
+    private val threadPool: ThreadPoolExecutor = ThreadPoolExecutor(
+        threadNum, threadNum, 0L, TimeUnit.MILLISECONDS,
+        LinkedBlockingQueue(queueSize), ThreadPoolExecutor.CallerRunsPolicy()
+    )
+
+    private class Disk(
+        val dir: File,
+        val storage: AritegFileStorageService,
+    ) {
+        val inFlightReads = AtomicInteger(0)
+
+        fun load(): Int = inFlightReads.get() + storage.pendingWrites()
+    }
+
+    @Volatile
+    private var rebalancing: CompletableFuture<Long>? = null
+
+    private val disks: List<Disk>
+    private val ring: ConsistentHashRing
+
+    init {
+        require(baseDirs.isNotEmpty()) { "No disk" }
+        require(replicas in 1..baseDirs.size) { "Replicas must in 1..${baseDirs.size}" }
+        disks = baseDirs.map {
+            if (it.mkdirs()) {
+                logger.trace("Create dir: {}", it.absolutePath)
+            }
+            Disk(
+                it, AritegFileStorageService(
+                    primaryProviderType, secondaryProviderType, it,
+                    diskThreadNum, queueSize, readMode, fileSyncFactory(), layout, codec
+                )
+            )
+        }
+        ring = ConsistentHashRing(disks.map { it.dir.canonicalPath }, virtualNodes)
+        logger.info("Using {} disks with {} replicas", disks.size, replicas)
+    }
+
+    /**
+     * The disks that should hold the proto, the first one is the primary.
+     * */
+    private fun placement(primaryHash: Multihash): List<Disk> =
+        ring.select(ConsistentHashRing.keyOf(primaryHash.hash), replicas).map { disks[it] }
+
+    /**
+     * Replicas ordered by load, then the other disks.
+     * */
+    private fun candidates(primaryHash: Multihash): List<Disk> {
+        val placed = placement(primaryHash)
+        return placed.sortedBy { it.load() } + disks.filter { it !in placed }
+    }
+
+    override fun store(
+        name: String,
+        proto: AritegObject,
+        digests: VerifiedDigests?,
+        checkBeforeWrite: BiFunction<Multihash, Multihash, Boolean>
+    ): StoreReceipt {
+        val type = proto.getObjectType()
+        val rawBytes = proto.toProto().toByteArray()
+        require(rawBytes.size <= 16 * 1024 * 1024) { "Hard limit reached: 16MB" }
+        val resolvedDigests = resolveDigests(primaryProvider, secondaryProvider, rawBytes, digests)
+        val primaryMultihash = resolvedDigests.primary
+        val future = CompletableFuture.supplyAsync({
+            val secondaryMultihash = resolvedDigests.secondary ?: secondaryProvider.digest(rawBytes)
+            if (checkBeforeWrite.apply(primaryMultihash, secondaryMultihash)) {
+                // already checked, encode once and each disk writes on its own pool
+                val stored = codec.encode(type, rawBytes)
+                val writes = placement(primaryMultihash).map { disk ->
+                    disk.storage.writeRaw(type, primaryMultihash, stored)
+                }
+                CompletableFuture.allOf(*writes.toTypedArray()).thenApply<Multihash?> { primaryMultihash }
+            } else {
+                CompletableFuture.completedFuture<Multihash?>(null)
+            }
+        }, threadPool).thenCompose { it }
+
+        return StoreReceipt(AritegObjects.newLink(name, primaryMultihash, type), future)
+    }
+
+    override fun queryStatus(link: AritegLink): StorageStatus? {
+        candidates(link.multihash.toMultihash()).forEach { disk ->
+            disk.storage.queryStatus(link)?.let { return it }
+        }
+        return null
+    }
+
+    override fun restoreLink(link: AritegLink) {
+        // no need to restore on disk
+    }
+
+    override fun loadProto(link: AritegLink): AritegObject {
+        var lastError: Throwable? = null
+        candidates(link.multihash.toMultihash()).forEach { disk ->
+            disk.inFlightReads.incrementAndGet()
+            try {
+                disk.storage.loadOrNull(link)?.let { return it }
+            } catch (t: Throwable) {
+                // corrupted or unreadable, try the next one
+                logger.warn("Failed to load {} from {}", link.toMultihashBase58(), disk.dir, t)
+                lastError = t
+            } finally {
+                disk.inFlightReads.decrementAndGet()
+            }
+        }
+        throw IllegalStateException("Cannot load ${link.toMultihashBase58()}: not found", lastError)
+    }
+
+    override fun deleteProto(link: AritegLink): Boolean {
+        // also delete the copies not on their replicas
+        return disks.map { it.storage.deleteProto(link) }.any { it }
+    }
+
+    /**
+     * List the disks one by one, the cursor is `<disk index>:<cursor of the disk>`.
+     * A proto is listed on the first of its replicas having it, or any disk
+     * not being its replica, so each proto is usually listed once.
+     * */
+    override fun listProtos(cursor: String?, action: (AritegLink, String) -> Boolean): Boolean {
+        val startDisk = cursor?.substringBefore(':')?.toInt() ?: 0
+        for (index in startDisk until disks.size) {
+            val disk = disks[index]
+            val diskCursor = if (index == startDisk) cursor?.substringAfter(':') else null
+            val finished = disk.storage.listProtos(diskCursor) { link, c ->
+                val placed = placement(link.multihash.toMultihash())
+                val listedBefore = disk in placed &&
+                        placed.takeWhile { it !== disk }.any { it.storage.queryStatus(link) != null }
+                listedBefore || action(link, "$index:$c")
+            }
+            if (!finished) return false
+        }
+        return true
+    }
+
+    /**
+     * Check the copies on all disks. The broken or missing replicas are
+     * written again with a good copy.
+     * */
+    override fun scrubProto(link: AritegLink, remote: Boolean): ScrubResult {
+        val multihash = link.multihash.toMultihash()
+        val placed = placement(multihash)
+        var bytes = 0L
+        val states = disks.associateWith { disk ->
+            disk.storage.scrubProto(link, remote).also { bytes += it.bytes }.state
+        }
+        val good = states.entries.find { it.value == ScrubState.OK }?.key
+            ?: return ScrubResult(
+                if (states.values.any { it == ScrubState.CORRUPTED }) ScrubState.CORRUPTED else ScrubState.MISSING,
+                bytes
+            )
+        val broken = placed.filter { states[it] != ScrubState.OK }
+        if (broken.isEmpty()) return ScrubResult(ScrubState.OK, bytes)
+        val content = good.storage.readRaw(link.type, multihash)
+            ?: return ScrubResult(ScrubState.MISSING, bytes)
+        broken.forEach { it.storage.writeRaw(link.type, multihash, content).get() }
+        logger.info("Proto {} is repaired on {} disks", multihash.toBase58(), broken.size)
+        return ScrubResult(ScrubState.REPAIRED, bytes)
+    }
+
+    /**
+     * Walk all disks in parallel, copy each proto to the replicas missing it,
+     * then delete it from the disk that is not a replica.
+     * If a rebalance is running, its future is returned.
+     * */
+    @Synchronized
+    override fun rebalance(): CompletableFuture<Long> {
+        rebalancing?.let { if (!it.isDone) return it }
+        val copied = AtomicLong(0)
+        val executor = Executors.newFixedThreadPool(disks.size)
+        val futures = disks.map { disk ->
+            CompletableFuture.runAsync({ rebalanceDisk(disk, copied) }, executor)
+        }
+        executor.shutdown()
+        return CompletableFuture.allOf(*futures.toTypedArray()).thenApply {
+            logger.info("Rebalance finished, {} copies made", copied.get())
+            copied.get()
+        }.also { rebalancing = it }
+    }
+
+    private fun rebalanceDisk(disk: Disk, copied: AtomicLong) {
+        logger.info("Rebalancing {}", disk.dir)
+        disk.storage.forEachProto { type, multihash, _ ->
+            try {
+                rebalanceProto(disk, type, multihash, copied)
+            } catch (t: Throwable) {
+                logger.error("Failed to rebalance {} on {}", multihash.toBase58(), disk.dir, t)
+            }
+        }
+    }
+
+    private fun rebalanceProto(disk: Disk, type: AritegObjectType, multihash: Multihash, copied: AtomicLong) {
+        val targets = placement(multihash)
+        val link = AritegObjects.newLink(multihash, type)
+        val missing = targets.filter { it !== disk && it.storage.queryStatus(link) == null }
+        if (missing.isNotEmpty()) {
+            val content = disk.storage.readRaw(type, multihash) ?: return
+            // don't spread a corrupted copy
+            MultihashProviders.mustMatch(multihash, codec.decode(type, content))
+            missing.forEach { it.storage.writeRaw(type, multihash, content).get() }
+            copied.addAndGet(missing.size.toLong())
+        }
+        if (disk !in targets) {
+            // all replicas have it now
+            disk.storage.deleteRaw(type, multihash)
+        }
+    }
+
+    override fun codecStats(): Map<String, CodecStats> = codec.stats()
+
+    override fun primaryMultihashType(): Multihash.Type = primaryProvider.getType()
+
+    override fun secondaryMultihashType(): Multihash.Type = secondaryProvider.getType()
+
+    override fun close() {
+        threadPool.shutdown()
+        while (!threadPool.awaitTermination(1, TimeUnit.MINUTES)) {
+            logger.trace("Waiting termination...")
+        }
+        disks.forEach { it.storage.close() }
+    }
+}
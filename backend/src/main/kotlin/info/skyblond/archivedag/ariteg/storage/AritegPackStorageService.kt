@@ -0,0 +1,770 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.model.*
+import info.skyblond.archivedag.ariteg.model.AritegObjects.newLink
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import info.skyblond.archivedag.ariteg.protos.*
+import info.skyblond.archivedag.ariteg.utils.toMultihash
+import info.skyblond.archivedag.ariteg.utils.toMultihashBase58
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.Arrays
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.function.BiFunction
+import java.util.zip.CRC32
+import kotlin.concurrent.read
+import kotlin.concurrent.withLock
+import kotlin.concurrent.write
+
+/**
+ * Store protos into large append-only segment files instead of one file per proto.
+ *
+ * Each record in a segment looks like:
+ * `magic(4) flag(1) type(1) multihashLength(2) multihash payloadLength(4) payload crc32(4)`,
+ * where the crc covers everything between magic and crc.
+ * Deleting a proto appends a tombstone record, so replaying the segments
+ * will not bring it back.
+ *
+ * The index maps multihash to (segment, offset, length). It lives in memory
+ * and is saved into `index.bin` together with a checkpoint for each segment.
+ * When starting, the snapshot is loaded and every segment is replayed from
+ * its checkpoint, so records written after the last snapshot are recovered,
+ * and a torn record at the tail of a segment is truncated, together with
+ * the index entries pointing past it.
+ *
+ * The store future completes after the record is forced to disk. The
+ * appenders in [syncIntervalMs] share one force of each segment (group
+ * commit). The segments are forced before saving a snapshot too, so the
+ * snapshot never covers the bytes that might be lost.
+ *
+ * Writes are spread over several active segments by the multihash, so
+ * concurrent appenders won't queue on a single file, while all records of
+ * a multihash go to the same appender in the order of the index updates.
+ * The segments of an appender are created with increasing ids, so
+ * replaying the segments by id keeps the order of each multihash.
+ * When the live ratio of a sealed segment drops below the threshold after
+ * [deleteProto], the live records are copied into the active segments,
+ * and the old segment is deleted once the copies are forced to disk.
+ * */
+class AritegPackStorageService(
+    primaryProviderType: Multihash.Type,
+    secondaryProviderType: Multihash.Type,
+    private val baseDir: File,
+    private val segmentSizeLimit: Long,
+    appenderNum: Int,
+    private val compactionThreshold: Double,
+    threadNum: Int,
+    queueSize: Int,
+    private val codec: ProtoCodec = ProtoCodec(),
+    private val syncIntervalMs: Long = 10,
+) : AritegStorageService, AutoCloseable {
+    private val logger = LoggerFactory.getLogger(AritegPackStorageService::class.java)
+    private val primaryProvider = MultihashProviders.fromMultihashType(primaryProviderType)
+    private val secondaryProvider = MultihashProviders.fromMultihashType(secondaryProviderType)
+
+    private val threadPool: ThreadPoolExecutor = ThreadPoolExecutor(
+        threadNum, threadNum, 0L, TimeUnit.MILLISECONDS,
+        LinkedBlockingQueue(queueSize), ThreadPoolExecutor.CallerRunsPolicy()
+    )
+
+    private val indexFile = File(baseDir, INDEX_FILE_NAME)
+    private val index = ConcurrentHashMap<Multihash, PackIndexEntry>()
+    private val segments = ConcurrentHashMap<Int, PackSegment>()
+    private val nextSegmentId = AtomicInteger(0)
+    private val appendedSinceSnapshot = AtomicLong(0)
+    private val compactingSegments: MutableSet<Int> = ConcurrentHashMap.newKeySet()
+
+    /**
+     * Appending a record and updating the index must be seen as one step
+     * by the snapshot, so appenders share the read lock, while the snapshot
+     * takes the write lock to capture checkpoints and index together.
+     * */
+    private val indexLock = ReentrantReadWriteLock()
+
+    private val syncLock = ReentrantLock()
+    private val syncCondition = syncLock.newCondition()
+    private var pendingSyncs = ArrayList<Pair<PackSegment, CompletableFuture<Void>>>()
+
+    @Volatile
+    private var syncRunning = true
+
+    private val syncThread = Thread(this::syncLoop, "pack-sync").apply {
+        isDaemon = true
+        start()
+    }
+
+    private val appenderSlots: Array<AppenderSlot>
+
+    init {
+        require(segmentSizeLimit > 0) { "Segment size must be positive" }
+        require(appenderNum > 0) { "Appender number must be positive" }
+        require(syncIntervalMs >= 0) { "Sync interval must not be negative" }
+        if (baseDir.mkdirs()) {
+            logger.trace("Create pack dir: {}", baseDir.absolutePath)
+        }
+        logger.info("Using pack dir: {}", baseDir.canonicalPath)
+        logger.info("Using {} threads and {} queue slot", threadNum, queueSize)
+        recover()
+        appenderSlots = Array(appenderNum) { AppenderSlot(newSegment()) }
+        logger.info("Loaded {} protos from {} segments", index.size, segments.size)
+    }
+
+    // ------------------------------ segments ------------------------------
+
+    private class PackSegment(val id: Int, val file: File) : AutoCloseable {
+        val channel: FileChannel = FileChannel.open(
+            file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        )
+        val size = AtomicLong(channel.size())
+        val liveBytes = AtomicLong(0)
+
+        @Volatile
+        var sealed = false
+
+        /**
+         * Append the record and return the offset of it.
+         * The caller must make sure only one thread is appending.
+         * */
+        fun append(record: ByteBuffer): Long {
+            val position = size.get()
+            var written = 0L
+            while (record.hasRemaining()) {
+                written += channel.write(record, position + written)
+            }
+            size.addAndGet(written)
+            return position
+        }
+
+        fun read(position: Long, length: Int): ByteArray {
+            val buffer = ByteBuffer.allocate(length)
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw EOFException("Unexpected end of segment ${file.name}")
+                }
+            }
+            return buffer.array()
+        }
+
+        fun liveRatio(): Double = if (size.get() == 0L) 1.0 else liveBytes.get().toDouble() / size.get()
+
+        override fun close() {
+            channel.force(true)
+            channel.close()
+        }
+    }
+
+    /**
+     * Force the segment. A closed segment is forced before closing.
+     * */
+    private fun forceSegment(segment: PackSegment) {
+        try {
+            segment.channel.force(false)
+        } catch (_: ClosedChannelException) {
+            // compacted in the meantime, the records are forced there
+        }
+    }
+
+    private class AppenderSlot(@Volatile var segment: PackSegment)
+
+    private data class PackIndexEntry(
+        val segmentId: Int,
+        /**
+         * Offset of payload in the segment
+         * */
+        val offset: Long,
+        val length: Int,
+        val type: AritegObjectType
+    )
+
+    private data class PackRecord(
+        val flag: Byte,
+        val type: AritegObjectType,
+        val multihash: Multihash,
+        val offset: Long,
+        val length: Int,
+    )
+
+    private fun segmentFile(id: Int): File = File(baseDir, "%08d%s".format(id, SEGMENT_FILE_SUFFIX))
+
+    private fun newSegment(): PackSegment {
+        val id = nextSegmentId.getAndIncrement()
+        val segment = PackSegment(id, segmentFile(id))
+        segments[id] = segment
+        logger.debug("Create new segment {}", segment.file.name)
+        return segment
+    }
+
+    private fun recordLength(multihash: Multihash, payloadLength: Int): Long =
+        RECORD_OVERHEAD + multihash.toBytes().size + payloadLength.toLong()
+
+    private fun encodeRecord(
+        flag: Byte, type: AritegObjectType, multihashBytes: ByteArray, payload: ByteArray
+    ): ByteBuffer {
+        val buffer = ByteBuffer.allocate(RECORD_OVERHEAD + multihashBytes.size + payload.size)
+        buffer.putInt(RECORD_MAGIC)
+            .put(flag)
+            .put(type.number.toByte())
+            .putShort(multihashBytes.size.toShort())
+            .put(multihashBytes)
+            .putInt(payload.size)
+            .put(payload)
+        val crc = CRC32()
+        crc.update(buffer.array(), Int.SIZE_BYTES, buffer.position() - Int.SIZE_BYTES)
+        buffer.putInt(crc.value.toInt())
+        return buffer.flip()
+    }
+
+    /**
+     * Run [block] with the appender of [multihash] locked. The index of
+     * the multihash must be updated inside, together with the appending,
+     * so the order of its records matches the order of the updates.
+     * */
+    private inline fun <T> withSlot(multihash: Multihash, block: (AppenderSlot) -> T): T {
+        // the hash of the type is not stable between runs
+        val slot = appenderSlots[Math.floorMod(multihash.hash.contentHashCode(), appenderSlots.size)]
+        return synchronized(slot) { block(slot) }
+    }
+
+    /**
+     * Append a record to the active segment of the [slot], roll over if the
+     * segment is full. Return the segment and the offset of the record.
+     * Must be called inside [withSlot].
+     * */
+    private fun append(slot: AppenderSlot, record: ByteBuffer): Pair<PackSegment, Long> {
+        val current = slot.segment
+        if (current.size.get() > 0 && current.size.get() + record.remaining() > segmentSizeLimit) {
+            current.sealed = true
+            current.channel.force(false)
+            slot.segment = newSegment()
+            logger.debug("Segment {} sealed", current.file.name)
+        }
+        val segment = slot.segment
+        return segment to segment.append(record)
+    }
+
+    /**
+     * Read records from [from] until the end or the first broken record.
+     * Return the end of the last valid record.
+     * */
+    private fun scanSegment(file: File, from: Long, visitor: (PackRecord) -> Unit): Long {
+        var validEnd = from
+        FileInputStream(file).use { fileInputStream ->
+            fileInputStream.channel.position(from)
+            val input = DataInputStream(BufferedInputStream(fileInputStream, 64 * 1024))
+            val scratch = ByteArray(64 * 1024)
+            while (true) {
+                val record = try {
+                    readRecord(input, validEnd, scratch)
+                } catch (_: EOFException) {
+                    null
+                } ?: break
+                visitor(record)
+                validEnd = record.offset + record.length + Int.SIZE_BYTES
+            }
+        }
+        return validEnd
+    }
+
+    private fun readRecord(input: DataInputStream, recordOffset: Long, scratch: ByteArray): PackRecord? {
+        if (input.readInt() != RECORD_MAGIC) return null
+        val flag = input.readByte()
+        val typeNumber = input.readByte()
+        val multihashLength = input.readUnsignedShort()
+        val multihashBytes = ByteArray(multihashLength).also { input.readFully(it) }
+        val payloadLength = input.readInt()
+        if (payloadLength < 0) return null
+        val crc = CRC32()
+        crc.update(
+            ByteBuffer.allocate(2 * Byte.SIZE_BYTES + Short.SIZE_BYTES + multihashLength + Int.SIZE_BYTES)
+                .put(flag).put(typeNumber).putShort(multihashLength.toShort())
+                .put(multihashBytes).putInt(payloadLength)
+                .array()
+        )
+        var remain = payloadLength
+        while (remain > 0) {
+            val count = minOf(remain, scratch.size)
+            input.readFully(scratch, 0, count)
+            crc.update(scratch, 0, count)
+            remain -= count
+        }
+        if (input.readInt() != crc.value.toInt()) return null
+        val type = AritegObjectType.forNumber(typeNumber.toInt()) ?: return null
+        val multihash = try {
+            Multihash.deserialize(multihashBytes)
+        } catch (_: Exception) {
+            return null
+        }
+        return PackRecord(
+            flag, type, multihash,
+            recordOffset + RECORD_HEADER_SIZE + multihashLength,
+            payloadLength
+        )
+    }
+
+    // ------------------------------ index ------------------------------
+
+    /**
+     * Load the index snapshot, then replay every segment from its checkpoint.
+     * */
+    private fun recover() {
+        val checkpoints = loadIndexSnapshot()
+        val segmentIds = baseDir.listFiles { f -> f.isFile && f.name.endsWith(SEGMENT_FILE_SUFFIX) }
+            ?.mapNotNull { it.name.removeSuffix(SEGMENT_FILE_SUFFIX).toIntOrNull() }
+            ?.sorted() ?: emptyList()
+        val validEnds = HashMap<Int, Long>()
+        segmentIds.forEach { id ->
+            val segment = PackSegment(id, segmentFile(id))
+            segment.sealed = true
+            segments[id] = segment
+            val from = checkpoints[id]?.coerceAtMost(segment.size.get()) ?: 0L
+            val validEnd = scanSegment(segment.file, from) { record ->
+                if (record.flag == FLAG_TOMBSTONE) {
+                    index.remove(record.multihash)
+                } else {
+                    index[record.multihash] = PackIndexEntry(id, record.offset, record.length, record.type)
+                }
+            }
+            if (validEnd < segment.size.get()) {
+                logger.warn(
+                    "Segment {} has {} broken bytes at tail, truncating",
+                    segment.file.name, segment.size.get() - validEnd
+                )
+                segment.channel.truncate(validEnd)
+                segment.size.set(validEnd)
+            }
+            if (segment.size.get() == 0L) {
+                // active segment from last run, nothing written
+                segments.remove(id)
+                segment.close()
+                segment.file.delete()
+            } else {
+                validEnds[id] = segment.size.get()
+            }
+        }
+        // drop entries point to missing segments, or to the truncated bytes
+        val dropped = index.size
+        index.entries.removeIf { (_, entry) ->
+            val validEnd = validEnds[entry.segmentId]
+            validEnd == null || entry.offset + entry.length + Int.SIZE_BYTES > validEnd
+        }
+        if (index.size < dropped) {
+            logger.warn("Dropped {} index entries pointing to lost records", dropped - index.size)
+        }
+        index.forEach { (multihash, entry) ->
+            segments[entry.segmentId]!!.liveBytes.addAndGet(recordLength(multihash, entry.length))
+        }
+        nextSegmentId.set((segmentIds.maxOrNull() ?: -1) + 1)
+    }
+
+    /**
+     * Load index entries from snapshot, return checkpoints of each segment.
+     * Return empty map if the snapshot is not usable.
+     * */
+    private fun loadIndexSnapshot(): Map<Int, Long> {
+        if (!indexFile.exists()) return emptyMap()
+        return try {
+            DataInputStream(BufferedInputStream(FileInputStream(indexFile))).use { input ->
+                require(input.readInt() == INDEX_MAGIC) { "Invalid index magic" }
+                require(input.readInt() == INDEX_VERSION) { "Unsupported index version" }
+                val checkpoints = HashMap<Int, Long>()
+                repeat(input.readInt()) {
+                    checkpoints[input.readInt()] = input.readLong()
+                }
+                repeat(input.readInt()) {
+                    val multihashBytes = ByteArray(input.readUnsignedShort()).also { input.readFully(it) }
+                    val type = AritegObjectType.forNumber(input.readByte().toInt())
+                    val entry = PackIndexEntry(input.readInt(), input.readLong(), input.readInt(), type)
+                    index[Multihash.deserialize(multihashBytes)] = entry
+                }
+                checkpoints
+            }
+        } catch (t: Throwable) {
+            logger.warn("Failed to load pack index, rebuilding from segments", t)
+            index.clear()
+            emptyMap()
+        }
+    }
+
+    /**
+     * Write the index and segment checkpoints into disk.
+     * Synchronized, since the snapshots share the temp file,
+     * and a later snapshot must not be replaced by an earlier one.
+     * */
+    @Synchronized
+    fun saveIndexSnapshot() {
+        val (checkpoints, entries) = indexLock.write {
+            segments.mapValues { it.value.size.get() } to HashMap(index)
+        }
+        // the bytes before the checkpoints must be on disk before the snapshot
+        checkpoints.keys.forEach { id -> segments[id]?.let { forceSegment(it) } }
+        val tempFile = File(baseDir, "$INDEX_FILE_NAME.tmp")
+        FileOutputStream(tempFile).use { fileOutputStream ->
+            val output = DataOutputStream(BufferedOutputStream(fileOutputStream))
+            output.writeInt(INDEX_MAGIC)
+            output.writeInt(INDEX_VERSION)
+            output.writeInt(checkpoints.size)
+            checkpoints.forEach { (id, checkpoint) ->
+                output.writeInt(id)
+                output.writeLong(checkpoint)
+            }
+            output.writeInt(entries.size)
+            entries.forEach { (multihash, entry) ->
+                val multihashBytes = multihash.toBytes()
+                output.writeShort(multihashBytes.size)
+                output.write(multihashBytes)
+                output.writeByte(entry.type.number)
+                output.writeInt(entry.segmentId)
+                output.writeLong(entry.offset)
+                output.writeInt(entry.length)
+            }
+            output.flush()
+            fileOutputStream.fd.sync()
+        }
+        Files.move(
+            tempFile.toPath(), indexFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE
+        )
+        appendedSinceSnapshot.set(0)
+        logger.debug("Index snapshot saved with {} entries", entries.size)
+    }
+
+    /**
+     * Append the proto and update the index, return the segment to be forced.
+     * */
+    private fun appendProto(multihash: Multihash, type: AritegObjectType, rawBytes: ByteArray): PackSegment {
+        val multihashBytes = multihash.toBytes()
+        val record = encodeRecord(FLAG_PROTO, type, multihashBytes, rawBytes)
+        val appended = indexLock.read {
+            withSlot(multihash) { slot ->
+                val (segment, recordOffset) = append(slot, record)
+                segment.liveBytes.addAndGet(recordLength(multihash, rawBytes.size))
+                val entry = PackIndexEntry(segment.id, recordOffset + RECORD_HEADER_SIZE + multihashBytes.size, rawBytes.size, type)
+                index.put(multihash, entry)?.let { old ->
+                    // the old copy is dead now
+                    segments[old.segmentId]?.liveBytes?.addAndGet(-recordLength(multihash, old.length))
+                }
+                segment
+            }
+        }
+        if (appendedSinceSnapshot.incrementAndGet() % INDEX_SNAPSHOT_INTERVAL == 0L) {
+            threadPool.execute { saveIndexSnapshot() }
+        }
+        return appended
+    }
+
+    // ------------------------------ group commit ------------------------------
+
+    /**
+     * Force the [segment] with the others requested in [syncIntervalMs].
+     * The future completes when the appended records are on disk.
+     * */
+    private fun requestSync(segment: PackSegment): CompletableFuture<Void> {
+        val future = CompletableFuture<Void>()
+        syncLock.withLock {
+            check(syncRunning) { "Pack storage is closed" }
+            pendingSyncs.add(segment to future)
+            if (pendingSyncs.size == 1) {
+                syncCondition.signal()
+            }
+        }
+        return future
+    }
+
+    private fun syncLoop() {
+        while (true) {
+            val batch = syncLock.withLock {
+                while (syncRunning && pendingSyncs.isEmpty()) {
+                    syncCondition.await()
+                }
+                // closed and drained
+                if (pendingSyncs.isEmpty()) return
+                // let other appenders join this batch
+                val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(syncIntervalMs)
+                while (syncRunning) {
+                    val left = deadline - System.nanoTime()
+                    if (left <= 0) break
+                    syncCondition.awaitNanos(left)
+                }
+                val result = pendingSyncs
+                pendingSyncs = ArrayList()
+                result
+            }
+            batch.groupBy({ it.first }, { it.second }).forEach { (segment, futures) ->
+                try {
+                    forceSegment(segment)
+                    futures.forEach { it.complete(null) }
+                } catch (t: Throwable) {
+                    logger.error("Failed to force segment ${segment.file.name}", t)
+                    futures.forEach { it.completeExceptionally(t) }
+                }
+            }
+        }
+    }
+
+    // ------------------------------ compaction ------------------------------
+
+    private fun scheduleCompactionIfNeeded(segment: PackSegment) {
+        if (!segment.sealed || segment.liveRatio() >= compactionThreshold) return
+        if (!compactingSegments.add(segment.id)) return
+        threadPool.execute {
+            try {
+                compactSegment(segment)
+            } catch (t: Throwable) {
+                logger.error("Failed to compact segment ${segment.file.name}", t)
+            } finally {
+                compactingSegments.remove(segment.id)
+            }
+        }
+    }
+
+    /**
+     * Copy live records and needed tombstones into active segments,
+     * force the copies to disk, then remove the old segment.
+     * */
+    private fun compactSegment(segment: PackSegment) {
+        logger.info("Compacting segment {}, live ratio: {}", segment.file.name, segment.liveRatio())
+        val hasOlderSegment = segments.keys.any { it < segment.id }
+        val destinations = HashSet<PackSegment>()
+        scanSegment(segment.file, 0) { record ->
+            val isLive = { entry: PackIndexEntry? ->
+                entry != null && entry.segmentId == segment.id && entry.offset == record.offset
+            }
+            // read outside the appender lock, check again inside
+            val payload = if (record.flag == FLAG_PROTO && isLive(index[record.multihash])) {
+                segment.read(record.offset, record.length)
+            } else null
+            indexLock.read {
+                withSlot(record.multihash) { slot ->
+                    val current = index[record.multihash]
+                    if (record.flag == FLAG_TOMBSTONE) {
+                        // keep the tombstone so older copies won't come back
+                        // when replaying from the beginning
+                        if (hasOlderSegment && current == null) {
+                            destinations.add(append(slot, encodeRecord(FLAG_TOMBSTONE, record.type, record.multihash.toBytes(), EMPTY_PAYLOAD)).first)
+                        }
+                    } else if (payload != null && isLive(current)) {
+                        val multihashBytes = record.multihash.toBytes()
+                        val (newSegment, recordOffset) = append(
+                            slot, encodeRecord(FLAG_PROTO, record.type, multihashBytes, payload)
+                        )
+                        destinations.add(newSegment)
+                        index[record.multihash] = PackIndexEntry(
+                            newSegment.id, recordOffset + RECORD_HEADER_SIZE + multihashBytes.size,
+                            record.length, record.type
+                        )
+                        newSegment.liveBytes.addAndGet(recordLength(record.multihash, record.length))
+                    }
+                }
+            }
+        }
+        // the index will point to the copies, and the old segment is gone
+        destinations.forEach { forceSegment(it) }
+        segments.remove(segment.id)
+        saveIndexSnapshot()
+        segment.close()
+        if (!segment.file.delete()) {
+            logger.warn("Failed to delete compacted segment {}", segment.file.name)
+        }
+        logger.info("Segment {} compacted", segment.file.name)
+    }
+
+    /**
+     * Compact every sealed segment whose live ratio is below the threshold.
+     * */
+    fun compact() {
+        segments.values.filter { it.sealed }.forEach { scheduleCompactionIfNeeded(it) }
+    }
+
+    // ------------------------------ storage service ------------------------------
+
+    override fun store(
+        name: String,
+        proto: AritegObject,
+        digests: VerifiedDigests?,
+        checkBeforeWrite: BiFunction<Multihash, Multihash, Boolean>
+    ): StoreReceipt {
+        val rawBytes = proto.toProto().toByteArray()
+        val type = proto.getObjectType()
+        require(rawBytes.size <= 16 * 1024 * 1024) { "Hard limit reached: 16MB" }
+        // reuse the given digests, or calculate both hashes in one pass
+        val resolvedDigests = resolveDigests(primaryProvider, secondaryProvider, rawBytes, digests)
+        val primaryMultihash = resolvedDigests.primary
+        val future = CompletableFuture.supplyAsync<PackSegment?>({
+            // calculate secondary hash if not given
+            val secondaryMultihash = resolvedDigests.secondary ?: secondaryProvider.digest(rawBytes)
+            // run the check, return if we get false
+            if (checkBeforeWrite.apply(primaryMultihash, secondaryMultihash)) {
+                appendProto(primaryMultihash, type, codec.encode(type, rawBytes))
+            } else {
+                null
+            }
+        }, threadPool).thenCompose { segment ->
+            // done when the record is on disk
+            segment?.let { requestSync(it).thenApply<Multihash?> { primaryMultihash } }
+                ?: CompletableFuture.completedFuture<Multihash?>(null)
+        }
+        return StoreReceipt(newLink(name, primaryMultihash, type), future)
+    }
+
+    override fun queryStatus(link: AritegLink): StorageStatus? {
+        val entry = index[link.multihash.toMultihash()] ?: return null
+        return StorageStatus(
+            available = true,
+            protoSize = entry.length.toLong()
+        )
+    }
+
+    override fun restoreLink(link: AritegLink) {
+        // no need to restore on disk
+    }
+
+    override fun loadProto(link: AritegLink): AritegObject {
+        val multihash = link.multihash.toMultihash()
+        // the segment might be compacted during reading, retry with the new location
+        repeat(3) {
+            val entry = index[multihash]
+                ?: throw IllegalStateException("Cannot load ${link.toMultihashBase58()}: not found")
+            val segment = segments[entry.segmentId] ?: return@repeat
+            val content = try {
+                codec.decode(link.type, segment.read(entry.offset, entry.length))
+            } catch (_: ClosedChannelException) {
+                return@repeat
+            }
+            MultihashProviders.mustMatch(multihash, content)
+            return when (link.type) {
+                AritegObjectType.BLOB -> BlobObject.fromProto(AritegBlobObject.parseFrom(content))
+                AritegObjectType.LIST -> ListObject.fromProto(AritegListObject.parseFrom(content))
+                AritegObjectType.TREE -> TreeObject.fromProto(AritegTreeObject.parseFrom(content))
+                AritegObjectType.COMMIT -> CommitObject.fromProto(AritegCommitObject.parseFrom(content))
+                else -> throw IllegalStateException("Invalid object type: ${link.type}")
+            }
+        }
+        throw IllegalStateException("Cannot load ${link.toMultihashBase58()}: segment is moving")
+    }
+
+    override fun deleteProto(link: AritegLink): Boolean {
+        val multihash = link.multihash.toMultihash()
+        val removed = indexLock.read {
+            withSlot(multihash) { slot ->
+                val entry = index.remove(multihash) ?: return false
+                append(slot, encodeRecord(FLAG_TOMBSTONE, entry.type, multihash.toBytes(), EMPTY_PAYLOAD))
+                entry
+            }
+        }
+        segments[removed.segmentId]?.let {
+            it.liveBytes.addAndGet(-recordLength(multihash, removed.length))
+            scheduleCompactionIfNeeded(it)
+        }
+        return true
+    }
+
+    /**
+     * Visit a snapshot of the index sorted by the multihash bytes, the cursor
+     * is the base58 of the multihash. The protos deleted later are skipped.
+     * */
+    override fun listProtos(cursor: String?, action: (AritegLink, String) -> Boolean): Boolean {
+        val after = cursor?.let { Multihash.fromBase58(it).toBytes() }
+        val keys = index.keys.map { it.toBytes() to it }
+            .filter { after == null || Arrays.compareUnsigned(it.first, after) > 0 }
+            .sortedWith { a, b -> Arrays.compareUnsigned(a.first, b.first) }
+        keys.forEach { (_, multihash) ->
+            val entry = index[multihash] ?: return@forEach
+            if (!action(newLink(multihash, entry.type), multihash.toBase58())) return false
+        }
+        return true
+    }
+
+    /**
+     * Re-read the whole record, check its CRC, then the multihash of the proto.
+     * Nothing can be repaired, there is only one copy.
+     * */
+    override fun scrubProto(link: AritegLink, remote: Boolean): ScrubResult {
+        val multihash = link.multihash.toMultihash()
+        val multihashBytes = multihash.toBytes()
+        // the segment might be compacted during reading, retry with the new location
+        repeat(3) {
+            val entry = index[multihash] ?: return ScrubResult(ScrubState.MISSING, 0)
+            val segment = segments[entry.segmentId] ?: return@repeat
+            val recordOffset = entry.offset - RECORD_HEADER_SIZE - multihashBytes.size
+            val length = recordLength(multihash, entry.length)
+            val state = try {
+                val record = segment.read(recordOffset, length.toInt())
+                check(ByteBuffer.wrap(record).getInt(0) == RECORD_MAGIC) { "Invalid record magic" }
+                val crc = CRC32()
+                crc.update(record, Int.SIZE_BYTES, record.size - 2 * Int.SIZE_BYTES)
+                check(ByteBuffer.wrap(record).getInt(record.size - Int.SIZE_BYTES) == crc.value.toInt()) { "CRC mismatch" }
+                val payloadStart = RECORD_HEADER_SIZE + multihashBytes.size
+                val payload = record.copyOfRange(payloadStart, payloadStart + entry.length)
+                MultihashProviders.mustMatch(multihash, codec.decode(link.type, payload))
+                ScrubState.OK
+            } catch (_: ClosedChannelException) {
+                return@repeat
+            } catch (e: Exception) {
+                logger.error("Proto {} is corrupted: {}", multihash.toBase58(), e.message)
+                ScrubState.CORRUPTED
+            }
+            return ScrubResult(state, length)
+        }
+        throw IllegalStateException("Cannot scrub ${link.toMultihashBase58()}: segment is moving")
+    }
+
+    override fun codecStats(): Map<String, CodecStats> = codec.stats()
+
+    override fun primaryMultihashType(): Multihash.Type {
+        return primaryProvider.getType()
+    }
+
+    override fun secondaryMultihashType(): Multihash.Type {
+        return secondaryProvider.getType()
+    }
+
+    override fun close() {
+        threadPool.shutdown()
+        while (!threadPool.awaitTermination(1, TimeUnit.MINUTES)) {
+            logger.trace("Waiting termination...")
+        }
+        syncLock.withLock {
+            syncRunning = false
+            syncCondition.signal()
+        }
+        // the pending syncs are done before exit
+        syncThread.join()
+        saveIndexSnapshot()
+        segments.values.forEach { it.close() }
+        segments.clear()
+    }
+
+    companion object {
+        private const val INDEX_FILE_NAME = "index.bin"
+        private const val SEGMENT_FILE_SUFFIX = ".pack"
+        private const val INDEX_MAGIC = 0x41504958 // APIX
+        private const val INDEX_VERSION = 1
+        private const val RECORD_MAGIC = 0x41504B52 // APKR
+
+        /**
+         * magic + flag + type + multihash length + payload length
+         * */
+        private const val RECORD_HEADER_SIZE = Int.SIZE_BYTES + 2 * Byte.SIZE_BYTES + Short.SIZE_BYTES + Int.SIZE_BYTES
+
+        /**
+         * header + crc
+         * */
+        private const val RECORD_OVERHEAD = RECORD_HEADER_SIZE + Int.SIZE_BYTES
+
+        private const val FLAG_PROTO: Byte = 0
+        private const val FLAG_TOMBSTONE: Byte = 1
+        private const val INDEX_SNAPSHOT_INTERVAL = 65536L
+        private val EMPTY_PAYLOAD = ByteArray(0)
+    }
+}
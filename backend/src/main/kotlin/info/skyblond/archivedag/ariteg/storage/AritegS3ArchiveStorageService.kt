@@ -7,27 +7,65 @@ import info.skyblond.archivedag.ariteg.utils.toMultihash
 import info.skyblond.archivedag.ariteg.utils.toMultihashBase58
 import io.ipfs.multihash.Multihash
 import org.slf4j.LoggerFactory
-import software.amazon.awssdk.core.sync.RequestBody
+import software.amazon.awssdk.services.s3.S3AsyncClient
 import software.amazon.awssdk.services.s3.S3Client
 import software.amazon.awssdk.services.s3.model.*
-import software.amazon.awssdk.utils.Md5Utils
 import java.io.File
-import java.time.ZonedDateTime
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 import java.util.function.BiFunction
 
+/**
+ * Store protos on local file system, and replicate them to S3 in background.
+ *
+ * The write is journaled in [journalFile] before the local file is renamed
+ * into place, and finished once the local file is durable. The uploading
+ * is done by [S3Replicator], so the S3 latency won't hold the writing
+ * thread (and the lock of the proto). A crash before the rename leaves
+ * a journal entry without local copy, which the replicator drops.
+ * Use [awaitReplicated] to wait the proto reaches S3.
+ *
+ * By default, the local copies are kept forever. Set [localCacheBytes]
+ * to use the local file system as a size-bounded cache of S3, see [LocalFileCache].
+ * Only the copies confirmed in S3 are evicted, see [isInS3].
+ *
+ * The status of objects not in local is answered by [S3KeyIndex] if
+ * [keyIndexEnabled], otherwise by a HEAD request.
+ * */
 class AritegS3ArchiveStorageService(
     primaryProviderType: Multihash.Type,
     secondaryProviderType: Multihash.Type,
     baseDir: File,
     private val s3Client: S3Client,
+    s3AsyncClient: S3AsyncClient,
     private val bucketName: String,
-    private val uploadStorageClass: StorageClass,
+    uploadStorageClass: StorageClass,
     threadNum: Int,
-    queueSize: Int
-) : AritegFileAbstractStorage(primaryProviderType, secondaryProviderType, baseDir), AutoCloseable {
+    queueSize: Int,
+    readMode: FileReadMode = FileReadMode.STREAM,
+    journalFile: File = File(baseDir, "replication.journal"),
+    replicationMaxInFlight: Int = 16,
+    replicationRateLimit: Int = 0,
+    retryBaseDelayMs: Long = 1000,
+    retryMaxDelayMs: Long = 5 * 60 * 1000,
+    keyIndexEnabled: Boolean = true,
+    keyIndexStaleAfterMs: Long = 60 * 60 * 1000,
+    keyIndexRefreshIntervalMs: Long = 0,
+    localCacheBytes: Long = 0,
+    localCachePolicy: LocalCachePolicy = LocalCachePolicy.LRU,
+    pinStructural: Boolean = true,
+    private val fileSync: FileSyncScheduler? = FileSyncScheduler(),
+    layout: FileLayout = FileLayout.LEGACY,
+    codec: ProtoCodec = ProtoCodec(),
+) : AritegFileAbstractStorage(
+    primaryProviderType, secondaryProviderType, baseDir, readMode, fileSync, layout, codec
+), AutoCloseable {
     private val logger = LoggerFactory.getLogger(AritegS3ArchiveStorageService::class.java)
 
     private val threadPool: ThreadPoolExecutor = ThreadPoolExecutor(
@@ -35,10 +73,51 @@ class AritegS3ArchiveStorageService(
         LinkedBlockingQueue(queueSize), ThreadPoolExecutor.CallerRunsPolicy()
     )
 
+    private val journal: S3ReplicationJournal
+    private val replicator: S3Replicator
+    private val localCache: LocalFileCache?
+    private val keyIndex: S3KeyIndex?
+
     init {
         // will throw exception if bucket not exists
         s3Client.headBucket { it.bucket(bucketName) }
         logger.info("Using bucket: {}", bucketName)
+        journal = S3ReplicationJournal(journalFile)
+        replicator = S3Replicator(
+            journal, s3AsyncClient, bucketName, uploadStorageClass,
+            this::multihashToKeyMapper, this::readFile,
+            replicationMaxInFlight, replicationRateLimit, retryBaseDelayMs, retryMaxDelayMs
+        )
+        keyIndex = if (keyIndexEnabled) {
+            S3KeyIndex(s3Client, bucketName, this::multihashToKeyMapper, keyIndexStaleAfterMs, keyIndexRefreshIntervalMs)
+                .also { index ->
+                    replicator.addListener { entry, size ->
+                        index.onUploaded(entry.type, entry.multihash, size, uploadStorageClass)
+                    }
+                }
+        } else {
+            null
+        }
+        localCache = if (localCacheBytes > 0) newLocalCache(localCacheBytes, localCachePolicy, pinStructural) else null
+        localCache?.let { cache ->
+            // replicated copies become evictable
+            replicator.addListener { _, _ -> cache.scheduleEvictionIfNeeded() }
+        }
+    }
+
+    private fun newLocalCache(maxBytes: Long, policy: LocalCachePolicy, pinStructural: Boolean): LocalFileCache {
+        val cache = LocalFileCache(
+            maxBytes, policy, pinStructural,
+            { type, multihash -> isInS3(type, multihash) },
+            { type, multihash -> deleteFile(type, multihash) }
+        )
+        forEachFile { type, multihash, file ->
+            val attributes = Files.readAttributes(file.toPath(), BasicFileAttributes::class.java)
+            cache.load(type, multihash, attributes.size(), attributes.lastAccessTime().toMillis())
+        }
+        logger.info("Found {} local copies, {} bytes", cache.cachedCount(), cache.cachedBytes())
+        cache.scheduleEvictionIfNeeded()
+        return cache
     }
 
     private fun multihashToKeyMapper(
@@ -47,96 +126,123 @@ class AritegS3ArchiveStorageService(
         return "${type.name.lowercase()}/${primaryHash.toBase58()}"
     }
 
-    private fun uploadProto(
+    override fun doWrite(
         primaryMultihash: Multihash, type: AritegObjectType, rawBytes: ByteArray
-    ) {
-        val key = multihashToKeyMapper(type, primaryMultihash)
-        logger.debug("Writing into key `{}`", key)
-        s3Client.putObject({
-            it.bucket(bucketName)
-                .key(key)
-                .contentMD5(Md5Utils.md5AsBase64(rawBytes))
-                .storageClass(uploadStorageClass)
-        }, RequestBody.fromBytes(rawBytes))
-    }
-
-    override fun doWrite(primaryMultihash: Multihash, type: AritegObjectType, rawBytes: ByteArray) {
-        writeToFile(primaryMultihash, type, rawBytes)
-        uploadProto(primaryMultihash, type, rawBytes)
+    ): CompletableFuture<Void> {
+        // concurrent writes share one journal fsync
+        val entry = journal.append(type, primaryMultihash)
+        return writeToFile(primaryMultihash, type, rawBytes).thenRun {
+            // the uploading is done in background
+            replicator.enqueue(entry)
+            localCache?.onWrite(type, primaryMultihash, rawBytes.size.toLong())
+        }
     }
 
     override fun store(
         name: String,
         proto: AritegObject,
+        digests: VerifiedDigests?,
         checkBeforeWrite: BiFunction<Multihash, Multihash, Boolean>
     ): StoreReceipt {
         return storeInternal(
             name, proto.toProto().toByteArray(), proto.getObjectType(),
-            checkBeforeWrite, threadPool
+            digests, checkBeforeWrite, threadPool
         )
     }
 
     /**
-     * Resolve the availability from [HeadObjectResponse],
-     * return <available, pending, expiredTimestamp> for [StorageStatus]
+     * Find the object in S3, from the key index if enabled.
+     * Return null if not found.
      * */
-    private fun resolveAvailability(header: HeadObjectResponse): Boolean {
-        if (header.storageClass() in listOf(StorageClass.DEEP_ARCHIVE, StorageClass.GLACIER)
-            || (header.storageClass() == StorageClass.INTELLIGENT_TIERING && header.archiveStatus() != null)
-        ) {
-            // is archived
-            val restore = header.restore() ?: ""
-            val expiration = if (restore.contains("expiry-date=\"")) {
-                val expiryDateString = restore.split("expiry-date=\"")[1].split("\"")[0]
-                ZonedDateTime.parse(expiryDateString).toInstant().epochSecond
-            } else {
-                null
-            }
-            // no expiration -> not available
-            // has expiration -> available now
-            return expiration != null
-        } else {
-            // normal object -> always available
-            return true
+    private fun lookupS3(type: AritegObjectType, multihash: Multihash): S3KeyIndex.Entry? {
+        keyIndex?.let { return it.lookup(type, multihash) }
+        val headResp = try {
+            s3Client.headObject { it.bucket(bucketName).key(multihashToKeyMapper(type, multihash)) }
+        } catch (_: NoSuchKeyException) {
+            return null
         }
+        return S3KeyIndex.fromHeader(headResp)
     }
 
+    /**
+     * Whether the S3 copy is confirmed, by the key index or a HEAD request.
+     * Not waiting for replication is not enough, the proto might be
+     * dropped by the replicator, or written before being journaled.
+     * */
+    private fun isInS3(type: AritegObjectType, multihash: Multihash): Boolean =
+        !replicator.isPending(multihash) && lookupS3(type, multihash) != null
+
     override fun queryStatus(link: AritegLink): StorageStatus? {
         val fileResult = queryFile(link)
         if (fileResult != null)
             return fileResult
         // file result is null, query s3
-        val key = multihashToKeyMapper(link.type, link.multihash.toMultihash())
-        val headResp = try {
-            s3Client.headObject { it.bucket(bucketName).key(key) }
-        } catch (_: NoSuchKeyException) {
-            return null  // really not found
+        val multihash = link.multihash.toMultihash()
+        val entry = lookupS3(link.type, multihash) ?: return null // really not found
+        if (localCache == null) {
+            logger.warn("link {} not found in local but exists in S3", multihash.toBase58())
         }
-        logger.warn("link {} not found in local but exists in S3", link.multihash.toMultihash().toBase58())
-        // found in S3 but not in local -> local corrupted
+        // found in S3 but not in local -> local corrupted or evicted
         // return not available but can query size from S3
         // set size to null means not in the local file
-        return StorageStatus(resolveAvailability(headResp), null)
+        return StorageStatus(entry.available, null)
     }
 
-    override fun restoreLink(link: AritegLink) {
+    override fun restoreLink(link: AritegLink) = restoreLink(link, RestoreTier.BULK, 3)
+
+    override fun restoreLink(link: AritegLink, tier: RestoreTier, days: Int) {
+        val multihash = link.multihash.toMultihash()
         try {
             s3Client.restoreObject { b ->
                 b.bucket(bucketName)
-                    .key(multihashToKeyMapper(link.type, link.multihash.toMultihash()))
+                    .key(multihashToKeyMapper(link.type, multihash))
                     .restoreRequest {
-                        it.days(3).tier(Tier.BULK)
+                        it.days(days).glacierJobParameters { p -> p.tier(tier.toS3Tier()) }
                     }
             }
         } catch (e: InvalidObjectStateException) {
             throw IllegalStateException(e) // not suitable for restore
+        } catch (e: S3Exception) {
+            // RestoreAlreadyInProgress, fine
+            if (e.statusCode() != 409) throw e
+        }
+        keyIndex?.onRestoreRequested(link.type, multihash)
+    }
+
+    private fun RestoreTier.toS3Tier(): Tier = when (this) {
+        RestoreTier.EXPEDITED -> Tier.EXPEDITED
+        RestoreTier.STANDARD -> Tier.STANDARD
+        RestoreTier.BULK -> Tier.BULK
+    }
+
+    override fun restoreState(link: AritegLink, refresh: Boolean): RestoreState {
+        if (queryFile(link) != null) return RestoreState.AVAILABLE
+        val multihash = link.multihash.toMultihash()
+        val index = keyIndex
+        val entry = when {
+            // lookupS3 do a HEAD without the index
+            index == null -> lookupS3(link.type, multihash)
+            refresh -> index.refresh(link.type, multihash)
+            else -> index.lookup(link.type, multihash)
+        } ?: return RestoreState.NOT_FOUND
+        return when {
+            entry.available -> RestoreState.AVAILABLE
+            entry.restoreOngoing -> RestoreState.RESTORING
+            else -> RestoreState.ARCHIVED
         }
     }
 
     override fun loadProto(link: AritegLink): AritegObject {
-        val fileResult = loadFromFile(link)
-        if (fileResult != null)
+        val fileResult = try {
+            loadFromFile(link)
+        } catch (_: IOException) {
+            // evicted when reading
+            null
+        }
+        if (fileResult != null) {
+            localCache?.onAccess(link.multihash.toMultihash())
             return fileResult
+        }
         // file not found, try S3
         val multihash = link.multihash.toMultihash()
         val key = multihashToKeyMapper(link.type, multihash)
@@ -147,25 +253,95 @@ class AritegS3ArchiveStorageService(
         } catch (_: InvalidObjectStateException) {
             throw IllegalStateException("Cannot load ${link.toMultihashBase58()}: unavailable")
         }
-        // validate multihash
-        MultihashProviders.mustMatch(multihash, content)
-        // write to local
-        writeToFile(multihash, link.type, content)
-        return when (link.type) {
-            AritegObjectType.BLOB -> BlobObject.fromProto(AritegBlobObject.parseFrom(content))
-            AritegObjectType.LIST -> ListObject.fromProto(AritegListObject.parseFrom(content))
-            AritegObjectType.TREE -> TreeObject.fromProto(AritegTreeObject.parseFrom(content))
-            AritegObjectType.COMMIT -> CommitObject.fromProto(AritegCommitObject.parseFrom(content))
-            else -> throw IllegalStateException("Invalid object type: ${link.type}")
+        // validate multihash over the uncompressed proto
+        val decoded = codec.decode(link.type, content)
+        MultihashProviders.mustMatch(multihash, decoded)
+        // write to local as it is in S3
+        // just a cached copy, no need to sync
+        writeToFile(multihash, link.type, content, false)
+        localCache?.onWrite(link.type, multihash, content.size.toLong())
+        return parseProto(link.type, decoded)
+    }
+
+    /**
+     * Check the local copy, a broken one is deleted and downloaded again
+     * from S3, if it has been replicated. With [remote], also check the
+     * S3 copy, a broken or lost one is uploaded again from a good local copy.
+     * Archived S3 copies are not checked.
+     * */
+    override fun scrubProto(link: AritegLink, remote: Boolean): ScrubResult {
+        val multihash = link.multihash.toMultihash()
+        val local = scrubFile(link)
+        var bytes = local.bytes
+        var localState = local.state
+        if (localState == ScrubState.CORRUPTED && isInS3(link.type, multihash)) {
+            localCache?.onDelete(multihash)
+            deleteFile(link)
+            localState = try {
+                // download, check and write the local copy
+                loadProto(link)
+                logger.info("Proto {} is repaired from S3", multihash.toBase58())
+                ScrubState.REPAIRED
+            } catch (e: Exception) {
+                logger.error("Failed to repair {} from S3", multihash.toBase58(), e)
+                ScrubState.CORRUPTED
+            }
+        }
+        val localGood = localState == ScrubState.OK || localState == ScrubState.REPAIRED
+        // with the local cache, the local copy might be evicted
+        if (localState == ScrubState.MISSING && isInS3(link.type, multihash)) {
+            localState = ScrubState.OK
+        }
+        // not replicated yet, the replicator will upload it
+        if (!remote || replicator.isPending(multihash)) return ScrubResult(localState, bytes)
+
+        val remoteState = try {
+            val content = s3Client.getObject {
+                it.bucket(bucketName).key(multihashToKeyMapper(link.type, multihash))
+            }.readAllBytes()
+            bytes += content.size
+            MultihashProviders.mustMatch(multihash, codec.decode(link.type, content))
+            ScrubState.OK
+        } catch (_: InvalidObjectStateException) {
+            // archived, cannot read
+            ScrubState.OK
+        } catch (e: Exception) {
+            // other errors, like network, are thrown
+            if (e !is NoSuchKeyException && e !is IllegalStateException) throw e
+            logger.error("S3 copy of {} is broken: {}", multihash.toBase58(), e.message)
+            // not evictable until uploaded again
+            if (e is NoSuchKeyException) keyIndex?.onDeleted(link.type, multihash)
+            if (localGood) {
+                // upload again from the local copy
+                replicator.enqueue(journal.append(link.type, multihash))
+                ScrubState.REPAIRED
+            } else if (e is NoSuchKeyException) {
+                ScrubState.MISSING
+            } else {
+                ScrubState.CORRUPTED
+            }
         }
+        return ScrubResult(maxOf(localState, remoteState), bytes)
     }
 
     override fun deleteProto(link: AritegLink): Boolean {
+        val multihash = link.multihash.toMultihash()
+        localCache?.onDelete(multihash)
+        val uploading = replicator.cancel(multihash)
         val fileResult = deleteFile(link)
-        val s3Result = try {
+        // an upload already started might re-create the object after deleting
+        val uploadFinished = try {
+            uploading.get(1, TimeUnit.MINUTES)
+            true
+        } catch (_: TimeoutException) {
+            logger.warn("Timeout when waiting the replication of {}", multihash.toBase58())
+            false
+        }
+        keyIndex?.onDeleted(link.type, multihash)
+        val s3Result = uploadFinished && try {
             s3Client.deleteObject {
                 it.bucket(bucketName)
-                    .key(multihashToKeyMapper(link.type, link.multihash.toMultihash()))
+                    .key(multihashToKeyMapper(link.type, multihash))
             }
             true
         } catch (_: Throwable) {
@@ -175,10 +351,22 @@ class AritegS3ArchiveStorageService(
         return fileResult && s3Result
     }
 
+    override fun replicationLag(): ReplicationLag = replicator.lag()
+
+    override fun awaitReplicated(link: AritegLink): CompletableFuture<Void> =
+        replicator.awaitReplicated(link.multihash.toMultihash())
+
     override fun close() {
         threadPool.shutdown()
         while (!threadPool.awaitTermination(1, TimeUnit.MINUTES)) {
             logger.trace("Waiting termination...")
         }
+        // pending writes are synced, then enqueued
+        fileSync?.close()
+        localCache?.close()
+        keyIndex?.close()
+        // unfinished replications are resumed from the journal next time
+        replicator.close()
+        journal.close()
     }
 }
@@ -3,6 +3,7 @@ package info.skyblond.archivedag.ariteg.storage
 import info.skyblond.archivedag.ariteg.model.*
 import info.skyblond.archivedag.ariteg.protos.AritegLink
 import io.ipfs.multihash.Multihash
+import java.util.concurrent.CompletableFuture
 import java.util.function.BiFunction
 
 
@@ -22,6 +23,18 @@ interface AritegStorageService {
     fun store(
         name: String, proto: AritegObject,
         checkBeforeWrite: BiFunction<Multihash, Multihash, Boolean>
+    ): StoreReceipt = store(name, proto, null, checkBeforeWrite)
+
+    /**
+     * Same as the above, but reuse the [digests] calculated by the caller.
+     * If [digests] is null, the storage calculates both hashes by itself.
+     *
+     * The caller is responsible for the correctness of [digests],
+     * a wrong digest will make the proto stored under a wrong link.
+     * */
+    fun store(
+        name: String, proto: AritegObject, digests: VerifiedDigests?,
+        checkBeforeWrite: BiFunction<Multihash, Multihash, Boolean>
     ): StoreReceipt
 
     /**
@@ -38,6 +51,21 @@ interface AritegStorageService {
      */
     fun restoreLink(link: AritegLink)
 
+    /**
+     * Restore a link with the given [tier], the restored copy lasts for [days].
+     * Storages that don't need restoring ignore the parameters.
+     * */
+    fun restoreLink(link: AritegLink, tier: RestoreTier, days: Int) = restoreLink(link)
+
+    /**
+     * Query whether the proto can be read now, or needs restoring.
+     * Set [refresh] to true to bypass any cached state.
+     * */
+    fun restoreState(link: AritegLink, refresh: Boolean = false): RestoreState {
+        val status = queryStatus(link) ?: return RestoreState.NOT_FOUND
+        return if (status.available) RestoreState.AVAILABLE else RestoreState.ARCHIVED
+    }
+
     /**
      * Load a proto from a given link.
      *
@@ -60,6 +88,60 @@ interface AritegStorageService {
      */
     fun deleteProto(link: AritegLink): Boolean
 
+    /**
+     * The lag of replicating protos to a remote storage.
+     * Return null if this storage doesn't replicate asynchronously.
+     * */
+    fun replicationLag(): ReplicationLag? = null
+
+    /**
+     * Return a future that completes when the proto is replicated
+     * to the remote storage. Storages that don't replicate
+     * asynchronously return a completed future.
+     * */
+    fun awaitReplicated(link: AritegLink): CompletableFuture<Void> = CompletableFuture.completedFuture(null)
+
+    /**
+     * Move protos to where they should be, e.g. after adding disks.
+     * Return null if this storage doesn't need rebalancing,
+     * otherwise a future completes with the number of copied protos.
+     * */
+    fun rebalance(): CompletableFuture<Long>? = null
+
+    /**
+     * Visit the stored protos in a stable order, starting after the [cursor],
+     * null means from the beginning. The [action] gets each link with its cursor,
+     * and returns false to stop.
+     *
+     * @return true if all protos are visited, false if stopped by the [action],
+     * null if this storage can't list its protos.
+     * */
+    fun listProtos(cursor: String?, action: (AritegLink, String) -> Boolean): Boolean? = null
+
+    /**
+     * Check the stored copies of the proto by recomputing the multihash,
+     * and repair the broken ones from a good copy if possible.
+     * Set [remote] to also check the copy in the remote storage.
+     *
+     * By default, the proto is loaded, nothing can be repaired.
+     * */
+    fun scrubProto(link: AritegLink, remote: Boolean = false): ScrubResult {
+        val status = queryStatus(link) ?: return ScrubResult(ScrubState.MISSING, 0)
+        val bytes = status.protoSize ?: 0
+        return try {
+            loadProto(link)
+            ScrubResult(ScrubState.OK, bytes)
+        } catch (_: Exception) {
+            ScrubResult(ScrubState.CORRUPTED, bytes)
+        }
+    }
+
+    /**
+     * The counters of compression of each type, see [ProtoCodec].
+     * Empty if this storage doesn't compress.
+     * */
+    fun codecStats(): Map<String, CodecStats> = emptyMap()
+
     fun primaryMultihashType(): Multihash.Type
     fun secondaryMultihashType(): Multihash.Type
 }
@@ -0,0 +1,206 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.model.*
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.utils.toMultihashBase58
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.BiFunction
+
+/**
+ * Place protos on different storages by their type.
+ *
+ * Protos of a type in [tiers] go to that storage, the others go to [default].
+ * For example, put LIST, TREE and COMMIT on a fast disk, while blobs stay
+ * on the bulk storage. Every operation is routed by the type of the proto
+ * or the link, and the DAG walker never loads blobs, so walking the DAG
+ * only touches the fast storage.
+ *
+ * When the tiers are added to an existing deployment, the protos already
+ * stored are still on [default], so a proto not found on its tier is
+ * looked up on [default], and deleted from both. [rebalance] moves them
+ * to their tiers.
+ * */
+class AritegTieredStorageService(
+    private val default: AritegStorageService,
+    private val tiers: Map<AritegObjectType, AritegStorageService>,
+) : AritegStorageService, AutoCloseable {
+    private val logger = LoggerFactory.getLogger(AritegTieredStorageService::class.java)
+
+    /**
+     * Each storage once, the default one first.
+     * */
+    private val storages = (listOf(default) + tiers.values).distinct()
+
+    init {
+        storages.forEach {
+            require(it.primaryMultihashType() == default.primaryMultihashType()) { "Primary hash type mismatch" }
+            require(it.secondaryMultihashType() == default.secondaryMultihashType()) { "Secondary hash type mismatch" }
+        }
+        tiers.forEach { (type, storage) ->
+            logger.info("Placing {} on {}", type, storage.javaClass.simpleName)
+        }
+    }
+
+    private val migrationExecutor = Executors.newSingleThreadExecutor {
+        Thread(it, "tier-migration").apply { isDaemon = true }
+    }
+
+    @Volatile
+    private var migrating: CompletableFuture<Long>? = null
+
+    private fun storageOf(type: AritegObjectType): AritegStorageService = tiers[type] ?: default
+
+    /**
+     * The storage holding the proto: its tier, or [default] if only
+     * the default one has it. New protos go to the tier.
+     * */
+    private fun locate(link: AritegLink): AritegStorageService {
+        val storage = storageOf(link.type)
+        if (storage === default || storage.queryStatus(link) != null) return storage
+        return if (default.queryStatus(link) != null) default else storage
+    }
+
+    override fun store(
+        name: String,
+        proto: AritegObject,
+        digests: VerifiedDigests?,
+        checkBeforeWrite: BiFunction<Multihash, Multihash, Boolean>
+    ): StoreReceipt = storageOf(proto.getObjectType()).store(name, proto, digests, checkBeforeWrite)
+
+    override fun queryStatus(link: AritegLink): StorageStatus? {
+        val storage = storageOf(link.type)
+        return storage.queryStatus(link) ?: if (storage !== default) default.queryStatus(link) else null
+    }
+
+    override fun restoreLink(link: AritegLink) = locate(link).restoreLink(link)
+
+    override fun restoreLink(link: AritegLink, tier: RestoreTier, days: Int) =
+        locate(link).restoreLink(link, tier, days)
+
+    override fun restoreState(link: AritegLink, refresh: Boolean): RestoreState =
+        locate(link).restoreState(link, refresh)
+
+    override fun loadProto(link: AritegLink): AritegObject = locate(link).loadProto(link)
+
+    /**
+     * Delete from the tier and [default], it might be on both when moving.
+     * */
+    override fun deleteProto(link: AritegLink): Boolean {
+        val storage = storageOf(link.type)
+        val deleted = storage.deleteProto(link)
+        if (storage === default) return deleted
+        return default.deleteProto(link) || deleted
+    }
+
+    /**
+     * The lag of the first storage that replicates.
+     * */
+    override fun replicationLag(): ReplicationLag? = storages.firstNotNullOfOrNull { it.replicationLag() }
+
+    override fun awaitReplicated(link: AritegLink): CompletableFuture<Void> =
+        locate(link).awaitReplicated(link)
+
+    /**
+     * Move the protos on [default] to their tiers, and rebalance all storages
+     * that support it, then sum the moved and copied protos.
+     * */
+    override fun rebalance(): CompletableFuture<Long>? {
+        val futures = storages.mapNotNull { it.rebalance() } + listOfNotNull(migrateToTiers())
+        if (futures.isEmpty()) return null
+        return CompletableFuture.allOf(*futures.toTypedArray()).thenApply { futures.sumOf { it.join() } }
+    }
+
+    /**
+     * Move the protos of the tiered types from [default] to their tiers in
+     * background. Return null if nothing is tiered away from [default].
+     * If a migration is running, its future is returned.
+     * */
+    @Synchronized
+    private fun migrateToTiers(): CompletableFuture<Long>? {
+        if (tiers.values.all { it === default }) return null
+        migrating?.let { if (!it.isDone) return it }
+        return CompletableFuture.supplyAsync({
+            val moved = AtomicLong(0)
+            val finished = default.listProtos(null) { link, _ ->
+                val tier = storageOf(link.type)
+                if (tier !== default) {
+                    try {
+                        moveProto(link, tier)
+                        moved.incrementAndGet()
+                    } catch (t: Throwable) {
+                        logger.error("Failed to move {} to its tier", link.toMultihashBase58(), t)
+                    }
+                }
+                true
+            }
+            if (finished == null) {
+                logger.warn("The default storage can't list its protos, nothing is moved")
+            }
+            logger.info("Tier migration finished, {} protos moved", moved.get())
+            moved.get()
+        }, migrationExecutor).also { migrating = it }
+    }
+
+    private fun moveProto(link: AritegLink, tier: AritegStorageService) {
+        if (tier.queryStatus(link) == null) {
+            val proto = default.loadProto(link)
+            tier.store(link.name, proto, null) { _, _ -> true }.completionFuture.get()
+            // deleted while moving, don't bring it back
+            if (default.queryStatus(link) == null) {
+                tier.deleteProto(link)
+                return
+            }
+        }
+        default.deleteProto(link)
+    }
+
+    /**
+     * List the storages one by one, the cursor is `<storage index>:<cursor of the storage>`.
+     * Only the types placed on each storage are listed, and the ones on
+     * [default] not moved to their tiers yet.
+     * Return null if any storage can't list its protos.
+     * */
+    override fun listProtos(cursor: String?, action: (AritegLink, String) -> Boolean): Boolean? {
+        val start = cursor?.substringBefore(':')?.toInt() ?: 0
+        for (index in start until storages.size) {
+            val storage = storages[index]
+            val storageCursor = if (index == start) cursor?.substringAfter(':') else null
+            val finished = storage.listProtos(storageCursor) { link, c ->
+                val placed = storageOf(link.type)
+                val listed = placed === storage || (storage === default && placed.queryStatus(link) == null)
+                !listed || action(link, "$index:$c")
+            } ?: return null
+            if (!finished) return false
+        }
+        return true
+    }
+
+    override fun scrubProto(link: AritegLink, remote: Boolean): ScrubResult =
+        locate(link).scrubProto(link, remote)
+
+    /**
+     * The counters of each type come from the storage holding that type.
+     * */
+    override fun codecStats(): Map<String, CodecStats> = FileStorageLayout.TYPES.mapNotNull { type ->
+        val key = type.name.lowercase()
+        storageOf(type).codecStats()[key]?.let { key to it }
+    }.toMap()
+
+    override fun primaryMultihashType(): Multihash.Type = default.primaryMultihashType()
+
+    override fun secondaryMultihashType(): Multihash.Type = default.secondaryMultihashType()
+
+    override fun close() {
+        migrationExecutor.shutdownNow()
+        storages.forEach {
+            if (it is AutoCloseable) {
+                it.close()
+            }
+        }
+    }
+}
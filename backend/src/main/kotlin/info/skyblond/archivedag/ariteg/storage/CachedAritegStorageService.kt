@@ -0,0 +1,136 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import info.skyblond.archivedag.ariteg.model.*
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.utils.toMultihash
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import java.util.concurrent.CompletableFuture
+import java.util.function.BiFunction
+
+/**
+ * Cache the decoded protos in front of another storage.
+ *
+ * Protos are immutable, so the cache only need to be invalidated when
+ * deleting. LIST, TREE and COMMIT share one byte budget, BLOB has its own,
+ * so reading big blobs won't flush the small structural protos.
+ * Set [blobCacheBytes] to 0 to not cache blobs.
+ *
+ * The cache is size-bounded by serialized bytes, and uses the W-TinyLFU
+ * admission policy from Caffeine, so a one-time scan won't evict hot entries.
+ * */
+class CachedAritegStorageService(
+    private val delegate: AritegStorageService,
+    structureCacheBytes: Long,
+    blobCacheBytes: Long,
+) : AritegStorageService, AutoCloseable {
+    private val logger = LoggerFactory.getLogger(CachedAritegStorageService::class.java)
+
+    private data class CacheKey(
+        val multihash: Multihash,
+        val type: AritegObjectType
+    )
+
+    private fun newCache(maxBytes: Long): Cache<CacheKey, AritegObject> = Caffeine.newBuilder()
+        .maximumWeight(maxBytes)
+        .weigher { _: CacheKey, value: AritegObject -> value.toProto().serializedSize }
+        .recordStats()
+        .build()
+
+    private val structureCache = newCache(structureCacheBytes)
+    private val blobCache = if (blobCacheBytes > 0) newCache(blobCacheBytes) else null
+
+    init {
+        logger.info("Caching structural protos with {} bytes, blobs with {} bytes", structureCacheBytes, blobCacheBytes)
+    }
+
+    private fun cacheOf(type: AritegObjectType): Cache<CacheKey, AritegObject>? = when (type) {
+        AritegObjectType.BLOB -> blobCache
+        AritegObjectType.LIST, AritegObjectType.TREE, AritegObjectType.COMMIT -> structureCache
+        else -> null
+    }
+
+    override fun store(
+        name: String,
+        proto: AritegObject,
+        digests: VerifiedDigests?,
+        checkBeforeWrite: BiFunction<Multihash, Multihash, Boolean>
+    ): StoreReceipt = delegate.store(name, proto, digests, checkBeforeWrite)
+
+    override fun queryStatus(link: AritegLink): StorageStatus? = delegate.queryStatus(link)
+
+    override fun restoreLink(link: AritegLink) = delegate.restoreLink(link)
+
+    override fun restoreLink(link: AritegLink, tier: RestoreTier, days: Int) =
+        delegate.restoreLink(link, tier, days)
+
+    override fun restoreState(link: AritegLink, refresh: Boolean): RestoreState =
+        delegate.restoreState(link, refresh)
+
+    override fun loadProto(link: AritegLink): AritegObject {
+        val cache = cacheOf(link.type) ?: return delegate.loadProto(link)
+        return cache.get(CacheKey(link.multihash.toMultihash(), link.type)) { delegate.loadProto(link) }
+    }
+
+    override fun deleteProto(link: AritegLink): Boolean {
+        val cache = cacheOf(link.type) ?: return delegate.deleteProto(link)
+        val key = CacheKey(link.multihash.toMultihash(), link.type)
+        // invalidate first, so no one reads the cached one after deleting
+        cache.invalidate(key)
+        // again, a load during the deletion might have cached it back
+        return delegate.deleteProto(link).also { cache.invalidate(key) }
+    }
+
+    override fun replicationLag(): ReplicationLag? = delegate.replicationLag()
+
+    override fun awaitReplicated(link: AritegLink): CompletableFuture<Void> = delegate.awaitReplicated(link)
+
+    override fun rebalance(): CompletableFuture<Long>? = delegate.rebalance()
+
+    override fun codecStats(): Map<String, CodecStats> = delegate.codecStats()
+
+    override fun listProtos(cursor: String?, action: (AritegLink, String) -> Boolean): Boolean? =
+        delegate.listProtos(cursor, action)
+
+    /**
+     * Always check the storage, not the cache.
+     * */
+    override fun scrubProto(link: AritegLink, remote: Boolean): ScrubResult = delegate.scrubProto(link, remote)
+
+    override fun primaryMultihashType(): Multihash.Type = delegate.primaryMultihashType()
+
+    override fun secondaryMultihashType(): Multihash.Type = delegate.secondaryMultihashType()
+
+    /**
+     * The counters of the structural cache and the blob cache.
+     * */
+    fun cacheStats(): Map<String, StorageCacheStats> {
+        val result = mutableMapOf("structure" to structureCache.toStats())
+        blobCache?.let { result["blob"] = it.toStats() }
+        return result
+    }
+
+    private fun Cache<CacheKey, AritegObject>.toStats(): StorageCacheStats {
+        // run the pending maintenance, so the size is up-to-date
+        this.cleanUp()
+        val stats = this.stats()
+        return StorageCacheStats(
+            hitCount = stats.hitCount(),
+            missCount = stats.missCount(),
+            evictionCount = stats.evictionCount(),
+            evictionBytes = stats.evictionWeight(),
+            cachedBytes = this.policy().eviction().map { it.weightedSize().orElse(0) }.orElse(0)
+        )
+    }
+
+    override fun close() {
+        structureCache.invalidateAll()
+        blobCache?.invalidateAll()
+        if (delegate is AutoCloseable) {
+            delegate.close()
+        }
+    }
+}
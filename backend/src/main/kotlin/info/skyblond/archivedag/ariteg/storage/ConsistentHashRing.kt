@@ -0,0 +1,67 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+/**
+ * A consistent hash ring of nodes identified by [nodeIds].
+ *
+ * Each node is put on the ring [virtualNodes] times, at the positions
+ * hashed from `<id>#<i>` by SHA-256, so the placement only depends on
+ * the ids, not the order of nodes. Adding a node only moves about
+ * 1/n of the keys to it.
+ * */
+class ConsistentHashRing(
+    private val nodeIds: List<String>,
+    virtualNodes: Int,
+) {
+    private val positions: LongArray
+    private val owners: IntArray
+
+    init {
+        require(nodeIds.isNotEmpty()) { "No node" }
+        require(nodeIds.toSet().size == nodeIds.size) { "Duplicated node id" }
+        require(virtualNodes > 0) { "Virtual nodes must be positive" }
+        val points = nodeIds.flatMapIndexed { index, id ->
+            (0 until virtualNodes).map { hash("$id#$it") to index }
+        }.sortedWith(compareBy({ it.first }, { nodeIds[it.second] }))
+        positions = LongArray(points.size) { points[it].first }
+        owners = IntArray(points.size) { points[it].second }
+    }
+
+    /**
+     * Select [count] distinct nodes for the [key], walking clockwise from the key.
+     * @return the index of nodes, the first one is the primary.
+     * */
+    fun select(key: Long, count: Int): List<Int> {
+        require(count in 1..nodeIds.size) { "Count must in 1..${nodeIds.size}" }
+        // first position >= key, wrap around to 0
+        var i = positions.binarySearch(key).let { if (it < 0) -it - 1 else it }
+        val result = ArrayList<Int>(count)
+        while (result.size < count) {
+            if (i == positions.size) i = 0
+            val owner = owners[i]
+            if (owner !in result) result.add(owner)
+            i++
+        }
+        return result
+    }
+
+    companion object {
+        private fun hash(s: String): Long =
+            ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(s.toByteArray())).long
+
+        /**
+         * The key of some bytes, from the first 8 bytes (zero-padded).
+         * Use it on digests, which are already evenly distributed.
+         * */
+        @JvmStatic
+        fun keyOf(bytes: ByteArray): Long {
+            var result = 0L
+            for (i in 0 until 8) {
+                result = (result shl 8) or (if (i < bytes.size) bytes[i].toLong() and 0xFF else 0L)
+            }
+            return result
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import io.ipfs.multihash.Multihash
+
+/**
+ * How proto files are sharded into dirs under `<baseDir>/<type>/`.
+ *
+ * The file name is always the base58 of the multihash, and it is put
+ * under [levels] dirs, each named by [width] chars from the [encoding].
+ * For example, `HEX:2:2` gives `blob/ab/cd/<base58>`.
+ * */
+data class FileLayout(
+    val encoding: ShardEncoding,
+    val levels: Int,
+    val width: Int,
+) {
+    enum class ShardEncoding {
+        /**
+         * Take chars from the base58 of the whole multihash.
+         * The leading chars come from the hash type and length,
+         * so they are almost the same for all protos.
+         * */
+        BASE58,
+
+        /**
+         * Take chars from the hex of the digest, which are evenly distributed.
+         * */
+        HEX,
+    }
+
+    init {
+        require(levels >= 0) { "Levels must not be negative" }
+        require(width > 0) { "Width must be positive" }
+    }
+
+    /**
+     * The shard dir names of a multihash, from top to bottom.
+     * */
+    fun shardsOf(multihash: Multihash, base58: String = multihash.toBase58()): List<String> {
+        if (levels == 0) return emptyList()
+        val chars = levels * width
+        val source = when (encoding) {
+            ShardEncoding.BASE58 -> base58
+            ShardEncoding.HEX -> toHex(multihash.hash, (chars + 1) / 2)
+        }
+        require(source.length >= chars) { "Multihash too short for layout $this" }
+        return List(levels) { source.substring(it * width, (it + 1) * width) }
+    }
+
+    /**
+     * Written in the layout marker file, see [parse].
+     * */
+    override fun toString(): String = "$encoding:$levels:$width"
+
+    companion object {
+        /**
+         * The first 6 chars of base58, used before the layout is configurable.
+         * */
+        @JvmField
+        val LEGACY = FileLayout(ShardEncoding.BASE58, 1, 6)
+
+        private val HEX_CHARS = "0123456789abcdef".toCharArray()
+
+        private fun toHex(bytes: ByteArray, count: Int): String {
+            val sb = StringBuilder(count * 2)
+            for (i in 0 until minOf(count, bytes.size)) {
+                val b = bytes[i].toInt() and 0xFF
+                sb.append(HEX_CHARS[b ushr 4]).append(HEX_CHARS[b and 0x0F])
+            }
+            return sb.toString()
+        }
+
+        /**
+         * Parse a layout from `<encoding>:<levels>:<width>`.
+         * */
+        @JvmStatic
+        fun parse(spec: String): FileLayout {
+            val parts = spec.trim().split(":")
+            require(parts.size == 3) { "Invalid layout: $spec" }
+            return FileLayout(
+                ShardEncoding.valueOf(parts[0].uppercase()),
+                parts[1].toInt(), parts[2].toInt()
+            )
+        }
+    }
+}
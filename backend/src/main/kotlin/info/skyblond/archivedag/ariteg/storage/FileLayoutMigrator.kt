@@ -0,0 +1,120 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Move the proto files under [baseDir] from layout [from] to layout [to].
+ *
+ * Files are moved by [threadNum] threads. Each move is an atomic rename,
+ * so a crashed migration can be resumed by running it again.
+ * After that, the touched dirs are synced and the empty old dirs are removed.
+ * */
+class FileLayoutMigrator(
+    private val baseDir: File,
+    private val from: FileLayout,
+    private val to: FileLayout,
+    private val threadNum: Int,
+) {
+    private val logger = LoggerFactory.getLogger(FileLayoutMigrator::class.java)
+
+    /**
+     * @return how many files are moved.
+     * */
+    fun migrate(): Long {
+        val start = System.currentTimeMillis()
+        val source = FileStorageLayout(baseDir, from)
+        val target = FileStorageLayout(baseDir, to)
+        val threadCounter = AtomicInteger(0)
+        // bounded queue, the walker waits if the movers are busy
+        val threadPool = ThreadPoolExecutor(
+            threadNum, threadNum, 0L, TimeUnit.MILLISECONDS,
+            LinkedBlockingQueue(threadNum * 64), ThreadPoolExecutor.CallerRunsPolicy()
+        ) { r -> Thread(r, "layout-migrator-${threadCounter.getAndIncrement()}") }
+        val moved = AtomicLong(0)
+        val errors = ConcurrentLinkedQueue<Throwable>()
+        val touchedDirs: MutableSet<File> = ConcurrentHashMap.newKeySet()
+        try {
+            source.forEachFile { type, multihash, file ->
+                threadPool.execute {
+                    try {
+                        val dest = target.resolveForWrite(type, multihash)
+                        // same place in both layouts
+                        if (dest == file) return@execute
+                        Files.move(
+                            file.toPath(), dest.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING
+                        )
+                        touchedDirs.add(file.parentFile)
+                        touchedDirs.add(dest.parentFile)
+                        if (moved.incrementAndGet() % 100_000 == 0L) {
+                            logger.info("Moved {} files", moved.get())
+                        }
+                    } catch (t: Throwable) {
+                        errors.add(t)
+                    }
+                }
+            }
+        } finally {
+            threadPool.shutdown()
+            while (!threadPool.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.trace("Waiting termination...")
+            }
+        }
+        errors.peek()?.let {
+            throw IllegalStateException("Failed to move ${errors.size} files", it)
+        }
+        touchedDirs.forEach { FileSyncScheduler.syncDir(it) }
+        // delete only works on empty dirs
+        FileStorageLayout.TYPES.forEach { type ->
+            val typeDir = File(baseDir, type.name.lowercase())
+            typeDir.walkBottomUp().filter { it.isDirectory && it != typeDir }.forEach { it.delete() }
+        }
+        logger.info(
+            "Migrated {} files from {} to {} in {}ms",
+            moved.get(), from, to, System.currentTimeMillis() - start
+        )
+        return moved.get()
+    }
+
+    companion object {
+        /**
+         * The file records the layout of the base dir.
+         * */
+        const val LAYOUT_FILE = "layout"
+
+        /**
+         * Migrate the base dir to [layout] if it uses another one.
+         * A base dir without the layout file uses [FileLayout.LEGACY].
+         * */
+        @JvmStatic
+        fun migrateIfNeeded(baseDir: File, layout: FileLayout, threadNum: Int) {
+            val marker = File(baseDir, LAYOUT_FILE)
+            val current = if (marker.exists()) FileLayout.parse(marker.readText()) else FileLayout.LEGACY
+            if (current != layout) {
+                LoggerFactory.getLogger(FileLayoutMigrator::class.java)
+                    .info("Migrating {} from layout {} to {}", baseDir, current, layout)
+                FileLayoutMigrator(baseDir, current, layout, threadNum).migrate()
+            }
+            if (current != layout || !marker.exists()) {
+                baseDir.mkdirs()
+                val temp = File(baseDir, LAYOUT_FILE + FileStorageLayout.TEMP_SUFFIX)
+                FileOutputStream(temp).use {
+                    it.write(layout.toString().toByteArray())
+                    it.fd.sync()
+                }
+                Files.move(
+                    temp.toPath(), marker.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING
+                )
+                FileSyncScheduler.syncDir(baseDir)
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package info.skyblond.archivedag.ariteg.storage
+
+/**
+ * How [AritegFileAbstractStorage] reads protos from files.
+ * */
+enum class FileReadMode {
+    /**
+     * Read the whole file into heap once, then check the multihash
+     * and parse the proto from the same byte array.
+     * */
+    STREAM,
+
+    /**
+     * Map the file into memory, then check the multihash and parse
+     * the proto from the mapped buffer. The data of [info.skyblond.archivedag.ariteg.model.BlobObject]
+     * points to the mapped region without copying, which saves heap for big blobs.
+     *
+     * Note: On Windows, a mapped file cannot be deleted until the mapping
+     * is garbage collected.
+     * */
+    MEMORY_MAPPED,
+}
@@ -0,0 +1,172 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Resolve the proto files under [baseDir] with the given [layout].
+ *
+ * Resolving is pure path computation. The dirs are created only when
+ * writing, and each created dir is remembered, so a write touches
+ * the file system for the dirs only once per dir.
+ * */
+class FileStorageLayout(
+    private val baseDir: File,
+    val layout: FileLayout,
+) {
+    private val logger = LoggerFactory.getLogger(FileStorageLayout::class.java)
+
+    /**
+     * Dirs known to exist.
+     * */
+    private val createdDirs: MutableSet<File> = ConcurrentHashMap.newKeySet()
+
+    private val typeDirs = TYPES.associateWith { File(baseDir, it.name.lowercase()) }
+
+    private fun typeDir(type: AritegObjectType): File =
+        typeDirs[type] ?: throw IllegalArgumentException("Invalid object type: $type")
+
+    /**
+     * Map a <type, multihash> to a file. No file system call is made.
+     * */
+    fun resolve(type: AritegObjectType, multihash: Multihash): File {
+        val name = multihash.toBase58()
+        var dir = typeDir(type)
+        layout.shardsOf(multihash, name).forEach { dir = File(dir, it) }
+        return File(dir, name)
+    }
+
+    /**
+     * Same as [resolve], but make sure the parent dirs exist.
+     * */
+    fun resolveForWrite(type: AritegObjectType, multihash: Multihash): File {
+        val file = resolve(type, multihash)
+        ensureDir(file.parentFile)
+        return file
+    }
+
+    private fun ensureDir(dir: File) {
+        if (dir in createdDirs) return
+        if (dir == baseDir) {
+            baseDir.mkdirs()
+        } else {
+            // parent first, so each new dir can be synced into its parent
+            ensureDir(dir.parentFile)
+            if (dir.mkdir()) {
+                logger.trace("Create dir: {}", dir.absolutePath)
+                FileSyncScheduler.syncDir(dir.parentFile)
+            }
+        }
+        createdDirs.add(dir)
+    }
+
+    /**
+     * The [dir] is removed by others, create it again next time.
+     * */
+    fun invalidate(dir: File) {
+        createdDirs.removeIf { it == dir || it.startsWith(dir) }
+    }
+
+    /**
+     * Walk all proto files with this layout.
+     * Temp files and files with an invalid name are ignored.
+     * */
+    fun forEachFile(action: (AritegObjectType, Multihash, File) -> Unit) {
+        TYPES.forEach { type ->
+            walk(typeDir(type), layout.levels) { file ->
+                val multihash = try {
+                    Multihash.fromBase58(file.name)
+                } catch (_: Exception) {
+                    logger.warn("Ignore unknown file: {}", file.canonicalPath)
+                    null
+                }
+                multihash?.let { action(type, it, file) }
+            }
+        }
+    }
+
+    /**
+     * Walk all proto files in a stable order: the types as in [TYPES], then
+     * the names of dirs and files. Each file comes with its cursor, which is
+     * the path relative to the base dir. Start after the [cursor], null
+     * means from the beginning. Return false from [action] to stop.
+     *
+     * @return true if all files are visited.
+     * */
+    fun forEachFileSorted(
+        cursor: String?,
+        action: (AritegObjectType, Multihash, String) -> Boolean
+    ): Boolean {
+        val bound = cursor?.split('/')
+        val boundType = bound?.let { TYPES.indexOfFirst { type -> type.name.lowercase() == it[0] } } ?: -1
+        TYPES.forEachIndexed { index, type ->
+            if (index < boundType) return@forEachIndexed
+            val typeName = type.name.lowercase()
+            val finished = walkSorted(
+                typeDir(type), layout.levels, typeName,
+                if (index == boundType) bound!!.drop(1) else null
+            ) { file, path ->
+                val multihash = try {
+                    Multihash.fromBase58(file.name)
+                } catch (_: Exception) {
+                    logger.warn("Ignore unknown file: {}", file.canonicalPath)
+                    null
+                }
+                multihash == null || action(type, multihash, path)
+            }
+            if (!finished) return false
+        }
+        return true
+    }
+
+    /**
+     * [bound] is the rest of the cursor under this [dir], null means no bound.
+     * */
+    private fun walkSorted(
+        dir: File, depth: Int, path: String, bound: List<String>?,
+        action: (File, String) -> Boolean
+    ): Boolean {
+        val head = bound?.firstOrNull()
+        val children = if (depth == 0) {
+            dir.listFiles { f -> f.isFile && !f.name.endsWith(TEMP_SUFFIX) }
+        } else {
+            dir.listFiles { f -> f.isDirectory }
+        } ?: return true
+        children.sortBy { it.name }
+        for (child in children) {
+            if (head != null && child.name < head) continue
+            val childPath = "$path/${child.name}"
+            val finished = if (depth == 0) {
+                // the cursor itself has been visited
+                child.name == head || action(child, childPath)
+            } else {
+                walkSorted(
+                    child, depth - 1, childPath,
+                    if (child.name == head) bound!!.drop(1).ifEmpty { null } else null, action
+                )
+            }
+            if (!finished) return false
+        }
+        return true
+    }
+
+    private fun walk(dir: File, depth: Int, action: (File) -> Unit) {
+        if (depth == 0) {
+            dir.listFiles { f -> f.isFile && !f.name.endsWith(TEMP_SUFFIX) }?.forEach(action)
+        } else {
+            dir.listFiles { f -> f.isDirectory }?.forEach { walk(it, depth - 1, action) }
+        }
+    }
+
+    companion object {
+        const val TEMP_SUFFIX = ".tmp"
+
+        val TYPES = listOf(
+            AritegObjectType.BLOB, AritegObjectType.LIST,
+            AritegObjectType.TREE, AritegObjectType.COMMIT
+        )
+    }
+}
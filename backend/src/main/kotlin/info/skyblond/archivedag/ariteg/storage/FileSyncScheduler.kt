@@ -0,0 +1,143 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Make newly written files durable in groups.
+ *
+ * Writers write the content into a temp file and submit it here.
+ * A background thread collects the submitted files for [intervalMs],
+ * or until [maxBytes] are collected, then fsync the temp files,
+ * rename them to the target atomically, and fsync each parent dir once.
+ * The future of a file completes after all of these are done,
+ * so a crash never leaves a truncated file under the target name.
+ * */
+class FileSyncScheduler(
+    private val intervalMs: Long = 10,
+    private val maxBytes: Long = 4 * 1024 * 1024,
+) : AutoCloseable {
+    private val logger = LoggerFactory.getLogger(FileSyncScheduler::class.java)
+
+    private class Request(
+        val tempFile: File,
+        val target: File,
+        val size: Long,
+    ) {
+        val future = CompletableFuture<Void>()
+    }
+
+    private val lock = ReentrantLock()
+    private val condition = lock.newCondition()
+    private var pending = ArrayList<Request>()
+    private var pendingBytes = 0L
+
+    @Volatile
+    private var running = true
+
+    private val thread = Thread(this::syncLoop, "file-sync").apply {
+        isDaemon = true
+        start()
+    }
+
+    /**
+     * Sync the [tempFile] and rename it to [target].
+     * The future completes when both the content and the name are durable.
+     * */
+    fun submit(tempFile: File, target: File, size: Long): CompletableFuture<Void> {
+        val request = Request(tempFile, target, size)
+        lock.withLock {
+            check(running) { "File sync scheduler is closed" }
+            pending.add(request)
+            pendingBytes += size
+            if (pending.size == 1 || pendingBytes >= maxBytes) {
+                condition.signal()
+            }
+        }
+        return request.future
+    }
+
+    private fun syncLoop() {
+        while (true) {
+            val batch = lock.withLock {
+                while (running && pending.isEmpty()) {
+                    condition.await()
+                }
+                // closed and drained
+                if (pending.isEmpty()) return
+                // let other writers join this batch
+                val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervalMs)
+                while (running && pendingBytes < maxBytes) {
+                    val left = deadline - System.nanoTime()
+                    if (left <= 0) break
+                    condition.awaitNanos(left)
+                }
+                val result = pending
+                pending = ArrayList()
+                pendingBytes = 0
+                result
+            }
+            try {
+                sync(batch)
+            } catch (t: Throwable) {
+                logger.error("Failed to sync files", t)
+                batch.forEach { it.future.completeExceptionally(t) }
+            }
+        }
+    }
+
+    private fun sync(batch: List<Request>) {
+        val moved = batch.filter { request ->
+            try {
+                FileChannel.open(request.tempFile.toPath(), StandardOpenOption.WRITE).use { it.force(true) }
+                Files.move(
+                    request.tempFile.toPath(), request.target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING
+                )
+                true
+            } catch (e: IOException) {
+                request.tempFile.delete()
+                request.future.completeExceptionally(e)
+                false
+            }
+        }
+        moved.map { it.target.absoluteFile.parentFile }.distinct().forEach { syncDir(it) }
+        moved.forEach { it.future.complete(null) }
+        logger.trace("Synced {} files, {} bytes", moved.size, moved.sumOf { it.size })
+    }
+
+    override fun close() {
+        lock.withLock {
+            if (!running) return
+            running = false
+            condition.signal()
+        }
+        // the pending files are synced before exit
+        thread.join()
+    }
+
+    companion object {
+        /**
+         * Fsync a directory, so the new names in it are durable.
+         * Not supported on some platforms (e.g. Windows), ignored there.
+         * */
+        @JvmStatic
+        fun syncDir(dir: File) {
+            try {
+                FileChannel.open(dir.toPath(), StandardOpenOption.READ).use { it.force(true) }
+            } catch (e: IOException) {
+                LoggerFactory.getLogger(FileSyncScheduler::class.java)
+                    .debug("Cannot sync dir {}: {}", dir, e.message)
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package info.skyblond.archivedag.ariteg.storage
+
+/**
+ * Which local copies are evicted first by [LocalFileCache].
+ * */
+enum class LocalCachePolicy {
+    /**
+     * Least recently used: evict the copy that is not read for the longest time.
+     * */
+    LRU,
+
+    /**
+     * Least frequently used: evict the copy that is read for the fewest times,
+     * the least recently used one first if the count is the same.
+     * The count restarts from 0 after restarting.
+     * */
+    LFU,
+}
@@ -0,0 +1,185 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.BiPredicate
+
+/**
+ * Track the local copies when the local file system is used as a
+ * size-bounded cache in front of a remote storage.
+ *
+ * When the total size exceeds [maxBytes], the copies are evicted by
+ * [policy] in background until the total size drops below [LOW_WATERMARK]
+ * of [maxBytes], so the sorting is not done on every write.
+ * LIST, TREE and COMMIT are never evicted if [pinStructural] is true.
+ *
+ * A copy is only evicted when [evictable] returns true (for example, it is
+ * replicated to the remote). [evict] deletes the local copy, and return true
+ * if deleted.
+ * */
+class LocalFileCache(
+    private val maxBytes: Long,
+    private val policy: LocalCachePolicy,
+    private val pinStructural: Boolean,
+    private val evictable: BiPredicate<AritegObjectType, Multihash>,
+    private val evict: BiPredicate<AritegObjectType, Multihash>,
+) : AutoCloseable {
+    private val logger = LoggerFactory.getLogger(LocalFileCache::class.java)
+
+    private class Entry(
+        val type: AritegObjectType,
+        val size: Long,
+        @Volatile var lastAccess: Long,
+    ) {
+        val hits = AtomicLong(0)
+    }
+
+    private data class Candidate(
+        val multihash: Multihash,
+        val entry: Entry,
+        val lastAccess: Long,
+        val hits: Long,
+    )
+
+    private val entries = ConcurrentHashMap<Multihash, Entry>()
+    private val totalBytes = AtomicLong(0)
+
+    private val evicting = AtomicBoolean(false)
+    private val evictionRequested = AtomicBoolean(false)
+    private val evictionThread = Executors.newSingleThreadExecutor {
+        Thread(it, "local-cache-eviction").apply { isDaemon = true }
+    }
+
+    init {
+        require(maxBytes > 0) { "Cache size must be positive" }
+        logger.info("Using local cache with {} bytes, policy: {}", maxBytes, policy)
+    }
+
+    private fun isPinned(type: AritegObjectType): Boolean =
+        pinStructural && type != AritegObjectType.BLOB
+
+    /**
+     * Track a local copy found when starting.
+     * */
+    fun load(type: AritegObjectType, multihash: Multihash, size: Long, lastAccess: Long) {
+        entries.put(multihash, Entry(type, size, lastAccess))?.let { totalBytes.addAndGet(-it.size) }
+        totalBytes.addAndGet(size)
+    }
+
+    /**
+     * Track a newly written local copy.
+     * */
+    fun onWrite(type: AritegObjectType, multihash: Multihash, size: Long) {
+        load(type, multihash, size, System.currentTimeMillis())
+        scheduleEvictionIfNeeded()
+    }
+
+    /**
+     * Schedule an eviction if the total size exceeds the budget.
+     * Call this when more copies become evictable.
+     * */
+    fun scheduleEvictionIfNeeded() {
+        if (totalBytes.get() > maxBytes) {
+            scheduleEviction()
+        }
+    }
+
+    /**
+     * Record a read of the local copy.
+     * */
+    fun onAccess(multihash: Multihash) {
+        val entry = entries[multihash] ?: return
+        entry.lastAccess = System.currentTimeMillis()
+        entry.hits.incrementAndGet()
+    }
+
+    /**
+     * Stop tracking a deleted local copy.
+     * */
+    fun onDelete(multihash: Multihash) {
+        entries.remove(multihash)?.let { totalBytes.addAndGet(-it.size) }
+    }
+
+    fun cachedBytes(): Long = totalBytes.get()
+
+    fun cachedCount(): Int = entries.size
+
+    fun scheduleEviction() {
+        evictionRequested.set(true)
+        if (!evicting.compareAndSet(false, true)) return
+        try {
+            evictionThread.execute {
+                try {
+                    while (evictionRequested.getAndSet(false)) {
+                        evictNow()
+                    }
+                } catch (t: Throwable) {
+                    logger.error("Failed to evict local cache", t)
+                } finally {
+                    evicting.set(false)
+                }
+                // requested after the loop
+                if (evictionRequested.get()) scheduleEviction()
+            }
+        } catch (t: Throwable) {
+            // closing
+            evicting.set(false)
+        }
+    }
+
+    /**
+     * Evict the local copies until the total size is below the low watermark.
+     * Return the count of evicted copies.
+     * */
+    fun evictNow(): Int {
+        val target = (maxBytes * LOW_WATERMARK).toLong()
+        if (totalBytes.get() <= target) return 0
+        // take a snapshot of the access info, they might change when sorting
+        val candidates = entries.entries
+            .filter { !isPinned(it.value.type) }
+            .map { Candidate(it.key, it.value, it.value.lastAccess, it.value.hits.get()) }
+            .sortedWith(
+                when (policy) {
+                    LocalCachePolicy.LRU -> compareBy<Candidate> { it.lastAccess }
+                    LocalCachePolicy.LFU -> compareBy<Candidate>({ it.hits }, { it.lastAccess })
+                }
+            )
+        var count = 0
+        for ((multihash, entry) in candidates) {
+            if (totalBytes.get() <= target) break
+            if (!evictable.test(entry.type, multihash)) continue
+            // make sure the entry is not rewritten meanwhile
+            if (!entries.remove(multihash, entry)) continue
+            totalBytes.addAndGet(-entry.size)
+            if (evict.test(entry.type, multihash)) {
+                count++
+            } else {
+                // still there, keep tracking it
+                load(entry.type, multihash, entry.size, entry.lastAccess)
+            }
+        }
+        if (totalBytes.get() > target) {
+            logger.warn(
+                "Local cache still uses {} bytes after evicting, pinned or unreplicated copies take too much space",
+                totalBytes.get()
+            )
+        }
+        logger.debug("Evicted {} local copies, {} bytes remain", count, totalBytes.get())
+        return count
+    }
+
+    override fun close() {
+        evictionThread.shutdown()
+        evictionThread.awaitTermination(1, TimeUnit.MINUTES)
+    }
+
+    companion object {
+        const val LOW_WATERMARK = 0.9
+    }
+}
@@ -0,0 +1,202 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.model.CodecStats
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.LongAdder
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Compress the serialized protos before writing, and decompress after reading.
+ *
+ * A compressed proto is stored in a frame:
+ * `0x00 | algorithm (1 byte) | uncompressed length (4 bytes) | payload`.
+ * A serialized proto never starts with 0x00 (field number 0 is invalid),
+ * so the protos stored raw, including all protos written before this,
+ * are read as is. The multihash is always calculated over the uncompressed
+ * bytes, so dedup and verification don't depend on the compression.
+ *
+ * Protos smaller than [minSize] are stored raw. For big protos, a sample
+ * of [probeSize] bytes is compressed first, if it doesn't shrink below
+ * [maxProbeRatio], the proto is stored raw without compressing the rest.
+ * A proto is also stored raw if the compressed frame is not smaller.
+ * */
+class ProtoCodec(
+    private val algorithm: Algorithm = Algorithm.NONE,
+    private val level: Int = 1,
+    private val minSize: Int = 256,
+    private val probeSize: Int = 4096,
+    private val maxProbeRatio: Double = 0.9,
+) {
+    enum class Algorithm(val id: Byte) {
+        /**
+         * Store raw, but still able to read compressed protos.
+         * */
+        NONE(0),
+
+        /**
+         * Raw deflate from the JDK, use a low level for speed.
+         * */
+        DEFLATE(1),
+    }
+
+    init {
+        require(level in 0..9) { "Level must in 0..9" }
+        require(minSize >= 0) { "Min size must not be negative" }
+        require(probeSize > 0) { "Probe size must be positive" }
+        require(maxProbeRatio > 0) { "Max probe ratio must be positive" }
+    }
+
+    private class TypeStats {
+        val rawBytes = LongAdder()
+        val storedBytes = LongAdder()
+        val compressedCount = LongAdder()
+        val skippedCount = LongAdder()
+        val encodeNanos = LongAdder()
+        val decodeNanos = LongAdder()
+
+        fun snapshot() = CodecStats(
+            rawBytes.sum(), storedBytes.sum(), compressedCount.sum(),
+            skippedCount.sum(), encodeNanos.sum(), decodeNanos.sum()
+        )
+    }
+
+    private val stats = FileStorageLayout.TYPES.associateWith { TypeStats() }
+
+    /**
+     * Encode the serialized proto for storing. Return [raw] itself if not compressed.
+     * */
+    fun encode(type: AritegObjectType, raw: ByteArray): ByteArray {
+        if (algorithm == Algorithm.NONE) return raw
+        val start = System.nanoTime()
+        val frame = if (raw.size >= minSize && probe(raw)) compress(raw) else null
+        val result = if (frame != null && frame.size < raw.size) frame else raw
+        stats[type]?.let {
+            it.rawBytes.add(raw.size.toLong())
+            it.storedBytes.add(result.size.toLong())
+            if (result === raw) it.skippedCount.increment() else it.compressedCount.increment()
+            it.encodeNanos.add(System.nanoTime() - start)
+        }
+        return result
+    }
+
+    /**
+     * Decode the stored bytes into the serialized proto.
+     * Return [stored] itself if not compressed.
+     * */
+    fun decode(type: AritegObjectType, stored: ByteArray): ByteArray {
+        if (stored.isEmpty() || stored[0] != FRAME_MARKER) return stored
+        val start = System.nanoTime()
+        val result = decompress(ByteBuffer.wrap(stored))
+        stats[type]?.decodeNanos?.add(System.nanoTime() - start)
+        return result
+    }
+
+    /**
+     * Same as above, for memory mapped files.
+     * Return [stored] itself if not compressed, so it can be parsed without copying.
+     * */
+    fun decode(type: AritegObjectType, stored: ByteBuffer): ByteBuffer {
+        if (!stored.hasRemaining() || stored.get(stored.position()) != FRAME_MARKER) return stored
+        val start = System.nanoTime()
+        val result = decompress(stored.duplicate())
+        stats[type]?.decodeNanos?.add(System.nanoTime() - start)
+        return ByteBuffer.wrap(result)
+    }
+
+    /**
+     * The counters of each type, the keys are lowercase type names.
+     * */
+    fun stats(): Map<String, CodecStats> =
+        stats.entries.associate { (type, typeStats) -> type.name.lowercase() to typeStats.snapshot() }
+
+    /**
+     * Return true if the sample shrinks enough. Small protos are not sampled.
+     * */
+    private fun probe(raw: ByteArray): Boolean {
+        if (raw.size <= probeSize * 2) return true
+        // the head, middle and tail
+        val part = probeSize / 3
+        val sample = ByteArray(part * 3)
+        System.arraycopy(raw, 0, sample, 0, part)
+        System.arraycopy(raw, (raw.size - part) / 2, sample, part, part)
+        System.arraycopy(raw, raw.size - part, sample, part * 2, part)
+        return deflate(sample, 0).size < sample.size * maxProbeRatio
+    }
+
+    private fun compress(raw: ByteArray): ByteArray {
+        val payload = when (algorithm) {
+            Algorithm.NONE -> return raw
+            Algorithm.DEFLATE -> deflate(raw, FRAME_HEADER_SIZE)
+        }
+        ByteBuffer.wrap(payload, 0, FRAME_HEADER_SIZE)
+            .put(FRAME_MARKER).put(algorithm.id).putInt(raw.size)
+        return payload
+    }
+
+    /**
+     * Deflate [input] into a new array, leaving [reserved] bytes at the beginning.
+     * */
+    private fun deflate(input: ByteArray, reserved: Int): ByteArray {
+        val deflater = Deflater(level, true)
+        try {
+            deflater.setInput(input)
+            deflater.finish()
+            // incompressible data only adds a few bytes per block
+            var output = ByteArray(reserved + input.size + input.size / 1000 + 64)
+            var length = reserved
+            while (!deflater.finished()) {
+                if (length == output.size) {
+                    output = output.copyOf(output.size * 2)
+                }
+                length += deflater.deflate(output, length, output.size - length)
+            }
+            return output.copyOf(length)
+        } finally {
+            deflater.end()
+        }
+    }
+
+    private fun decompress(frame: ByteBuffer): ByteArray {
+        check(frame.remaining() >= FRAME_HEADER_SIZE) { "Broken frame: too short" }
+        frame.get() // marker
+        val id = frame.get()
+        val length = frame.int
+        check(length in 0..MAX_PROTO_SIZE) { "Broken frame: invalid length $length" }
+        return when (id) {
+            Algorithm.DEFLATE.id -> inflate(frame, length)
+            else -> throw IllegalStateException("Broken frame: unknown algorithm $id")
+        }
+    }
+
+    private fun inflate(input: ByteBuffer, length: Int): ByteArray {
+        val inflater = Inflater(true)
+        try {
+            val compressed = ByteArray(input.remaining()).also { input.get(it) }
+            inflater.setInput(compressed)
+            val output = ByteArray(length)
+            var offset = 0
+            while (offset < length && !inflater.finished()) {
+                val count = try {
+                    inflater.inflate(output, offset, length - offset)
+                } catch (e: DataFormatException) {
+                    throw IllegalStateException("Broken frame: ${e.message}", e)
+                }
+                check(count > 0) { "Broken frame: truncated" }
+                offset += count
+            }
+            check(offset == length) { "Broken frame: expect $length bytes, but get $offset" }
+            return output
+        } finally {
+            inflater.end()
+        }
+    }
+
+    companion object {
+        private const val FRAME_MARKER: Byte = 0
+        private const val FRAME_HEADER_SIZE = 6
+        private const val MAX_PROTO_SIZE = 16 * 1024 * 1024
+    }
+}
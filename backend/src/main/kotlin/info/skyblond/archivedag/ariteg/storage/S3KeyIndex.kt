@@ -0,0 +1,316 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import software.amazon.awssdk.services.s3.S3Client
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException
+import software.amazon.awssdk.services.s3.model.StorageClass
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.function.BiFunction
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * An in-memory index of the keys in the bucket, so the status of an object
+ * can be answered without a HEAD request.
+ *
+ * The index is built in background by listing each `<type>/` prefix,
+ * and rebuilt every [refreshIntervalMs] (0 means only when starting).
+ * Each listing builds a fresh index and replaces the old one, so the keys
+ * deleted by other instances are gone. A key missing from the listing is
+ * checked by HEAD before dropping it, since the listing might miss a key
+ * uploaded while listing. Our own uploads, deletes and restores update
+ * the index directly, and the ones during a listing are carried over.
+ *
+ * Listing only gives the storage class, so objects that might be archived
+ * (GLACIER, DEEP_ARCHIVE and INTELLIGENT_TIERING) need one HEAD to know
+ * the restore state, and the result is trusted for [staleAfterMs].
+ * Before the first listing is finished, a missing key is checked by HEAD,
+ * after that, a missing key is considered not exist.
+ * */
+class S3KeyIndex(
+    private val s3Client: S3Client,
+    private val bucketName: String,
+    private val keyMapper: BiFunction<AritegObjectType, Multihash, String>,
+    private val staleAfterMs: Long,
+    refreshIntervalMs: Long,
+) : AutoCloseable {
+    private val logger = LoggerFactory.getLogger(S3KeyIndex::class.java)
+
+    private data class IndexKey(
+        val type: AritegObjectType,
+        val multihash: Multihash
+    )
+
+    data class Entry(
+        val size: Long,
+        val storageClass: StorageClass,
+        /**
+         * Whether the object needs to be restored before reading.
+         * */
+        val archived: Boolean,
+        /**
+         * The object is being restored.
+         * */
+        val restoreOngoing: Boolean,
+        /**
+         * When the restored copy expires, in unix seconds.
+         * Null if not restored.
+         * */
+        val restoreExpiry: Long?,
+        /**
+         * When the restore state is checked by HEAD, in unix millis.
+         * 0 means the restore state is unknown.
+         * */
+        val checkedAt: Long,
+    ) {
+        /**
+         * Whether the object is available to read.
+         * */
+        val available: Boolean
+            get() = !archived || restoreExpiry != null
+    }
+
+    @Volatile
+    private var entries = ConcurrentHashMap<IndexKey, Entry>()
+
+    /**
+     * Keys updated by us during the listing, the current entries of them
+     * replace the listed ones, so the listing won't bring back a deleted key.
+     * */
+    private val changedWhenListing: MutableSet<IndexKey> = ConcurrentHashMap.newKeySet()
+
+    /**
+     * Read: updating an entry. Write: replacing the index.
+     * */
+    private val swapLock = ReentrantReadWriteLock()
+
+    @Volatile
+    private var listing = false
+
+    @Volatile
+    private var listed = false
+
+    private val executor = ScheduledThreadPoolExecutor(1, ThreadFactory {
+        Thread(it, "s3-key-index").apply { isDaemon = true }
+    })
+
+    init {
+        if (refreshIntervalMs > 0) {
+            executor.scheduleWithFixedDelay(this::rebuild, 0, refreshIntervalMs, TimeUnit.MILLISECONDS)
+        } else {
+            executor.execute(this::rebuild)
+        }
+    }
+
+    /**
+     * Whether the first listing is finished.
+     * */
+    fun isListed(): Boolean = listed
+
+    fun size(): Int = entries.size
+
+    /**
+     * List all keys in the bucket and replace the index with them.
+     * */
+    fun rebuild() {
+        val start = System.currentTimeMillis()
+        swapLock.write {
+            changedWhenListing.clear()
+            listing = true
+        }
+        try {
+            val old = entries
+            val fresh = ConcurrentHashMap<IndexKey, Entry>()
+            var count = 0L
+            TYPES.forEach { type ->
+                val prefix = "${type.name.lowercase()}/"
+                var continuationToken: String? = null
+                do {
+                    val response = s3Client.listObjectsV2 {
+                        it.bucket(bucketName).prefix(prefix).continuationToken(continuationToken)
+                    }
+                    response.contents().forEach { obj ->
+                        val multihash = try {
+                            Multihash.fromBase58(obj.key().removePrefix(prefix))
+                        } catch (_: Exception) {
+                            logger.warn("Ignore unknown key: {}", obj.key())
+                            null
+                        }
+                        if (multihash != null) {
+                            val key = IndexKey(type, multihash)
+                            fresh[key] = mergeListed(old[key], obj.size(), obj.storageClassAsString()?.let { StorageClass.fromValue(it) } ?: StorageClass.STANDARD)
+                            count++
+                        }
+                    }
+                    continuationToken = response.nextContinuationToken()
+                } while (response.isTruncated)
+            }
+            // not listed, confirm it's gone before dropping
+            var dropped = 0L
+            old.keys.filter { it !in fresh && it !in changedWhenListing }.forEach { key ->
+                val header = try {
+                    s3Client.headObject { it.bucket(bucketName).key(keyMapper.apply(key.type, key.multihash)) }
+                } catch (_: NoSuchKeyException) {
+                    dropped++
+                    null
+                }
+                header?.let { fresh[key] = fromHeader(it) }
+            }
+            swapLock.write {
+                changedWhenListing.forEach { key ->
+                    entries[key]?.let { fresh[key] = it } ?: fresh.remove(key)
+                }
+                entries = fresh
+                listing = false
+            }
+            listed = true
+            logger.info(
+                "Listed {} keys in {}ms, {} keys are gone",
+                count, System.currentTimeMillis() - start, dropped
+            )
+        } catch (t: Throwable) {
+            logger.error("Failed to list the bucket", t)
+        } finally {
+            listing = false
+        }
+    }
+
+    /**
+     * Keep the restore state we already known, if the storage class is not changed.
+     * */
+    private fun mergeListed(old: Entry?, size: Long, storageClass: StorageClass): Entry =
+        if (old != null && old.storageClass == storageClass) {
+            old.copy(size = size)
+        } else {
+            Entry(size, storageClass, mightBeArchived(storageClass), false, null, 0)
+        }
+
+    /**
+     * Update the entry of [key], and remember it if a listing is running.
+     * */
+    private inline fun <T> update(key: IndexKey, block: (ConcurrentHashMap<IndexKey, Entry>) -> T): T =
+        swapLock.read {
+            if (listing) changedWhenListing.add(key)
+            block(entries)
+        }
+
+    /**
+     * Find the entry, do a HEAD request if the entry is stale,
+     * or not found before the first listing is finished.
+     * Return null if the key doesn't exist.
+     * */
+    fun lookup(type: AritegObjectType, multihash: Multihash): Entry? {
+        val key = IndexKey(type, multihash)
+        val entry = entries[key]
+        if (entry == null && listed) return null
+        if (entry != null && !isStale(entry)) return entry
+        return refresh(type, multihash)
+    }
+
+    /**
+     * Do a HEAD request and update the index.
+     * Return null if the key doesn't exist.
+     * */
+    fun refresh(type: AritegObjectType, multihash: Multihash): Entry? {
+        val key = IndexKey(type, multihash)
+        val header = try {
+            s3Client.headObject { it.bucket(bucketName).key(keyMapper.apply(type, multihash)) }
+        } catch (_: NoSuchKeyException) {
+            update(key) { it.remove(key) }
+            return null
+        }
+        val entry = fromHeader(header)
+        update(key) { it[key] = entry }
+        return entry
+    }
+
+    private fun isStale(entry: Entry): Boolean {
+        // INTELLIGENT_TIERING might be archived later
+        if (!mightBeArchived(entry.storageClass)) return false
+        return System.currentTimeMillis() - entry.checkedAt > staleAfterMs
+    }
+
+    /**
+     * Called after an object is uploaded by us.
+     * */
+    fun onUploaded(type: AritegObjectType, multihash: Multihash, size: Long, storageClass: StorageClass) {
+        // a new object in archive class is not readable, no need to HEAD it
+        val key = IndexKey(type, multihash)
+        update(key) {
+            it[key] = Entry(
+                size, storageClass, storageClass in ARCHIVE_CLASSES,
+                false, null, System.currentTimeMillis()
+            )
+        }
+    }
+
+    /**
+     * Called after an object is deleted by us.
+     * */
+    fun onDeleted(type: AritegObjectType, multihash: Multihash) {
+        val key = IndexKey(type, multihash)
+        update(key) { it.remove(key) }
+    }
+
+    /**
+     * Called after a restore is requested, the next lookup will do a HEAD.
+     * */
+    fun onRestoreRequested(type: AritegObjectType, multihash: Multihash) {
+        val key = IndexKey(type, multihash)
+        update(key) {
+            it.computeIfPresent(key) { _, old -> old.copy(restoreOngoing = true, checkedAt = 0) }
+        }
+    }
+
+    override fun close() {
+        executor.shutdownNow()
+        executor.awaitTermination(1, TimeUnit.MINUTES)
+    }
+
+    companion object {
+        private val TYPES = listOf(
+            AritegObjectType.BLOB, AritegObjectType.LIST,
+            AritegObjectType.TREE, AritegObjectType.COMMIT
+        )
+
+        private val ARCHIVE_CLASSES = listOf(StorageClass.GLACIER, StorageClass.DEEP_ARCHIVE)
+
+        private fun mightBeArchived(storageClass: StorageClass): Boolean =
+            storageClass in ARCHIVE_CLASSES || storageClass == StorageClass.INTELLIGENT_TIERING
+
+        /**
+         * Resolve the storage class and restore state from [HeadObjectResponse].
+         * */
+        fun fromHeader(header: HeadObjectResponse): Entry {
+            // S3 omits the storage class for STANDARD
+            val storageClass = header.storageClass() ?: StorageClass.STANDARD
+            val archived = storageClass in ARCHIVE_CLASSES
+                    || (storageClass == StorageClass.INTELLIGENT_TIERING && header.archiveStatus() != null)
+            val restore = header.restore() ?: ""
+            val expiration = if (restore.contains("expiry-date=\"")) {
+                val expiryDateString = restore.split("expiry-date=\"")[1].split("\"")[0]
+                ZonedDateTime.parse(expiryDateString, DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().epochSecond
+            } else {
+                null
+            }
+            return Entry(
+                size = header.contentLength(),
+                storageClass = storageClass,
+                archived = archived,
+                restoreOngoing = restore.contains("ongoing-request=\"true\""),
+                restoreExpiry = expiration,
+                checkedAt = System.currentTimeMillis()
+            )
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import java.io.BufferedInputStream
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.zip.CRC32
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * An append-only journal of the protos waiting to be replicated.
+ *
+ * Each record is `op(1) type(1) timestamp(8) multihashLength(2) multihash crc32(4)`,
+ * where op is either [OP_ADD] or [OP_DONE]. Replaying the journal gives the
+ * pending protos, a torn or broken record stops the replay.
+ *
+ * [append] returns only after the record is on disk. Concurrent appenders
+ * share one fsync (group commit), so the cost is much less than one fsync
+ * per proto. [markDone] doesn't fsync, losing a done record only means
+ * uploading the same proto again.
+ *
+ * The journal is rewritten with only the pending records when starting,
+ * and when there are too many done records.
+ * */
+class S3ReplicationJournal(
+    private val file: File
+) : AutoCloseable {
+    private val logger = LoggerFactory.getLogger(S3ReplicationJournal::class.java)
+
+    data class Entry(
+        val type: AritegObjectType,
+        val multihash: Multihash,
+        /**
+         * When the proto is written to the local, in unix millis.
+         * */
+        val timestamp: Long
+    )
+
+    private val pending = ConcurrentHashMap<Multihash, Entry>()
+
+    /**
+     * Appending and marking done share the read lock,
+     * while rewriting the journal takes the write lock.
+     * */
+    private val lock = ReentrantReadWriteLock()
+    private lateinit var channel: FileChannel
+    private val doneSinceRewrite = AtomicLong(0)
+
+    // group commit
+    private val appendedCount = AtomicLong(0)
+
+    @Volatile
+    private var syncedCount = 0L
+    private val syncLock = Object()
+
+    init {
+        file.absoluteFile.parentFile.mkdirs()
+        replay()
+        rewrite()
+        logger.info("Loaded {} pending replications from {}", pending.size, file.canonicalPath)
+    }
+
+    private fun replay() {
+        if (!file.exists()) return
+        DataInputStream(BufferedInputStream(file.inputStream())).use { input ->
+            var count = 0L
+            while (true) {
+                val (op, entry) = try {
+                    readRecord(input)
+                } catch (_: EOFException) {
+                    null
+                } ?: break
+                when (op) {
+                    OP_ADD -> pending[entry.multihash] = entry
+                    OP_DONE -> pending.remove(entry.multihash, entry)
+                }
+                count++
+            }
+            logger.debug("Replayed {} records", count)
+        }
+    }
+
+    /**
+     * Read a record, return null if the record is broken.
+     * */
+    private fun readRecord(input: DataInputStream): Pair<Byte, Entry>? {
+        val op = input.readByte()
+        val typeNumber = input.readByte()
+        val timestamp = input.readLong()
+        val length = input.readUnsignedShort()
+        val multihash = ByteArray(length)
+        input.readFully(multihash)
+        val crc = CRC32()
+        crc.update(op.toInt())
+        crc.update(typeNumber.toInt())
+        crc.update(ByteBuffer.allocate(Long.SIZE_BYTES + Short.SIZE_BYTES).putLong(timestamp).putShort(length.toShort()).array())
+        crc.update(multihash)
+        if (input.readInt() != crc.value.toInt()) {
+            logger.warn("Broken record in replication journal, ignore the rest")
+            return null
+        }
+        if (op != OP_ADD && op != OP_DONE) return null
+        val type = AritegObjectType.forNumber(typeNumber.toInt()) ?: return null
+        return op to Entry(type, Multihash.deserialize(multihash), timestamp)
+    }
+
+    private fun encodeRecord(op: Byte, entry: Entry): ByteBuffer {
+        val multihash = entry.multihash.toBytes()
+        val buffer = ByteBuffer.allocate(1 + 1 + Long.SIZE_BYTES + Short.SIZE_BYTES + multihash.size + Int.SIZE_BYTES)
+        buffer.put(op)
+            .put(entry.type.number.toByte())
+            .putLong(entry.timestamp)
+            .putShort(multihash.size.toShort())
+            .put(multihash)
+        val crc = CRC32()
+        crc.update(buffer.array(), 0, buffer.position())
+        buffer.putInt(crc.value.toInt())
+        return buffer.flip()
+    }
+
+    private fun writeRecord(op: Byte, entry: Entry) {
+        val buffer = encodeRecord(op, entry)
+        while (buffer.hasRemaining()) {
+            channel.write(buffer)
+        }
+    }
+
+    /**
+     * Write all pending records into a new file, then replace the old one.
+     * */
+    private fun rewrite(): Unit = lock.write {
+        if (this::channel.isInitialized) {
+            channel.close()
+        }
+        val tempFile = File(file.absoluteFile.parentFile, file.name + ".tmp")
+        FileChannel.open(
+            tempFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+        ).use { c ->
+            pending.values.sortedBy { it.timestamp }.forEach {
+                val buffer = encodeRecord(OP_ADD, it)
+                while (buffer.hasRemaining()) {
+                    c.write(buffer)
+                }
+            }
+            c.force(true)
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+        doneSinceRewrite.set(0)
+        syncedCount = appendedCount.get()
+    }
+
+    /**
+     * Record a proto to be replicated. Return after the record is on disk.
+     * */
+    fun append(type: AritegObjectType, multihash: Multihash): Entry {
+        val entry = Entry(type, multihash, System.currentTimeMillis())
+        val count = lock.read {
+            writeRecord(OP_ADD, entry)
+            pending[multihash] = entry
+            appendedCount.incrementAndGet()
+        }
+        sync(count)
+        return entry
+    }
+
+    /**
+     * Make sure the first [count] appended records are on disk.
+     * One fsync covers all records appended before it.
+     * */
+    private fun sync(count: Long) {
+        if (syncedCount >= count) return
+        synchronized(syncLock) {
+            if (syncedCount >= count) return
+            lock.read {
+                // all records counted here are already written
+                val target = appendedCount.get()
+                channel.force(false)
+                if (target > syncedCount) {
+                    syncedCount = target
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark the entries as replicated.
+     * Entries that are appended again after being taken are kept pending.
+     * */
+    fun markDone(entries: Collection<Entry>) {
+        if (entries.isEmpty()) return
+        lock.read {
+            entries.forEach {
+                if (pending.remove(it.multihash, it)) {
+                    writeRecord(OP_DONE, it)
+                    doneSinceRewrite.incrementAndGet()
+                }
+            }
+        }
+        val done = doneSinceRewrite.get()
+        if (done >= REWRITE_THRESHOLD && done > pending.size) {
+            logger.debug("Rewriting replication journal, {} done records", done)
+            rewrite()
+        }
+    }
+
+    fun isPending(multihash: Multihash): Boolean = pending.containsKey(multihash)
+
+    /**
+     * The pending entries, the oldest first.
+     * */
+    fun pendingEntries(): List<Entry> = pending.values.sortedBy { it.timestamp }
+
+    fun pendingCount(): Int = pending.size
+
+    override fun close() {
+        lock.write {
+            if (!channel.isOpen) return
+            channel.force(true)
+            channel.close()
+        }
+    }
+
+    companion object {
+        const val OP_ADD: Byte = 1
+        const val OP_DONE: Byte = 2
+        private const val REWRITE_THRESHOLD = 100_000L
+    }
+}
@@ -0,0 +1,297 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.model.ReplicationLag
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import software.amazon.awssdk.core.async.AsyncRequestBody
+import software.amazon.awssdk.services.s3.S3AsyncClient
+import software.amazon.awssdk.services.s3.model.StorageClass
+import software.amazon.awssdk.utils.Md5Utils
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.function.BiFunction
+import java.util.function.BiConsumer
+import kotlin.math.min
+
+/**
+ * Upload the protos in [journal] to S3 in the background.
+ *
+ * A dispatcher thread takes the pending entries, and uploads them using
+ * [s3AsyncClient], at most [maxInFlight] uploads at the same time and
+ * at most [ratePerSecond] uploads started per second (0 means unlimited).
+ * Failed uploads are retried with exponential backoff, forever.
+ *
+ * Finished entries are marked done in the journal in batches.
+ * The content is read from the local copy by [readLocal], a missing
+ * local copy means the proto is deleted, and the entry is dropped.
+ * A deleted proto should be [cancel]ed, so an upload already started
+ * won't be reported to the listeners.
+ * */
+class S3Replicator(
+    private val journal: S3ReplicationJournal,
+    private val s3AsyncClient: S3AsyncClient,
+    private val bucketName: String,
+    private val storageClass: StorageClass,
+    private val keyMapper: BiFunction<AritegObjectType, Multihash, String>,
+    private val readLocal: BiFunction<AritegObjectType, Multihash, ByteArray?>,
+    private val maxInFlight: Int,
+    private val ratePerSecond: Int,
+    private val retryBaseDelayMs: Long,
+    private val retryMaxDelayMs: Long,
+) : AutoCloseable {
+    private val logger = LoggerFactory.getLogger(S3Replicator::class.java)
+
+    private val queue = LinkedBlockingQueue<S3ReplicationJournal.Entry>()
+
+    /**
+     * Entries not uploaded yet. Different from the journal, an entry is
+     * removed as soon as the upload is finished, not when the batch is flushed.
+     * */
+    private val inProgress = ConcurrentHashMap<Multihash, S3ReplicationJournal.Entry>()
+    private val waiters = ConcurrentHashMap<Multihash, CompletableFuture<Void>>()
+    private val retries = ConcurrentHashMap<Multihash, Int>()
+    private val doneQueue = ConcurrentLinkedQueue<S3ReplicationJournal.Entry>()
+    private val listeners = CopyOnWriteArrayList<BiConsumer<S3ReplicationJournal.Entry, Long>>()
+
+    /**
+     * Futures of the started uploads, completed when the upload is finished,
+     * no matter it's succeeded or not.
+     * */
+    private val uploading = ConcurrentHashMap<Multihash, CompletableFuture<Void>>()
+
+    /**
+     * Entries canceled by [cancel], but still queued or uploading.
+     * */
+    private val canceled: MutableSet<S3ReplicationJournal.Entry> = ConcurrentHashMap.newKeySet()
+
+    private val inFlight = Semaphore(maxInFlight)
+    private val running = AtomicBoolean(true)
+    private var nextPermitNanos = System.nanoTime()
+
+    private val scheduler = ScheduledThreadPoolExecutor(1, ThreadFactory {
+        Thread(it, "s3-replicator-scheduler").apply { isDaemon = true }
+    }).apply {
+        // pending retries are resumed from the journal next time
+        executeExistingDelayedTasksAfterShutdownPolicy = false
+    }
+    private val dispatcher = Thread(this::dispatchLoop, "s3-replicator-dispatcher").apply { isDaemon = true }
+
+    init {
+        require(maxInFlight > 0) { "Max in flight must be positive" }
+        require(ratePerSecond >= 0) { "Rate limit must not be negative" }
+        journal.pendingEntries().forEach { enqueue(it) }
+        logger.info("Resumed {} pending replications", inProgress.size)
+        scheduler.scheduleWithFixedDelay(this::flushDone, 1, 1, TimeUnit.SECONDS)
+        dispatcher.start()
+    }
+
+    /**
+     * Schedule the uploading of a journaled entry.
+     * */
+    fun enqueue(entry: S3ReplicationJournal.Entry) {
+        inProgress[entry.multihash] = entry
+        queue.put(entry)
+    }
+
+    /**
+     * Called with the entry and the uploaded size after an entry is uploaded,
+     * in the uploading thread.
+     * */
+    fun addListener(listener: BiConsumer<S3ReplicationJournal.Entry, Long>) {
+        listeners.add(listener)
+    }
+
+    private fun dispatchLoop() {
+        while (running.get()) {
+            val entry = try {
+                queue.take()
+            } catch (_: InterruptedException) {
+                break
+            }
+            try {
+                inFlight.acquire()
+                acquireRate()
+            } catch (_: InterruptedException) {
+                // put it back, it's still in the journal anyway
+                queue.put(entry)
+                break
+            }
+            try {
+                upload(entry)
+            } catch (t: Throwable) {
+                inFlight.release()
+                onFailure(entry, t)
+            }
+        }
+    }
+
+    private fun acquireRate() {
+        if (ratePerSecond == 0) return
+        val now = System.nanoTime()
+        if (nextPermitNanos > now) {
+            TimeUnit.NANOSECONDS.sleep(nextPermitNanos - now)
+        }
+        nextPermitNanos = maxOf(now, nextPermitNanos) + TimeUnit.SECONDS.toNanos(1) / ratePerSecond
+    }
+
+    private fun upload(entry: S3ReplicationJournal.Entry) {
+        // register before checking, so cancel either sees the upload or stops it
+        val finished = CompletableFuture<Void>()
+        uploading[entry.multihash] = finished
+        val content = if (inProgress[entry.multihash] === entry) {
+            readLocal.apply(entry.type, entry.multihash)
+        } else {
+            // canceled or replaced by a newer entry
+            null
+        }
+        if (content == null) {
+            if (!canceled.remove(entry)) {
+                logger.warn("Local copy of {} not found, skip replication", entry.multihash.toBase58())
+            }
+            inFlight.release()
+            onSuccess(entry, null)
+            uploading.remove(entry.multihash, finished)
+            finished.complete(null)
+            return
+        }
+        val key = keyMapper.apply(entry.type, entry.multihash)
+        logger.debug("Replicating into key `{}`", key)
+        s3AsyncClient.putObject({
+            it.bucket(bucketName)
+                .key(key)
+                .contentMD5(Md5Utils.md5AsBase64(content))
+                .storageClass(storageClass)
+        }, AsyncRequestBody.fromBytes(content)).whenComplete { _, t ->
+            inFlight.release()
+            try {
+                if (t == null) {
+                    onSuccess(entry, content.size.toLong())
+                } else {
+                    onFailure(entry, t)
+                }
+            } finally {
+                uploading.remove(entry.multihash, finished)
+                finished.complete(null)
+            }
+        }
+    }
+
+    /**
+     * [uploadedSize] is null if the entry is dropped without uploading.
+     * */
+    private fun onSuccess(entry: S3ReplicationJournal.Entry, uploadedSize: Long?) {
+        retries.remove(entry.multihash)
+        doneQueue.add(entry)
+        // the same proto might be enqueued again, keep the newer one
+        if (inProgress.remove(entry.multihash, entry)) {
+            waiters.remove(entry.multihash)?.complete(null)
+        }
+        // the object is deleted after this upload, don't report it
+        if (canceled.remove(entry)) return
+        if (uploadedSize == null) return
+        listeners.forEach {
+            try {
+                it.accept(entry, uploadedSize)
+            } catch (t: Throwable) {
+                logger.error("Replication listener failed", t)
+            }
+        }
+    }
+
+    private fun onFailure(entry: S3ReplicationJournal.Entry, t: Throwable) {
+        if (canceled.remove(entry)) {
+            retries.remove(entry.multihash)
+            return
+        }
+        val attempt = retries.merge(entry.multihash, 1, Int::plus)!!
+        val delay = min(retryMaxDelayMs, retryBaseDelayMs shl min(attempt - 1, 20))
+        logger.warn("Failed to replicate {} (attempt {}), retry in {}ms", entry.multihash.toBase58(), attempt, delay, t)
+        try {
+            scheduler.schedule(Runnable { queue.put(entry) }, delay, TimeUnit.MILLISECONDS)
+        } catch (_: RejectedExecutionException) {
+            // closing, it's still in the journal
+        }
+    }
+
+    private fun flushDone() {
+        val batch = mutableListOf<S3ReplicationJournal.Entry>()
+        while (true) {
+            batch.add(doneQueue.poll() ?: break)
+        }
+        try {
+            journal.markDone(batch)
+        } catch (t: Throwable) {
+            logger.error("Failed to mark {} replications as done", batch.size, t)
+        }
+    }
+
+    /**
+     * Stop replicating the proto, because it's deleted. The journal entry
+     * is marked done, and a queued entry is dropped without uploading.
+     *
+     * Return a future that completes when the upload already started is
+     * finished, the object should be deleted from S3 after that, since
+     * the upload might re-create it.
+     * */
+    fun cancel(multihash: Multihash): CompletableFuture<Void> {
+        val entry = inProgress[multihash]
+        if (entry != null) {
+            // mark before removing, so a finishing upload either sees the mark or is waited
+            canceled.add(entry)
+            if (inProgress.remove(multihash, entry)) {
+                retries.remove(multihash)
+                waiters.remove(multihash)?.complete(null)
+                journal.markDone(listOf(entry))
+            } else {
+                // finished or replaced in the meantime
+                canceled.remove(entry)
+            }
+        }
+        return uploading[multihash] ?: CompletableFuture.completedFuture(null)
+    }
+
+    /**
+     * Whether the proto is waiting for replication. Not pending doesn't mean
+     * the proto is in S3, it might be dropped or never journaled.
+     * */
+    fun isPending(multihash: Multihash): Boolean = inProgress.containsKey(multihash)
+
+    /**
+     * Return a future that completes when the proto is replicated.
+     * Completes immediately if the proto is not waiting for replication.
+     * */
+    fun awaitReplicated(multihash: Multihash): CompletableFuture<Void> {
+        if (!isPending(multihash)) return CompletableFuture.completedFuture(null)
+        val future = waiters.computeIfAbsent(multihash) { CompletableFuture() }
+        // finished between the check and the register
+        if (!isPending(multihash)) {
+            waiters.remove(multihash, future)
+            future.complete(null)
+        }
+        return future
+    }
+
+    fun lag(): ReplicationLag {
+        val now = System.currentTimeMillis()
+        val oldest = inProgress.values.minOfOrNull { it.timestamp }
+        return ReplicationLag(
+            pendingCount = inProgress.size.toLong(),
+            oldestPendingMillis = oldest?.let { now - it } ?: 0,
+            inFlightCount = (maxInFlight - inFlight.availablePermits()).toLong()
+        )
+    }
+
+    override fun close() {
+        if (!running.getAndSet(false)) return
+        dispatcher.interrupt()
+        dispatcher.join()
+        // wait the in-flight uploads, the rest will be resumed from the journal
+        if (!inFlight.tryAcquire(maxInFlight, 1, TimeUnit.MINUTES)) {
+            logger.warn("Timeout when waiting uploads")
+        }
+        scheduler.shutdown()
+        scheduler.awaitTermination(1, TimeUnit.MINUTES)
+        flushDone()
+    }
+}
@@ -0,0 +1,29 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.model.VerifiedDigests
+import info.skyblond.archivedag.ariteg.multihash.MultihashProvider
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+
+/**
+ * Resolve the digests of [rawBytes] before storing.
+ * The given [digests] are reused if their types match the storage,
+ * otherwise both hashes are calculated in one pass over the bytes.
+ * */
+internal fun resolveDigests(
+    primaryProvider: MultihashProvider,
+    secondaryProvider: MultihashProvider,
+    rawBytes: ByteArray,
+    digests: VerifiedDigests?
+): VerifiedDigests {
+    if (digests != null) {
+        require(digests.primary.type == primaryProvider.getType()) {
+            "Primary digest type mismatch: expect ${primaryProvider.getType()}, but get ${digests.primary.type}"
+        }
+        require(digests.secondary == null || digests.secondary.type == secondaryProvider.getType()) {
+            "Secondary digest type mismatch: expect ${secondaryProvider.getType()}, but get ${digests.secondary?.type}"
+        }
+        return digests
+    }
+    val (primary, secondary) = MultihashProviders.digestAll(rawBytes, primaryProvider, secondaryProvider)
+    return VerifiedDigests(primary, secondary)
+}
@@ -0,0 +1,142 @@
+package info.skyblond.archivedag.ariteg.utils
+
+import io.ipfs.multihash.Multihash
+import java.nio.ByteBuffer
+
+/**
+ * A set of multihashes kept outside the java heap, for marking a huge DAG.
+ *
+ * Each multihash is reduced to a 128-bit fingerprint, the first 16 bytes
+ * of its digest, which are uniformly distributed for cryptographic hashes.
+ * With 100M elements, the chance of any two fingerprints colliding is
+ * about 1e-23. The fingerprints are stored in open addressing tables
+ * of direct buffers, 16 bytes per slot, about 21 bytes per element
+ * at the max load factor 0.75. The tables are split into [segments] by
+ * the fingerprint, each segment grows by doubling and is locked
+ * separately, so the threads rarely wait each other.
+ *
+ * The memory is freed when this set is collected by the GC.
+ * Remember to give enough `-XX:MaxDirectMemorySize`.
+ * */
+class OffHeapFingerprintSet(expectedSize: Long, private val segments: Int = 64) {
+    init {
+        require(expectedSize >= 0) { "Expected size must not be negative" }
+        require(segments > 0 && segments and (segments - 1) == 0) { "Segments must be a power of 2" }
+    }
+
+    private val segmentShift = 64 - Integer.numberOfTrailingZeros(segments)
+
+    private class Segment(capacity: Int) {
+        var capacity = capacity
+        var table: ByteBuffer = ByteBuffer.allocateDirect(capacity * SLOT_SIZE)
+        var size = 0
+
+        /**
+         * Return true if added, false if existed.
+         * */
+        fun add(high: Long, low: Long): Boolean {
+            if (!insert(table, capacity, high, low)) return false
+            size++
+            if (size > capacity * MAX_LOAD_FACTOR) grow()
+            return true
+        }
+
+        fun contains(high: Long, low: Long): Boolean {
+            val mask = capacity - 1
+            var slot = low.toInt() and mask
+            while (true) {
+                val offset = slot * SLOT_SIZE
+                val h = table.getLong(offset)
+                val l = table.getLong(offset + 8)
+                if (h == 0L && l == 0L) return false
+                if (h == high && l == low) return true
+                slot = (slot + 1) and mask
+            }
+        }
+
+        private fun grow() {
+            check(capacity < MAX_SEGMENT_CAPACITY) { "Segment is full" }
+            val newCapacity = capacity * 2
+            val newTable = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE)
+            for (slot in 0 until capacity) {
+                val offset = slot * SLOT_SIZE
+                val h = table.getLong(offset)
+                val l = table.getLong(offset + 8)
+                if (h != 0L || l != 0L) insert(newTable, newCapacity, h, l)
+            }
+            table = newTable
+            capacity = newCapacity
+        }
+
+        private fun insert(table: ByteBuffer, capacity: Int, high: Long, low: Long): Boolean {
+            val mask = capacity - 1
+            var slot = low.toInt() and mask
+            while (true) {
+                val offset = slot * SLOT_SIZE
+                val h = table.getLong(offset)
+                val l = table.getLong(offset + 8)
+                if (h == 0L && l == 0L) {
+                    table.putLong(offset, high)
+                    table.putLong(offset + 8, low)
+                    return true
+                }
+                if (h == high && l == low) return false
+                slot = (slot + 1) and mask
+            }
+        }
+    }
+
+    private val table = Array(segments) {
+        val perSegment = (expectedSize / segments / MAX_LOAD_FACTOR).toLong() + 1
+        Segment(
+            java.lang.Long.highestOneBit(perSegment.coerceAtMost(MAX_SEGMENT_CAPACITY.toLong()) * 2 - 1)
+                .toInt().coerceAtLeast(MIN_SEGMENT_CAPACITY)
+        )
+    }
+
+    private fun segmentOf(high: Long): Segment = table[(high ushr segmentShift).toInt()]
+
+    /**
+     * Add the multihash, return true if it's not in the set before.
+     * */
+    fun add(multihash: Multihash): Boolean {
+        val (high, low) = fingerprint(multihash)
+        val segment = segmentOf(high)
+        return synchronized(segment) { segment.add(high, low) }
+    }
+
+    operator fun contains(multihash: Multihash): Boolean {
+        val (high, low) = fingerprint(multihash)
+        val segment = segmentOf(high)
+        return synchronized(segment) { segment.contains(high, low) }
+    }
+
+    val size: Long
+        get() = table.sumOf { synchronized(it) { it.size.toLong() } }
+
+    /**
+     * The bytes allocated outside the heap.
+     * */
+    fun memoryBytes(): Long = table.sumOf { synchronized(it) { it.capacity.toLong() * SLOT_SIZE } }
+
+    companion object {
+        private const val SLOT_SIZE = 16
+        private const val MAX_LOAD_FACTOR = 0.75
+        private const val MIN_SEGMENT_CAPACITY = 16
+
+        // 1GB per buffer, the buffer size `capacity * SLOT_SIZE` must fit in an Int
+        private const val MAX_SEGMENT_CAPACITY = 1 shl 26
+
+        /**
+         * The first 16 bytes of the digest, zero padded if shorter.
+         * All zeros means an empty slot, so it's mapped to 1.
+         * */
+        private fun fingerprint(multihash: Multihash): Pair<Long, Long> {
+            val bytes = multihash.hash.copyOf(SLOT_SIZE)
+            val buffer = ByteBuffer.wrap(bytes)
+            val high = buffer.long
+            val low = buffer.long
+            return if (high == 0L && low == 0L) 0L to 1L else high to low
+        }
+    }
+}
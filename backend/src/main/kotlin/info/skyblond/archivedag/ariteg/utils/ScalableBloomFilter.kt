@@ -0,0 +1,171 @@
+package info.skyblond.archivedag.ariteg.utils
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.math.ceil
+import kotlin.math.ln
+import kotlin.math.roundToInt
+
+/**
+ * A bloom filter that grows when it's full.
+ *
+ * The filter is a list of layers. When the last layer is full, a new layer
+ * with doubled capacity and halved false positive rate is added, so the
+ * overall false positive rate stays under [falsePositiveRate].
+ *
+ * Thread safe. Adding never lose bits, so there is no false negative.
+ * Elements cannot be removed.
+ * */
+class ScalableBloomFilter private constructor(
+    private val falsePositiveRate: Double,
+    initialLayers: List<Layer>
+) {
+    constructor(initialCapacity: Long, falsePositiveRate: Double) : this(
+        falsePositiveRate, listOf(Layer.create(initialCapacity, falsePositiveRate / 2))
+    )
+
+    init {
+        require(falsePositiveRate > 0 && falsePositiveRate < 1) { "False positive rate must in (0, 1)" }
+    }
+
+    private class Layer(
+        val capacity: Long,
+        val falsePositiveRate: Double,
+        val hashCount: Int,
+        val bits: AtomicLongArray,
+        count: Long
+    ) {
+        val count = AtomicLong(count)
+        private val bitSize = bits.length() * 64L
+
+        private fun index(h1: Long, h2: Long, i: Int): Long = Math.floorMod(h1 + i * h2, bitSize)
+
+        fun mightContain(h1: Long, h2: Long): Boolean {
+            for (i in 0 until hashCount) {
+                val index = index(h1, h2, i)
+                if ((bits.get((index ushr 6).toInt()) and (1L shl (index and 63).toInt())) == 0L)
+                    return false
+            }
+            return true
+        }
+
+        fun put(h1: Long, h2: Long) {
+            for (i in 0 until hashCount) {
+                val index = index(h1, h2, i)
+                val mask = 1L shl (index and 63).toInt()
+                bits.getAndAccumulate((index ushr 6).toInt(), mask) { a, b -> a or b }
+            }
+            count.incrementAndGet()
+        }
+
+        companion object {
+            fun create(capacity: Long, falsePositiveRate: Double): Layer {
+                // m = -n*ln(p)/(ln2)^2, k = m/n*ln2
+                val bitSize = ceil(-capacity * ln(falsePositiveRate) / (ln(2.0) * ln(2.0))).toLong()
+                val wordCount = ((bitSize + 63) / 64).coerceIn(1, Int.MAX_VALUE.toLong()).toInt()
+                val hashCount = (wordCount * 64.0 / capacity * ln(2.0)).roundToInt().coerceAtLeast(1)
+                return Layer(capacity, falsePositiveRate, hashCount, AtomicLongArray(wordCount), 0)
+            }
+        }
+    }
+
+    @Volatile
+    private var layers: List<Layer> = initialLayers
+
+    /**
+     * How many elements are added.
+     * */
+    fun count(): Long = layers.sumOf { it.count.get() }
+
+    /**
+     * Return false if the element is definitely not added.
+     * */
+    fun mightContain(element: ByteArray): Boolean {
+        val h1 = hash(element, SEED_1)
+        val h2 = hash(element, SEED_2)
+        return layers.any { it.mightContain(h1, h2) }
+    }
+
+    fun put(element: ByteArray) {
+        val h1 = hash(element, SEED_1)
+        val h2 = hash(element, SEED_2)
+        if (layers.any { it.mightContain(h1, h2) })
+            return
+        currentLayer().put(h1, h2)
+    }
+
+    private fun currentLayer(): Layer {
+        val last = layers.last()
+        if (last.count.get() < last.capacity)
+            return last
+        synchronized(this) {
+            val current = layers.last()
+            if (current.count.get() < current.capacity)
+                return current
+            // layer i uses p/2^(i+1), so the sum is under p
+            val newLayer = Layer.create(current.capacity * 2, current.falsePositiveRate / 2)
+            layers = layers + newLayer
+            return newLayer
+        }
+    }
+
+    /**
+     * Write the filter. Elements added during writing might be lost.
+     * */
+    fun writeTo(output: DataOutputStream) {
+        val snapshot = layers
+        output.writeDouble(falsePositiveRate)
+        output.writeInt(snapshot.size)
+        snapshot.forEach { layer ->
+            output.writeLong(layer.capacity)
+            output.writeDouble(layer.falsePositiveRate)
+            output.writeInt(layer.hashCount)
+            output.writeLong(layer.count.get())
+            output.writeInt(layer.bits.length())
+            for (i in 0 until layer.bits.length()) {
+                output.writeLong(layer.bits.get(i))
+            }
+        }
+    }
+
+    companion object {
+        private const val SEED_1 = -0x340d631b7bdddcdbL // FNV offset basis
+        private const val SEED_2 = 0x5bd1e9955bd1e995L
+
+        /**
+         * 64bit FNV-1a with a murmur3 finalizer.
+         * */
+        private fun hash(bytes: ByteArray, seed: Long): Long {
+            var h = seed
+            for (b in bytes) {
+                h = (h xor (b.toLong() and 0xFF)) * 0x100000001b3L
+            }
+            h = h xor (h ushr 33)
+            h *= -0xae502812aa7333L
+            h = h xor (h ushr 33)
+            h *= -0x3b314601e57a13adL
+            h = h xor (h ushr 33)
+            return h
+        }
+
+        @JvmStatic
+        fun readFrom(input: DataInputStream): ScalableBloomFilter {
+            val falsePositiveRate = input.readDouble()
+            val layers = (0 until input.readInt()).map {
+                val capacity = input.readLong()
+                val layerFalsePositiveRate = input.readDouble()
+                val hashCount = input.readInt()
+                val count = input.readLong()
+                val bits = AtomicLongArray(input.readInt())
+                for (i in 0 until bits.length()) {
+                    bits.set(i, input.readLong())
+                }
+                Layer(capacity, layerFalsePositiveRate, hashCount, bits, count)
+            }
+            require(layers.isNotEmpty()) { "Empty filter" }
+            return ScalableBloomFilter(falsePositiveRate, layers)
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package info.skyblond.archivedag.ariteg.walker
+
+import info.skyblond.archivedag.ariteg.model.AritegObject
+import info.skyblond.archivedag.ariteg.model.CommitObject
+import info.skyblond.archivedag.ariteg.model.ListObject
+import info.skyblond.archivedag.ariteg.model.TreeObject
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.storage.AritegStorageService
+import info.skyblond.archivedag.ariteg.utils.toMultihash
+import io.ipfs.multihash.Multihash
+import org.slf4j.LoggerFactory
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Consumer
+
+/**
+ * Walk the DAG from a root link, visit every distinct proto once.
+ *
+ * The walk is iterative: each LIST, TREE and COMMIT is loaded by a task
+ * in a bounded thread pool, and its children are submitted as soon as
+ * it's parsed, so the siblings are loaded in parallel. Protos are deduplicated
+ * by primary hash, a subtree shared by many commits is walked only once.
+ * BLOBs are visited without loading.
+ *
+ * The root is always visited first, the rest order is not defined.
+ * */
+class AritegDagWalker(
+    private val storageService: AritegStorageService,
+    threadNum: Int
+) : AutoCloseable {
+    private val logger = LoggerFactory.getLogger(AritegDagWalker::class.java)
+    private val threadCounter = AtomicInteger(0)
+    private val threadPool = ThreadPoolExecutor(
+        threadNum, threadNum, 0L, TimeUnit.MILLISECONDS, LinkedBlockingQueue()
+    ) { r -> Thread(r, "dag-walker-${threadCounter.getAndIncrement()}").also { it.isDaemon = true } }
+
+    private inner class Walk(
+        private val fullCommit: Boolean,
+        private val markVisited: (Multihash) -> Boolean,
+        private val callback: Consumer<AritegLink>
+    ) {
+        private val visitedCount = AtomicLong(0)
+        private val pending = AtomicLong(0)
+        val future = CompletableFuture<Long>()
+
+        fun visit(link: AritegLink) {
+            if (future.isDone) return
+            // empty parent link of the initial commit
+            if (link.multihash.isEmpty) return
+            if (!markVisited(link.multihash.toMultihash())) return
+            visitedCount.incrementAndGet()
+            callback.accept(link)
+            if (link.type == AritegObjectType.BLOB) return
+            pending.incrementAndGet()
+            threadPool.execute {
+                try {
+                    if (!future.isDone) {
+                        children(link).forEach { visit(it) }
+                    }
+                } catch (t: Throwable) {
+                    future.completeExceptionally(t)
+                } finally {
+                    if (pending.decrementAndGet() == 0L) {
+                        future.complete(visitedCount.get())
+                    }
+                }
+            }
+        }
+
+        fun completeIfIdle() {
+            if (pending.get() == 0L) {
+                future.complete(visitedCount.get())
+            }
+        }
+
+        private fun children(link: AritegLink): List<AritegLink> =
+            childrenOf(storageService.loadProto(link), fullCommit)
+    }
+
+    /**
+     * Walk from [root], [callback] is called once for each distinct proto.
+     * The callback might be called from multiple threads at the same time.
+     *
+     * @param fullCommit true if you want to walk the history commits.
+     * @return a future completes with the number of visited protos.
+     * */
+    fun walk(root: AritegLink, fullCommit: Boolean, callback: Consumer<AritegLink>): CompletableFuture<Long> {
+        val visited: MutableSet<Multihash> = ConcurrentHashMap.newKeySet()
+        return walk(root, fullCommit, { visited.add(it) }, callback)
+    }
+
+    /**
+     * Same as above, but the protos are deduplicated by [markVisited],
+     * which returns true if the proto is not visited before, and marks it.
+     * Share it between walks, so a proto visited by a walk is skipped
+     * by the others, together with its subtree.
+     *
+     * @return a future completes with the number of protos visited by this walk.
+     * */
+    fun walk(
+        root: AritegLink, fullCommit: Boolean,
+        markVisited: (Multihash) -> Boolean, callback: Consumer<AritegLink>
+    ): CompletableFuture<Long> {
+        val walk = Walk(fullCommit, markVisited, callback)
+        try {
+            walk.visit(root)
+        } catch (t: Throwable) {
+            walk.future.completeExceptionally(t)
+        }
+        // no task submitted, e.g. the root is a blob
+        walk.completeIfIdle()
+        return walk.future
+    }
+
+    override fun close() {
+        logger.info("Shutting down dag walker")
+        threadPool.shutdownNow()
+    }
+
+    companion object {
+        /**
+         * The links in [proto]. The parent commit is included only if [fullCommit].
+         * */
+        @JvmStatic
+        fun childrenOf(proto: AritegObject, fullCommit: Boolean): List<AritegLink> =
+            when (proto) {
+                is ListObject -> proto.list
+                is TreeObject -> proto.links
+                is CommitObject -> if (fullCommit) {
+                    listOf(proto.authorLink, proto.parentLink, proto.committedObjectLink)
+                } else {
+                    listOf(proto.authorLink, proto.committedObjectLink)
+                }
+                else -> emptyList()
+            }
+    }
+}
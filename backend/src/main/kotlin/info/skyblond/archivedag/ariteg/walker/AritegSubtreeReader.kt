@@ -0,0 +1,126 @@
+package info.skyblond.archivedag.ariteg.walker
+
+import info.skyblond.archivedag.ariteg.model.BlobObject
+import info.skyblond.archivedag.ariteg.model.ListObject
+import info.skyblond.archivedag.ariteg.model.SubtreeEntry
+import info.skyblond.archivedag.ariteg.model.TreeObject
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.storage.AritegStorageService
+import org.slf4j.LoggerFactory
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Read a subtree as files and folders, in the order of a depth-first copy:
+ * a folder comes before its content, the children follow the order in
+ * the tree, and the blobs of a file follow the order in the lists.
+ * The same subtree always gives the same entries in the same order,
+ * and protos shared by many paths are read once per path.
+ *
+ * The blobs are loaded ahead by a bounded thread pool, at most
+ * `prefetch` of them per read, while the entries are given to the
+ * caller in order. The LISTs and TREEs are loaded when reached, they
+ * are small and much fewer than the blobs.
+ * */
+class AritegSubtreeReader(
+    private val storageService: AritegStorageService,
+    threadNum: Int
+) : AutoCloseable {
+    private val logger = LoggerFactory.getLogger(AritegSubtreeReader::class.java)
+    private val threadCounter = AtomicInteger(0)
+    private val threadPool = ThreadPoolExecutor(
+        threadNum, threadNum, 0L, TimeUnit.MILLISECONDS, LinkedBlockingQueue()
+    ) { r -> Thread(r, "subtree-reader-${threadCounter.getAndIncrement()}").also { it.isDaemon = true } }
+
+    /**
+     * A folder if [link] is null, otherwise a blob of the file.
+     * [fileIndex] is unique for each file and folder in one read.
+     * */
+    private class Item(val path: String, val link: AritegLink?, val fileIndex: Long)
+
+    private class Pending(val item: Item, val blob: Future<BlobObject?>)
+
+    private fun items(root: AritegLink): Sequence<Item> {
+        var fileIndex = 0L
+        fun blobs(link: AritegLink): Sequence<AritegLink> = sequence {
+            when (link.type) {
+                AritegObjectType.BLOB -> yield(link)
+                AritegObjectType.LIST -> (storageService.loadProto(link) as ListObject).list.forEach { yieldAll(blobs(it)) }
+                else -> throw IllegalArgumentException("Unexpected ${link.type} in a file")
+            }
+        }
+
+        fun walk(link: AritegLink, path: String): Sequence<Item> = sequence {
+            when (link.type) {
+                AritegObjectType.TREE -> {
+                    yield(Item(path, null, fileIndex++))
+                    (storageService.loadProto(link) as TreeObject).links.forEach {
+                        yieldAll(walk(it, if (path.isEmpty()) it.name else "$path/${it.name}"))
+                    }
+                }
+                AritegObjectType.BLOB, AritegObjectType.LIST -> {
+                    val index = fileIndex++
+                    yieldAll(blobs(link).map { Item(path, it, index) })
+                }
+                else -> throw IllegalArgumentException("Cannot read ${link.type} as a subtree")
+            }
+        }
+        return walk(root, "")
+    }
+
+    /**
+     * Read the subtree of [root], which is a TREE, LIST or BLOB, and give
+     * the entries to [callback] in order, from the calling thread. The root
+     * has an empty path. Return false from the callback to stop reading.
+     *
+     * @param prefetch how many blobs are loaded ahead.
+     * @return true if all entries are given, false if stopped by the callback.
+     * */
+    fun read(root: AritegLink, prefetch: Int, callback: (SubtreeEntry) -> Boolean): Boolean {
+        require(prefetch > 0) { "Prefetch must be positive" }
+        val iterator = items(root).iterator()
+        val window = ArrayDeque<Pending>(prefetch + 1)
+        var currentFile = -1L
+        var offset = 0L
+        try {
+            while (true) {
+                // one more for telling the end of file
+                while (window.size <= prefetch && iterator.hasNext()) {
+                    val item = iterator.next()
+                    val future: Future<BlobObject?> = item.link?.let { link ->
+                        CompletableFuture.supplyAsync<BlobObject?>({ storageService.loadProto(link) as BlobObject }, threadPool)
+                    } ?: CompletableFuture.completedFuture<BlobObject?>(null)
+                    window.addLast(Pending(item, future))
+                }
+                val head = window.removeFirstOrNull() ?: return true
+                val blob = try {
+                    head.blob.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+                if (head.item.fileIndex != currentFile) {
+                    currentFile = head.item.fileIndex
+                    offset = 0
+                }
+                val entry = if (blob == null) {
+                    SubtreeEntry(head.item.path, AritegObjectType.TREE, 0, null, false)
+                } else {
+                    SubtreeEntry(
+                        head.item.path, AritegObjectType.BLOB, offset, blob,
+                        window.firstOrNull()?.item?.fileIndex != currentFile
+                    )
+                }
+                offset += blob?.data?.size() ?: 0
+                if (!callback(entry)) return false
+            }
+        } finally {
+            window.forEach { it.blob.cancel(false) }
+        }
+    }
+
+    override fun close() {
+        logger.info("Shutting down subtree reader")
+        threadPool.shutdownNow()
+    }
+}
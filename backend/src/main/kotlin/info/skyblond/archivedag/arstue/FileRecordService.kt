@@ -9,6 +9,7 @@ import info.skyblond.archivedag.arstue.repo.RecordAccessControlRepository
 import info.skyblond.archivedag.commons.EntityNotFoundException
 import info.skyblond.archivedag.commons.getUnixTimestamp
 import io.ipfs.multihash.Multihash
+import org.springframework.data.domain.PageRequest
 import org.springframework.data.domain.Pageable
 import org.springframework.stereotype.Service
 import java.util.*
@@ -118,6 +119,23 @@ class FileRecordService(
         )
     }
 
+    /**
+     * The refs of all records, paged by the record id. The ids are random,
+     * so a record created or updated during the iteration might be skipped
+     * or read with the old ref. Pin the new ref while updating it, see
+     * [info.skyblond.archivedag.ariteg.AritegService.updateRef].
+     * */
+    fun listAllRefs(pageSize: Int = 1000): Sequence<Multihash> = sequence {
+        val pageable = PageRequest.of(0, pageSize)
+        var page = fileRecordRepository.findAllByMultihashIsNotNullOrderByRecordId(pageable)
+        while (page.isNotEmpty()) {
+            page.forEach { yield(Multihash.fromBase58(it.multihash!!)) }
+            page = fileRecordRepository.findAllByRecordIdGreaterThanAndMultihashIsNotNullOrderByRecordId(
+                page.last().recordId!!, pageable
+            )
+        }
+    }
+
     // get all owned records
     fun listOwnedRecords(username: String, pageable: Pageable): List<UUID> {
         val result: MutableList<UUID> = LinkedList()
@@ -34,4 +34,10 @@ interface FileRecordRepository : JpaRepository<FileRecordEntity, UUID> {
 
     fun findAllByOwnerOrderByRecordId(owner: String, pageable: Pageable): Page<FileRecordEntity>
 
+    fun findAllByMultihashIsNotNullOrderByRecordId(pageable: Pageable): List<FileRecordEntity>
+
+    fun findAllByRecordIdGreaterThanAndMultihashIsNotNullOrderByRecordId(
+        recordId: UUID, pageable: Pageable
+    ): List<FileRecordEntity>
+
 }
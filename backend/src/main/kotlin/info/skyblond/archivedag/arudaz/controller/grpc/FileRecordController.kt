@@ -83,8 +83,10 @@ class FileRecordController(
         val commitReceipt = aritegService.writeProto("", commitObject)
         // wait writing data into system
         commitReceipt.completionFuture.get()
-        // update ref
-        fileRecordService.setRecordRef(recordUUID, commitReceipt.link.multihash.toMultihash())
+        // update ref, the commit is kept by the running garbage collection
+        aritegService.updateRef(commitReceipt.link) {
+            fileRecordService.setRecordRef(recordUUID, commitReceipt.link.multihash.toMultihash())
+        }
         responseObserver.onNext(Empty.getDefaultInstance())
         responseObserver.onCompleted()
     }
@@ -1,11 +1,16 @@
 package info.skyblond.archivedag.arudaz.controller.grpc
 
 import com.google.protobuf.ByteString
+import com.google.protobuf.CodedOutputStream
+import com.google.protobuf.UnsafeByteOperations
+import com.google.protobuf.WireFormat
 import info.skyblond.archivedag.ariteg.AritegService
 import info.skyblond.archivedag.ariteg.model.*
+import info.skyblond.archivedag.ariteg.multihash.MultihashDigester
 import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
 import info.skyblond.archivedag.ariteg.protos.AritegLink
 import info.skyblond.archivedag.ariteg.protos.AritegListObject
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
 import info.skyblond.archivedag.ariteg.protos.AritegTreeObject
 import info.skyblond.archivedag.ariteg.utils.toMultihash
 import info.skyblond.archivedag.arstue.FileRecordService
@@ -19,12 +24,29 @@ import info.skyblond.archivedag.arudaz.service.TransferReceiptService
 import info.skyblond.archivedag.arudaz.utils.getCurrentUsername
 import info.skyblond.archivedag.commons.EntityNotFoundException
 import info.skyblond.archivedag.commons.PermissionDeniedException
+import io.grpc.Status
+import io.grpc.stub.ServerCallStreamObserver
 import io.grpc.stub.StreamObserver
 import io.ipfs.multihash.Multihash
 import net.devh.boot.grpc.server.service.GrpcService
+import org.slf4j.LoggerFactory
 import org.springframework.data.domain.Pageable
 import org.springframework.security.access.prepost.PreAuthorize
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import javax.annotation.PreDestroy
+import kotlin.concurrent.withLock
 
 @GrpcService
 @PreAuthorize("@applicationConfigService.allowGrpcWriteProto()")
@@ -34,6 +56,11 @@ class TransferController(
     private val aritegService: AritegService,
     private val groupService: GroupService
 ) : ProtoTransferServiceGrpc.ProtoTransferServiceImplBase() {
+    private val logger = LoggerFactory.getLogger(TransferController::class.java)
+    private val threadCounter = AtomicInteger(0)
+    private val downloadExecutor = Executors.newCachedThreadPool {
+        Thread(it, "subtree-download-${threadCounter.getAndIncrement()}").apply { isDaemon = true }
+    }
 
     @PreAuthorize("hasAnyRole('VIEWER')")
     override fun queryServerProtoConfig(
@@ -59,24 +86,51 @@ class TransferController(
         return fileRecordService.queryPermission(recordUUID, username, groups)
     }
 
-    private fun preUploadCheck(recordUUID: UUID, primaryHash: Multihash, content: ByteArray) {
-        val username = getCurrentUsername()
+    private fun checkUploadPermission(username: String, recordUUID: UUID) {
         if (queryPermission(username, recordUUID) and UPDATE_REF_PERMISSION_BIT == 0) {
             // no update ref permission -> cannot upload data
             throw PermissionDeniedException("You cannot upload data for this record")
         }
-        // check data
-        MultihashProviders.mustMatch(primaryHash, content)
+    }
+
+    /**
+     * Check the data.
+     * If the client uses the same primary hash type as the server, the
+     * secondary hash is calculated in the same pass, and the verified
+     * digests are returned so the storage won't hash the content again.
+     * */
+    private fun verifyContent(primaryHash: Multihash, content: ByteArray): VerifiedDigests? {
+        if (primaryHash.type != aritegService.primaryMultihashType()) {
+            MultihashProviders.mustMatch(primaryHash, content)
+            return null
+        }
+        val (primary, secondary) = MultihashProviders.digestAll(
+            content,
+            MultihashProviders.fromMultihashType(aritegService.primaryMultihashType()),
+            MultihashProviders.fromMultihashType(aritegService.secondaryMultihashType())
+        )
+        if (primaryHash != primary)
+            throw IllegalStateException("Multihash not match. Except " + primaryHash.toBase58() + ", but get: " + primary.toBase58())
+        return VerifiedDigests(primary, secondary)
+    }
+
+    /**
+     * Check the permission and the data.
+     * */
+    private fun preUploadCheck(recordUUID: UUID, primaryHash: Multihash, content: ByteArray): VerifiedDigests? {
+        checkUploadPermission(getCurrentUsername(), recordUUID)
+        return verifyContent(primaryHash, content)
     }
 
     private fun handleUploadProcess(
         recordUUID: UUID,
         aritegObject: AritegObject,
-        responseObserver: StreamObserver<TransferReceiptResponse>
+        responseObserver: StreamObserver<TransferReceiptResponse>,
+        digests: VerifiedDigests? = null,
+        username: String = getCurrentUsername()
     ) {
-        val username = getCurrentUsername()
         // write into system
-        val writeReceipt = aritegService.writeProto("", aritegObject)
+        val writeReceipt = aritegService.writeProto("", aritegObject, digests)
         // calculate transfer receipt
         val transferReceipt = transferReceiptService.encryptReceipt(
             TransferReceipt(
@@ -103,9 +157,272 @@ class TransferController(
     ) {
         val uuid = UUID.fromString(request.recordUuid)
         val primaryHash = request.primaryHash.toMultihash()
-        preUploadCheck(uuid, primaryHash, request.blobObj.toByteArray())
+        val blobObject = BlobObject.fromProto(request.blobObj)
+        // check the bytes that will be stored, so the digests can be reused
+        val digests = preUploadCheck(uuid, primaryHash, blobObject.toProto().toByteArray())
         // write into system
-        handleUploadProcess(uuid, BlobObject.fromProto(request.blobObj), responseObserver)
+        handleUploadProcess(uuid, blobObject, responseObserver, digests)
+    }
+
+    @PreAuthorize("hasRole('UPLOADER')")
+    override fun uploadBlobs(responseObserver: StreamObserver<UploadBlobsResponse>): StreamObserver<UploadBlobsRequest> =
+        BlobUploadStream(getCurrentUsername(), responseObserver)
+
+    /**
+     * One [uploadBlobs] stream. The record is authorized once by the first
+     * request, then each blob is verified when received and written in
+     * background. At most [UPLOAD_WINDOW] blobs are in flight: the call
+     * only requests a new message from the client when a write is done
+     * and the client is ready to receive the response, so a slow storage
+     * or a slow reader holds the client back by the gRPC flow control.
+     *
+     * The responses are sent in the order of completion, tagged with the
+     * sequence id of the request. A blob failed to verify or write is
+     * answered with an error and the stream goes on, while a bad record
+     * or permission fails the whole stream.
+     * */
+    private inner class BlobUploadStream(
+        private val username: String,
+        private val responseObserver: StreamObserver<UploadBlobsResponse>
+    ) : StreamObserver<UploadBlobsRequest> {
+        // null if called directly, then the window blocks the caller instead
+        private val serverObserver = responseObserver as? ServerCallStreamObserver<UploadBlobsResponse>
+        private val window = Semaphore(UPLOAD_WINDOW)
+
+        // only touched by the incoming messages, which are serialized
+        private var recordUUID: UUID? = null
+
+        // below are guarded by this
+        private var inFlight = 0
+        private var owedRequests = 0
+        private var halfClosed = false
+        private var closed = false
+
+        init {
+            serverObserver?.let {
+                it.disableAutoRequest()
+                it.setOnReadyHandler { requestOwed() }
+                it.setOnCancelHandler { synchronized(this) { closed = true } }
+                it.request(UPLOAD_WINDOW)
+            }
+        }
+
+        private fun authorize(recordUuid: String): UUID {
+            recordUUID?.let {
+                require(recordUuid.isEmpty() || UUID.fromString(recordUuid) == it) {
+                    "One stream can only upload to one record"
+                }
+                return it
+            }
+            val uuid = UUID.fromString(recordUuid)
+            checkUploadPermission(username, uuid)
+            recordUUID = uuid
+            return uuid
+        }
+
+        override fun onNext(request: UploadBlobsRequest) {
+            val uuid = try {
+                authorize(request.recordUuid)
+            } catch (t: Throwable) {
+                // the call is closed by the error handler
+                synchronized(this) { closed = true }
+                throw t
+            }
+            window.acquire()
+            synchronized(this) { inFlight++ }
+            val future = try {
+                val primaryHash = request.primaryHash.toMultihash()
+                val blobObject = BlobObject.fromProto(request.blobObj)
+                val digests = verifyContent(primaryHash, blobObject.toProto().toByteArray())
+                val writeReceipt = aritegService.writeProto("", blobObject, digests)
+                val multihash = writeReceipt.link.multihash
+                writeReceipt.completionFuture.thenApply {
+                    UploadBlobsResponse.newBuilder()
+                        .setSequenceId(request.sequenceId)
+                        .setPrimaryHash(multihash)
+                        .setTransferReceipt(
+                            transferReceiptService.encryptReceipt(
+                                TransferReceipt(uuid, username, multihash.toMultihash(), AritegObjectType.BLOB)
+                            )
+                        )
+                        .build()
+                }
+            } catch (t: Throwable) {
+                CompletableFuture.failedFuture(t)
+            }
+            future.whenComplete { response, t ->
+                if (t == null) {
+                    onWritten(response)
+                } else {
+                    val cause = if (t is CompletionException) t.cause ?: t else t
+                    onWritten(
+                        UploadBlobsResponse.newBuilder()
+                            .setSequenceId(request.sequenceId)
+                            .setPrimaryHash(request.primaryHash)
+                            .setError(cause.message ?: cause.javaClass.name)
+                            .build()
+                    )
+                }
+            }
+        }
+
+        private fun onWritten(response: UploadBlobsResponse) {
+            window.release()
+            synchronized(this) {
+                inFlight--
+                if (closed) return
+                responseObserver.onNext(response)
+                if (serverObserver != null) {
+                    if (serverObserver.isReady) serverObserver.request(1) else owedRequests++
+                }
+                if (halfClosed && inFlight == 0) {
+                    closed = true
+                    responseObserver.onCompleted()
+                }
+            }
+        }
+
+        private fun requestOwed() {
+            synchronized(this) {
+                if (closed || owedRequests == 0 || !serverObserver!!.isReady) return
+                serverObserver.request(owedRequests)
+                owedRequests = 0
+            }
+        }
+
+        override fun onError(t: Throwable) {
+            // client gone, the written blobs stay, nothing to reply
+            synchronized(this) { closed = true }
+        }
+
+        override fun onCompleted() {
+            synchronized(this) {
+                halfClosed = true
+                if (!closed && inFlight == 0) {
+                    closed = true
+                    responseObserver.onCompleted()
+                }
+            }
+        }
+    }
+
+    @PreAuthorize("hasRole('UPLOADER')")
+    override fun uploadBlobStream(responseObserver: StreamObserver<TransferReceiptResponse>): StreamObserver<UploadBlobFrame> =
+        BlobFrameUpload(getCurrentUsername(), responseObserver)
+
+    /**
+     * One [uploadBlobStream] call. The first frame gives the record, the
+     * hash and the size of the blob, then the data is hashed frame by frame
+     * and spooled into a temp file, so only one frame is in the heap while
+     * receiving, no matter how slow the client is. The blob is read back
+     * in one piece for writing after it's verified, since the storage
+     * takes the whole proto.
+     * */
+    private inner class BlobFrameUpload(
+        private val username: String,
+        private val responseObserver: StreamObserver<TransferReceiptResponse>
+    ) : StreamObserver<UploadBlobFrame> {
+        private var recordUUID: UUID? = null
+        private var primaryHash: Multihash? = null
+        private var size = 0L
+        private var received = 0L
+        private var digesters: List<MultihashDigester> = emptyList()
+        private var spoolFile: Path? = null
+        private var spool: FileChannel? = null
+
+        private fun start(frame: UploadBlobFrame) {
+            val uuid = UUID.fromString(frame.recordUuid)
+            checkUploadPermission(username, uuid)
+            val primary = frame.primaryHash.toMultihash()
+            val header = blobProtoHeader(frame.size)
+            require(header.size + frame.size <= MAX_BLOB_PROTO_SIZE) { "Blob too big: ${frame.size} bytes" }
+            // same as verifyContent: calculate the secondary in the same pass if possible
+            digesters = if (primary.type == aritegService.primaryMultihashType()) {
+                listOf(aritegService.primaryMultihashType(), aritegService.secondaryMultihashType())
+            } else {
+                listOf(primary.type)
+            }.map { MultihashProviders.fromMultihashType(it).newDigester() }
+            digesters.forEach { it.update(header, 0, header.size) }
+            val file = Files.createTempFile("blob-upload-", ".tmp")
+            spoolFile = file
+            spool = FileChannel.open(file, StandardOpenOption.WRITE)
+            primaryHash = primary
+            size = frame.size
+            recordUUID = uuid
+        }
+
+        override fun onNext(frame: UploadBlobFrame) {
+            try {
+                if (recordUUID == null) start(frame)
+                val bytes = frame.data.toByteArray()
+                received += bytes.size
+                require(received <= size) { "Received more than $size bytes" }
+                digesters.forEach { it.update(bytes, 0, bytes.size) }
+                val buffer = ByteBuffer.wrap(bytes)
+                while (buffer.hasRemaining()) spool!!.write(buffer)
+            } catch (t: Throwable) {
+                // the call is closed by the error handler
+                cleanUp()
+                throw t
+            }
+        }
+
+        override fun onError(t: Throwable) {
+            cleanUp()
+        }
+
+        override fun onCompleted() {
+            try {
+                val uuid = requireNotNull(recordUUID) { "No frame received" }
+                require(received == size) { "Expect $size bytes, but received $received" }
+                val hashes = digesters.map { it.digest() }
+                if (hashes[0] != primaryHash)
+                    throw IllegalStateException("Multihash not match. Except " + primaryHash!!.toBase58() + ", but get: " + hashes[0].toBase58())
+                spool!!.close()
+                val data = UnsafeByteOperations.unsafeWrap(Files.readAllBytes(spoolFile!!))
+                handleUploadProcess(
+                    uuid, BlobObject(data), responseObserver,
+                    if (hashes.size == 2) VerifiedDigests(hashes[0], hashes[1]) else null, username
+                )
+            } finally {
+                cleanUp()
+            }
+        }
+
+        private fun cleanUp() {
+            spool?.close()
+            spoolFile?.let { Files.deleteIfExists(it) }
+            spool = null
+            spoolFile = null
+        }
+    }
+
+    /**
+     * The bytes before the data in a serialized blob proto of [size] bytes.
+     * See the `AritegBlobObject` in objects.proto.
+     * */
+    private fun blobProtoHeader(size: Long): ByteArray {
+        require(size >= 0) { "Size must not be negative" }
+        // proto3 skips the empty field
+        if (size == 0L) return ByteArray(0)
+        val header = ByteArray(CodedOutputStream.computeTagSize(1) + CodedOutputStream.computeUInt64SizeNoTag(size))
+        CodedOutputStream.newInstance(header).apply {
+            writeTag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED)
+            writeUInt64NoTag(size)
+            flush()
+        }
+        return header
+    }
+
+    /**
+     * Split [data] into frames of at most [BLOB_FRAME_SIZE], without copying.
+     * At least one frame, even if empty.
+     * */
+    private fun splitFrames(data: ByteString): List<ByteString> {
+        if (data.size() <= BLOB_FRAME_SIZE) return listOf(data)
+        return (0 until data.size() step BLOB_FRAME_SIZE).map {
+            data.substring(it, minOf(it + BLOB_FRAME_SIZE, data.size()))
+        }
     }
 
     @PreAuthorize("hasRole('UPLOADER')")
@@ -177,6 +494,44 @@ class TransferController(
         responseObserver.onCompleted()
     }
 
+    /**
+     * [proveOwnership] for up to [MAX_NEGOTIATE_SIZE] digests in one call.
+     * The permission is checked once, and the existence is resolved by
+     * set-based queries. The collided ones are reported instead of failing
+     * the whole call.
+     * */
+    @PreAuthorize("hasAnyRole('VIEWER')")
+    override fun negotiateOwnership(
+        request: NegotiateOwnershipRequest,
+        responseObserver: StreamObserver<NegotiateOwnershipResponse>
+    ) {
+        require(request.digestsCount <= MAX_NEGOTIATE_SIZE) {
+            "Too many digests, at most $MAX_NEGOTIATE_SIZE in one request"
+        }
+        val username = getCurrentUsername()
+        val uuid = UUID.fromString(request.recordUuid)
+        checkUploadPermission(username, uuid)
+        val digests = request.digestsList.map { it.primaryHash.toMultihash() to it.secondaryHash.toMultihash() }
+        val result = NegotiateOwnershipResponse.newBuilder()
+        aritegService.checkCollisions(digests).forEachIndexed { i, collision ->
+            when (collision) {
+                null -> result.addWant(i)
+                true -> result.addCollided(i)
+                false -> result.addHave(
+                    OwnedProto.newBuilder()
+                        .setIndex(i)
+                        .setTransferReceipt(
+                            transferReceiptService.encryptReceipt(
+                                TransferReceipt(uuid, username, digests[i].first, request.getDigests(i).objectType)
+                            )
+                        )
+                )
+            }
+        }
+        responseObserver.onNext(result.build())
+        responseObserver.onCompleted()
+    }
+
     private fun preDownloadCheck(transferReceiptString: String): Pair<TransferReceipt, AritegLink> {
         val transferReceipt = transferReceiptService.decryptReceipt(transferReceiptString)
             ?: throw IllegalArgumentException("Invalid transfer receipt")
@@ -204,6 +559,66 @@ class TransferController(
         responseObserver.onCompleted()
     }
 
+    /**
+     * Send the blob in frames. The receipt is checked and the blob is read
+     * in the call, then the frames are sent in background when the client
+     * is ready, like [downloadSubtree].
+     * */
+    @PreAuthorize("hasAnyRole('VIEWER')")
+    override fun readBlobStream(request: ReadObjectRequest, responseObserver: StreamObserver<ReadBlobFrame>) {
+        val (_, aritegLink) = preDownloadCheck(request.transferReceipt)
+        require(aritegLink.type == AritegObjectType.BLOB) { "Not a blob" }
+        val data = aritegService.readBlob(aritegLink).data
+        val readiness = ReadyWaiter(responseObserver)
+        // send when the client is ready, so the frames won't pile up in the transport
+        downloadExecutor.execute {
+            try {
+                splitFrames(data).forEachIndexed { i, frame ->
+                    if (!readiness.await()) return@execute
+                    val response = ReadBlobFrame.newBuilder().setData(frame)
+                    if (i == 0) response.setPrimaryHash(aritegLink.multihash).setSize(data.size().toLong())
+                    responseObserver.onNext(response.build())
+                }
+                responseObserver.onCompleted()
+            } catch (t: Throwable) {
+                if (!readiness.cancelled) responseObserver.onError(toStatus(t).asRuntimeException())
+            }
+        }
+    }
+
+    /**
+     * Wait until the client is ready to receive more messages, by the
+     * `isReady` and the on ready handler of the call. Must be created
+     * before the call handler returns.
+     * */
+    private class ReadyWaiter(responseObserver: StreamObserver<*>) {
+        // null if called directly, then it's always ready
+        private val serverObserver = responseObserver as? ServerCallStreamObserver<*>
+        private val lock = ReentrantLock()
+        private val readyCondition = lock.newCondition()
+
+        init {
+            serverObserver?.setOnReadyHandler { lock.withLock { readyCondition.signalAll() } }
+            serverObserver?.setOnCancelHandler { lock.withLock { readyCondition.signalAll() } }
+        }
+
+        val cancelled: Boolean
+            get() = serverObserver?.isCancelled == true
+
+        /**
+         * Return false if the call is cancelled.
+         * */
+        fun await(): Boolean {
+            val observer = serverObserver ?: return true
+            lock.withLock {
+                while (!observer.isReady && !observer.isCancelled) {
+                    readyCondition.await(READY_WAIT_MS, TimeUnit.MILLISECONDS)
+                }
+            }
+            return !observer.isCancelled
+        }
+    }
+
     @PreAuthorize("hasAnyRole('VIEWER')")
     override fun readList(request: ReadObjectRequest, responseObserver: StreamObserver<ReadListResponse>) {
         val (transferReceipt, aritegLink) = preDownloadCheck(request.transferReceipt)
@@ -341,6 +756,66 @@ class TransferController(
         responseObserver.onCompleted()
     }
 
+    /**
+     * Stream the subtree of the receipt, see [AritegService.readSubtree].
+     * The receipt is checked once, then the subtree is read in background
+     * and sent when the client is ready, so the prefetch is held back by
+     * the gRPC flow control instead of piling up in memory.
+     * */
+    @PreAuthorize("hasAnyRole('VIEWER')")
+    override fun downloadSubtree(
+        request: ReadObjectRequest,
+        responseObserver: StreamObserver<DownloadSubtreeResponse>
+    ) {
+        val (_, aritegLink) = preDownloadCheck(request.transferReceipt)
+        require(aritegLink.type != AritegObjectType.COMMIT) { "Cannot download a commit" }
+        val readiness = ReadyWaiter(responseObserver)
+        downloadExecutor.execute {
+            try {
+                aritegService.readSubtree(aritegLink) { entry ->
+                    // big blobs are split, so the messages stay small
+                    val frames = splitFrames(entry.blob?.data ?: ByteString.EMPTY)
+                    var offset = entry.offset
+                    frames.forEachIndexed { i, frame ->
+                        if (!readiness.await()) return@readSubtree false
+                        responseObserver.onNext(
+                            DownloadSubtreeResponse.newBuilder()
+                                .setPath(entry.path)
+                                .setObjectType(entry.type)
+                                .setOffset(offset)
+                                .setData(frame)
+                                .setEndOfFile(entry.endOfFile && i == frames.size - 1)
+                                .build()
+                        )
+                        offset += frame.size()
+                    }
+                    true
+                }
+                if (!readiness.cancelled) responseObserver.onCompleted()
+            } catch (t: Throwable) {
+                if (!readiness.cancelled) responseObserver.onError(toStatus(t).asRuntimeException())
+            }
+        }
+    }
+
+    /**
+     * Same as [GrpcErrorHandler], for the errors out of the gRPC calls.
+     * */
+    private fun toStatus(t: Throwable): Status = when (t) {
+        is IllegalArgumentException -> Status.INVALID_ARGUMENT
+        is EntityNotFoundException -> Status.NOT_FOUND
+        is IllegalStateException -> Status.FAILED_PRECONDITION
+        else -> {
+            logger.error("Unexpected error", t)
+            Status.INTERNAL
+        }
+    }.withDescription(t.message).withCause(t)
+
+    @PreDestroy
+    fun close() {
+        downloadExecutor.shutdownNow()
+    }
+
     @PreAuthorize("hasAnyRole('VIEWER')")
     override fun validateObject(
         request: ReadObjectRequest,
@@ -383,4 +858,31 @@ class TransferController(
         )
         responseObserver.onCompleted()
     }
+
+    companion object {
+        /**
+         * Max blobs written at the same time in one [uploadBlobs] stream.
+         * */
+        const val UPLOAD_WINDOW = 64
+
+        /**
+         * Max digests in one [negotiateOwnership] request.
+         * */
+        const val MAX_NEGOTIATE_SIZE = 4096
+
+        /**
+         * Recheck the readiness in case the signal is missed.
+         * */
+        const val READY_WAIT_MS = 1000L
+
+        /**
+         * Max data bytes in one frame of the streaming blob transfers.
+         * */
+        const val BLOB_FRAME_SIZE = 1024 * 1024
+
+        /**
+         * Same as the hard limit of the storage.
+         * */
+        const val MAX_BLOB_PROTO_SIZE = 16 * 1024 * 1024
+    }
 }
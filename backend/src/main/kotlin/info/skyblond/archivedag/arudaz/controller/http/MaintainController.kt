@@ -1,7 +1,15 @@
 package info.skyblond.archivedag.arudaz.controller.http
 
+import info.skyblond.archivedag.ariteg.AritegService
+import info.skyblond.archivedag.ariteg.model.CodecStats
+import info.skyblond.archivedag.ariteg.model.GcProgress
+import info.skyblond.archivedag.ariteg.model.ReplicationLag
+import info.skyblond.archivedag.ariteg.model.ScrubProgress
+import info.skyblond.archivedag.ariteg.model.StorageCacheStats
+import info.skyblond.archivedag.arstue.FileRecordService
 import info.skyblond.archivedag.arudaz.service.ApplicationConfigService
 import info.skyblond.archivedag.arudaz.utils.requireSortPropertiesInRange
+import info.skyblond.archivedag.commons.service.ConfigSnapshotStats
 import org.springframework.data.domain.Pageable
 import org.springframework.http.HttpStatus
 import org.springframework.http.ResponseEntity
@@ -13,6 +21,8 @@ import org.springframework.web.bind.annotation.*
 @PreAuthorize("hasRole('ADMIN')")
 class MaintainController(
     private val applicationConfigService: ApplicationConfigService,
+    private val aritegService: AritegService,
+    private val fileRecordService: FileRecordService,
 ) {
     @GetMapping("/listConfig")
     fun listConfig(
@@ -33,5 +43,75 @@ class MaintainController(
         return ResponseEntity.status(HttpStatus.NO_CONTENT).body<Any>(null)
     }
 
-    // TODO start a process to do the clean up
+    @GetMapping("/configSnapshotStats")
+    fun configSnapshotStats(): ConfigSnapshotStats {
+        return applicationConfigService.configSnapshotStats()
+    }
+
+    @GetMapping("/storageCacheStats")
+    fun storageCacheStats(): Map<String, StorageCacheStats> {
+        return aritegService.storageCacheStats()
+    }
+
+    @GetMapping("/storageCodecStats")
+    fun storageCodecStats(): Map<String, CodecStats> {
+        return aritegService.storageCodecStats()
+    }
+
+    @GetMapping("/replicationLag")
+    fun replicationLag(): ResponseEntity<ReplicationLag> {
+        val lag = aritegService.replicationLag()
+            ?: return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null)
+        return ResponseEntity.ok(lag)
+    }
+
+    @PostMapping("/rebalance")
+    fun rebalance(): ResponseEntity<*> {
+        // the rebalance runs in background, check the log for the result
+        aritegService.rebalanceStorage()
+            ?: return ResponseEntity.status(HttpStatus.NOT_FOUND).body<Any>(null)
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body<Any>(null)
+    }
+
+    @GetMapping("/scrub")
+    fun scrubProgress(): ScrubProgress {
+        return aritegService.scrubProgress()
+    }
+
+    @PostMapping("/scrub/start")
+    fun startScrub(): ResponseEntity<*> {
+        aritegService.startScrub()
+            ?: return ResponseEntity.status(HttpStatus.CONFLICT).body<Any>(null)
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body<Any>(null)
+    }
+
+    @PostMapping("/scrub/stop")
+    fun stopScrub(): ResponseEntity<*> {
+        aritegService.stopScrub()
+        return ResponseEntity.status(HttpStatus.NO_CONTENT).body<Any>(null)
+    }
+
+    @GetMapping("/gc")
+    fun gcProgress(): GcProgress {
+        return aritegService.gcProgress()
+    }
+
+    /**
+     * Collect the protos not referenced by any record.
+     * Dry run by default, check the progress before deleting for real.
+     * */
+    @PostMapping("/gc/start")
+    fun startGc(
+        @RequestParam(name = "dryRun", defaultValue = "true") dryRun: Boolean
+    ): ResponseEntity<*> {
+        aritegService.startGc({ fileRecordService.listAllRefs() }, dryRun)
+            ?: return ResponseEntity.status(HttpStatus.CONFLICT).body<Any>(null)
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body<Any>(null)
+    }
+
+    @PostMapping("/gc/stop")
+    fun stopGc(): ResponseEntity<*> {
+        aritegService.stopGc()
+        return ResponseEntity.status(HttpStatus.NO_CONTENT).body<Any>(null)
+    }
 }
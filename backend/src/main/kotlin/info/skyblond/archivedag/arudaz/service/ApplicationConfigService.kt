@@ -1,6 +1,7 @@
 package info.skyblond.archivedag.arudaz.service
 
 import info.skyblond.archivedag.commons.component.EtcdSimpleConfigClient
+import info.skyblond.archivedag.commons.service.ConfigSnapshotStats
 import info.skyblond.archivedag.commons.service.EtcdConfigService
 import io.etcd.jetcd.ByteSequence
 import io.etcd.jetcd.options.GetOption
@@ -43,37 +44,35 @@ class ApplicationConfigService(
         if (value == null) {
             deleteConfig(key)
         } else {
-            val byteSequence = if (key.endsWith("_bytearray")) {
-                ByteSequence.from(Base64.getDecoder().decode(value))
+            val bytes = if (key.endsWith("_bytearray")) {
+                Base64.getDecoder().decode(value)
             } else {
-                ByteSequence.from(value, Charsets.UTF_8)
+                value.encodeToByteArray()
             }
-            configClient.putConfig(
-                ByteSequence.from("${configService.applicationPrefix}$key".lowercase(), Charsets.UTF_8),
-                byteSequence
-            )
+            configService.putRawValue(getFullKey(key), bytes)
         }
     }
 
     private fun deleteConfig(key: String) {
-        configClient.deleteConfig(
-            ByteSequence.from(
-                "${configService.applicationPrefix}$key".lowercase(),
-                Charsets.UTF_8
-            )
-        )
+        configService.deleteRawValue(getFullKey(key))
     }
 
+    private fun getFullKey(key: String): String =
+        "${configService.applicationPrefix}$key".lowercase()
+
+    /**
+     * Read from the config snapshot, it's checked on every transfer request.
+     * */
     private fun getConfig(key: String): String? {
-        return configClient.getConfig(
-            ByteSequence.from("${configService.applicationPrefix}$key".lowercase(), Charsets.UTF_8)
-        ).let { if (it.kvs.isEmpty()) null else it.kvs[0] }?.value?.toString()
+        return configService.getRawValue(getFullKey(key))?.decodeToString()
     }
 
     fun allowGrpcWriteProto(): Boolean {
         return getConfig(ALLOW_GRPC_WRITE_PROTO_KEY)?.toBooleanStrictOrNull() ?: false
     }
 
+    fun configSnapshotStats(): ConfigSnapshotStats = configService.snapshotStats()
+
     companion object {
         const val ALLOW_GRPC_WRITE_PROTO_KEY = "/application/grpc/allow-write-proto"
     }
@@ -2,12 +2,14 @@ package info.skyblond.archivedag.commons.component
 
 import io.etcd.jetcd.ByteSequence
 import io.etcd.jetcd.Client
+import io.etcd.jetcd.Watch
 import io.etcd.jetcd.kv.DeleteResponse
 import io.etcd.jetcd.kv.GetResponse
 import io.etcd.jetcd.kv.PutResponse
 import io.etcd.jetcd.options.DeleteOption
 import io.etcd.jetcd.options.GetOption
 import io.etcd.jetcd.options.PutOption
+import io.etcd.jetcd.options.WatchOption
 import org.springframework.stereotype.Component
 
 /**
@@ -44,4 +46,14 @@ class EtcdSimpleConfigClient(
     ): DeleteResponse {
         return etcdClient.kvClient.delete(key, option).get()
     }
+
+    /**
+     * Raw map of the watch method, the events are given to the listener
+     * until the returned watcher is closed.
+     * */
+    fun watchConfig(
+        key: ByteSequence, option: WatchOption, listener: Watch.Listener
+    ): Watch.Watcher {
+        return etcdClient.watchClient.watch(key, option, listener)
+    }
 }
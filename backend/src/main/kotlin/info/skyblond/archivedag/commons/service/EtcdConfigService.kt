@@ -3,42 +3,265 @@ package info.skyblond.archivedag.commons.service
 import info.skyblond.archivedag.commons.component.EtcdSimpleConfigClient
 import io.etcd.jetcd.ByteSequence
 import io.etcd.jetcd.KeyValue
+import io.etcd.jetcd.Watch
+import io.etcd.jetcd.options.GetOption
+import io.etcd.jetcd.options.WatchOption
+import io.etcd.jetcd.watch.WatchEvent
+import io.etcd.jetcd.watch.WatchResponse
+import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Service
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import javax.annotation.PostConstruct
+import javax.annotation.PreDestroy
 
+/**
+ * The state of the local config snapshot.
+ * */
+data class ConfigSnapshotStats(
+    /**
+     * Whether the snapshot is kept current by the watch.
+     * If not, the reads go to etcd directly.
+     * */
+    val watching: Boolean,
+    /**
+     * The latest etcd revision seen by the snapshot.
+     * */
+    val revision: Long,
+    val keyCount: Int,
+    /**
+     * Unix timestamp in millis of the latest watch event, null if none.
+     * */
+    val lastEventAt: Long?,
+    /**
+     * How long the snapshot has not been watched, in millis.
+     * 0 if watching.
+     * */
+    val stalenessMillis: Long,
+    /**
+     * Reads sent to etcd because the snapshot is not watched.
+     * */
+    val directReadCount: Long,
+)
+
+/**
+ * Config stored in etcd, under [applicationPrefix].
+ *
+ * All keys under the prefix are kept in a local snapshot, which is loaded
+ * by a range read when starting, then kept current by a watch from the
+ * next revision, so the reads don't leave the JVM. The writes from this
+ * instance are applied to the snapshot with their revisions right away,
+ * and an entry is only replaced by a newer revision, so a late event
+ * won't bring back an old value.
+ *
+ * When the watch fails, e.g. the connection is lost or the revision is
+ * compacted, the reads go to etcd directly until the snapshot is reloaded
+ * and watched again, which is retried every [RESYNC_DELAY_MS].
+ * Before the first load, the reads go to etcd too.
+ * */
 @Service
 class EtcdConfigService(
     private val configClient: EtcdSimpleConfigClient
 ) {
+    private val logger = LoggerFactory.getLogger(EtcdConfigService::class.java)
+
     val applicationPrefix = "/archive_dag/config".removeSuffix("/")
 
+    private val snapshotPrefix = "$applicationPrefix/"
+
     /**
-     * convert prefix and key to a full qualified key
+     * A null value means the key is deleted at [modRevision].
      * */
-    fun getStringKey(namespace: String, key: String): String =
-        "$applicationPrefix/${namespace.removeSurrounding("/")}/${key.removeSurrounding("/")}"
+    private class Entry(val value: ByteArray?, val modRevision: Long)
+
+    private val snapshot = ConcurrentHashMap<String, Entry>()
+
+    private val scheduler = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "etcd-config-watch").apply { isDaemon = true }
+    }
+
+    @Volatile
+    private var watcher: Watch.Watcher? = null
 
     /**
-     * Map prefix and key to the real etcd key.
+     * Increased for each watch, the callbacks of the old watches are ignored.
      * */
-    private fun getKey(namespace: String, key: String): ByteSequence =
-        ByteSequence.from(getStringKey(namespace, key).encodeToByteArray())
+    @Volatile
+    private var generation = 0L
+
+    @Volatile
+    private var watching = false
+
+    @Volatile
+    private var closed = false
+
+    @Volatile
+    private var disconnectedAt = System.currentTimeMillis()
 
+    @Volatile
+    private var lastEventAt: Long? = null
+
+    private val revision = AtomicLong(0)
+    private val directReadCount = AtomicLong(0)
+
+    @PostConstruct
+    fun init() {
+        scheduler.execute { resync() }
+    }
 
     /**
-     * Set a byte array to a given key, return old key-value pair.
+     * Reload the snapshot and watch from the next revision.
+     * Run on the [scheduler], retry later if failed.
+     * */
+    private fun resync() {
+        if (closed) return
+        // ignore the callbacks of the old watch
+        val currentGeneration = ++generation
+        try {
+            watcher?.close()
+            val resp = configClient.getConfig(
+                ByteSequence.from(snapshotPrefix, Charsets.UTF_8),
+                GetOption.newBuilder().isPrefix(true).build()
+            )
+            val loadedRevision = resp.header.revision
+            val loadedKeys = HashSet<String>()
+            resp.kvs.forEach {
+                val key = it.key.toString()
+                loadedKeys.add(key)
+                apply(key, it.value.bytes, it.modRevision)
+            }
+            // deleted while not watching
+            snapshot.keys.filter { it !in loadedKeys }.forEach { apply(it, null, loadedRevision) }
+            // no older event will come after this
+            snapshot.entries.filter { it.value.value == null && it.value.modRevision <= loadedRevision }
+                .forEach { snapshot.remove(it.key, it.value) }
+            revision.accumulateAndGet(loadedRevision) { a, b -> maxOf(a, b) }
+
+            // before watching, so a failure right after is not missed
+            watching = true
+            watcher = configClient.watchConfig(
+                ByteSequence.from(snapshotPrefix, Charsets.UTF_8),
+                WatchOption.newBuilder().isPrefix(true).withRevision(loadedRevision + 1).build(),
+                Watch.listener(
+                    { onWatchEvent(currentGeneration, it) },
+                    { onWatchFailed(currentGeneration, it) },
+                    { onWatchFailed(currentGeneration, null) }
+                )
+            )
+            logger.info("Config snapshot loaded with {} keys at revision {}", resp.kvs.size, loadedRevision)
+        } catch (t: Throwable) {
+            if (watching) {
+                watching = false
+                disconnectedAt = System.currentTimeMillis()
+            }
+            logger.warn("Failed to load config snapshot, retry in {}ms", RESYNC_DELAY_MS, t)
+            if (!closed) scheduler.schedule({ resync() }, RESYNC_DELAY_MS, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun onWatchEvent(watchGeneration: Long, resp: WatchResponse) {
+        if (watchGeneration != generation) return
+        resp.events.forEach {
+            val key = it.keyValue.key.toString()
+            when (it.eventType) {
+                WatchEvent.EventType.PUT -> apply(key, it.keyValue.value.bytes, it.keyValue.modRevision)
+                WatchEvent.EventType.DELETE -> apply(key, null, it.keyValue.modRevision)
+                else -> logger.warn("Unrecognized watch event on {}", key)
+            }
+        }
+        revision.accumulateAndGet(resp.header.revision) { a, b -> maxOf(a, b) }
+        lastEventAt = System.currentTimeMillis()
+    }
+
+    private fun onWatchFailed(watchGeneration: Long, t: Throwable?) {
+        if (watchGeneration != generation || closed) return
+        // only the first failure of this watch counts
+        synchronized(this) {
+            if (!watching || watchGeneration != generation) return
+            watching = false
+            disconnectedAt = System.currentTimeMillis()
+        }
+        logger.warn("Config watch stopped, read from etcd until resynced", t)
+        scheduler.schedule({ resync() }, RESYNC_DELAY_MS, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Keep the newer one.
+     * */
+    private fun apply(key: String, value: ByteArray?, modRevision: Long) {
+        snapshot.compute(key) { _, old ->
+            if (old != null && old.modRevision >= modRevision) old else Entry(value, modRevision)
+        }
+    }
+
+    /**
+     * Get the value of a full qualified key, null if not found.
+     * */
+    fun getRawValue(fullKey: String): ByteArray? {
+        if (watching && fullKey.startsWith(snapshotPrefix)) {
+            return snapshot[fullKey]?.value
+        }
+        directReadCount.incrementAndGet()
+        return configClient.getConfig(ByteSequence.from(fullKey, Charsets.UTF_8)).kvs
+            .let { if (it.isEmpty()) null else it[0] }
+            ?.value?.bytes
+    }
+
+    /**
+     * Set the value of a full qualified key, return old key-value pair.
      * */
-    fun setByteArray(namespace: String, key: String, value: ByteArray): KeyValue? {
-        val resp = configClient.putConfig(getKey(namespace, key), ByteSequence.from(value))
+    fun putRawValue(fullKey: String, value: ByteArray): KeyValue? {
+        val resp = configClient.putConfig(ByteSequence.from(fullKey, Charsets.UTF_8), ByteSequence.from(value))
+        if (fullKey.startsWith(snapshotPrefix)) apply(fullKey, value, resp.header.revision)
         return if (resp.hasPrevKv()) resp.prevKv else null
     }
 
+    /**
+     * Delete a full qualified key, return the number of deleted keys.
+     * */
+    fun deleteRawValue(fullKey: String): Long {
+        val resp = configClient.deleteConfig(ByteSequence.from(fullKey, Charsets.UTF_8))
+        if (fullKey.startsWith(snapshotPrefix)) apply(fullKey, null, resp.header.revision)
+        return resp.deleted
+    }
+
+    fun snapshotStats(): ConfigSnapshotStats {
+        val isWatching = watching
+        return ConfigSnapshotStats(
+            isWatching, revision.get(), snapshot.values.count { it.value != null }, lastEventAt,
+            if (isWatching) 0 else System.currentTimeMillis() - disconnectedAt,
+            directReadCount.get()
+        )
+    }
+
+    @PreDestroy
+    fun close() {
+        logger.info("Shutting down config watch")
+        closed = true
+        watching = false
+        watcher?.close()
+        scheduler.shutdownNow()
+    }
+
+    /**
+     * convert prefix and key to a full qualified key
+     * */
+    fun getStringKey(namespace: String, key: String): String =
+        "$applicationPrefix/${namespace.removeSurrounding("/")}/${key.removeSurrounding("/")}"
+
+    /**
+     * Set a byte array to a given key, return old key-value pair.
+     * */
+    fun setByteArray(namespace: String, key: String, value: ByteArray): KeyValue? =
+        putRawValue(getStringKey(namespace, key), value)
+
     /**
      * Get a byte array to a given key, return null is not found
      * */
     fun getByteArray(namespace: String, key: String): ByteArray? =
-        configClient.getConfig(getKey(namespace, key)).kvs
-            .let { if (it.isEmpty()) null else it[0] }
-            ?.value?.bytes
+        getRawValue(getStringKey(namespace, key))
 
     /**
      * Get a byte array from a given key, throw exception if not found.
@@ -50,18 +273,14 @@ class EtcdConfigService(
     /**
      * Set a string to a given key, return old key-value pair.
      * */
-    fun setString(namespace: String, key: String, value: String): KeyValue? {
-        val resp = configClient.putConfig(getKey(namespace, key), ByteSequence.from(value, Charsets.UTF_8))
-        return if (resp.hasPrevKv()) resp.prevKv else null
-    }
+    fun setString(namespace: String, key: String, value: String): KeyValue? =
+        setByteArray(namespace, key, value.encodeToByteArray())
 
     /**
      * Get a string from a given key. Return null if not found.
      * */
     fun getString(namespace: String, key: String): String? =
-        configClient.getConfig(getKey(namespace, key)).kvs
-            .let { if (it.isEmpty()) null else it[0] }
-            ?.value?.toString()
+        getByteArray(namespace, key)?.decodeToString()
 
     fun getString(namespace: String, key: String, default: String): String =
         getString(namespace, key) ?: default
@@ -98,4 +317,7 @@ class EtcdConfigService(
     fun requireInt(namespace: String, key: String): Int =
         requireNotNull(getInt(namespace, key)) { "Config: ${getStringKey(namespace, key)} not found" }
 
+    companion object {
+        const val RESYNC_DELAY_MS = 5000L
+    }
 }
@@ -1,17 +1,23 @@
 package info.skyblond.archivedag.ariteg
 
 import com.google.protobuf.ByteString
+import info.skyblond.archivedag.ariteg.config.AritegComponentConfiguration
+import info.skyblond.archivedag.ariteg.config.AritegProperties
+import info.skyblond.archivedag.ariteg.config.AritegProperties.MetaProperties.MetaWriteMode
 import info.skyblond.archivedag.ariteg.model.*
 import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
 import info.skyblond.archivedag.ariteg.protos.AritegLink
 import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.repo.ProtoMetaRepository
 import info.skyblond.archivedag.ariteg.service.AritegMetaService
 import info.skyblond.archivedag.ariteg.service.DistributedLockService
+import info.skyblond.archivedag.ariteg.service.MultihashFilterService
 import info.skyblond.archivedag.ariteg.storage.AritegInMemoryStorageService
 import info.skyblond.archivedag.ariteg.storage.AritegStorageService
 import info.skyblond.archivedag.ariteg.utils.toMultihash
 import io.ipfs.multihash.Multihash
 import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.springframework.beans.factory.annotation.Autowired
@@ -38,16 +44,51 @@ internal class AritegServiceTest {
     @Autowired
     lateinit var lockService: DistributedLockService
 
+    @Autowired
+    lateinit var properties: AritegProperties
+
+    @Autowired
+    lateinit var metaRepository: ProtoMetaRepository
+
+    @Autowired
+    lateinit var filterService: MultihashFilterService
+
     private final val primary = MultihashProviders.fromMultihashType(Multihash.Type.sha3_512)
     private final val secondary = MultihashProviders.fromMultihashType(Multihash.Type.blake2b_512)
     val storageService: AritegStorageService = AritegInMemoryStorageService(primary, secondary)
     lateinit var aritegService: AritegService
+    private val components = mutableListOf<AutoCloseable>()
 
     private val chunkSize = 256 // 256 Bytes for a chunk
 
     @BeforeEach
     fun setUp() {
-        aritegService = AritegService(metaService, storageService, lockService)
+        aritegService = newService(metaService, properties)
+    }
+
+    @AfterEach
+    fun tearDown() {
+        // gc before walker, same as the order of Spring
+        components.asReversed().forEach { it.close() }
+        components.clear()
+    }
+
+    /**
+     * Build the background components on [storageService]
+     * instead of using the beans from Spring.
+     * */
+    private fun newService(metaService: AritegMetaService, properties: AritegProperties): AritegService {
+        val config = AritegComponentConfiguration(properties)
+        val dagWalker = config.dagWalker(storageService)
+        val subtreeReader = config.subtreeReader(storageService)
+        val restoreScheduler = config.restoreScheduler(storageService)
+        val garbageCollector = config.garbageCollector(storageService, metaService, dagWalker)
+        val scrubber = config.scrubber(storageService, metaService)
+        components.addAll(listOf(dagWalker, subtreeReader, restoreScheduler, garbageCollector, scrubber))
+        return AritegService(
+            metaService, storageService, lockService, properties,
+            dagWalker, subtreeReader, restoreScheduler, garbageCollector, scrubber
+        )
     }
 
     @Test
@@ -142,6 +183,22 @@ internal class AritegServiceTest {
         assertEquals(writeReceipt.link, result[0])
     }
 
+    @Test
+    fun testResolveDeduplicated() {
+        // Tree: L(B1,B2,B3,B4), L(B1,B2,B3,B4), B1
+        val (listLink, listObject) = writeList("")
+        val writeReceipt = aritegService.writeProto(
+            "name", TreeObject(listOf(listLink, listLink, listObject.list[0]))
+        )
+        writeReceipt.completionFuture.get()
+
+        val result: List<AritegLink> = aritegService.resolveLinks(writeReceipt.link)
+        // tree, list and 4 blobs
+        assertEquals(6, result.size)
+        assertEquals(writeReceipt.link, result[0])
+        assertEquals(6L, aritegService.walkLinks(writeReceipt.link) { }.get())
+    }
+
     @Test
     fun testResolveBlobLink() {
         val link = writeBlob("self").first
@@ -210,6 +267,22 @@ internal class AritegServiceTest {
         return writeReceipt.link to listObject
     }
 
+    @Test
+    fun testMissingSubLink() {
+        val links = (0 until 8).map { writeBlob("").first }
+        val missing = AritegObjects.newLink(
+            primary.digest(Random.nextBytes(chunkSize)), AritegObjectType.BLOB
+        )
+        val existence = metaService.multihashesExist((links + missing).map { it.multihash.toMultihash() })
+        assertEquals(9, existence.size)
+        assertFalse(existence[missing.multihash.toMultihash()]!!)
+        links.forEach { assertTrue(existence[it.multihash.toMultihash()]!!) }
+
+        assertThrows(IllegalArgumentException::class.java) {
+            aritegService.writeProto("", ListObject(links + missing))
+        }
+    }
+
     @Test
     fun testRWOneLayerList() {
         // a list with 4 blob
@@ -289,4 +362,172 @@ internal class AritegServiceTest {
             )!!
         )
     }
+
+    private fun write(name: String, proto: AritegObject): AritegLink {
+        val writeReceipt = aritegService.writeProto(name, proto)
+        writeReceipt.completionFuture.get()
+        return writeReceipt.link
+    }
+
+    @Test
+    fun testReadSubtree() {
+        val pieces = (0 until 5).map { writeBlob("") }
+        // a file of nested lists
+        val file = write(
+            "a", ListObject(
+                listOf(pieces[0].first, pieces[1].first, write("", ListObject(pieces.drop(2).map { it.first })))
+            )
+        )
+        val single = writeBlob("c")
+        val folder = write("sub", TreeObject(listOf(aritegService.renameLink(single.first, "b"))))
+        val root = write("", TreeObject(listOf(file, folder, single.first)))
+
+        val entries = ArrayList<SubtreeEntry>()
+        assertTrue(aritegService.readSubtree(root) { entries.add(it) })
+        var offset = 0L
+        val expected = listOf(SubtreeEntry("", AritegObjectType.TREE, 0, null, false)) +
+                pieces.mapIndexed { i, (_, blob) ->
+                    SubtreeEntry("a", AritegObjectType.BLOB, offset, blob, i == pieces.size - 1)
+                        .also { offset += blob.data.size() }
+                } + listOf(
+            SubtreeEntry("sub", AritegObjectType.TREE, 0, null, false),
+            SubtreeEntry("sub/b", AritegObjectType.BLOB, 0, single.second, true),
+            SubtreeEntry("c", AritegObjectType.BLOB, 0, single.second, true),
+        )
+        assertEquals(expected, entries)
+
+        // a file as the root
+        val fileEntries = ArrayList<SubtreeEntry>()
+        assertTrue(aritegService.readSubtree(file) { fileEntries.add(it) })
+        assertEquals(expected.subList(1, 6).map { it.copy(path = "") }, fileEntries)
+
+        // stopped
+        var count = 0
+        assertFalse(aritegService.readSubtree(root) { ++count < 3 })
+        assertEquals(3, count)
+    }
+
+    @Test
+    fun testCheckCollisions() {
+        val blobs = (0 until 4).map { writeBlob("").second.toProto().toByteArray() }
+        val missing = Random.nextBytes(chunkSize)
+        val digests = blobs.map { primary.digest(it) to secondary.digest(it) } +
+                listOf(
+                    primary.digest(missing) to secondary.digest(missing),
+                    primary.digest(blobs[0]) to secondary.digest(missing),
+                    // duplicated
+                    primary.digest(blobs[1]) to secondary.digest(blobs[1])
+                )
+        assertEquals(
+            listOf(false, false, false, false, null, true, false),
+            aritegService.checkCollisions(digests)
+        )
+    }
+
+    /**
+     * H2 has no `INSERT ... RETURNING`, the atomic insert is emulated by a lock.
+     * */
+    private fun newUpsertService(): AritegService {
+        val upsertMetaService = object : AritegMetaService(metaRepository, properties, filterService) {
+            override fun createNewEntityAtomic(primaryHash: Multihash, secondaryHash: Multihash): Boolean =
+                synchronized(this) { createNewEntity(primaryHash, secondaryHash) }
+        }
+        return newService(
+            upsertMetaService,
+            properties.copy(meta = properties.meta.copy(writeMode = MetaWriteMode.DB_UPSERT))
+        )
+    }
+
+    @Test
+    fun testConcurrentWritesWithUpsert() {
+        val upsertService = newUpsertService()
+        val blob = BlobObject(ByteString.copyFrom(Random.nextBytes(chunkSize)))
+        val receipts = (0 until 8).map { upsertService.writeProto("", blob) }
+        receipts.forEach { it.completionFuture.get() }
+        receipts.forEach { assertEquals(receipts.first().link, it.link) }
+        assertNotNull(storageService.queryStatus(receipts.first().link))
+        assertTrue(aritegService.multihashExists(receipts.first().link.multihash.toMultihash()))
+    }
+
+    @Test
+    fun testUpsertCreatorFailed() {
+        val upsertService = newUpsertService()
+        val blob = BlobObject(ByteString.copyFrom(Random.nextBytes(chunkSize)))
+        val content = blob.toProto().toByteArray()
+        // the creator inserted the meta, but never wrote the proto
+        assertTrue(metaService.createNewEntity(primary.digest(content), secondary.digest(content)))
+
+        val start = System.currentTimeMillis()
+        val receipt = upsertService.writeProto("", blob)
+        receipt.completionFuture.get()
+        // rewritten after a short wait, not the whole creator timeout
+        assertTrue(System.currentTimeMillis() - start < properties.meta.creatorTimeoutMs)
+        assertNotNull(storageService.queryStatus(receipt.link))
+    }
+
+    @Test
+    fun testGarbageCollection() {
+        val kept = writeCommit("kept", getEmptyCommitLink())
+        val reachable = aritegService.resolveLinks(kept, true)
+        val garbage = aritegService.resolveLinks(writeList("garbage").first)
+        val roots = { sequenceOf(kept.multihash.toMultihash()) }
+
+        // young protos are protected
+        val protected = aritegService.startGc(roots, false)!!.get()
+        assertEquals(GcPhase.FINISHED, protected.phase)
+        garbage.forEach { assertNotNull(storageService.queryStatus(it)) }
+
+        // make sure the protos are older than the cutoff
+        Thread.sleep(10)
+        val dryRun = aritegService.startGc(roots, true, 0)!!.get()
+        assertEquals(GcPhase.FINISHED, dryRun.phase)
+        assertEquals(reachable.size.toLong(), dryRun.markedCount)
+        assertTrue(dryRun.garbageCount >= garbage.size)
+        assertEquals(0, dryRun.deletedCount)
+        garbage.forEach { assertTrue(aritegService.multihashExists(it.multihash.toMultihash())) }
+
+        val progress = aritegService.startGc(roots, false, 0)!!.get()
+        assertEquals(GcPhase.FINISHED, progress.phase)
+        assertNull(progress.error)
+        assertTrue(progress.deletedCount >= garbage.size)
+        garbage.forEach {
+            assertNull(storageService.queryStatus(it))
+            assertFalse(aritegService.multihashExists(it.multihash.toMultihash()))
+        }
+        reachable.forEach {
+            assertNotNull(storageService.queryStatus(it))
+            assertTrue(aritegService.multihashExists(it.multihash.toMultihash()))
+        }
+        assertEquals(progress, aritegService.gcProgress())
+    }
+
+    @Test
+    fun testGarbageCollectionRefUpdated() {
+        val updated = writeCommit("updated", getEmptyCommitLink())
+        val reachable = aritegService.resolveLinks(updated, true)
+        // make sure the protos are older than the cutoff
+        Thread.sleep(10)
+        // the record is updated after its page is read
+        val roots = {
+            sequence<Multihash> {
+                aritegService.updateRef(updated) { }
+            }
+        }
+        val progress = aritegService.startGc(roots, false, 0)!!.get()
+        assertEquals(GcPhase.FINISHED, progress.phase)
+        reachable.forEach {
+            assertNotNull(storageService.queryStatus(it))
+            assertTrue(aritegService.multihashExists(it.multihash.toMultihash()))
+        }
+    }
+
+    @Test
+    fun testGarbageCollectionMissingRoot() {
+        val missing = primary.digest(Random.nextBytes(chunkSize))
+        val progress = aritegService.startGc({ sequenceOf(missing) }, false, 0)!!.get()
+        // nothing is deleted if marking failed
+        assertEquals(GcPhase.FAILED, progress.phase)
+        assertNotNull(progress.error)
+        assertEquals(0, progress.scannedCount)
+    }
 }
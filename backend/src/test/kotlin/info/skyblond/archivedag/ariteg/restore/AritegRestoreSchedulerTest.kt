@@ -0,0 +1,151 @@
+package info.skyblond.archivedag.ariteg.restore
+
+import com.google.protobuf.ByteString
+import info.skyblond.archivedag.ariteg.model.AritegObject
+import info.skyblond.archivedag.ariteg.model.AritegObjects
+import info.skyblond.archivedag.ariteg.model.BlobObject
+import info.skyblond.archivedag.ariteg.model.ListObject
+import info.skyblond.archivedag.ariteg.model.RestoreTier
+import info.skyblond.archivedag.ariteg.model.TreeObject
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.storage.AritegS3ArchiveStorageService
+import info.skyblond.archivedag.ariteg.storage.InMemoryS3AsyncClient
+import info.skyblond.archivedag.ariteg.storage.InMemoryS3Client
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import software.amazon.awssdk.services.s3.model.StorageClass
+import software.amazon.awssdk.services.s3.model.Tier
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+internal class AritegRestoreSchedulerTest {
+    private val baseDir = File("./data/test/${Random.nextLong()}")
+    private val s3Objects = ConcurrentHashMap<String, InMemoryS3Client.StoredObject>()
+    private val s3Client = InMemoryS3Client(s3Objects)
+    private val s3AsyncClient = InMemoryS3AsyncClient(s3Objects)
+    private lateinit var storageService: AritegS3ArchiveStorageService
+    private var scheduler: AritegRestoreScheduler? = null
+
+    private fun newStorageService() = AritegS3ArchiveStorageService(
+        Multihash.Type.sha3_512, Multihash.Type.blake2b_512, baseDir,
+        s3Client, s3AsyncClient, "bucket", StorageClass.STANDARD, 2, 1024
+    )
+
+    private fun newScheduler() = AritegRestoreScheduler(storageService, 2, 50, 50, 1, 2)
+        .also { scheduler = it }
+
+    @BeforeEach
+    internal fun setUp() {
+        baseDir.mkdirs()
+        storageService = newStorageService()
+    }
+
+    @AfterEach
+    internal fun tearDown() {
+        scheduler?.close()
+        storageService.close()
+        baseDir.deleteRecursively()
+    }
+
+    private fun store(proto: AritegObject): AritegLink {
+        val receipt = storageService.store("", proto) { _, _ -> true }
+        receipt.completionFuture.get()
+        storageService.awaitReplicated(receipt.link).get(1, TimeUnit.MINUTES)
+        return receipt.link
+    }
+
+    private fun storeBlob(): AritegLink = store(BlobObject(ByteString.copyFrom(Random.nextBytes(256))))
+
+    /**
+     * Move everything to GLACIER and drop the local copies.
+     * */
+    private fun archiveAll() {
+        storageService.close()
+        s3Objects.replaceAll { _, obj -> obj.copy(storageClass = StorageClass.GLACIER) }
+        listOf("blob", "list", "tree", "commit").forEach { File(baseDir, it).deleteRecursively() }
+        storageService = newStorageService()
+    }
+
+    private fun waitUntil(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 60 * 1000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20)
+        }
+        assertTrue(condition())
+    }
+
+    @Test
+    fun testRestoreDag() {
+        val blobs = (0 until 3).map { storeBlob() }
+        val list = store(ListObject(listOf(blobs[0], blobs[1])))
+        val tree = store(TreeObject(listOf(list, blobs[2], blobs[0])))
+        archiveAll()
+
+        val job = newScheduler().start(tree, RestoreTier.STANDARD, false)
+        // children are unknown until the tree is restored
+        waitUntil { s3Client.restoreRequests.size == 1 }
+        assertEquals(1, job.progress().discovered)
+        assertEquals(1, job.progress().restoring)
+        assertFalse(job.readyFuture(tree)!!.isDone)
+
+        waitUntil {
+            s3Client.completeRestores()
+            job.future.isDone
+        }
+        job.future.get()
+        assertEquals(5, job.progress().discovered)
+        assertEquals(5, job.progress().ready)
+        assertTrue(job.progress().done)
+        assertTrue(job.subtreeFuture(list)!!.isDone)
+        // each proto is restored once
+        assertEquals(5, s3Client.restoreRequests.size)
+        assertEquals(5, s3Client.restoreRequests.map { it.first }.toSet().size)
+        assertTrue(s3Client.restoreRequests.all { it.second == Tier.STANDARD })
+        blobs.forEach { assertTrue(storageService.loadProto(it) is BlobObject) }
+    }
+
+    @Test
+    fun testUpgradeTier() {
+        val blob = storeBlob()
+        archiveAll()
+        val restoreScheduler = newScheduler()
+        val slow = restoreScheduler.start(blob, RestoreTier.BULK, false)
+        waitUntil { s3Client.restoreRequests.size == 1 }
+        val fast = restoreScheduler.start(blob, RestoreTier.EXPEDITED, false)
+        waitUntil { s3Client.restoreRequests.size == 2 }
+        assertEquals(listOf(Tier.BULK, Tier.EXPEDITED), s3Client.restoreRequests.map { it.second })
+
+        s3Client.completeRestores()
+        slow.future.get(1, TimeUnit.MINUTES)
+        fast.future.get(1, TimeUnit.MINUTES)
+        assertEquals(2, s3Client.restoreRequests.size)
+    }
+
+    @Test
+    fun testAvailable() {
+        val blob = storeBlob()
+        val list = store(ListObject(listOf(blob)))
+        val job = newScheduler().start(list, RestoreTier.BULK, false)
+        job.future.get(1, TimeUnit.MINUTES)
+        assertEquals(2, job.progress().ready)
+        assertTrue(s3Client.restoreRequests.isEmpty())
+    }
+
+    @Test
+    fun testNotFound() {
+        val multihash = MultihashProviders.fromMultihashType(Multihash.Type.sha3_512)
+            .digest(Random.nextBytes(32))
+        val job = newScheduler().start(AritegObjects.newLink(multihash, AritegObjectType.BLOB), RestoreTier.BULK, false)
+        val e = assertThrows(ExecutionException::class.java) { job.future.get(1, TimeUnit.MINUTES) }
+        assertTrue(e.cause is IllegalStateException)
+        assertEquals(1, job.progress().failed)
+    }
+}
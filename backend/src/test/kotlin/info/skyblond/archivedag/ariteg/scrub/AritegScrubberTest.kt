@@ -0,0 +1,96 @@
+package info.skyblond.archivedag.ariteg.scrub
+
+import com.google.protobuf.ByteString
+import info.skyblond.archivedag.ariteg.model.BlobObject
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.storage.AritegFileStorageService
+import info.skyblond.archivedag.ariteg.storage.FileLayout
+import info.skyblond.archivedag.ariteg.storage.FileStorageLayout
+import info.skyblond.archivedag.ariteg.utils.toMultihash
+import info.skyblond.archivedag.ariteg.utils.toMultihashBase58
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.util.concurrent.CompletableFuture
+import kotlin.random.Random
+
+internal class AritegScrubberTest {
+    private val baseDir = File("./data/test/${Random.nextLong()}")
+    private val protoDir = File(baseDir, "protos")
+    private val checkpointFile = File(baseDir, "scrub.checkpoint")
+    private val storageService = AritegFileStorageService(
+        Multihash.Type.sha3_512, Multihash.Type.blake2b_512, protoDir, 2, 1024
+    )
+    private val noMeta = HashSet<Multihash>()
+    private var scrubber: AritegScrubber? = null
+
+    private fun newScrubber() = AritegScrubber(
+        storageService, { list -> list.associateWith { it !in noMeta } },
+        checkpointFile, 2, 4, 0, false, 0
+    ).also { scrubber = it }
+
+    @BeforeEach
+    internal fun setUp() {
+        protoDir.mkdirs()
+    }
+
+    @AfterEach
+    internal fun tearDown() {
+        scrubber?.close()
+        storageService.close()
+        baseDir.deleteRecursively()
+    }
+
+    private fun storeBlobs(count: Int): List<AritegLink> {
+        val receipts = List(count) {
+            storageService.store("", BlobObject(ByteString.copyFrom(Random.nextBytes(64)))) { _, _ -> true }
+        }
+        CompletableFuture.allOf(*receipts.map { it.completionFuture }.toTypedArray()).get()
+        return receipts.map { it.link }
+    }
+
+    private fun fileOf(link: AritegLink): File =
+        FileStorageLayout(protoDir, FileLayout.LEGACY).resolve(link.type, link.multihash.toMultihash())
+
+    @Test
+    fun testScrub() {
+        val links = storeBlobs(10)
+        fileOf(links[0]).writeBytes(Random.nextBytes(64))
+        noMeta.add(links[1].multihash.toMultihash())
+
+        val progress = newScrubber().start()!!.get()
+        assertFalse(progress.running)
+        assertEquals(10, progress.scannedCount)
+        assertEquals(9, progress.okCount)
+        assertEquals(1, progress.corruptedCount)
+        assertEquals(1, progress.noMetaCount)
+        assertEquals(0, progress.errorCount)
+        assertEquals(1, progress.finishedPasses)
+        assertNotNull(progress.lastFinishedAt)
+        assertEquals(listOf(links[0].toMultihashBase58()), progress.recentCorrupted)
+        assertTrue(progress.scannedBytes > 0)
+        // checkpoint is removed after a finished pass
+        assertFalse(checkpointFile.exists())
+    }
+
+    @Test
+    fun testResume() {
+        storeBlobs(10)
+        val cursors = ArrayList<String>()
+        storageService.listProtos(null) { _, cursor -> cursors.add(cursor) }
+        assertEquals(10, cursors.size)
+        // an unfinished pass stopped after 4 protos
+        checkpointFile.writeText(cursors[3])
+
+        val progress = newScrubber().start()!!.get()
+        assertEquals(6, progress.scannedCount)
+        assertEquals(6, progress.okCount)
+        assertEquals(1, progress.finishedPasses)
+        assertFalse(checkpointFile.exists())
+        // the next pass starts from the beginning
+        assertEquals(10, scrubber!!.start()!!.get().scannedCount)
+    }
+}
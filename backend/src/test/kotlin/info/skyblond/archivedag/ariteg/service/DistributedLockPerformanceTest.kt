@@ -11,6 +11,7 @@ import java.util.concurrent.CountDownLatch
 import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.random.Random
 
 @SpringBootTest
@@ -21,6 +22,9 @@ internal class DistributedLockPerformanceTest {
     @Autowired
     lateinit var distributedLockService: DistributedLockService
 
+    @Autowired
+    lateinit var metaService: AritegMetaService
+
     private val threadCount = 1024
     private val executorService = ThreadPoolExecutor(
         threadCount, threadCount,
@@ -97,4 +101,64 @@ internal class DistributedLockPerformanceTest {
         println("Average performance: ${totalLockCount / (timeDelta / 1000.0)} locks/s")
         Thread.sleep(5000) // wait all client close...
     }
+
+    private fun randomMultihashList(count: Int): List<Multihash> {
+        // use a random prefix so each run won't hit the rows from last run
+        val prefix = Random.nextBytes(8)
+        return (0 until count).map { Multihash(Multihash.Type.id, prefix + int2ByteArray(it)) }
+    }
+
+    private fun runConfirm(title: String, multihashList: List<Multihash>, confirm: (Multihash) -> Boolean) {
+        val countDownLatch = CountDownLatch(multihashList.size)
+        val confirmed = AtomicInteger(0)
+        println("Preparation finished, ready to start")
+        val startTime = System.currentTimeMillis()
+        multihashList.forEach {
+            executorService.submit {
+                if (confirm(it)) confirmed.incrementAndGet()
+                countDownLatch.countDown()
+            }
+        }
+        while (!countDownLatch.await(5, TimeUnit.SECONDS)) {
+            println("Remain: " + countDownLatch.count)
+        }
+        val endTime = System.currentTimeMillis()
+        val timeDelta = endTime - startTime
+        println("$title: perform ${multihashList.size} actions in $timeDelta ms, ${confirmed.get()} confirmed")
+        println("$title: average performance: ${multihashList.size / (timeDelta / 1000.0)} protos/s")
+    }
+
+    private fun confirmWithLock(multihash: Multihash): Boolean {
+        val lock = distributedLockService.getLock(multihash)
+        distributedLockService.lock(lock)
+        try {
+            return metaService.createNewEntity(multihash, multihash)
+        } finally {
+            distributedLockService.unlock(lock)
+        }
+    }
+
+    /**
+     * Compare creating new metas with etcd lock and with db upsert.
+     * */
+    @Test
+    fun testCreateMetaPerformance() {
+        val totalCount = 16384
+        runConfirm("etcd lock", randomMultihashList(totalCount)) { confirmWithLock(it) }
+        runConfirm("db upsert", randomMultihashList(totalCount)) { metaService.createNewEntityAtomic(it, it) }
+        Thread.sleep(5000) // wait all client close...
+    }
+
+    /**
+     * Every writer races on the same proto, only one of them should confirm.
+     * */
+    @Test
+    fun testCreateMetaRacingPerformance() {
+        val totalCount = 256
+        val lockList = randomMultihashList(1).let { l -> (0 until totalCount).map { l[0] } }
+        runConfirm("etcd lock", lockList) { confirmWithLock(it) }
+        val upsertList = randomMultihashList(1).let { l -> (0 until totalCount).map { l[0] } }
+        runConfirm("db upsert", upsertList) { metaService.createNewEntityAtomic(it, it) }
+        Thread.sleep(5000) // wait all client close...
+    }
 }
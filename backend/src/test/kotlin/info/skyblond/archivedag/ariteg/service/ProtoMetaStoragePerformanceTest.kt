@@ -0,0 +1,91 @@
+package info.skyblond.archivedag.ariteg.service
+
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Disabled
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.test.context.ActiveProfiles
+import kotlin.random.Random
+
+/**
+ * Compare the index size and lookup latency of base58 text keys
+ * and raw bytea keys. PostgreSQL only.
+ * */
+@SpringBootTest
+@ActiveProfiles("test-real")
+@Disabled
+internal class ProtoMetaStoragePerformanceTest {
+    @Autowired
+    lateinit var jdbcTemplate: JdbcTemplate
+
+    // 100M rows takes hours to prepare, reduce it for a quick look
+    private val rowCount = 100_000_000L
+    private val batchSize = 10000
+    private val lookupCount = 100000
+
+    private val textTable = "proto_meta_bench_text"
+    private val byteaTable = "proto_meta_bench_bytea"
+
+    @AfterEach
+    internal fun tearDown() {
+        jdbcTemplate.execute("DROP TABLE IF EXISTS $textTable")
+        jdbcTemplate.execute("DROP TABLE IF EXISTS $byteaTable")
+    }
+
+    private fun randomMultihash(): Multihash = Multihash(Multihash.Type.sha3_256, Random.nextBytes(32))
+
+    private fun prepare(): List<Multihash> {
+        jdbcTemplate.execute("CREATE TABLE $textTable (primary_hash text PRIMARY KEY, secondary_hash text NOT NULL)")
+        jdbcTemplate.execute("CREATE TABLE $byteaTable (primary_hash bytea PRIMARY KEY, secondary_hash bytea NOT NULL)")
+        val samples = mutableListOf<Multihash>()
+        var inserted = 0L
+        while (inserted < rowCount) {
+            val batch = (0 until minOf(batchSize.toLong(), rowCount - inserted).toInt())
+                .map { randomMultihash() to randomMultihash() }
+            jdbcTemplate.batchUpdate(
+                "INSERT INTO $textTable VALUES (?, ?)",
+                batch.map { (p, s) -> arrayOf<Any>(p.toBase58(), s.toBase58()) }
+            )
+            jdbcTemplate.batchUpdate(
+                "INSERT INTO $byteaTable VALUES (?, ?)",
+                batch.map { (p, s) -> arrayOf<Any>(p.toBytes(), s.toBytes()) }
+            )
+            if (samples.size < lookupCount) samples.add(batch.first().first)
+            inserted += batch.size
+            if (inserted % (100 * batchSize) == 0L) println("Inserted $inserted rows")
+        }
+        jdbcTemplate.execute("ANALYZE $textTable")
+        jdbcTemplate.execute("ANALYZE $byteaTable")
+        return samples
+    }
+
+    private fun indexSize(table: String): Long =
+        jdbcTemplate.queryForObject("SELECT pg_relation_size('${table}_pkey')", Long::class.java)!!
+
+    private fun measureLookup(title: String, keys: List<Multihash>, table: String, encode: (Multihash) -> Any) {
+        val startTime = System.nanoTime()
+        keys.forEach {
+            // the encoding is part of the lookup cost
+            jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM $table WHERE primary_hash = ?", Long::class.java, encode(it)
+            )
+        }
+        val timeDelta = (System.nanoTime() - startTime) / 1_000_000.0
+        println("$title: ${keys.size} lookups in $timeDelta ms, ${timeDelta * 1000 / keys.size} us/lookup")
+    }
+
+    @Test
+    fun testIndexSizeAndLookup() {
+        val samples = prepare()
+        println("Text index size: ${indexSize(textTable)} bytes")
+        println("Bytea index size: ${indexSize(byteaTable)} bytes")
+        // warm up both
+        measureLookup("Warm up text", samples, textTable) { it.toBase58() }
+        measureLookup("Warm up bytea", samples, byteaTable) { it.toBytes() }
+        measureLookup("Text", samples, textTable) { it.toBase58() }
+        measureLookup("Bytea", samples, byteaTable) { it.toBytes() }
+    }
+}
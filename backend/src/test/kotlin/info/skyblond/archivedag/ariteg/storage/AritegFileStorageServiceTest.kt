@@ -5,6 +5,8 @@ import info.skyblond.archivedag.ariteg.model.BlobObject
 import info.skyblond.archivedag.ariteg.model.CommitObject
 import info.skyblond.archivedag.ariteg.model.ListObject
 import info.skyblond.archivedag.ariteg.model.TreeObject
+import info.skyblond.archivedag.ariteg.model.VerifiedDigests
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
 import info.skyblond.archivedag.ariteg.protos.AritegLink
 import io.ipfs.multihash.Multihash
 import org.junit.jupiter.api.AfterEach
@@ -76,6 +78,76 @@ internal class AritegFileStorageServiceTest {
         assertEquals(storeTree.link, commitObj.authorLink)
     }
 
+    @Test
+    fun testStoreWithVerifiedDigests() {
+        val blob = BlobObject(ByteString.copyFrom(Random.nextBytes(1024)))
+        val rawBytes = blob.toProto().toByteArray()
+        val primary = MultihashProviders.fromMultihashType(Multihash.Type.sha3_512).digest(rawBytes)
+        val secondary = MultihashProviders.fromMultihashType(Multihash.Type.blake2b_512).digest(rawBytes)
+        var checkedSecondary: Multihash? = null
+        val receipt = this.storageService.store("blob", blob, VerifiedDigests(primary, secondary)) { _, s ->
+            checkedSecondary = s
+            true
+        }
+        assertEquals(primary, receipt.completionFuture.get())
+        assertEquals(secondary, checkedSecondary)
+        assertEquals(blob.data, (this.storageService.loadProto(receipt.link) as BlobObject).data)
+        // wrong type is rejected
+        assertThrows(IllegalArgumentException::class.java) {
+            this.storageService.store("blob", blob, VerifiedDigests(secondary)) { _, _ -> true }
+        }
+    }
+
+    @Test
+    fun testMemoryMappedLoad() {
+        val blobData = ByteString.copyFrom(Random.nextBytes(1024 * 1024))
+        val storeBlob = this.storageService.store(
+            "blob", BlobObject(blobData)
+        ) { _, _ -> true }
+        val storeList = this.storageService.store(
+            "list", ListObject(listOf(storeBlob.link))
+        ) { _, _ -> true }
+        CompletableFuture.allOf(storeBlob.completionFuture, storeList.completionFuture).get()
+
+        AritegFileStorageService(
+            Multihash.Type.sha3_512, Multihash.Type.blake2b_512, baseDir, 2, 1024,
+            FileReadMode.MEMORY_MAPPED
+        ).use { mappedStorage ->
+            assertEquals(
+                blobData,
+                (mappedStorage.loadProto(storeBlob.link) as BlobObject).data
+            )
+            assertEquals(
+                listOf(storeBlob.link),
+                (mappedStorage.loadProto(storeList.link) as ListObject).list
+            )
+        }
+    }
+
+    @Test
+    fun testCompressedStoreAndLoad() {
+        val blobData = ByteString.copyFromUtf8("some text line\n".repeat(64 * 1024))
+        val storeBlob = AritegFileStorageService(
+            Multihash.Type.sha3_512, Multihash.Type.blake2b_512, baseDir, 2, 1024,
+            codec = ProtoCodec(ProtoCodec.Algorithm.DEFLATE)
+        ).use { compressedStorage ->
+            val receipt = compressedStorage.store("blob", BlobObject(blobData)) { _, _ -> true }
+            receipt.completionFuture.get()
+            // the file is compressed
+            assertTrue(compressedStorage.queryStatus(receipt.link)!!.protoSize!! < blobData.size() / 10)
+            assertEquals(1, compressedStorage.codecStats()["blob"]!!.compressedCount)
+            receipt
+        }
+        // read by storages without compression, in both modes
+        assertEquals(blobData, (this.storageService.loadProto(storeBlob.link) as BlobObject).data)
+        AritegFileStorageService(
+            Multihash.Type.sha3_512, Multihash.Type.blake2b_512, baseDir, 2, 1024,
+            FileReadMode.MEMORY_MAPPED
+        ).use { mappedStorage ->
+            assertEquals(blobData, (mappedStorage.loadProto(storeBlob.link) as BlobObject).data)
+        }
+    }
+
     @Test
     fun testCancelStore() {
         val storeBlob = this.storageService.store(
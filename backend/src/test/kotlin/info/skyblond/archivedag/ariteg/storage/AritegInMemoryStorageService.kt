@@ -4,6 +4,7 @@ import com.google.protobuf.ByteString
 import info.skyblond.archivedag.ariteg.model.AritegObject
 import info.skyblond.archivedag.ariteg.model.StorageStatus
 import info.skyblond.archivedag.ariteg.model.StoreReceipt
+import info.skyblond.archivedag.ariteg.model.VerifiedDigests
 import info.skyblond.archivedag.ariteg.multihash.MultihashProvider
 import info.skyblond.archivedag.ariteg.protos.AritegLink
 import info.skyblond.archivedag.ariteg.utils.toMultihash
@@ -29,12 +30,13 @@ class AritegInMemoryStorageService(
     override fun store(
         name: String,
         proto: AritegObject,
+        digests: VerifiedDigests?,
         checkBeforeWrite: BiFunction<Multihash, Multihash, Boolean>
     ): StoreReceipt {
 
         val rawBytes = proto.toProto().toByteArray()
-        val primaryMultihash = primaryProvider.digest(rawBytes)
-        val secondaryMultihash = secondaryProvider.digest(rawBytes)
+        val (primaryMultihash, secondaryMultihash) = resolveDigests(primaryProvider, secondaryProvider, rawBytes, digests)
+            .let { it.primary to (it.secondary ?: secondaryProvider.digest(rawBytes)) }
         // run the check, return if we get false
         val future = CompletableFuture.supplyAsync({
             if (checkBeforeWrite.apply(primaryMultihash, secondaryMultihash)) {
@@ -81,6 +83,22 @@ class AritegInMemoryStorageService(
         return contentMap.remove(multihash) != null
     }
 
+    /**
+     * In the order of base58, which is also the cursor.
+     * */
+    override fun listProtos(cursor: String?, action: (AritegLink, String) -> Boolean): Boolean? {
+        contentMap.entries.map { it.key.toBase58() to it }.sortedBy { it.first }
+            .filter { cursor == null || it.first > cursor }
+            .forEach { (base58, entry) ->
+                val link = AritegLink.newBuilder()
+                    .setMultihash(ByteString.copyFrom(entry.key.toBytes()))
+                    .setType(entry.value.getObjectType())
+                    .build()
+                if (!action(link, base58)) return false
+            }
+        return true
+    }
+
     override fun primaryMultihashType(): Multihash.Type {
         return primaryProvider.getType()
     }
@@ -0,0 +1,124 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import com.google.protobuf.ByteString
+import info.skyblond.archivedag.ariteg.model.BlobObject
+import info.skyblond.archivedag.ariteg.model.ScrubState
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.utils.toMultihash
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.util.concurrent.CompletableFuture
+import kotlin.random.Random
+
+internal class AritegMultiDiskStorageServiceTest {
+    private val baseDir = File("./data/test/${Random.nextLong()}")
+    private val dirs = List(4) { File(baseDir, "disk$it") }
+
+    @AfterEach
+    internal fun tearDown() {
+        baseDir.deleteRecursively()
+    }
+
+    private fun newStorage(disks: List<File>, replicas: Int) = AritegMultiDiskStorageService(
+        Multihash.Type.sha3_512, Multihash.Type.blake2b_512, disks, replicas, 2, 1024, 2
+    )
+
+    private fun storeBlobs(storage: AritegStorageService, count: Int): Map<AritegLink, ByteString> {
+        val blobs = List(count) { ByteString.copyFrom(Random.nextBytes(64)) }
+        val receipts = blobs.map { storage.store("", BlobObject(it)) { _, _ -> true } to it }
+        CompletableFuture.allOf(*receipts.map { it.first.completionFuture }.toTypedArray()).get()
+        return receipts.associate { it.first.link to it.second }
+    }
+
+    private fun fileOf(disk: File, link: AritegLink): File =
+        FileStorageLayout(disk, FileLayout.LEGACY).resolve(link.type, link.multihash.toMultihash())
+
+    /**
+     * The disks having the file of [link].
+     * */
+    private fun disksOf(disks: List<File>, link: AritegLink): List<File> = disks.filter { fileOf(it, link).exists() }
+
+    @Test
+    fun testStoreAndLoad() {
+        val disks = dirs.take(3)
+        val blobs = newStorage(disks, 2).use { storage ->
+            storeBlobs(storage, 100).onEach { (link, data) ->
+                assertEquals(2, disksOf(disks, link).size)
+                assertEquals(data, (storage.loadProto(link) as BlobObject).data)
+                assertNotNull(storage.queryStatus(link))
+            }
+        }
+        // all disks are used
+        disks.forEach { disk -> assertTrue(blobs.keys.any { disk in disksOf(disks, it) }) }
+        newStorage(disks, 2).use { storage ->
+            val (link, _) = blobs.entries.first()
+            assertTrue(storage.deleteProto(link))
+            assertTrue(disksOf(disks, link).isEmpty())
+            assertNull(storage.queryStatus(link))
+            assertThrows(IllegalStateException::class.java) { storage.loadProto(link) }
+        }
+    }
+
+    @Test
+    fun testFallback() {
+        val disks = dirs.take(3)
+        newStorage(disks, 2).use { storage ->
+            storeBlobs(storage, 20).forEach { (link, data) ->
+                val (first, second) = disksOf(disks, link)
+                // one replica lost
+                fileOf(first, link).delete()
+                assertEquals(data, (storage.loadProto(link) as BlobObject).data)
+                // the other one is corrupted
+                fileOf(second, link).writeBytes(Random.nextBytes(64))
+                assertThrows(IllegalStateException::class.java) { storage.loadProto(link) }
+            }
+        }
+    }
+
+    @Test
+    fun testRebalance() {
+        val blobs = newStorage(dirs.take(3), 2).use { storeBlobs(it, 200) }
+        newStorage(dirs, 2).use { storage ->
+            // still readable before rebalance
+            blobs.forEach { (link, data) ->
+                assertEquals(data, (storage.loadProto(link) as BlobObject).data)
+            }
+            val copied = storage.rebalance().get()
+            assertTrue(copied > 0)
+            blobs.forEach { (link, data) ->
+                assertEquals(2, disksOf(dirs, link).size)
+                assertEquals(data, (storage.loadProto(link) as BlobObject).data)
+            }
+            // nothing to do for the second time
+            assertEquals(0L, storage.rebalance().get())
+        }
+    }
+
+    @Test
+    fun testScrub() {
+        val disks = dirs.take(3)
+        newStorage(disks, 2).use { storage ->
+            val blobs = storeBlobs(storage, 20)
+            // each proto is listed once
+            val listed = ArrayList<AritegLink>()
+            assertEquals(true, storage.listProtos(null) { link, _ -> listed.add(link) })
+            assertEquals(blobs.keys, listed.toSet())
+            assertEquals(blobs.size, listed.size)
+
+            val (link, data) = blobs.entries.first()
+            assertEquals(ScrubState.OK, storage.scrubProto(link).state)
+            val (first, second) = disksOf(disks, link)
+            fileOf(first, link).writeBytes(Random.nextBytes(64))
+            assertEquals(ScrubState.REPAIRED, storage.scrubProto(link).state)
+            assertEquals(ScrubState.OK, storage.scrubProto(link).state)
+            assertEquals(data, (storage.loadProto(link) as BlobObject).data)
+            // no good copy left
+            fileOf(first, link).writeBytes(Random.nextBytes(64))
+            fileOf(second, link).delete()
+            assertEquals(ScrubState.CORRUPTED, storage.scrubProto(link).state)
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import com.google.protobuf.ByteString
+import info.skyblond.archivedag.ariteg.model.BlobObject
+import info.skyblond.archivedag.ariteg.model.CommitObject
+import info.skyblond.archivedag.ariteg.model.ListObject
+import info.skyblond.archivedag.ariteg.model.ScrubState
+import info.skyblond.archivedag.ariteg.model.TreeObject
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.concurrent.CompletableFuture
+import kotlin.random.Random
+
+internal class AritegPackStorageServiceTest {
+
+    private val baseDir = File("./data/test/${Random.nextLong()}")
+    private lateinit var storageService: AritegPackStorageService
+
+    private fun newStorageService(segmentSize: Long = 1024 * 1024) = AritegPackStorageService(
+        Multihash.Type.sha3_512, Multihash.Type.blake2b_512, baseDir,
+        segmentSize, 2, 0.5, 2, 1024
+    )
+
+    @BeforeEach
+    internal fun setUp() {
+        baseDir.mkdirs()
+        storageService = newStorageService()
+    }
+
+    @AfterEach
+    internal fun tearDown() {
+        this.storageService.close()
+        baseDir.deleteRecursively()
+    }
+
+    private fun storeBlob(content: ByteArray): AritegLink {
+        val receipt = this.storageService.store("", BlobObject(ByteString.copyFrom(content))) { _, _ -> true }
+        assertNotNull(receipt.completionFuture.get())
+        return receipt.link
+    }
+
+    private fun segmentFiles(): List<File> =
+        baseDir.listFiles { f -> f.name.endsWith(".pack") }!!.sortedBy { it.name }
+
+    @Test
+    fun testNormalStoreAndLoad() {
+        val blobData = ByteString.copyFrom("Data", Charsets.UTF_8)
+        val storeBlob = this.storageService.store(
+            "blob", BlobObject(blobData)
+        ) { _, _ -> true }
+        val storeList = this.storageService.store(
+            "list", ListObject(listOf(storeBlob.link))
+        ) { _, _ -> true }
+        val storeTree = this.storageService.store(
+            "tree", TreeObject(listOf(storeBlob.link, storeList.link))
+        ) { _, _ -> true }
+        val storeCommit = this.storageService.store(
+            "commit", CommitObject(
+                1234, "message", storeBlob.link,
+                storeList.link, storeTree.link
+            )
+        ) { _, _ -> true }
+        CompletableFuture.allOf(
+            storeBlob.completionFuture, storeList.completionFuture,
+            storeTree.completionFuture, storeCommit.completionFuture
+        ).get()
+
+        assertEquals(
+            blobData,
+            (this.storageService.loadProto(storeBlob.link) as BlobObject).data
+        )
+        assertEquals(
+            listOf(storeBlob.link),
+            (this.storageService.loadProto(storeList.link) as ListObject).list
+        )
+        assertEquals(
+            listOf(storeBlob.link, storeList.link),
+            (this.storageService.loadProto(storeTree.link) as TreeObject).links
+        )
+        val commitObj = this.storageService.loadProto(storeCommit.link) as CommitObject
+        assertEquals(1234, commitObj.unixTimestamp)
+        assertEquals("message", commitObj.message)
+        assertEquals(storeBlob.link, commitObj.parentLink)
+        assertEquals(storeList.link, commitObj.committedObjectLink)
+        assertEquals(storeTree.link, commitObj.authorLink)
+    }
+
+    @Test
+    fun testCancelStore() {
+        val storeBlob = this.storageService.store(
+            "blob", BlobObject(ByteString.copyFrom("Data", Charsets.UTF_8))
+        ) { _, _ -> false }
+        assertNull(storeBlob.completionFuture.get())
+        assertThrows(IllegalStateException::class.java) {
+            this.storageService.loadProto(storeBlob.link)
+        }
+    }
+
+    @Test
+    fun deleteProto() {
+        val link = storeBlob("Data".encodeToByteArray())
+        assertDoesNotThrow { this.storageService.loadProto(link) }
+        assertTrue(this.storageService.deleteProto(link))
+        assertThrows(IllegalStateException::class.java) {
+            this.storageService.loadProto(link)
+        }
+        assertFalse(this.storageService.deleteProto(link))
+    }
+
+    @Test
+    fun queryStatus() {
+        val link = storeBlob("Data".encodeToByteArray())
+        assertTrue(this.storageService.queryStatus(link)!!.available)
+        assertNotEquals(0, this.storageService.queryStatus(link)!!.protoSize)
+
+        assertTrue(this.storageService.deleteProto(link))
+        assertNull(this.storageService.queryStatus(link))
+    }
+
+    @Test
+    fun restoreLink() {
+        assertDoesNotThrow {
+            this.storageService.restoreLink(AritegLink.getDefaultInstance())
+        }
+    }
+
+    @Test
+    fun testRecoverFromSnapshot() {
+        val contents = (0 until 64).map { Random.nextBytes(1024) }
+        val links = contents.map { storeBlob(it) }
+        val deleted = links.first()
+        assertTrue(this.storageService.deleteProto(deleted))
+        // close will save the snapshot
+        this.storageService.close()
+        this.storageService = newStorageService()
+
+        assertNull(this.storageService.queryStatus(deleted))
+        contents.zip(links).drop(1).forEach { (content, link) ->
+            assertArrayEquals(content, (this.storageService.loadProto(link) as BlobObject).data.toByteArray())
+        }
+    }
+
+    @Test
+    fun testRecoverFromSegmentTails() {
+        val contents = (0 until 64).map { Random.nextBytes(1024) }
+        val links = contents.map { storeBlob(it) }
+        val deleted = links.first()
+        assertTrue(this.storageService.deleteProto(deleted))
+        this.storageService.close()
+        // lost the snapshot, and tear the tail of last segment
+        assertTrue(File(baseDir, "index.bin").delete())
+        val lastSegment = segmentFiles().last { it.length() > 0 }
+        RandomAccessFile(lastSegment, "rw").use {
+            it.seek(it.length())
+            it.write(Random.nextBytes(17))
+        }
+        this.storageService = newStorageService()
+
+        assertNull(this.storageService.queryStatus(deleted))
+        contents.zip(links).drop(1).forEach { (content, link) ->
+            assertArrayEquals(content, (this.storageService.loadProto(link) as BlobObject).data.toByteArray())
+        }
+        // the broken tail is truncated, new writes are still readable after restart
+        val newContent = Random.nextBytes(1024)
+        val newLink = storeBlob(newContent)
+        this.storageService.close()
+        this.storageService = newStorageService()
+        assertArrayEquals(newContent, (this.storageService.loadProto(newLink) as BlobObject).data.toByteArray())
+    }
+
+    @Test
+    fun testRecoverDropsLostRecords() {
+        val contents = (0 until 64).map { Random.nextBytes(1024) }
+        val links = contents.map { storeBlob(it) }
+        this.storageService.close()
+        // the snapshot is kept, but the tail of last segment is lost
+        val lastSegment = segmentFiles().last { it.length() > 0 }
+        RandomAccessFile(lastSegment, "rw").use { it.setLength(it.length() - 100) }
+        this.storageService = newStorageService()
+
+        val lost = contents.zip(links).count { (content, link) ->
+            if (this.storageService.queryStatus(link) == null) {
+                true
+            } else {
+                assertArrayEquals(content, (this.storageService.loadProto(link) as BlobObject).data.toByteArray())
+                false
+            }
+        }
+        assertEquals(1, lost)
+    }
+
+    @Test
+    fun testListAndScrub() {
+        val links = (0 until 32).map { storeBlob(Random.nextBytes(1024)) }
+        // stop in the middle, then resume from the cursor
+        val listed = ArrayList<Pair<AritegLink, String>>()
+        assertEquals(false, this.storageService.listProtos(null) { link, cursor ->
+            listed.add(link to cursor)
+            listed.size < 10
+        })
+        assertEquals(true, this.storageService.listProtos(listed.last().second) { link, cursor ->
+            listed.add(link to cursor)
+            true
+        })
+        assertEquals(links.map { it.multihash }.toSet(), listed.map { it.first.multihash }.toSet())
+        assertEquals(links.size, listed.size)
+        links.forEach { assertEquals(ScrubState.OK, this.storageService.scrubProto(it).state) }
+
+        // flip a byte in the first record, only the crc can tell
+        RandomAccessFile(segmentFiles().first(), "rw").use {
+            it.seek(20)
+            val b = it.read()
+            it.seek(20)
+            it.write(b xor 0xFF)
+        }
+        assertEquals(1, links.count { this.storageService.scrubProto(it).state == ScrubState.CORRUPTED })
+    }
+
+    @Test
+    fun testReplayKeepsWriteOrder() {
+        val contents = (0 until 32).map { Random.nextBytes(1024) }
+        // stored, deleted, then stored again
+        val restored = contents.map { storeBlob(it) }
+        restored.forEach { assertTrue(this.storageService.deleteProto(it)) }
+        contents.forEach { storeBlob(it) }
+        // stored, then deleted
+        val deleted = (0 until 32).map { storeBlob(Random.nextBytes(1024)) }
+        deleted.forEach { assertTrue(this.storageService.deleteProto(it)) }
+        this.storageService.close()
+        // replay every segment
+        assertTrue(File(baseDir, "index.bin").delete())
+        this.storageService = newStorageService()
+
+        contents.zip(restored).forEach { (content, link) ->
+            assertArrayEquals(content, (this.storageService.loadProto(link) as BlobObject).data.toByteArray())
+        }
+        deleted.forEach { assertNull(this.storageService.queryStatus(it)) }
+    }
+
+    @Test
+    fun testCompaction() {
+        this.storageService.close()
+        baseDir.deleteRecursively()
+        baseDir.mkdirs()
+        // small segments so protos spread across multiple segments
+        this.storageService = newStorageService(16 * 1024)
+        val contents = (0 until 256).map { Random.nextBytes(1024) }
+        val links = contents.map { storeBlob(it) }
+        val firstSegment = segmentFiles().first()
+        // delete most of the protos
+        links.forEachIndexed { i, link ->
+            if (i % 8 != 0) assertTrue(this.storageService.deleteProto(link))
+        }
+        this.storageService.compact()
+        // wait compaction finish
+        this.storageService.close()
+        assertFalse(firstSegment.exists())
+
+        this.storageService = newStorageService(16 * 1024)
+        contents.zip(links).forEachIndexed { i, (content, link) ->
+            if (i % 8 == 0) {
+                assertArrayEquals(content, (this.storageService.loadProto(link) as BlobObject).data.toByteArray())
+            } else {
+                assertNull(this.storageService.queryStatus(link))
+            }
+        }
+    }
+}
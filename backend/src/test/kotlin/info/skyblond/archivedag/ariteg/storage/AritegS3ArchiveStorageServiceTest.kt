@@ -0,0 +1,194 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import com.google.protobuf.ByteString
+import info.skyblond.archivedag.ariteg.model.BlobObject
+import info.skyblond.archivedag.ariteg.model.ListObject
+import info.skyblond.archivedag.ariteg.model.RestoreState
+import info.skyblond.archivedag.ariteg.model.RestoreTier
+import info.skyblond.archivedag.ariteg.model.ScrubState
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.utils.toMultihash
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import software.amazon.awssdk.services.s3.model.StorageClass
+import software.amazon.awssdk.services.s3.model.Tier
+import java.io.File
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+internal class AritegS3ArchiveStorageServiceTest {
+    private val baseDir = File("./data/test/${Random.nextLong()}")
+    private val s3Objects = ConcurrentHashMap<String, InMemoryS3Client.StoredObject>()
+    private val s3Client = InMemoryS3Client(s3Objects)
+    private val s3AsyncClient = InMemoryS3AsyncClient(s3Objects)
+    private lateinit var storageService: AritegS3ArchiveStorageService
+
+    private fun newStorageService(localCacheBytes: Long = 0) = AritegS3ArchiveStorageService(
+        Multihash.Type.sha3_512, Multihash.Type.blake2b_512, baseDir,
+        s3Client, s3AsyncClient, "bucket", StorageClass.STANDARD, 2, 1024,
+        localCacheBytes = localCacheBytes
+    )
+
+    @BeforeEach
+    internal fun setUp() {
+        baseDir.mkdirs()
+        storageService = newStorageService()
+    }
+
+    @AfterEach
+    internal fun tearDown() {
+        this.storageService.close()
+        baseDir.deleteRecursively()
+    }
+
+    private fun storeBlob(content: ByteArray): AritegLink {
+        val receipt = this.storageService.store("", BlobObject(ByteString.copyFrom(content))) { _, _ -> true }
+        assertNotNull(receipt.completionFuture.get())
+        return receipt.link
+    }
+
+    private fun localFile(link: AritegLink): File {
+        val name = link.multihash.toMultihash().toBase58()
+        return File(File(File(baseDir, link.type.name.lowercase()), name.take(6)), name)
+    }
+
+    private fun s3Key(link: AritegLink) =
+        "${link.type.name.lowercase()}/${link.multihash.toMultihash().toBase58()}"
+
+    @Test
+    fun testReplicate() {
+        val content = Random.nextBytes(1024)
+        val blob = storeBlob(content)
+        val list = this.storageService.store("", ListObject(listOf(blob))) { _, _ -> true }
+            .also { it.completionFuture.get() }.link
+        CompletableFuture.allOf(
+            this.storageService.awaitReplicated(blob),
+            this.storageService.awaitReplicated(list)
+        ).get(1, TimeUnit.MINUTES)
+        assertNotNull(s3Objects[s3Key(blob)])
+        assertNotNull(s3Objects[s3Key(list)])
+        assertEquals(0, this.storageService.replicationLag().pendingCount)
+    }
+
+    @Test
+    fun testLoadFromS3() {
+        val content = Random.nextBytes(1024)
+        val link = storeBlob(content)
+        this.storageService.awaitReplicated(link).get(1, TimeUnit.MINUTES)
+        // local copy lost
+        assertTrue(localFile(link).delete())
+        // answered by the key index
+        val status = this.storageService.queryStatus(link)!!
+        assertTrue(status.available)
+        assertNull(status.protoSize)
+        assertEquals(0, s3Client.headCount.get())
+        // download from S3
+        assertArrayEquals(content, (this.storageService.loadProto(link) as BlobObject).data.toByteArray())
+        assertTrue(localFile(link).exists())
+    }
+
+    @Test
+    fun testDeleteProto() {
+        val link = storeBlob(Random.nextBytes(1024))
+        this.storageService.awaitReplicated(link).get(1, TimeUnit.MINUTES)
+        assertTrue(this.storageService.deleteProto(link))
+        assertNull(s3Objects[s3Key(link)])
+        assertNull(this.storageService.queryStatus(link))
+    }
+
+    @Test
+    fun testRestoreLink() {
+        val content = Random.nextBytes(1024)
+        val link = storeBlob(content)
+        this.storageService.awaitReplicated(link).get(1, TimeUnit.MINUTES)
+        assertEquals(RestoreState.AVAILABLE, this.storageService.restoreState(link))
+        // archived
+        s3Objects.computeIfPresent(s3Key(link)) { _, obj -> obj.copy(storageClass = StorageClass.GLACIER) }
+        assertTrue(localFile(link).delete())
+        assertEquals(RestoreState.ARCHIVED, this.storageService.restoreState(link, true))
+        assertThrows(IllegalStateException::class.java) { this.storageService.loadProto(link) }
+
+        this.storageService.restoreLink(link, RestoreTier.EXPEDITED, 1)
+        assertEquals(s3Key(link) to Tier.EXPEDITED, s3Client.restoreRequests.single())
+        assertEquals(RestoreState.RESTORING, this.storageService.restoreState(link))
+        // already in progress
+        this.storageService.restoreLink(link, RestoreTier.BULK, 1)
+        assertEquals(1, s3Client.restoreRequests.size)
+
+        s3Client.completeRestores()
+        assertEquals(RestoreState.AVAILABLE, this.storageService.restoreState(link, true))
+        assertArrayEquals(content, (this.storageService.loadProto(link) as BlobObject).data.toByteArray())
+    }
+
+    @Test
+    fun testLocalCacheEviction() {
+        this.storageService.close()
+        this.storageService = newStorageService(16 * 1024)
+        val contents = (0 until 64).map { Random.nextBytes(1024) }
+        val links = contents.map { storeBlob(it) }
+        val list = this.storageService.store("", ListObject(links)) { _, _ -> true }
+            .also { it.completionFuture.get() }.link
+        CompletableFuture.allOf(*links.map { this.storageService.awaitReplicated(it) }.toTypedArray())
+            .get(1, TimeUnit.MINUTES)
+        // wait the eviction
+        val deadline = System.currentTimeMillis() + 60 * 1000
+        while (links.count { localFile(it).exists() } > 16 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50)
+        }
+        assertTrue(links.count { localFile(it).exists() } <= 16)
+        // structural protos are pinned
+        assertTrue(localFile(list).exists())
+        // evicted ones are downloaded from S3
+        contents.zip(links).forEach { (content, link) ->
+            assertArrayEquals(content, (this.storageService.loadProto(link) as BlobObject).data.toByteArray())
+        }
+    }
+
+    @Test
+    fun testLocalCacheKeepsUnconfirmed() {
+        val contents = (0 until 32).map { Random.nextBytes(1024) }
+        val links = contents.map { storeBlob(it) }
+        CompletableFuture.allOf(*links.map { this.storageService.awaitReplicated(it) }.toTypedArray())
+            .get(1, TimeUnit.MINUTES)
+        this.storageService.close()
+        // not pending, but not in S3 either
+        links.forEach { s3Objects.remove(s3Key(it)) }
+        this.storageService = newStorageService(16 * 1024)
+        // the cache is over budget when starting
+        Thread.sleep(1000)
+        assertTrue(links.all { localFile(it).exists() })
+        contents.zip(links).forEach { (content, link) ->
+            assertArrayEquals(content, (this.storageService.loadProto(link) as BlobObject).data.toByteArray())
+        }
+    }
+
+    @Test
+    fun testScrubRepair() {
+        val content = Random.nextBytes(1024)
+        val link = storeBlob(content)
+        this.storageService.awaitReplicated(link).get(1, TimeUnit.MINUTES)
+        assertEquals(ScrubState.OK, this.storageService.scrubProto(link, true).state)
+
+        // local copy is corrupted, download from S3
+        val stored = localFile(link).readBytes()
+        localFile(link).writeBytes(Random.nextBytes(64))
+        assertEquals(ScrubState.REPAIRED, this.storageService.scrubProto(link).state)
+        assertArrayEquals(stored, localFile(link).readBytes())
+
+        // S3 copy is lost, upload again
+        s3Objects.remove(s3Key(link))
+        assertEquals(ScrubState.REPAIRED, this.storageService.scrubProto(link, true).state)
+        this.storageService.awaitReplicated(link).get(1, TimeUnit.MINUTES)
+        assertNotNull(s3Objects[s3Key(link)])
+
+        // both are broken
+        localFile(link).writeBytes(Random.nextBytes(64))
+        s3Objects.remove(s3Key(link))
+        assertEquals(ScrubState.CORRUPTED, this.storageService.scrubProto(link, true).state)
+    }
+}
@@ -0,0 +1,123 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import com.google.protobuf.ByteString
+import info.skyblond.archivedag.ariteg.model.BlobObject
+import info.skyblond.archivedag.ariteg.model.CommitObject
+import info.skyblond.archivedag.ariteg.model.ListObject
+import info.skyblond.archivedag.ariteg.model.TreeObject
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.walker.AritegDagWalker
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.io.File
+import kotlin.random.Random
+
+internal class AritegTieredStorageServiceTest {
+    private val primary = MultihashProviders.fromMultihashType(Multihash.Type.sha3_512)
+    private val secondary = MultihashProviders.fromMultihashType(Multihash.Type.blake2b_512)
+    private val blobStorage = AritegInMemoryStorageService(primary, secondary)
+    private val structureStorage = AritegInMemoryStorageService(primary, secondary)
+    private val storageService = AritegTieredStorageService(
+        blobStorage, listOf(AritegObjectType.LIST, AritegObjectType.TREE, AritegObjectType.COMMIT)
+            .associateWith { structureStorage }
+    )
+
+    @AfterEach
+    internal fun tearDown() {
+        storageService.close()
+    }
+
+    @Test
+    fun testPlacement() {
+        val blob = storageService.store("", BlobObject(ByteString.copyFrom(Random.nextBytes(64)))) { _, _ -> true }
+        blob.completionFuture.get()
+        val list = storageService.store("", ListObject(listOf(blob.link))) { _, _ -> true }
+        list.completionFuture.get()
+        val tree = storageService.store("", TreeObject(listOf(list.link))) { _, _ -> true }
+        tree.completionFuture.get()
+        val commit = storageService.store(
+            "", CommitObject(1234, "message", AritegLink.getDefaultInstance(), tree.link, blob.link)
+        ) { _, _ -> true }
+        commit.completionFuture.get()
+
+        assertNotNull(blobStorage.queryStatus(blob.link))
+        assertNull(structureStorage.queryStatus(blob.link))
+        listOf(list, tree, commit).forEach {
+            assertNotNull(structureStorage.queryStatus(it.link))
+            assertNull(blobStorage.queryStatus(it.link))
+            assertEquals(it.link.type, storageService.loadProto(it.link).getObjectType())
+            assertNotNull(storageService.queryStatus(it.link))
+        }
+
+        // walking the DAG doesn't need the blob storage
+        assertTrue(blobStorage.deleteProto(blob.link))
+        AritegDagWalker(storageService, 2).use { walker ->
+            assertEquals(4L, walker.walk(commit.link, false) { }.get())
+        }
+    }
+
+    @Test
+    fun testMoveToTiers() {
+        // stored before the tiers are added
+        val blob = blobStorage.store("", BlobObject(ByteString.copyFrom(Random.nextBytes(64)))) { _, _ -> true }
+        blob.completionFuture.get()
+        val list = blobStorage.store("", ListObject(listOf(blob.link))) { _, _ -> true }
+        list.completionFuture.get()
+        val deleted = blobStorage.store("", ListObject(listOf(blob.link, blob.link))) { _, _ -> true }
+        deleted.completionFuture.get()
+
+        // still reachable on the default storage
+        assertNotNull(storageService.queryStatus(list.link))
+        assertEquals(listOf(blob.link), (storageService.loadProto(list.link) as ListObject).list)
+        assertTrue(storageService.deleteProto(deleted.link))
+        assertNull(storageService.queryStatus(deleted.link))
+
+        assertEquals(1L, storageService.rebalance()!!.get())
+        assertNotNull(structureStorage.queryStatus(list.link))
+        assertNull(blobStorage.queryStatus(list.link))
+        assertNotNull(blobStorage.queryStatus(blob.link))
+        assertNull(structureStorage.queryStatus(deleted.link))
+        assertEquals(listOf(blob.link), (storageService.loadProto(list.link) as ListObject).list)
+    }
+
+    @Test
+    fun testMoveToTiersFromPack() {
+        val baseDir = File("./data/test/${Random.nextLong()}")
+        val packStorage = AritegPackStorageService(
+            Multihash.Type.sha3_512, Multihash.Type.blake2b_512, baseDir,
+            1024 * 1024, 2, 0.5, 2, 1024
+        )
+        val tiered = AritegTieredStorageService(
+            packStorage, mapOf(AritegObjectType.LIST to AritegInMemoryStorageService(primary, secondary))
+        )
+        try {
+            // stored before the tiers are added
+            val blob = packStorage.store("", BlobObject(ByteString.copyFrom(Random.nextBytes(64)))) { _, _ -> true }
+            blob.completionFuture.get()
+            val list = packStorage.store("", ListObject(listOf(blob.link))) { _, _ -> true }
+            list.completionFuture.get()
+
+            assertEquals(1L, tiered.rebalance()!!.get())
+            assertNull(packStorage.queryStatus(list.link))
+            assertNotNull(packStorage.queryStatus(blob.link))
+            assertEquals(listOf(blob.link), (tiered.loadProto(list.link) as ListObject).list)
+        } finally {
+            // closes the pack storage too
+            tiered.close()
+            baseDir.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun testHashTypeMismatch() {
+        val other = AritegInMemoryStorageService(secondary, primary)
+        assertThrows(IllegalArgumentException::class.java) {
+            AritegTieredStorageService(blobStorage, mapOf(AritegObjectType.LIST to other))
+        }
+        other.close()
+    }
+}
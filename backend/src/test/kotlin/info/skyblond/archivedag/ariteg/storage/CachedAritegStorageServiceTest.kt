@@ -0,0 +1,47 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import com.google.protobuf.ByteString
+import info.skyblond.archivedag.ariteg.model.BlobObject
+import info.skyblond.archivedag.ariteg.model.ListObject
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+internal class CachedAritegStorageServiceTest {
+    private val delegate = AritegInMemoryStorageService(
+        MultihashProviders.fromMultihashType(Multihash.Type.sha3_512),
+        MultihashProviders.fromMultihashType(Multihash.Type.blake2b_512)
+    )
+    private val storageService = CachedAritegStorageService(delegate, 1024 * 1024, 0)
+
+    @AfterEach
+    internal fun tearDown() {
+        storageService.close()
+    }
+
+    @Test
+    fun testCacheStructure() {
+        val blob = storageService.store("", BlobObject(ByteString.copyFrom(Random.nextBytes(64)))) { _, _ -> true }
+        blob.completionFuture.get()
+        val list = storageService.store("", ListObject(listOf(blob.link))) { _, _ -> true }
+        list.completionFuture.get()
+
+        repeat(3) {
+            assertEquals(listOf(blob.link), (storageService.loadProto(list.link) as ListObject).list)
+        }
+        // blobs are not cached
+        storageService.loadProto(blob.link)
+        val stats = storageService.cacheStats()
+        assertNull(stats["blob"])
+        assertEquals(1, stats["structure"]!!.missCount)
+        assertEquals(2, stats["structure"]!!.hitCount)
+        assertTrue(stats["structure"]!!.cachedBytes > 0)
+
+        // deleting invalidates the cache
+        assertTrue(storageService.deleteProto(list.link))
+        assertThrows(IllegalStateException::class.java) { storageService.loadProto(list.link) }
+    }
+}
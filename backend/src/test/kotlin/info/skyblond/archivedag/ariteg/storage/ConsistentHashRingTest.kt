@@ -0,0 +1,61 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+internal class ConsistentHashRingTest {
+    private val keys = List(10000) { Random.nextLong() }
+
+    @Test
+    fun testDeterministic() {
+        val ring = ConsistentHashRing(listOf("a", "b", "c"), 64)
+        // order of nodes doesn't matter
+        val reordered = ConsistentHashRing(listOf("c", "a", "b"), 64)
+        val names = listOf("a", "b", "c")
+        val reorderedNames = listOf("c", "a", "b")
+        keys.forEach { key ->
+            assertEquals(
+                ring.select(key, 2).map { names[it] },
+                reordered.select(key, 2).map { reorderedNames[it] }
+            )
+        }
+    }
+
+    @Test
+    fun testDistinctReplicas() {
+        val ring = ConsistentHashRing(listOf("a", "b", "c"), 64)
+        keys.forEach { key ->
+            val selected = ring.select(key, 3)
+            assertEquals(3, selected.size)
+            assertEquals(3, selected.toSet().size)
+        }
+        assertThrows(IllegalArgumentException::class.java) { ring.select(0, 4) }
+    }
+
+    @Test
+    fun testAddNode() {
+        val names = listOf("a", "b", "c", "d")
+        val old = ConsistentHashRing(names.take(3), 128)
+        val new = ConsistentHashRing(names, 128)
+        var moved = 0
+        keys.forEach { key ->
+            val before = names[old.select(key, 1).first()]
+            val after = names[new.select(key, 1).first()]
+            if (before != after) {
+                // only move to the new node
+                assertEquals("d", after)
+                moved++
+            }
+        }
+        // about 1/4 of keys moved
+        assertTrue(moved in 1500..3500) { "Moved $moved" }
+    }
+
+    @Test
+    fun testKeyOf() {
+        assertEquals(0x0102030405060708L, ConsistentHashRing.keyOf(byteArrayOf(1, 2, 3, 4, 5, 6, 7, 8, 9)))
+        assertEquals(0x0102000000000000L, ConsistentHashRing.keyOf(byteArrayOf(1, 2)))
+        assertEquals(-1L, ConsistentHashRing.keyOf(ByteArray(8) { -1 }))
+    }
+}
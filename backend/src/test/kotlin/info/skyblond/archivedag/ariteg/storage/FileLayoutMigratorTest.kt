@@ -0,0 +1,79 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import com.google.protobuf.ByteString
+import info.skyblond.archivedag.ariteg.model.BlobObject
+import info.skyblond.archivedag.ariteg.model.ListObject
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import info.skyblond.archivedag.ariteg.protos.AritegLink
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import info.skyblond.archivedag.ariteg.utils.toMultihash
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.io.File
+import kotlin.random.Random
+
+internal class FileLayoutMigratorTest {
+    private val baseDir = File("./data/test/${Random.nextLong()}")
+
+    @AfterEach
+    internal fun tearDown() {
+        baseDir.deleteRecursively()
+    }
+
+    private fun newStorageService(layout: FileLayout) = AritegFileStorageService(
+        Multihash.Type.sha3_512, Multihash.Type.blake2b_512, baseDir, 2, 1024, layout = layout
+    )
+
+    private fun countFiles(layout: FileLayout): Int {
+        var count = 0
+        FileStorageLayout(baseDir, layout).forEachFile { _, _, _ -> count++ }
+        return count
+    }
+
+    @Test
+    fun testMigrate() {
+        val contents = (0 until 100).map { Random.nextBytes(128) }
+        val links = ArrayList<AritegLink>()
+        newStorageService(FileLayout.LEGACY).use { storage ->
+            contents.forEach { content ->
+                storage.store("", BlobObject(ByteString.copyFrom(content))) { _, _ -> true }
+                    .also { it.completionFuture.get() }.let { links.add(it.link) }
+            }
+            storage.store("", ListObject(links.toList())) { _, _ -> true }
+                .also { it.completionFuture.get() }.let { links.add(it.link) }
+        }
+        assertEquals(FileLayout.LEGACY.toString(), File(baseDir, FileLayoutMigrator.LAYOUT_FILE).readText())
+
+        val hex = FileLayout.parse("HEX:2:2")
+        newStorageService(hex).use { storage ->
+            contents.zip(links).forEach { (content, link) ->
+                assertArrayEquals(content, (storage.loadProto(link) as BlobObject).data.toByteArray())
+            }
+            assertEquals(100, (storage.loadProto(links.last()) as ListObject).list.size)
+        }
+        assertEquals(hex.toString(), File(baseDir, FileLayoutMigrator.LAYOUT_FILE).readText())
+        assertEquals(101, countFiles(hex))
+        assertEquals(0, countFiles(FileLayout.LEGACY))
+        val legacyDir = FileStorageLayout(baseDir, FileLayout.LEGACY)
+            .resolve(links.first().type, links.first().multihash.toMultihash()).parentFile
+        assertFalse(legacyDir.exists())
+    }
+
+    @Test
+    fun testSameDepth() {
+        val layout = FileStorageLayout(baseDir, FileLayout.LEGACY)
+        val provider = MultihashProviders.fromMultihashType(Multihash.Type.sha3_256)
+        repeat(20) {
+            val multihash = provider.digest(Random.nextBytes(32))
+            layout.resolveForWrite(AritegObjectType.BLOB, multihash)
+                .writeBytes(ByteArray(1))
+        }
+        val target = FileLayout(FileLayout.ShardEncoding.BASE58, 1, 3)
+        assertEquals(20, FileLayoutMigrator(baseDir, FileLayout.LEGACY, target, 4).migrate())
+        // run again, nothing to move
+        assertEquals(0, FileLayoutMigrator(baseDir, FileLayout.LEGACY, target, 4).migrate())
+        assertEquals(20, countFiles(target))
+    }
+}
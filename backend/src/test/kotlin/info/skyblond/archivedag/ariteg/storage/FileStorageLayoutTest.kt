@@ -0,0 +1,100 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.io.File
+import kotlin.random.Random
+
+internal class FileStorageLayoutTest {
+    private val baseDir = File("./data/test/${Random.nextLong()}")
+    private val provider = MultihashProviders.fromMultihashType(Multihash.Type.sha3_256)
+
+    @AfterEach
+    internal fun tearDown() {
+        baseDir.deleteRecursively()
+    }
+
+    @Test
+    fun testResolve() {
+        val multihash = provider.digest(Random.nextBytes(32))
+        val name = multihash.toBase58()
+        val legacy = FileStorageLayout(baseDir, FileLayout.LEGACY)
+        assertEquals(
+            File(File(File(baseDir, "blob"), name.take(6)), name),
+            legacy.resolve(AritegObjectType.BLOB, multihash)
+        )
+        val hex = FileStorageLayout(baseDir, FileLayout.parse("hex:2:2"))
+        val digestHex = multihash.hash.joinToString("") { "%02x".format(it) }
+        assertEquals(
+            File(File(File(File(baseDir, "tree"), digestHex.substring(0, 2)), digestHex.substring(2, 4)), name),
+            hex.resolve(AritegObjectType.TREE, multihash)
+        )
+        val flat = FileStorageLayout(baseDir, FileLayout(FileLayout.ShardEncoding.HEX, 0, 1))
+        assertEquals(File(File(baseDir, "list"), name), flat.resolve(AritegObjectType.LIST, multihash))
+        // no dirs created when resolving
+        assertFalse(baseDir.exists())
+    }
+
+    @Test
+    fun testParse() {
+        assertEquals(FileLayout.LEGACY, FileLayout.parse(FileLayout.LEGACY.toString()))
+        assertEquals(FileLayout(FileLayout.ShardEncoding.HEX, 3, 1), FileLayout.parse(" HEX:3:1\n"))
+        assertThrows(IllegalArgumentException::class.java) { FileLayout.parse("HEX:2") }
+        assertThrows(IllegalArgumentException::class.java) { FileLayout.parse("HEX:-1:2") }
+    }
+
+    @Test
+    fun testWriteAndWalk() {
+        val layout = FileStorageLayout(baseDir, FileLayout.parse("HEX:2:1"))
+        val written = (0 until 16).associate {
+            val multihash = provider.digest(Random.nextBytes(32))
+            val file = layout.resolveForWrite(AritegObjectType.BLOB, multihash)
+            file.writeBytes(Random.nextBytes(8))
+            multihash to file
+        }
+        // temp files are ignored
+        File(written.values.first().parentFile, "something.tmp").writeBytes(ByteArray(1))
+        val found = HashMap<Multihash, File>()
+        layout.forEachFile { type, multihash, file ->
+            assertEquals(AritegObjectType.BLOB, type)
+            found[multihash] = file
+        }
+        assertEquals(written, found)
+
+        // the dir is removed by others
+        val dir = written.values.first().parentFile
+        dir.deleteRecursively()
+        layout.invalidate(dir)
+        val multihash = written.keys.first()
+        layout.resolveForWrite(AritegObjectType.BLOB, multihash).writeBytes(ByteArray(1))
+        assertTrue(layout.resolve(AritegObjectType.BLOB, multihash).exists())
+    }
+
+    @Test
+    fun testSortedWalkWithCursor() {
+        val layout = FileStorageLayout(baseDir, FileLayout.parse("HEX:2:1"))
+        listOf(AritegObjectType.BLOB, AritegObjectType.TREE).forEach { type ->
+            repeat(8) {
+                layout.resolveForWrite(type, provider.digest(Random.nextBytes(32))).writeBytes(ByteArray(1))
+            }
+        }
+        val all = ArrayList<String>()
+        assertTrue(layout.forEachFileSorted(null) { _, _, path -> all.add(path) })
+        assertEquals(16, all.size)
+        // same order every time
+        val again = ArrayList<String>()
+        layout.forEachFileSorted(null) { _, _, path -> again.add(path) }
+        assertEquals(all, again)
+        // stopped in the middle
+        val head = ArrayList<String>()
+        assertFalse(layout.forEachFileSorted(null) { _, _, path -> head.add(path); head.size < 5 })
+        // resume after the cursor
+        val rest = ArrayList<String>()
+        assertTrue(layout.forEachFileSorted(head.last()) { _, _, path -> rest.add(path) })
+        assertEquals(all, head + rest)
+    }
+}
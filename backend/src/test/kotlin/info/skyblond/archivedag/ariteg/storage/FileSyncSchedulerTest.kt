@@ -0,0 +1,87 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+internal class FileSyncSchedulerTest {
+    private val baseDir = File("./data/test/${Random.nextLong()}")
+
+    @BeforeEach
+    internal fun setUp() {
+        baseDir.mkdirs()
+    }
+
+    @AfterEach
+    internal fun tearDown() {
+        baseDir.deleteRecursively()
+    }
+
+    private fun writeTemp(name: String, content: ByteArray): File =
+        File(baseDir, "$name.tmp").also { it.writeBytes(content) }
+
+    @Test
+    fun testGroupSync() {
+        FileSyncScheduler(50, Long.MAX_VALUE).use { scheduler ->
+            val contents = (0 until 32).map { Random.nextBytes(1024) }
+            val futures = contents.mapIndexed { i, content ->
+                CompletableFuture.supplyAsync {
+                    scheduler.submit(writeTemp("$i", content), File(baseDir, "$i"), content.size.toLong())
+                }.thenCompose { it }
+            }
+            CompletableFuture.allOf(*futures.toTypedArray()).get(1, TimeUnit.MINUTES)
+            contents.forEachIndexed { i, content ->
+                assertArrayEquals(content, File(baseDir, "$i").readBytes())
+                assertFalse(File(baseDir, "$i.tmp").exists())
+            }
+        }
+    }
+
+    @Test
+    fun testNotVisibleBeforeSync() {
+        FileSyncScheduler(60 * 1000, 2048).use { scheduler ->
+            val first = scheduler.submit(writeTemp("a", ByteArray(1024)), File(baseDir, "a"), 1024)
+            Thread.sleep(100)
+            // waiting for more writers
+            assertFalse(first.isDone)
+            assertFalse(File(baseDir, "a").exists())
+            // reach the byte limit
+            val second = scheduler.submit(writeTemp("b", ByteArray(1024)), File(baseDir, "b"), 1024)
+            CompletableFuture.allOf(first, second).get(1, TimeUnit.MINUTES)
+            assertTrue(File(baseDir, "a").exists())
+            assertTrue(File(baseDir, "b").exists())
+        }
+    }
+
+    @Test
+    fun testCloseDrainsPending() {
+        val scheduler = FileSyncScheduler(60 * 1000, Long.MAX_VALUE)
+        val future = scheduler.submit(writeTemp("a", ByteArray(16)), File(baseDir, "a"), 16)
+        scheduler.close()
+        assertTrue(future.isDone)
+        assertTrue(File(baseDir, "a").exists())
+        assertThrows(IllegalStateException::class.java) {
+            scheduler.submit(writeTemp("b", ByteArray(16)), File(baseDir, "b"), 16)
+        }
+    }
+
+    @Test
+    fun testFailure() {
+        FileSyncScheduler(10, Long.MAX_VALUE).use { scheduler ->
+            val missing = scheduler.submit(File(baseDir, "missing.tmp"), File(baseDir, "missing"), 16)
+            val ok = scheduler.submit(writeTemp("ok", ByteArray(16)), File(baseDir, "ok"), 16)
+            val e = assertThrows(ExecutionException::class.java) { missing.get(1, TimeUnit.MINUTES) }
+            assertTrue(e.cause is IOException)
+            ok.get(1, TimeUnit.MINUTES)
+            assertFalse(File(baseDir, "missing").exists())
+            assertTrue(File(baseDir, "ok").exists())
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import com.google.protobuf.ByteString
+import info.skyblond.archivedag.ariteg.model.BlobObject
+import info.skyblond.archivedag.ariteg.model.VerifiedDigests
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Disabled
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CompletableFuture
+import kotlin.random.Random
+
+/**
+ * Compare the CPU time of ingesting blobs, when the storage hashes
+ * the content by itself, and when reusing the digests from upload check.
+ * */
+@Disabled
+internal class HashOncePerformanceTest {
+    private val baseDir = File("./data/test/${Random.nextLong()}")
+    private val primaryProvider = MultihashProviders.fromMultihashType(Multihash.Type.sha3_512)
+    private val secondaryProvider = MultihashProviders.fromMultihashType(Multihash.Type.blake2b_512)
+    private val storageService = AritegFileStorageService(
+        Multihash.Type.sha3_512, Multihash.Type.blake2b_512, baseDir, 8, 1024
+    )
+    private val osBean = ManagementFactory.getOperatingSystemMXBean() as com.sun.management.OperatingSystemMXBean
+
+    @BeforeEach
+    internal fun setUp() {
+        baseDir.mkdirs()
+        System.gc()
+    }
+
+    @AfterEach
+    internal fun tearDown() {
+        this.storageService.close()
+        baseDir.deleteRecursively()
+    }
+
+    private fun measure(title: String, blobs: List<BlobObject>, reuseDigests: Boolean) {
+        val totalBytes = blobs.sumOf { it.data.size().toLong() }
+        val startCpu = osBean.processCpuTime
+        val startTime = System.currentTimeMillis()
+        val futures = blobs.map { blob ->
+            val rawBytes = blob.toProto().toByteArray()
+            val receipt = if (reuseDigests) {
+                // upload check: hash both in one pass, then reuse them
+                val (primary, secondary) = MultihashProviders.digestAll(rawBytes, primaryProvider, secondaryProvider)
+                storageService.store("", blob, VerifiedDigests(primary, secondary)) { _, _ -> true }
+            } else {
+                // upload check: verify primary, then the storage hashes both again
+                primaryProvider.digest(rawBytes)
+                storageService.store("", blob, null) { _, _ -> true }
+            }
+            receipt.completionFuture
+        }
+        CompletableFuture.allOf(*futures.toTypedArray()).get()
+        val cpuMs = (osBean.processCpuTime - startCpu) / 1_000_000.0
+        val timeDelta = System.currentTimeMillis() - startTime
+        val gb = totalBytes / (1024.0 * 1024 * 1024)
+        println("$title: ${blobs.size}*${blobs.first().data.size()}B in $timeDelta ms, CPU ${cpuMs / gb} ms/GB")
+    }
+
+    @Test
+    fun testHashOnce() {
+        val blobSize = 2 * 1024 * 1024 // 2MB
+        val blobCount = 512 // total 1GB
+        val blobs = (0 until blobCount).map { BlobObject(ByteString.copyFrom(Random.nextBytes(blobSize))) }
+        // warm up
+        measure("Warm up", blobs.take(64), false)
+        measure("Hash in storage", blobs, false)
+        baseDir.deleteRecursively()
+        System.gc()
+        measure("Reuse digests", blobs, true)
+    }
+}
@@ -0,0 +1,71 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import org.reactivestreams.Subscriber
+import org.reactivestreams.Subscription
+import software.amazon.awssdk.core.async.AsyncRequestBody
+import software.amazon.awssdk.services.s3.S3AsyncClient
+import software.amazon.awssdk.services.s3.model.PutObjectRequest
+import software.amazon.awssdk.services.s3.model.PutObjectResponse
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A local S3 stand-in. For Test only
+ * */
+class InMemoryS3AsyncClient(
+    val objects: ConcurrentHashMap<String, InMemoryS3Client.StoredObject> = ConcurrentHashMap()
+) : S3AsyncClient {
+    /**
+     * The next n puts will fail.
+     * */
+    val failNext = AtomicInteger(0)
+    val putCount = AtomicInteger(0)
+
+    /**
+     * Complete the put only after this future is completed.
+     * */
+    @Volatile
+    var putBarrier: CompletableFuture<Void> = CompletableFuture.completedFuture(null)
+
+    override fun serviceName(): String = "s3"
+
+    override fun close() {
+    }
+
+    override fun putObject(
+        putObjectRequest: PutObjectRequest,
+        requestBody: AsyncRequestBody
+    ): CompletableFuture<PutObjectResponse> {
+        putCount.incrementAndGet()
+        if (failNext.getAndUpdate { if (it > 0) it - 1 else 0 } > 0) {
+            return CompletableFuture.failedFuture(IllegalStateException("Injected failure"))
+        }
+        val future = CompletableFuture<PutObjectResponse>()
+        val output = ByteArrayOutputStream()
+        requestBody.subscribe(object : Subscriber<ByteBuffer> {
+            override fun onSubscribe(s: Subscription) = s.request(Long.MAX_VALUE)
+
+            override fun onNext(t: ByteBuffer) {
+                val bytes = ByteArray(t.remaining())
+                t.get(bytes)
+                output.write(bytes)
+            }
+
+            override fun onError(t: Throwable) {
+                future.completeExceptionally(t)
+            }
+
+            override fun onComplete() {
+                putBarrier.thenRun {
+                    objects[putObjectRequest.key()] =
+                        InMemoryS3Client.StoredObject(output.toByteArray(), putObjectRequest.storageClass())
+                    future.complete(PutObjectResponse.builder().build())
+                }
+            }
+        })
+        return future
+    }
+}
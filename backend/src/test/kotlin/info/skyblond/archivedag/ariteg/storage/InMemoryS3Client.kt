@@ -0,0 +1,140 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import software.amazon.awssdk.core.sync.ResponseTransformer
+import software.amazon.awssdk.http.AbortableInputStream
+import software.amazon.awssdk.services.s3.S3Client
+import software.amazon.awssdk.services.s3.model.*
+import java.time.ZoneOffset
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A local S3 stand-in. For Test only
+ * */
+class InMemoryS3Client(
+    val objects: ConcurrentHashMap<String, StoredObject> = ConcurrentHashMap()
+) : S3Client {
+    data class StoredObject(
+        val content: ByteArray,
+        val storageClass: StorageClass?,
+        /**
+         * The `x-amz-restore` header.
+         * */
+        val restore: String? = null,
+    )
+
+    val headCount = AtomicInteger(0)
+    val listCount = AtomicInteger(0)
+
+    /**
+     * The key and tier of each accepted restore request.
+     * */
+    val restoreRequests = ConcurrentLinkedQueue<Pair<String, Tier>>()
+
+    /**
+     * Keys returned in one page of listing.
+     * */
+    var pageSize = 1000
+
+    override fun serviceName(): String = "s3"
+
+    override fun close() {
+    }
+
+    override fun headBucket(headBucketRequest: HeadBucketRequest): HeadBucketResponse =
+        HeadBucketResponse.builder().build()
+
+    override fun listObjectsV2(listObjectsV2Request: ListObjectsV2Request): ListObjectsV2Response {
+        listCount.incrementAndGet()
+        val prefix = listObjectsV2Request.prefix() ?: ""
+        val after = listObjectsV2Request.continuationToken() ?: ""
+        val keys = objects.keys.filter { it.startsWith(prefix) && it > after }.sorted()
+        val page = keys.take(pageSize)
+        val truncated = keys.size > page.size
+        return ListObjectsV2Response.builder()
+            .contents(page.map { key ->
+                val obj = objects[key]!!
+                S3Object.builder()
+                    .key(key)
+                    .size(obj.content.size.toLong())
+                    .storageClass(obj.storageClass?.toString() ?: StorageClass.STANDARD.toString())
+                    .build()
+            })
+            .isTruncated(truncated)
+            .nextContinuationToken(if (truncated) page.last() else null)
+            .build()
+    }
+
+    override fun headObject(headObjectRequest: HeadObjectRequest): HeadObjectResponse {
+        headCount.incrementAndGet()
+        val obj = objects[headObjectRequest.key()] ?: throw NoSuchKeyException.builder().build()
+        return HeadObjectResponse.builder()
+            .contentLength(obj.content.size.toLong())
+            .storageClass(obj.storageClass)
+            .restore(obj.restore)
+            .build()
+    }
+
+    override fun <ReturnT> getObject(
+        getObjectRequest: GetObjectRequest,
+        responseTransformer: ResponseTransformer<GetObjectResponse, ReturnT>
+    ): ReturnT {
+        val obj = objects[getObjectRequest.key()] ?: throw NoSuchKeyException.builder().build()
+        if (obj.storageClass in listOf(StorageClass.GLACIER, StorageClass.DEEP_ARCHIVE)
+            && obj.restore?.contains("expiry-date") != true
+        ) {
+            throw InvalidObjectStateException.builder().build()
+        }
+        val response = GetObjectResponse.builder()
+            .contentLength(obj.content.size.toLong())
+            .storageClass(obj.storageClass)
+            .build()
+        return responseTransformer.transform(response, AbortableInputStream.create(obj.content.inputStream()))
+    }
+
+    override fun restoreObject(restoreObjectRequest: RestoreObjectRequest): RestoreObjectResponse {
+        val key = restoreObjectRequest.key()
+        val obj = objects[key] ?: throw NoSuchKeyException.builder().build()
+        if (obj.storageClass !in listOf(StorageClass.GLACIER, StorageClass.DEEP_ARCHIVE)) {
+            throw InvalidObjectStateException.builder().build()
+        }
+        val tier = restoreObjectRequest.restoreRequest().glacierJobParameters().tier()
+        if (obj.restore == ONGOING) {
+            // only a faster tier is accepted
+            val last = restoreRequests.last { it.first == key }.second
+            if (TIER_SPEED.indexOf(tier) >= TIER_SPEED.indexOf(last)) {
+                throw S3Exception.builder().statusCode(409).message("RestoreAlreadyInProgress").build()
+            }
+        }
+        objects[key] = obj.copy(restore = ONGOING)
+        restoreRequests.add(key to tier)
+        return RestoreObjectResponse.builder().build()
+    }
+
+    /**
+     * Finish all ongoing restores, the restored copies expire in 1 day.
+     * */
+    fun completeRestores() {
+        val expiry = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusDays(1))
+        objects.replaceAll { _, obj ->
+            if (obj.restore == ONGOING) {
+                obj.copy(restore = "ongoing-request=\"false\", expiry-date=\"$expiry\"")
+            } else {
+                obj
+            }
+        }
+    }
+
+    override fun deleteObject(deleteObjectRequest: DeleteObjectRequest): DeleteObjectResponse {
+        objects.remove(deleteObjectRequest.key())
+        return DeleteObjectResponse.builder().build()
+    }
+
+    companion object {
+        const val ONGOING = "ongoing-request=\"true\""
+        private val TIER_SPEED = listOf(Tier.EXPEDITED, Tier.STANDARD, Tier.BULK)
+    }
+}
@@ -0,0 +1,84 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.random.Random
+
+internal class LocalFileCacheTest {
+    private val provider = MultihashProviders.fromMultihashType(Multihash.Type.sha3_256)
+
+    // the local copies
+    private val localFiles: MutableSet<Multihash> = ConcurrentHashMap.newKeySet()
+    private val unreplicated: MutableSet<Multihash> = ConcurrentHashMap.newKeySet()
+
+    private fun newCache(policy: LocalCachePolicy, pinStructural: Boolean = true) = LocalFileCache(
+        1000, policy, pinStructural,
+        { _, multihash -> multihash !in unreplicated },
+        { _, multihash -> localFiles.remove(multihash) }
+    )
+
+    private fun LocalFileCache.write(type: AritegObjectType, lastAccess: Long): Multihash {
+        val multihash = provider.digest(Random.nextBytes(32))
+        localFiles.add(multihash)
+        this.load(type, multihash, 100, lastAccess)
+        return multihash
+    }
+
+    @Test
+    fun testLRU() {
+        newCache(LocalCachePolicy.LRU).use { cache ->
+            val multihashes = (0 until 12).map { cache.write(AritegObjectType.BLOB, it.toLong()) }
+            assertEquals(1200, cache.cachedBytes())
+            // evict to 900 bytes
+            assertEquals(3, cache.evictNow())
+            assertEquals(900, cache.cachedBytes())
+            multihashes.forEachIndexed { i, multihash ->
+                assertEquals(i >= 3, multihash in localFiles)
+            }
+        }
+    }
+
+    @Test
+    fun testLFU() {
+        newCache(LocalCachePolicy.LFU).use { cache ->
+            val multihashes = (0 until 12).map { cache.write(AritegObjectType.BLOB, it.toLong()) }
+            // the oldest ones are read often
+            multihashes.take(3).forEach { m -> repeat(3) { cache.onAccess(m) } }
+            assertEquals(3, cache.evictNow())
+            multihashes.forEachIndexed { i, multihash ->
+                assertEquals(i < 3 || i >= 6, multihash in localFiles)
+            }
+        }
+    }
+
+    @Test
+    fun testPinnedAndUnreplicated() {
+        newCache(LocalCachePolicy.LRU).use { cache ->
+            val tree = cache.write(AritegObjectType.TREE, 0)
+            val pending = cache.write(AritegObjectType.BLOB, 1)
+            unreplicated.add(pending)
+            val blobs = (2 until 12).map { cache.write(AritegObjectType.BLOB, it.toLong()) }
+            assertEquals(3, cache.evictNow())
+            assertTrue(tree in localFiles)
+            assertTrue(pending in localFiles)
+            blobs.forEachIndexed { i, multihash ->
+                assertEquals(i >= 3, multihash in localFiles)
+            }
+        }
+    }
+
+    @Test
+    fun testDelete() {
+        newCache(LocalCachePolicy.LRU).use { cache ->
+            val multihash = cache.write(AritegObjectType.BLOB, 0)
+            assertEquals(100, cache.cachedBytes())
+            cache.onDelete(multihash)
+            assertEquals(0, cache.cachedBytes())
+            assertEquals(0, cache.evictNow())
+        }
+    }
+}
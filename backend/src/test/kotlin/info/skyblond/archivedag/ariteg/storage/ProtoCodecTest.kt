@@ -0,0 +1,78 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import com.google.protobuf.ByteString
+import info.skyblond.archivedag.ariteg.model.BlobObject
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+internal class ProtoCodecTest {
+    private val codec = ProtoCodec(ProtoCodec.Algorithm.DEFLATE)
+
+    private fun textBlob(size: Int): ByteArray {
+        val line = "2022-04-01 12:00:00 INFO  [main] some log line with a counter\n"
+        val text = StringBuilder()
+        var i = 0
+        while (text.length < size) text.append(i++).append(line)
+        return BlobObject(ByteString.copyFromUtf8(text.substring(0, size))).toProto().toByteArray()
+    }
+
+    @Test
+    fun testCompressible() {
+        val raw = textBlob(64 * 1024)
+        val stored = codec.encode(AritegObjectType.BLOB, raw)
+        assertTrue(stored.size < raw.size / 3)
+        assertArrayEquals(raw, codec.decode(AritegObjectType.BLOB, stored))
+        assertEquals(ByteBuffer.wrap(raw), codec.decode(AritegObjectType.BLOB, ByteBuffer.wrap(stored)))
+
+        val stats = codec.stats()["blob"]!!
+        assertEquals(raw.size.toLong(), stats.rawBytes)
+        assertEquals(stored.size.toLong(), stats.storedBytes)
+        assertEquals(1, stats.compressedCount)
+        assertTrue(stats.ratio < 1.0)
+        assertEquals(0, codec.stats()["tree"]!!.rawBytes)
+    }
+
+    @Test
+    fun testSkip() {
+        // not compressible
+        val random = BlobObject(ByteString.copyFrom(Random.nextBytes(64 * 1024))).toProto().toByteArray()
+        assertSame(random, codec.encode(AritegObjectType.BLOB, random))
+        // too small
+        val small = textBlob(100)
+        assertSame(small, codec.encode(AritegObjectType.BLOB, small))
+        assertEquals(2, codec.stats()["blob"]!!.skippedCount)
+        // raw bytes are read as is
+        assertSame(random, codec.decode(AritegObjectType.BLOB, random))
+        val buffer = ByteBuffer.wrap(small)
+        assertSame(buffer, codec.decode(AritegObjectType.BLOB, buffer))
+        assertEquals(0, codec.decode(AritegObjectType.BLOB, ByteArray(0)).size)
+    }
+
+    @Test
+    fun testDisabled() {
+        val raw = textBlob(64 * 1024)
+        val stored = codec.encode(AritegObjectType.LIST, raw)
+        val disabled = ProtoCodec()
+        assertSame(raw, disabled.encode(AritegObjectType.LIST, raw))
+        // still able to read compressed protos
+        assertArrayEquals(raw, disabled.decode(AritegObjectType.LIST, stored))
+    }
+
+    @Test
+    fun testBrokenFrame() {
+        val stored = codec.encode(AritegObjectType.BLOB, textBlob(64 * 1024))
+        assertThrows(IllegalStateException::class.java) {
+            codec.decode(AritegObjectType.BLOB, stored.copyOf(stored.size / 2))
+        }
+        assertThrows(IllegalStateException::class.java) {
+            codec.decode(AritegObjectType.BLOB, stored.copyOf(3))
+        }
+        val unknown = stored.copyOf().also { it[1] = 42 }
+        assertThrows(IllegalStateException::class.java) {
+            codec.decode(AritegObjectType.BLOB, unknown)
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import software.amazon.awssdk.services.s3.model.StorageClass
+import kotlin.random.Random
+
+internal class S3KeyIndexTest {
+    private val provider = MultihashProviders.fromMultihashType(Multihash.Type.sha3_256)
+    private val s3Client = InMemoryS3Client().also { it.pageSize = 2 }
+    private lateinit var index: S3KeyIndex
+
+    private fun key(type: AritegObjectType, multihash: Multihash) =
+        "${type.name.lowercase()}/${multihash.toBase58()}"
+
+    private fun putObject(
+        type: AritegObjectType, storageClass: StorageClass, restore: String? = null
+    ): Multihash {
+        val content = Random.nextBytes(128)
+        val multihash = provider.digest(content)
+        s3Client.objects[key(type, multihash)] = InMemoryS3Client.StoredObject(content, storageClass, restore)
+        return multihash
+    }
+
+    private fun newIndex() = S3KeyIndex(s3Client, "bucket", this::key, 60 * 1000, 0).also {
+        while (!it.isListed()) Thread.sleep(10)
+    }
+
+    @BeforeEach
+    internal fun setUp() {
+        s3Client.objects.clear()
+    }
+
+    @AfterEach
+    internal fun tearDown() {
+        index.close()
+    }
+
+    @Test
+    fun testListing() {
+        val blobs = (0 until 5).map { putObject(AritegObjectType.BLOB, StorageClass.STANDARD) }
+        val tree = putObject(AritegObjectType.TREE, StorageClass.STANDARD_IA)
+        index = newIndex()
+        assertEquals(6, index.size())
+        // 3 pages of blob, 1 page for each of the other types
+        assertEquals(6, s3Client.listCount.get())
+
+        blobs.forEach {
+            val entry = index.lookup(AritegObjectType.BLOB, it)!!
+            assertTrue(entry.available)
+            assertEquals(128, entry.size)
+        }
+        assertEquals(StorageClass.STANDARD_IA, index.lookup(AritegObjectType.TREE, tree)!!.storageClass)
+        // wrong type, or not exists at all
+        assertNull(index.lookup(AritegObjectType.LIST, tree))
+        assertNull(index.lookup(AritegObjectType.BLOB, provider.digest(Random.nextBytes(32))))
+        assertEquals(0, s3Client.headCount.get())
+    }
+
+    @Test
+    fun testArchived() {
+        val archived = putObject(AritegObjectType.BLOB, StorageClass.DEEP_ARCHIVE)
+        val restoring = putObject(AritegObjectType.BLOB, StorageClass.GLACIER, "ongoing-request=\"true\"")
+        val restored = putObject(
+            AritegObjectType.BLOB, StorageClass.GLACIER,
+            "ongoing-request=\"false\", expiry-date=\"Fri, 21 Dec 2012 00:00:00 GMT\""
+        )
+        index = newIndex()
+
+        // listing doesn't tell the restore state, HEAD once
+        assertFalse(index.lookup(AritegObjectType.BLOB, archived)!!.available)
+        assertFalse(index.lookup(AritegObjectType.BLOB, archived)!!.available)
+        assertEquals(1, s3Client.headCount.get())
+
+        val restoringEntry = index.lookup(AritegObjectType.BLOB, restoring)!!
+        assertFalse(restoringEntry.available)
+        assertTrue(restoringEntry.restoreOngoing)
+
+        val restoredEntry = index.lookup(AritegObjectType.BLOB, restored)!!
+        assertTrue(restoredEntry.available)
+        assertEquals(1356048000L, restoredEntry.restoreExpiry)
+        assertEquals(3, s3Client.headCount.get())
+
+        // restore requested, check again
+        index.onRestoreRequested(AritegObjectType.BLOB, archived)
+        index.lookup(AritegObjectType.BLOB, archived)
+        assertEquals(4, s3Client.headCount.get())
+    }
+
+    @Test
+    fun testOwnWrites() {
+        index = newIndex()
+        val multihash = provider.digest(Random.nextBytes(32))
+        index.onUploaded(AritegObjectType.LIST, multihash, 32, StorageClass.STANDARD)
+        assertEquals(32, index.lookup(AritegObjectType.LIST, multihash)!!.size)
+        index.onDeleted(AritegObjectType.LIST, multihash)
+        assertNull(index.lookup(AritegObjectType.LIST, multihash))
+        assertEquals(0, s3Client.headCount.get())
+    }
+
+    @Test
+    fun testRebuildDropsDeletedKeys() {
+        val blobs = (0 until 3).map { putObject(AritegObjectType.BLOB, StorageClass.STANDARD) }
+        index = newIndex()
+        // deleted by another instance
+        s3Client.objects.remove(key(AritegObjectType.BLOB, blobs.first()))
+        index.rebuild()
+
+        assertEquals(2, index.size())
+        assertNull(index.lookup(AritegObjectType.BLOB, blobs.first()))
+        blobs.drop(1).forEach { assertNotNull(index.lookup(AritegObjectType.BLOB, it)) }
+        // the missing key is confirmed by HEAD
+        assertEquals(1, s3Client.headCount.get())
+    }
+}
@@ -0,0 +1,95 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+internal class S3ReplicationJournalTest {
+    private val baseDir = File("./data/test/${Random.nextLong()}")
+    private val journalFile = File(baseDir, "replication.journal")
+    private val provider = MultihashProviders.fromMultihashType(Multihash.Type.sha3_256)
+    private lateinit var journal: S3ReplicationJournal
+
+    @BeforeEach
+    internal fun setUp() {
+        journal = S3ReplicationJournal(journalFile)
+    }
+
+    @AfterEach
+    internal fun tearDown() {
+        journal.close()
+        baseDir.deleteRecursively()
+    }
+
+    private fun randomMultihash() = provider.digest(Random.nextBytes(32))
+
+    @Test
+    fun testReplay() {
+        val entries = (0 until 10).map { journal.append(AritegObjectType.BLOB, randomMultihash()) }
+        journal.markDone(entries.take(4))
+        assertEquals(6, journal.pendingCount())
+        journal.close()
+
+        journal = S3ReplicationJournal(journalFile)
+        assertEquals(entries.drop(4).toSet(), journal.pendingEntries().toSet())
+        assertTrue(journal.isPending(entries.last().multihash))
+        assertFalse(journal.isPending(entries.first().multihash))
+    }
+
+    @Test
+    fun testReplayTornTail() {
+        val entries = (0 until 10).map { journal.append(AritegObjectType.LIST, randomMultihash()) }
+        journal.close()
+        RandomAccessFile(journalFile, "rw").use {
+            it.seek(it.length())
+            it.write(Random.nextBytes(17))
+        }
+
+        journal = S3ReplicationJournal(journalFile)
+        assertEquals(entries.toSet(), journal.pendingEntries().toSet())
+        // the broken tail is dropped by the rewrite
+        val newEntry = journal.append(AritegObjectType.TREE, randomMultihash())
+        journal.close()
+        journal = S3ReplicationJournal(journalFile)
+        assertEquals((entries + newEntry).toSet(), journal.pendingEntries().toSet())
+    }
+
+    @Test
+    fun testKeepReappended() {
+        val multihash = randomMultihash()
+        val old = journal.append(AritegObjectType.BLOB, multihash)
+        Thread.sleep(2)
+        val new = journal.append(AritegObjectType.BLOB, multihash)
+        // the old upload is done, but the proto is written again
+        journal.markDone(listOf(old))
+        assertTrue(journal.isPending(multihash))
+        journal.markDone(listOf(new))
+        assertFalse(journal.isPending(multihash))
+    }
+
+    @Test
+    fun testConcurrentAppend() {
+        val threadPool = Executors.newFixedThreadPool(8)
+        val futures = (0 until 1000).map {
+            threadPool.submit<S3ReplicationJournal.Entry> {
+                journal.append(AritegObjectType.BLOB, randomMultihash())
+            }
+        }
+        val entries = futures.map { it.get() }
+        threadPool.shutdown()
+        threadPool.awaitTermination(1, TimeUnit.MINUTES)
+        journal.close()
+
+        journal = S3ReplicationJournal(journalFile)
+        assertEquals(entries.toSet(), journal.pendingEntries().toSet())
+    }
+}
@@ -0,0 +1,141 @@
+package info.skyblond.archivedag.ariteg.storage
+
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import info.skyblond.archivedag.ariteg.protos.AritegObjectType
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import software.amazon.awssdk.services.s3.model.StorageClass
+import java.io.File
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+internal class S3ReplicatorTest {
+    private val baseDir = File("./data/test/${Random.nextLong()}")
+    private val journalFile = File(baseDir, "replication.journal")
+    private val provider = MultihashProviders.fromMultihashType(Multihash.Type.sha3_256)
+
+    // the local copies
+    private val localFiles = ConcurrentHashMap<Multihash, ByteArray>()
+    private val s3Client = InMemoryS3AsyncClient()
+    private lateinit var journal: S3ReplicationJournal
+    private lateinit var replicator: S3Replicator
+
+    private fun newReplicator() = S3Replicator(
+        journal, s3Client, "bucket", StorageClass.STANDARD,
+        { type, multihash -> "${type.name.lowercase()}/${multihash.toBase58()}" },
+        { _, multihash -> localFiles[multihash] },
+        4, 0, 10, 100
+    )
+
+    @BeforeEach
+    internal fun setUp() {
+        journal = S3ReplicationJournal(journalFile)
+        replicator = newReplicator()
+    }
+
+    @AfterEach
+    internal fun tearDown() {
+        replicator.close()
+        journal.close()
+        baseDir.deleteRecursively()
+    }
+
+    private fun writeLocal(content: ByteArray): Multihash {
+        val multihash = provider.digest(content)
+        localFiles[multihash] = content
+        replicator.enqueue(journal.append(AritegObjectType.BLOB, multihash))
+        return multihash
+    }
+
+    @Test
+    fun testReplicate() {
+        val contents = (0 until 64).map { Random.nextBytes(1024) }
+        val multihashes = contents.map { writeLocal(it) }
+        CompletableFuture.allOf(*multihashes.map { replicator.awaitReplicated(it) }.toTypedArray())
+            .get(1, TimeUnit.MINUTES)
+        contents.zip(multihashes).forEach { (content, multihash) ->
+            val stored = s3Client.objects["blob/${multihash.toBase58()}"]!!
+            assertArrayEquals(content, stored.content)
+            assertEquals(StorageClass.STANDARD, stored.storageClass)
+            assertFalse(replicator.isPending(multihash))
+        }
+        assertEquals(0, replicator.lag().pendingCount)
+    }
+
+    @Test
+    fun testRetry() {
+        s3Client.failNext.set(3)
+        val multihash = writeLocal(Random.nextBytes(1024))
+        replicator.awaitReplicated(multihash).get(1, TimeUnit.MINUTES)
+        assertEquals(4, s3Client.putCount.get())
+        assertNotNull(s3Client.objects["blob/${multihash.toBase58()}"])
+    }
+
+    @Test
+    fun testLag() {
+        val barrier = CompletableFuture<Void>()
+        s3Client.putBarrier = barrier
+        val multihashes = (0 until 8).map { writeLocal(Random.nextBytes(1024)) }
+        Thread.sleep(100)
+        val lag = replicator.lag()
+        assertEquals(8, lag.pendingCount)
+        assertTrue(lag.oldestPendingMillis > 0)
+        assertTrue(replicator.isPending(multihashes.first()))
+        barrier.complete(null)
+        CompletableFuture.allOf(*multihashes.map { replicator.awaitReplicated(it) }.toTypedArray())
+            .get(1, TimeUnit.MINUTES)
+        assertEquals(0, replicator.lag().pendingCount)
+    }
+
+    @Test
+    fun testResumeFromJournal() {
+        // S3 is down, then shutting down
+        s3Client.failNext.set(Int.MAX_VALUE)
+        val multihashes = (0 until 8).map { writeLocal(Random.nextBytes(1024)) }
+        replicator.close()
+        journal.close()
+        assertEquals(0, s3Client.objects.size)
+
+        s3Client.failNext.set(0)
+        journal = S3ReplicationJournal(journalFile)
+        replicator = newReplicator()
+        CompletableFuture.allOf(*multihashes.map { replicator.awaitReplicated(it) }.toTypedArray())
+            .get(1, TimeUnit.MINUTES)
+        multihashes.forEach { assertNotNull(s3Client.objects["blob/${it.toBase58()}"]) }
+    }
+
+    @Test
+    fun testSkipDeletedLocal() {
+        val multihash = provider.digest(Random.nextBytes(1024))
+        // journaled but the local copy is deleted before uploading
+        replicator.enqueue(journal.append(AritegObjectType.BLOB, multihash))
+        replicator.awaitReplicated(multihash).get(1, TimeUnit.MINUTES)
+        assertTrue(s3Client.objects.isEmpty())
+    }
+
+    @Test
+    fun testCancelInFlight() {
+        val barrier = CompletableFuture<Void>()
+        s3Client.putBarrier = barrier
+        val reported = ConcurrentHashMap.newKeySet<Multihash>()
+        replicator.addListener { entry, _ -> reported.add(entry.multihash) }
+        val multihash = writeLocal(Random.nextBytes(1024))
+        while (s3Client.putCount.get() == 0) {
+            Thread.sleep(10)
+        }
+        // deleted while uploading
+        localFiles.remove(multihash)
+        val uploading = replicator.cancel(multihash)
+        assertFalse(replicator.isPending(multihash))
+        assertFalse(journal.isPending(multihash))
+        assertFalse(uploading.isDone)
+        barrier.complete(null)
+        uploading.get(1, TimeUnit.MINUTES)
+        assertTrue(reported.isEmpty())
+    }
+}
@@ -0,0 +1,53 @@
+package info.skyblond.archivedag.ariteg.utils
+
+import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
+import io.ipfs.multihash.Multihash
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.util.concurrent.CompletableFuture
+import kotlin.random.Random
+
+internal class OffHeapFingerprintSetTest {
+    private val provider = MultihashProviders.fromMultihashType(Multihash.Type.sha3_256)
+
+    @Test
+    fun testGrowing() {
+        // small expected size so the segments grow several times
+        val set = OffHeapFingerprintSet(16, 4)
+        val initialMemory = set.memoryBytes()
+        val elements = (0 until 50000).map { provider.digest(Random.nextBytes(16)) }
+        elements.forEach { assertTrue(set.add(it)) }
+        elements.forEach { assertFalse(set.add(it)) }
+        elements.forEach { assertTrue(it in set) }
+        assertEquals(elements.size.toLong(), set.size)
+        assertTrue(set.memoryBytes() > initialMemory)
+
+        val absent = (0 until 50000).count { provider.digest(Random.nextBytes(17)) in set }
+        assertEquals(0, absent)
+    }
+
+    @Test
+    fun testConcurrentAdd() {
+        val set = OffHeapFingerprintSet(1000)
+        val elements = (0 until 20000).map { provider.digest(Random.nextBytes(16)) }
+        // every element is added by 4 threads, only one of them wins
+        val added = (0 until 4).map {
+            CompletableFuture.supplyAsync { elements.count { set.add(it) } }
+        }.sumOf { it.get() }
+        assertEquals(elements.size, added)
+        assertEquals(elements.size.toLong(), set.size)
+    }
+
+    @Test
+    fun testShortDigest() {
+        val set = OffHeapFingerprintSet(0)
+        val zero = Multihash(Multihash.Type.id, ByteArray(0))
+        val short = Multihash(Multihash.Type.id, byteArrayOf(1, 2, 3))
+        assertTrue(set.add(zero))
+        assertTrue(set.add(short))
+        assertTrue(zero in set)
+        assertTrue(short in set)
+        assertFalse(Multihash(Multihash.Type.id, byteArrayOf(1, 2)) in set)
+        assertThrows(IllegalArgumentException::class.java) { OffHeapFingerprintSet(0, 3) }
+    }
+}
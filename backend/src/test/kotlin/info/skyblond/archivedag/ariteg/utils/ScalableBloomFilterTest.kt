@@ -0,0 +1,43 @@
+package info.skyblond.archivedag.ariteg.utils
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import kotlin.random.Random
+
+internal class ScalableBloomFilterTest {
+
+    @Test
+    fun testNoFalseNegativeWhenGrowing() {
+        // small capacity so the filter grows several times
+        val filter = ScalableBloomFilter(1024, 0.01)
+        val elements = (0 until 20000).map { Random.nextBytes(34) }
+        elements.forEach { filter.put(it) }
+        elements.forEach { assertTrue(filter.mightContain(it)) }
+        assertEquals(elements.size.toLong(), filter.count())
+
+        val falsePositive = (0 until 20000).count { filter.mightContain(Random.nextBytes(34)) }
+        assertTrue(falsePositive < 20000 * 0.01 * 2) { "Too many false positives: $falsePositive" }
+    }
+
+    @Test
+    fun testWriteAndRead() {
+        val filter = ScalableBloomFilter(1024, 0.01)
+        val elements = (0 until 5000).map { Random.nextBytes(34) }
+        elements.forEach { filter.put(it) }
+
+        val bytes = ByteArrayOutputStream().also { bos ->
+            DataOutputStream(bos).use { filter.writeTo(it) }
+        }.toByteArray()
+        val loaded = DataInputStream(ByteArrayInputStream(bytes)).use { ScalableBloomFilter.readFrom(it) }
+        assertEquals(filter.count(), loaded.count())
+        elements.forEach { assertTrue(loaded.mightContain(it)) }
+        // still growable after loading
+        val more = (0 until 5000).map { Random.nextBytes(34) }
+        more.forEach { loaded.put(it) }
+        more.forEach { assertTrue(loaded.mightContain(it)) }
+    }
+}
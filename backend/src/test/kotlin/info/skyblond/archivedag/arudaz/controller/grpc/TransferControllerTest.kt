@@ -5,6 +5,8 @@ import info.skyblond.archivedag.ariteg.AritegService
 import info.skyblond.archivedag.ariteg.config.AritegConfiguration
 import info.skyblond.archivedag.ariteg.model.BlobObject
 import info.skyblond.archivedag.ariteg.model.CommitObject
+import info.skyblond.archivedag.ariteg.model.ListObject
+import info.skyblond.archivedag.ariteg.model.TreeObject
 import info.skyblond.archivedag.ariteg.multihash.MultihashProvider
 import info.skyblond.archivedag.ariteg.multihash.MultihashProviders
 import info.skyblond.archivedag.ariteg.protos.AritegLink
@@ -21,8 +23,10 @@ import info.skyblond.archivedag.arudaz.protos.transfer.*
 import info.skyblond.archivedag.arudaz.service.ApplicationConfigService
 import info.skyblond.archivedag.arudaz.service.TransferReceiptService
 import info.skyblond.archivedag.commons.EntityNotFoundException
+import info.skyblond.archivedag.commons.PermissionDeniedException
 import info.skyblond.archivedag.commons.getUnixTimestamp
 import info.skyblond.archivedag.safeExecutable
+import io.ipfs.multihash.Multihash
 import io.grpc.internal.testing.StreamRecorder
 import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.BeforeEach
@@ -32,6 +36,7 @@ import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.boot.test.context.SpringBootTest
 import org.springframework.security.test.context.support.WithMockUser
 import org.springframework.test.context.ActiveProfiles
+import java.util.*
 import kotlin.random.Random
 
 @SpringBootTest
@@ -140,6 +145,130 @@ internal class TransferControllerTest {
         assertEquals(blobContent, downloadResult.blobObj.data)
     }
 
+    private fun uploadInFrames(uuid: UUID, data: ByteString, primaryHash: Multihash): StreamRecorder<TransferReceiptResponse> {
+        val response = StreamRecorder.create<TransferReceiptResponse>()
+        val frames = transferController.uploadBlobStream(response)
+        var offset = 0
+        do {
+            val end = minOf(offset + TransferController.BLOB_FRAME_SIZE, data.size())
+            val frame = UploadBlobFrame.newBuilder().setData(data.substring(offset, end))
+            if (offset == 0) {
+                frame.setRecordUuid(uuid.toString())
+                    .setPrimaryHash(ByteString.copyFrom(primaryHash.toBytes()))
+                    .setSize(data.size().toLong())
+            }
+            frames.onNext(frame.build())
+            offset = end
+        } while (offset < data.size())
+        frames.onCompleted()
+        return response
+    }
+
+    @WithMockUser(username = "test_user", roles = ["UPLOADER", "VIEWER"])
+    @Test
+    fun uploadAndReadBlobStream() {
+        val uuid = fileRecordService.createRecord("test blob stream", "test_user")
+        listOf(
+            ByteString.EMPTY,
+            ByteString.copyFrom(Random.nextBytes(100)),
+            ByteString.copyFrom(Random.nextBytes(TransferController.BLOB_FRAME_SIZE * 5 / 2))
+        ).forEach { data ->
+            val blobMultihash = getPrimaryMultihashProvider().digest(BlobObject(data).toProto().toByteArray())
+            val uploadResponse = uploadInFrames(uuid, data, blobMultihash)
+            assertNull(uploadResponse.error)
+            assertEquals(1, uploadResponse.values.size)
+            assertEquals(blobMultihash, uploadResponse.values[0].primaryHash.toMultihash())
+            val receipt = uploadResponse.values[0].transferReceipt
+            assertEquals(data, aritegService.readBlob(
+                transferReceiptService.decryptReceipt(receipt)!!.checkUsage("test_user", uuid, aritegService)
+            ).data)
+
+            val readResponse = StreamRecorder.create<ReadBlobFrame>()
+            transferController.readBlobStream(ReadObjectRequest.newBuilder().setTransferReceipt(receipt).build(), readResponse)
+            // sent in background
+            readResponse.awaitCompletion()
+            assertNull(readResponse.error)
+            assertEquals(maxOf(1, (data.size() + TransferController.BLOB_FRAME_SIZE - 1) / TransferController.BLOB_FRAME_SIZE), readResponse.values.size)
+            assertEquals(blobMultihash, readResponse.values[0].primaryHash.toMultihash())
+            assertEquals(data.size().toLong(), readResponse.values[0].size)
+            assertEquals(data, ByteString.copyFrom(readResponse.values.map { it.data }))
+        }
+        // wrong hash
+        val data = ByteString.copyFrom(Random.nextBytes(TransferController.BLOB_FRAME_SIZE + 1))
+        assertThrows<IllegalStateException> {
+            uploadInFrames(uuid, data, getPrimaryMultihashProvider().digest(data.toByteArray()))
+        }
+    }
+
+    @WithMockUser(username = "test_user", roles = ["UPLOADER", "VIEWER"])
+    @Test
+    fun uploadBlobs() {
+        val uuid = fileRecordService.createRecord("test blobs", "test_user")
+        val blobs = (0 until TransferController.UPLOAD_WINDOW * 2).map {
+            BlobObject(ByteString.copyFrom(Random.nextBytes(256))).toProto()
+        }
+        val response = StreamRecorder.create<UploadBlobsResponse>()
+        val requestObserver = transferController.uploadBlobs(response)
+        blobs.forEachIndexed { i, blobObj ->
+            requestObserver.onNext(
+                UploadBlobsRequest.newBuilder()
+                    // only the first one needs the record
+                    .setRecordUuid(if (i == 0) uuid.toString() else "")
+                    .setSequenceId(i.toLong())
+                    .setBlobObj(blobObj)
+                    .setPrimaryHash(ByteString.copyFrom(getPrimaryMultihashProvider().digest(blobObj.toByteArray()).toBytes()))
+                    .build()
+            )
+        }
+        // wrong hash, only this one fails
+        requestObserver.onNext(
+            UploadBlobsRequest.newBuilder()
+                .setSequenceId(blobs.size.toLong())
+                .setBlobObj(blobs[0])
+                .setPrimaryHash(ByteString.copyFrom(getPrimaryMultihashProvider().digest(blobs[1].toByteArray()).toBytes()))
+                .build()
+        )
+        requestObserver.onCompleted()
+        response.awaitCompletion()
+        assertNull(response.error)
+        assertEquals(blobs.size + 1, response.values.size)
+        val results = response.values.associateBy { it.sequenceId }
+        blobs.forEachIndexed { i, blobObj ->
+            val result = results[i.toLong()]!!
+            assertEquals("", result.error)
+            val multihash = getPrimaryMultihashProvider().digest(blobObj.toByteArray())
+            assertEquals(multihash, result.primaryHash.toMultihash())
+            transferReceiptService.decryptReceipt(result.transferReceipt).let {
+                assertNotNull(it)
+                assertEquals(multihash, it!!.primaryHash)
+                assertEquals("test_user", it.username)
+                assertEquals(uuid, it.recordId)
+                assertEquals(blobObj, aritegService.readBlob(it.checkUsage("test_user", uuid, aritegService)).toProto())
+            }
+        }
+        results[blobs.size.toLong()]!!.let {
+            assertNotEquals("", it.error)
+            assertEquals("", it.transferReceipt)
+        }
+    }
+
+    @WithMockUser(username = "test_user", roles = ["UPLOADER", "VIEWER"])
+    @Test
+    fun uploadBlobsDenied() {
+        val uuid = fileRecordService.createRecord("test blobs denied", "test_user_admin")
+        val blobObj = BlobObject(ByteString.copyFrom(Random.nextBytes(256))).toProto()
+        val requestObserver = transferController.uploadBlobs(StreamRecorder.create())
+        assertThrows<PermissionDeniedException> {
+            requestObserver.onNext(
+                UploadBlobsRequest.newBuilder()
+                    .setRecordUuid(uuid.toString())
+                    .setBlobObj(blobObj)
+                    .setPrimaryHash(ByteString.copyFrom(getPrimaryMultihashProvider().digest(blobObj.toByteArray()).toBytes()))
+                    .build()
+            )
+        }
+    }
+
     @WithMockUser(username = "test_user", roles = ["UPLOADER", "VIEWER"])
     @Test
     fun uploadAndReadList() {
@@ -308,6 +437,52 @@ internal class TransferControllerTest {
         }
     }
 
+    @WithMockUser(username = "test_user", roles = ["VIEWER"])
+    @Test
+    fun negotiateOwnership() {
+        val uuid = fileRecordService.createRecord("test negotiate", "test_user")
+        val blobs = (0 until 8).map { BlobObject(ByteString.copyFrom(Random.nextBytes(256))) }
+        // the server has the even ones
+        blobs.filterIndexed { i, _ -> i % 2 == 0 }
+            .map { aritegService.writeProto("", it).completionFuture }
+            .forEach { it.get() }
+        val digests = blobs.map {
+            val bytes = it.toProto().toByteArray()
+            getPrimaryMultihashProvider().digest(bytes) to getSecondaryMultihashProvider().digest(bytes)
+        } + listOf(
+            // collided with the first one
+            getPrimaryMultihashProvider().digest(blobs[0].toProto().toByteArray()) to
+                    getSecondaryMultihashProvider().digest(ByteArray(0))
+        )
+        val request = NegotiateOwnershipRequest.newBuilder()
+            .setRecordUuid(uuid.toString())
+            .addAllDigests(digests.map { (primary, secondary) ->
+                ProtoDigest.newBuilder()
+                    .setPrimaryHash(ByteString.copyFrom(primary.toBytes()))
+                    .setSecondaryHash(ByteString.copyFrom(secondary.toBytes()))
+                    .setObjectType(AritegObjectType.BLOB)
+                    .build()
+            })
+            .build()
+        val response = StreamRecorder.create<NegotiateOwnershipResponse>()
+        transferController.negotiateOwnership(request, response)
+        assertNull(response.error)
+        assertEquals(1, response.values.size)
+        val result = response.values[0]
+        assertEquals(listOf(0, 2, 4, 6), result.haveList.map { it.index })
+        result.haveList.forEach { have ->
+            transferReceiptService.decryptReceipt(have.transferReceipt).let {
+                assertNotNull(it)
+                assertEquals(digests[have.index].first, it!!.primaryHash)
+                assertEquals("test_user", it.username)
+                assertEquals(uuid, it.recordId)
+                assertEquals(AritegObjectType.BLOB, it.objectType)
+            }
+        }
+        assertEquals(listOf(1, 3, 5, 7), result.wantList)
+        assertEquals(listOf(8), result.collidedList)
+    }
+
     @WithMockUser(username = "test_user", roles = ["VIEWER"])
     @Test
     fun readCommit() {
@@ -362,6 +537,57 @@ internal class TransferControllerTest {
         }
     }
 
+    @WithMockUser(username = "test_user", roles = ["VIEWER"])
+    @Test
+    fun downloadSubtree() {
+        val uuid = fileRecordService.createRecord("test subtree", "test_user")
+        val pieces = (1..3).map { BlobObject(ByteString.copyFrom(Random.nextBytes(256))) }
+        val pieceLinks = pieces.map { aritegService.writeProto("", it) }
+            .onEach { it.completionFuture.get() }.map { it.link }
+        val file = aritegService.writeProto("file", ListObject(pieceLinks))
+        file.completionFuture.get()
+        val folder = aritegService.writeProto("folder", TreeObject(listOf(aritegService.renameLink(pieceLinks[0], "single"))))
+        folder.completionFuture.get()
+        val root = aritegService.writeProto("", TreeObject(listOf(file.link, folder.link)))
+        root.completionFuture.get()
+        val receipt = transferReceiptService.encryptReceipt(
+            TransferReceipt(uuid, "test_user", root.link.multihash.toMultihash(), AritegObjectType.TREE)
+        )
+
+        val response = StreamRecorder.create<DownloadSubtreeResponse>()
+        transferController.downloadSubtree(
+            ReadObjectRequest.newBuilder().setTransferReceipt(receipt).build(), response
+        )
+        response.awaitCompletion()
+        assertNull(response.error)
+        assertEquals(
+            listOf(
+                Triple("", AritegObjectType.TREE, 0L),
+                Triple("file", AritegObjectType.BLOB, 0L),
+                Triple("file", AritegObjectType.BLOB, 256L),
+                Triple("file", AritegObjectType.BLOB, 512L),
+                Triple("folder", AritegObjectType.TREE, 0L),
+                Triple("folder/single", AritegObjectType.BLOB, 0L),
+            ),
+            response.values.map { Triple(it.path, it.objectType, it.offset) }
+        )
+        assertEquals(listOf(false, false, false, true, false, true), response.values.map { it.endOfFile })
+        assertEquals(
+            pieces.map { it.data } + pieces[0].data,
+            response.values.filter { it.objectType == AritegObjectType.BLOB }.map { it.data }
+        )
+
+        // commit is not a subtree
+        val commitReceipt = transferReceiptService.encryptReceipt(
+            TransferReceipt(uuid, "test_user", root.link.multihash.toMultihash(), AritegObjectType.COMMIT)
+        )
+        assertThrows<IllegalArgumentException> {
+            transferController.downloadSubtree(
+                ReadObjectRequest.newBuilder().setTransferReceipt(commitReceipt).build(), StreamRecorder.create()
+            )
+        }
+    }
+
     @WithMockUser(username = "test_user", roles = ["VIEWER"])
     @Test
     fun validateObject() {
@@ -52,4 +52,70 @@ internal class MaintainControllerTest {
                 )
             )
     }
+
+    @WithMockUser(username = "test_user_admin", roles = ["ADMIN"])
+    @Test
+    fun testStorageCacheStats() {
+        mockMvc
+            .perform(MockMvcRequestBuilders.get("/maintain/storageCacheStats"))
+            .andExpect(MockMvcResultMatchers.status().isOk)
+            .andExpect(MockMvcResultMatchers.jsonPath("$.structure.hitCount").isNumber)
+    }
+
+    @WithMockUser(username = "test_user_admin", roles = ["ADMIN"])
+    @Test
+    fun testConfigSnapshotStats() {
+        mockMvc
+            .perform(MockMvcRequestBuilders.get("/maintain/configSnapshotStats"))
+            .andExpect(MockMvcResultMatchers.status().isOk)
+            .andExpect(MockMvcResultMatchers.jsonPath("$.watching").isBoolean)
+            .andExpect(MockMvcResultMatchers.jsonPath("$.stalenessMillis").isNumber)
+    }
+
+    @WithMockUser(username = "test_user_admin", roles = ["ADMIN"])
+    @Test
+    fun testStorageCodecStats() {
+        mockMvc
+            .perform(MockMvcRequestBuilders.get("/maintain/storageCodecStats"))
+            .andExpect(MockMvcResultMatchers.status().isOk)
+            .andExpect(MockMvcResultMatchers.jsonPath("$.blob.ratio").isNumber)
+    }
+
+    @WithMockUser(username = "test_user_admin", roles = ["ADMIN"])
+    @Test
+    fun testReplicationLagNotReplicated() {
+        // the test storage doesn't replicate
+        mockMvc
+            .perform(MockMvcRequestBuilders.get("/maintain/replicationLag"))
+            .andExpect(MockMvcResultMatchers.status().isNotFound)
+    }
+
+    @WithMockUser(username = "test_user_admin", roles = ["ADMIN"])
+    @Test
+    fun testRebalanceNotSupported() {
+        // the test storage is a single storage
+        mockMvc
+            .perform(MockMvcRequestBuilders.post("/maintain/rebalance"))
+            .andExpect(MockMvcResultMatchers.status().isNotFound)
+    }
+
+    @WithMockUser(username = "test_user_admin", roles = ["ADMIN"])
+    @Test
+    fun testScrubProgress() {
+        mockMvc
+            .perform(MockMvcRequestBuilders.get("/maintain/scrub"))
+            .andExpect(MockMvcResultMatchers.status().isOk)
+            .andExpect(MockMvcResultMatchers.jsonPath("$.running").isBoolean)
+            .andExpect(MockMvcResultMatchers.jsonPath("$.scannedCount").isNumber)
+    }
+
+    @WithMockUser(username = "test_user_admin", roles = ["ADMIN"])
+    @Test
+    fun testGcProgress() {
+        mockMvc
+            .perform(MockMvcRequestBuilders.get("/maintain/gc"))
+            .andExpect(MockMvcResultMatchers.status().isOk)
+            .andExpect(MockMvcResultMatchers.jsonPath("$.phase").isString)
+            .andExpect(MockMvcResultMatchers.jsonPath("$.markedCount").isNumber)
+    }
 }
@@ -0,0 +1,72 @@
+package info.skyblond.archivedag.commons.service
+
+import info.skyblond.archivedag.commons.component.EtcdSimpleConfigClient
+import io.etcd.jetcd.ByteSequence
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.ActiveProfiles
+import java.util.*
+
+@SpringBootTest
+@ActiveProfiles("test")
+internal class EtcdConfigServiceTest {
+
+    @Autowired
+    lateinit var configService: EtcdConfigService
+
+    @Autowired
+    lateinit var configClient: EtcdSimpleConfigClient
+
+    private val namespace = "/test/config_snapshot/${UUID.randomUUID()}"
+
+    @BeforeEach
+    internal fun setUp() {
+        // the snapshot is loaded in background
+        awaitTrue { configService.snapshotStats().watching }
+    }
+
+    @AfterEach
+    internal fun tearDown() {
+        configService.deleteRawValue(configService.getStringKey(namespace, "local"))
+        configService.deleteRawValue(configService.getStringKey(namespace, "remote"))
+    }
+
+    private fun awaitTrue(block: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 10_000
+        while (!block()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timeout")
+            Thread.sleep(50)
+        }
+    }
+
+    @Test
+    fun testReadYourWrites() {
+        assertNull(configService.getString(namespace, "local"))
+        configService.setString(namespace, "local", "value1")
+        assertEquals("value1", configService.getString(namespace, "local"))
+        configService.setLong(namespace, "local", 1234L)
+        assertEquals(1234L, configService.getLong(namespace, "local"))
+        configService.deleteRawValue(configService.getStringKey(namespace, "local"))
+        assertNull(configService.getString(namespace, "local"))
+        // all from the snapshot
+        assertEquals(0, configService.snapshotStats().stalenessMillis)
+    }
+
+    @Test
+    fun testWatchExternalWrites() {
+        val key = ByteSequence.from(configService.getStringKey(namespace, "remote"), Charsets.UTF_8)
+        val before = configService.snapshotStats()
+        configClient.putConfig(key, ByteSequence.from("remote_value", Charsets.UTF_8))
+        awaitTrue { configService.getString(namespace, "remote") == "remote_value" }
+        val after = configService.snapshotStats()
+        assertTrue(after.revision > before.revision)
+        assertNotNull(after.lastEventAt)
+
+        configClient.deleteConfig(key)
+        awaitTrue { configService.getString(namespace, "remote") == null }
+    }
+}
@@ -50,20 +50,23 @@ public abstract class AbstractSlicer implements Slicer {
         var blob = AritegBlobObject.newBuilder()
                 .setData(content)
                 .build();
-        var multihash = this.primaryHashProvider.digest(blob.toByteArray());
+        var rawBytes = blob.toByteArray();
+        // calculate both hashes in one pass, the secondary is used for proving ownership
+        var hashes = MultihashProviders.digestAll(rawBytes, this.primaryHashProvider, this.secondaryHashProvider);
+        var multihash = hashes.get(0);
+        var secondaryHash = hashes.get(1);
         File f = this.multihashToFile(multihash);
         if (!f.exists()) {
             // During the write process, the file can be corrupted if other threads are writing,
             // or some thread is reading, they will read half content
-            Files.write(f.toPath(), blob.toByteArray());
+            Files.write(f.toPath(), rawBytes);
         } else {
             // if the file exists, check the secondary hash to prevent collision
-            var secondaryHash = this.secondaryHashProvider.digest(blob.toByteArray());
             try (InputStream is = new FileInputStream(f)) {
                 MultihashProviders.mustMatch(secondaryHash, is);
             }
         }
-        return new BlobDescriptor(multihash, f);
+        return new BlobDescriptor(multihash, secondaryHash, f);
     }
 
     protected CompletableFuture<BlobDescriptor> writeToBlobFileAsync(ByteString content) {
@@ -9,10 +9,21 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+/**
+ * A blob file produced by the slicer.
+ * The secondaryHash is calculated together with the primaryHash when slicing,
+ * so proving the ownership doesn't need to read and hash the file again.
+ * It might be null if unknown.
+ */
 public record BlobDescriptor(
         Multihash primaryHash,
+        Multihash secondaryHash,
         File file
 ) {
+    public BlobDescriptor(Multihash primaryHash, File file) {
+        this(primaryHash, null, file);
+    }
+
     public AritegBlobObject readBlob() throws IOException {
         try (InputStream is = new FileInputStream(this.file)) {
             MultihashProviders.mustMatch(this.primaryHash, is);
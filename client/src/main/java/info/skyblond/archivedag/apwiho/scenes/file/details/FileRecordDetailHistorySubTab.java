@@ -137,12 +137,8 @@ public class FileRecordDetailHistorySubTab extends BasicScene {
         var a = DialogService.getInstance().showWaitingDialog("Downloading...");
         try {
             switch (node.type) {
-                case BLOB ->
-                        TransferService.getInstance().downloadBlobIntoFile(node.receipt, new File(folder, node.name));
-                case LIST ->
-                        TransferService.getInstance().downloadListIntoFile(node.receipt, new File(folder, node.name));
-                case TREE ->
-                        TransferService.getInstance().downloadTreeIntoFolder(node.receipt, new File(folder, node.name));
+                case BLOB, LIST, TREE ->
+                        TransferService.getInstance().downloadSubtree(node.receipt, new File(folder, node.name));
             }
             DialogService.getInstance().showInfoDialog("Download finish", node.name + " downloaded", "Success");
         } catch (Throwable t) {
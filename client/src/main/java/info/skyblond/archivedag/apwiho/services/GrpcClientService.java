@@ -27,6 +27,8 @@ public class GrpcClientService {
     private volatile GroupServiceGrpc.GroupServiceFutureStub groupServiceFutureStub = null;
     private volatile FileRecordServiceGrpc.FileRecordServiceFutureStub fileRecordServiceFutureStub = null;
     private volatile ProtoTransferServiceGrpc.ProtoTransferServiceFutureStub protoTransferServiceFutureStub = null;
+    private volatile ProtoTransferServiceGrpc.ProtoTransferServiceBlockingStub protoTransferServiceBlockingStub = null;
+    private volatile ProtoTransferServiceGrpc.ProtoTransferServiceStub protoTransferServiceStub = null;
 
     public void init(
             File serverCAFile, File userCertFile, File userPrivateKeyFile, String hostStr
@@ -64,6 +66,12 @@ public class GrpcClientService {
         if (this.protoTransferServiceFutureStub == null) {
             this.protoTransferServiceFutureStub = ProtoTransferServiceGrpc.newFutureStub(this.managedChannel);
         }
+        if (this.protoTransferServiceBlockingStub == null) {
+            this.protoTransferServiceBlockingStub = ProtoTransferServiceGrpc.newBlockingStub(this.managedChannel);
+        }
+        if (this.protoTransferServiceStub == null) {
+            this.protoTransferServiceStub = ProtoTransferServiceGrpc.newStub(this.managedChannel);
+        }
     }
 
     public UserInfoServiceGrpc.UserInfoServiceFutureStub getUserInfoServiceFutureStub() {
@@ -81,4 +89,12 @@ public class GrpcClientService {
     public ProtoTransferServiceGrpc.ProtoTransferServiceFutureStub getProtoTransferServiceFutureStub() {
         return Objects.requireNonNull(this.protoTransferServiceFutureStub, "Uninitialized use");
     }
+
+    public ProtoTransferServiceGrpc.ProtoTransferServiceBlockingStub getProtoTransferServiceBlockingStub() {
+        return Objects.requireNonNull(this.protoTransferServiceBlockingStub, "Uninitialized use");
+    }
+
+    public ProtoTransferServiceGrpc.ProtoTransferServiceStub getProtoTransferServiceStub() {
+        return Objects.requireNonNull(this.protoTransferServiceStub, "Uninitialized use");
+    }
 }
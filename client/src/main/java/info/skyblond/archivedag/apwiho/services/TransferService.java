@@ -8,6 +8,8 @@ import info.skyblond.archivedag.ariteg.multihash.MultihashProviders;
 import info.skyblond.archivedag.ariteg.protos.*;
 import info.skyblond.archivedag.arudaz.protos.common.Empty;
 import info.skyblond.archivedag.arudaz.protos.transfer.*;
+import io.grpc.Context;
+import io.grpc.stub.StreamObserver;
 import io.ipfs.multihash.Multihash;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,7 +22,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Objects;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 
 public class TransferService {
     private static final TransferService ourInstance = new TransferService();
@@ -39,6 +44,28 @@ public class TransferService {
     private Multihash.Type secondaryHashType;
     private MultihashProvider secondaryHashProvider;
 
+    private static final int NEGOTIATE_BATCH_SIZE = 4096;
+    /**
+     * Same as the server, blobs bigger than this are sent in frames.
+     */
+    private static final int BLOB_FRAME_SIZE = 1024 * 1024;
+    /**
+     * Same as the server, blobs waiting for the receipts in one upload stream.
+     */
+    private static final int UPLOAD_WINDOW = 64;
+    private static final int KNOWN_RECEIPTS_SIZE = 65536;
+    /**
+     * Receipts of the blobs known by the server, keyed by "recordId:base58".
+     * The least recently used ones are dropped.
+     */
+    private final Map<String, String> knownReceipts = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return this.size() > KNOWN_RECEIPTS_SIZE;
+                }
+            });
+
     // ------------------------------ gRPC calls ------------------------------
 
     private ProtoTransferServiceGrpc.ProtoTransferServiceFutureStub getStub() {
@@ -66,18 +93,106 @@ public class TransferService {
         }
     }
 
-    private AritegLink uploadBlob(String recordId, BlobDescriptor b, String name) throws IOException, ExecutionException, InterruptedException {
-        var result = this.getStub().uploadBlob(UploadBlobRequest.newBuilder()
-                .setRecordUuid(recordId)
-                .setPrimaryHash(ByteString.copyFrom(b.primaryHash().toBytes()))
-                .setBlobObj(b.readBlob())
-                .build()).get();
-        var receipt = result.getTransferReceipt();
-        return AritegLink.newBuilder()
-                .setType(AritegObjectType.BLOB)
-                .setName(name)
-                .setMultihash(ByteString.copyFrom(receipt, StandardCharsets.UTF_8))
-                .build();
+    /**
+     * Upload the blobs over one UploadBlobs stream, return the receipts by the primary hash.
+     * At most {@link #UPLOAD_WINDOW} blobs are waiting for the receipts, the responses
+     * are matched by the sequence id. Big blobs are sent in frames instead.
+     */
+    private Map<Multihash, String> uploadBlobs(String recordId, Map<Multihash, BlobDescriptor> wanted) throws IOException, ExecutionException, InterruptedException {
+        var receipts = new ConcurrentHashMap<Multihash, String>();
+        var sent = new ConcurrentHashMap<Long, Multihash>();
+        var errors = Collections.synchronizedList(new ArrayList<String>());
+        var window = new Semaphore(UPLOAD_WINDOW);
+        var done = new CompletableFuture<Void>();
+        var requests = GrpcClientService.getInstance().getProtoTransferServiceStub().uploadBlobs(new StreamObserver<>() {
+            @Override
+            public void onNext(UploadBlobsResponse value) {
+                var primaryHash = sent.remove(value.getSequenceId());
+                if (!value.getError().isEmpty()) {
+                    errors.add(primaryHash.toBase58() + ": " + value.getError());
+                } else {
+                    receipts.put(primaryHash, value.getTransferReceipt());
+                }
+                window.release();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                done.completeExceptionally(t);
+                // wake up the sender
+                window.release(UPLOAD_WINDOW);
+            }
+
+            @Override
+            public void onCompleted() {
+                done.complete(null);
+            }
+        });
+        try {
+            long sequenceId = 0;
+            for (var entry : wanted.entrySet()) {
+                var blob = entry.getValue().readBlob();
+                if (blob.getData().size() > BLOB_FRAME_SIZE) {
+                    receipts.put(entry.getKey(), this.uploadBlobStream(recordId, entry.getKey(), blob.getData()));
+                    continue;
+                }
+                window.acquire();
+                if (done.isDone()) {
+                    break;
+                }
+                sent.put(sequenceId, entry.getKey());
+                requests.onNext(UploadBlobsRequest.newBuilder()
+                        .setRecordUuid(recordId)
+                        .setSequenceId(sequenceId)
+                        .setPrimaryHash(ByteString.copyFrom(entry.getKey().toBytes()))
+                        .setBlobObj(blob)
+                        .build());
+                sequenceId++;
+            }
+            requests.onCompleted();
+        } catch (IOException | ExecutionException | InterruptedException | RuntimeException e) {
+            requests.onError(e);
+            throw e;
+        }
+        done.get();
+        if (!errors.isEmpty()) {
+            throw new IllegalStateException("Failed to upload " + errors.size() + " blobs, first: " + errors.get(0));
+        }
+        return receipts;
+    }
+
+    /**
+     * Upload a big blob in frames, so no message exceeds the size limit.
+     */
+    private String uploadBlobStream(String recordId, Multihash primaryHash, ByteString data) throws ExecutionException, InterruptedException {
+        var result = new CompletableFuture<TransferReceiptResponse>();
+        var frames = GrpcClientService.getInstance().getProtoTransferServiceStub().uploadBlobStream(new StreamObserver<>() {
+            @Override
+            public void onNext(TransferReceiptResponse value) {
+                result.complete(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        for (int offset = 0; offset < data.size(); offset += BLOB_FRAME_SIZE) {
+            var frame = UploadBlobFrame.newBuilder()
+                    .setData(data.substring(offset, Math.min(offset + BLOB_FRAME_SIZE, data.size())));
+            if (offset == 0) {
+                frame.setRecordUuid(recordId)
+                        .setPrimaryHash(ByteString.copyFrom(primaryHash.toBytes()))
+                        .setSize(data.size());
+            }
+            frames.onNext(frame.build());
+        }
+        frames.onCompleted();
+        return result.get().getTransferReceipt();
     }
 
     private AritegLink uploadList(String recordId, AritegListObject obj, String name) throws ExecutionException, InterruptedException {
@@ -112,37 +227,87 @@ public class TransferService {
         return link.getMultihash().toStringUtf8();
     }
 
-    private AritegLink proveBlobOwnership(String recordId, BlobDescriptor b, String name) {
-        try {
-            var result = this.getStub().proveOwnership(ProveOwnershipRequest.newBuilder()
-                    .setRecordUuid(recordId)
-                    .setPrimaryHash(ByteString.copyFrom(b.primaryHash().toBytes()))
-                    .setSecondaryHash(ByteString.copyFrom(this.secondaryHashProvider.digest(b.readBlob().toByteArray()).toBytes()))
-                    .setObjectType(AritegObjectType.BLOB)
-                    .build()).get();
-            var receipt = result.getTransferReceipt();
-            return AritegLink.newBuilder()
-                    .setType(AritegObjectType.BLOB)
-                    .setName(name)
-                    .setMultihash(ByteString.copyFrom(receipt, StandardCharsets.UTF_8))
-                    .build();
-        } catch (Exception e) {
-            return null;
-        }
+    private AritegLink receiptToLink(String receipt, String name) {
+        return AritegLink.newBuilder()
+                .setType(AritegObjectType.BLOB)
+                .setName(name)
+                .setMultihash(ByteString.copyFrom(receipt, StandardCharsets.UTF_8))
+                .build();
     }
 
-    private AritegLink sendBlob(String recordId, BlobDescriptor b, String name) throws IOException, ExecutionException, InterruptedException {
-        AritegLink result = this.proveBlobOwnership(recordId, b, name);
-        if (result == null) {
-            result = this.uploadBlob(recordId, b, name);
+    /**
+     * Send blobs of one record, return the links in the same order.
+     * The receipts known from earlier calls are reused, the others are
+     * negotiated in batches: the server tells which blobs it already has,
+     * and only the wanted ones are uploaded, over one stream per batch.
+     */
+    private List<AritegLink> sendBlobs(String recordId, List<BlobDescriptor> blobs, String name) throws IOException, ExecutionException, InterruptedException {
+        var receipts = new String[blobs.size()];
+        // distinct unknown blobs -> their indexes
+        var pending = new LinkedHashMap<Multihash, List<Integer>>();
+        for (int i = 0; i < blobs.size(); i++) {
+            var primaryHash = blobs.get(i).primaryHash();
+            var receipt = this.knownReceipts.get(recordId + ":" + primaryHash.toBase58());
+            if (receipt != null) {
+                receipts[i] = receipt;
+            } else {
+                pending.computeIfAbsent(primaryHash, k -> new ArrayList<>()).add(i);
+            }
+        }
+        var unknown = new ArrayList<>(pending.keySet());
+        for (int from = 0; from < unknown.size(); from += NEGOTIATE_BATCH_SIZE) {
+            var batch = unknown.subList(from, Math.min(from + NEGOTIATE_BATCH_SIZE, unknown.size()));
+            var request = NegotiateOwnershipRequest.newBuilder().setRecordUuid(recordId);
+            for (Multihash primaryHash : batch) {
+                var b = blobs.get(pending.get(primaryHash).get(0));
+                // reuse the secondary hash from slicing, only hash the file if unknown
+                var secondaryHash = b.secondaryHash() != null ? b.secondaryHash()
+                        : this.secondaryHashProvider.digest(b.readBlob().toByteArray());
+                request.addDigests(ProtoDigest.newBuilder()
+                        .setPrimaryHash(ByteString.copyFrom(primaryHash.toBytes()))
+                        .setSecondaryHash(ByteString.copyFrom(secondaryHash.toBytes()))
+                        .setObjectType(AritegObjectType.BLOB)
+                        .build());
+            }
+            var result = this.getStub().negotiateOwnership(request.build()).get();
+            if (result.getCollidedCount() > 0) {
+                throw new IllegalStateException("Hash collision detected: " + batch.get(result.getCollided(0)).toBase58());
+            }
+            var found = new HashMap<Multihash, String>();
+            for (OwnedProto have : result.getHaveList()) {
+                found.put(batch.get(have.getIndex()), have.getTransferReceipt());
+            }
+            var wanted = new LinkedHashMap<Multihash, BlobDescriptor>();
+            for (int index : result.getWantList()) {
+                var primaryHash = batch.get(index);
+                wanted.put(primaryHash, blobs.get(pending.get(primaryHash).get(0)));
+            }
+            if (!wanted.isEmpty()) {
+                found.putAll(this.uploadBlobs(recordId, wanted));
+            }
+            found.forEach((primaryHash, receipt) -> {
+                this.knownReceipts.put(recordId + ":" + primaryHash.toBase58(), receipt);
+                pending.get(primaryHash).forEach(i -> receipts[i] = receipt);
+            });
+        }
+        var links = new ArrayList<AritegLink>(blobs.size());
+        for (String receipt : receipts) {
+            links.add(this.receiptToLink(Objects.requireNonNull(receipt, "Blob not sent"), name));
         }
-        return result;
+        return links;
     }
 
-    public AritegBlobObject downloadBlob(String receipt) throws ExecutionException, InterruptedException {
-        return this.getStub().readBlob(ReadObjectRequest.newBuilder()
-                .setTransferReceipt(receipt)
-                .build()).get().getBlobObj();
+    public AritegBlobObject downloadBlob(String receipt) {
+        // in frames, big blobs won't exceed the message size limit
+        var frames = GrpcClientService.getInstance().getProtoTransferServiceBlockingStub()
+                .readBlobStream(ReadObjectRequest.newBuilder()
+                        .setTransferReceipt(receipt)
+                        .build());
+        var data = new ArrayList<ByteString>();
+        frames.forEachRemaining(frame -> data.add(frame.getData()));
+        return AritegBlobObject.newBuilder()
+                .setData(ByteString.copyFrom(data))
+                .build();
     }
 
     private AritegListObject downloadList(String receipt) throws ExecutionException, InterruptedException {
@@ -210,19 +375,16 @@ public class TransferService {
     public AritegLink sliceAndUploadFile(String recordId, File f) throws ExecutionException, InterruptedException, IOException {
         this.logger.info("Start slicing file: " + f);
         var slicer = this.getSlicer(f);
-        var linkList = new LinkedList<>(slicer.digestAsync(f)
+        var blobs = slicer.digestAsync(f)
                 .parallel()
                 .map(t -> {
-                    BlobDescriptor b;
-                    AritegLink link;
                     try {
-                        b = t.get();
-                        link = this.sendBlob(recordId, b, f.getName());
+                        return t.get();
                     } catch (Exception e) {
                         throw new RuntimeException(e);
                     }
-                    return link;
-                }).toList());
+                }).toList();
+        var linkList = new LinkedList<>(this.sendBlobs(recordId, blobs, f.getName()));
         this.logger.info("Uploading content finished. Start processing structure...");
         // make links into ListObjects
         int i = 0;
@@ -249,9 +411,9 @@ public class TransferService {
         // if this is an empty file
         if (linkList.size() == 0) {
             // upload an empty blob
-            linkList.add(this.sendBlob(recordId, new BlobDescriptor(
+            linkList.addAll(this.sendBlobs(recordId, List.of(new BlobDescriptor(
                     this.primaryHashProvider.digest(new byte[0]), f
-            ), f.getName()));
+            )), f.getName()));
         }
         this.logger.info("Finished on file: " + f);
         System.gc(); // suggest a jvm gc
@@ -289,6 +451,53 @@ public class TransferService {
         return this.uploadTree(recordId, treeObj, "");
     }
 
+    /**
+     * Download a tree into the folder, or a list or blob into the file,
+     * in one streaming call. The entries come in depth-first order, each
+     * folder before its content and the pieces of a file one by one.
+     */
+    public void downloadSubtree(String receipt, File target) throws Exception {
+        this.logger.info("Downloading into: " + target);
+        // cancel the call if failed in the middle
+        var context = Context.current().withCancellation();
+        try {
+            context.call(() -> {
+                var entries = GrpcClientService.getInstance().getProtoTransferServiceBlockingStub()
+                        .downloadSubtree(ReadObjectRequest.newBuilder()
+                                .setTransferReceipt(receipt)
+                                .build());
+                FileOutputStream output = null;
+                try {
+                    while (entries.hasNext()) {
+                        var entry = entries.next();
+                        var file = entry.getPath().isEmpty() ? target : new File(target, entry.getPath());
+                        if (entry.getObjectType() == AritegObjectType.TREE) {
+                            if (!file.exists() && !file.mkdirs()) {
+                                throw new IllegalStateException("Failed to create folder: " + file);
+                            }
+                            continue;
+                        }
+                        if (output == null) {
+                            output = new FileOutputStream(file);
+                        }
+                        output.write(entry.getData().toByteArray());
+                        if (entry.getEndOfFile()) {
+                            output.close();
+                            output = null;
+                        }
+                    }
+                } finally {
+                    if (output != null) {
+                        output.close();
+                    }
+                }
+                return null;
+            });
+        } finally {
+            context.cancel(null);
+        }
+    }
+
     public void downloadTreeIntoFolder(String receipt, File folder) throws ExecutionException, InterruptedException, IOException {
         this.logger.info("Downloading into folder: " + folder);
         var treeObj = this.downloadTree(receipt);
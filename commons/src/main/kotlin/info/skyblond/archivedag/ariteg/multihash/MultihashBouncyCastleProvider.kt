@@ -3,6 +3,7 @@ package info.skyblond.archivedag.ariteg.multihash
 import io.ipfs.multihash.Multihash
 import org.bouncycastle.crypto.Digest
 import java.io.InputStream
+import java.nio.ByteBuffer
 
 /**
  * This provider will use [java.security.MessageDigest] to calculate
@@ -38,4 +39,41 @@ class MultihashBouncyCastleProvider(
         digest.doFinal(output, 0)
         return Multihash(hashType, output)
     }
+
+    override fun digest(byteBuffer: ByteBuffer): Multihash {
+        val digest = provider()
+        val output = ByteArray(digest.digestSize)
+        if (byteBuffer.hasArray()) {
+            digest.update(
+                byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(),
+                byteBuffer.remaining()
+            )
+        } else {
+            // direct or mapped buffer, copy through a small buffer
+            val duplicate = byteBuffer.duplicate()
+            val buffer = ByteArray(minOf(duplicate.remaining(), 64 * 1024))
+            while (duplicate.hasRemaining()) {
+                val count = minOf(duplicate.remaining(), buffer.size)
+                duplicate.get(buffer, 0, count)
+                digest.update(buffer, 0, count)
+            }
+        }
+        digest.doFinal(output, 0)
+        return Multihash(hashType, output)
+    }
+
+    override fun newDigester(): MultihashDigester {
+        val digest = provider()
+        return object : MultihashDigester {
+            override fun update(byteArray: ByteArray, offset: Int, length: Int) {
+                digest.update(byteArray, offset, length)
+            }
+
+            override fun digest(): Multihash {
+                val output = ByteArray(digest.digestSize)
+                digest.doFinal(output, 0)
+                return Multihash(hashType, output)
+            }
+        }
+    }
 }
@@ -0,0 +1,22 @@
+package info.skyblond.archivedag.ariteg.multihash
+
+import io.ipfs.multihash.Multihash
+
+/**
+ * A stateful digester created by [MultihashProvider.newDigester].
+ * Bytes can be fed in multiple updates, so multiple digesters can
+ * share one pass over the same data.
+ *
+ * This is NOT thread safe, and can only be finished once.
+ * */
+interface MultihashDigester {
+    /**
+     * Feed [length] bytes of [byteArray] starting from [offset].
+     * */
+    fun update(byteArray: ByteArray, offset: Int, length: Int)
+
+    /**
+     * Finish the calculation and return the hash.
+     * */
+    fun digest(): Multihash
+}
@@ -2,6 +2,7 @@ package info.skyblond.archivedag.ariteg.multihash
 
 import io.ipfs.multihash.Multihash
 import java.io.InputStream
+import java.nio.ByteBuffer
 import java.security.MessageDigest
 
 /**
@@ -34,4 +35,22 @@ class MultihashJavaProvider(
         }
         return Multihash(hashType, digest.digest())
     }
+
+    override fun digest(byteBuffer: ByteBuffer): Multihash {
+        val digest = provider()
+        // use a duplicate, so the position of original buffer is untouched
+        digest.update(byteBuffer.duplicate())
+        return Multihash(hashType, digest.digest())
+    }
+
+    override fun newDigester(): MultihashDigester {
+        val digest = provider()
+        return object : MultihashDigester {
+            override fun update(byteArray: ByteArray, offset: Int, length: Int) {
+                digest.update(byteArray, offset, length)
+            }
+
+            override fun digest(): Multihash = Multihash(hashType, digest.digest())
+        }
+    }
 }
@@ -2,6 +2,7 @@ package info.skyblond.archivedag.ariteg.multihash
 
 import io.ipfs.multihash.Multihash
 import java.io.InputStream
+import java.nio.ByteBuffer
 
 /**
  * A multihash provider will handle all hash calculation,
@@ -31,4 +32,17 @@ interface MultihashProvider {
      * This method won't close that for you.
      * */
     fun digest(inputStream: InputStream, bufferSize: Int = 4096): Multihash
+
+    /**
+     * Calculate the hash of the remaining bytes in the given buffer.
+     * The position of the buffer won't be changed, so the caller
+     * can parse the same buffer after hashing.
+     * */
+    fun digest(byteBuffer: ByteBuffer): Multihash
+
+    /**
+     * Create a new stateful digester, so the caller can feed the bytes
+     * in pieces, or calculate multiple hashes in one pass.
+     * */
+    fun newDigester(): MultihashDigester
 }
@@ -5,9 +5,11 @@ import io.ipfs.multihash.Multihash.Type
 import org.bouncycastle.crypto.digests.Blake2bDigest
 import org.bouncycastle.crypto.digests.Blake2sDigest
 import java.io.InputStream
+import java.nio.ByteBuffer
 import java.security.MessageDigest
 
 object MultihashProviders {
+    private const val DIGEST_CHUNK_SIZE = 64 * 1024
 
     private fun generateJavaProvider(type: Type, algorithm: String): MultihashJavaProvider {
         return MultihashJavaProvider(type) {
@@ -43,6 +45,33 @@ object MultihashProviders {
             throw IllegalStateException("Multihash not match. Except " + expected.toBase58() + ", but get: " + target.toBase58())
     }
 
+    @JvmStatic
+    fun mustMatch(expected: Multihash, byteBuffer: ByteBuffer) {
+        val provider = fromMultihashType(expected.type)
+        val target = provider.digest(byteBuffer)
+        if (expected != target)
+            throw IllegalStateException("Multihash not match. Except " + expected.toBase58() + ", but get: " + target.toBase58())
+    }
+
+    /**
+     * Calculate the hashes of [byteArray] using all [providers] in one pass.
+     * The bytes are fed chunk by chunk to every digester, so each chunk is
+     * still in the CPU cache when the next algorithm reads it.
+     *
+     * The result is in the same order as [providers].
+     * */
+    @JvmStatic
+    fun digestAll(byteArray: ByteArray, vararg providers: MultihashProvider): List<Multihash> {
+        val digesters = providers.map { it.newDigester() }
+        var offset = 0
+        while (offset < byteArray.size) {
+            val length = minOf(DIGEST_CHUNK_SIZE, byteArray.size - offset)
+            digesters.forEach { it.update(byteArray, offset, length) }
+            offset += length
+        }
+        return digesters.map { it.digest() }
+    }
+
     @JvmStatic
     fun fromMultihashType(type: Type): MultihashProvider = when (type) {
         Type.sha3_256 -> generateJavaProvider(Type.sha3_256, "SHA3-256")
@@ -5,6 +5,8 @@ import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertDoesNotThrow
 import org.junit.jupiter.api.assertThrows
+import java.nio.ByteBuffer
+import kotlin.random.Random
 
 internal class MultihashProvidersTest {
     // Type -> Empty hash (base58)
@@ -39,6 +41,37 @@ internal class MultihashProvidersTest {
         }
     }
 
+    @Test
+    fun testDigestByteBuffer() {
+        val content = Random.nextBytes(200 * 1024)
+        emptySamples.keys.forEach { type ->
+            val provider = MultihashProviders.fromMultihashType(type)
+            val expected = provider.digest(content)
+            // heap buffer with offset
+            val heapBuffer = ByteBuffer.wrap(ByteArray(content.size + 16), 8, content.size).slice()
+            heapBuffer.duplicate().put(content)
+            assertEquals(expected, provider.digest(heapBuffer))
+            assertEquals(0, heapBuffer.position())
+            // direct buffer
+            val directBuffer = ByteBuffer.allocateDirect(content.size)
+            directBuffer.duplicate().put(content)
+            assertEquals(expected, provider.digest(directBuffer))
+            assertEquals(0, directBuffer.position())
+            assertDoesNotThrow { MultihashProviders.mustMatch(expected, directBuffer) }
+        }
+    }
+
+    @Test
+    fun testDigestAll() {
+        val providers = emptySamples.keys.map { MultihashProviders.fromMultihashType(it) }.toTypedArray()
+        // empty, smaller than one chunk, and across multiple chunks
+        listOf(0, 1024, 200 * 1024 + 7).forEach { size ->
+            val content = Random.nextBytes(size)
+            val result = MultihashProviders.digestAll(content, *providers)
+            assertEquals(providers.map { it.digest(content) }, result)
+        }
+    }
+
     @Test
     fun testMustMatchEmptyArray() {
         val emptyByteArray = ByteArray(0)